@@ -224,6 +224,20 @@ public final class Buffer {
 		return this;
 	}
 
+	/**
+	 * Append a {@link LuaBaseString} to the buffer, without converting it into a {@link LuaString} first.
+	 *
+	 * @param str The string to append
+	 * @return {@code this} to allow call chaining
+	 */
+	public final Buffer append(LuaBaseString str) {
+		final int n = str.length();
+		makeRoom(0, n);
+		str.copyTo(0, bytes, offset + length, n);
+		length += n;
+		return this;
+	}
+
 	/**
 	 * Append a Java String to the buffer.
 	 * The Java string will be converted to bytes by limiting between 0 and 255
@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+/**
+ * A polymorphic inline cache for table lookups with a constant string key.
+ *
+ * Rather than caching the table being indexed, we remember which hash slot the key was found in, along with the key
+ * instance stored in that slot. A cached entry is valid for any table which has that exact key object in that slot,
+ * which means it remains valid when the table is rehashed or nodes are moved, and is shared between tables built
+ * the same way (such as objects created by the same constructor). As keys are unique within a table, a stale entry
+ * simply fails to match and the lookup falls back to walking the hash chain.
+ *
+ * Tables with a {@link Shape} are cached by their shape instead, along with the slot the key lives at, or {@code -1} if
+ * the shape does not contain the key. As shapes are immutable, this also allows caching failed lookups.
+ *
+ * Metatable {@code __index} chains are handled by consulting the cache for each table visited, so method lookups on
+ * a "class" table are cached too.
+ *
+ * Caches are shared between threads without synchronisation. Each remembered slot is published as a single immutable
+ * {@link Entry}, so a racing thread may lose an entry, but will never see a slot paired with another entry's key or
+ * shape. Hash slots are additionally validated against the table before being used.
+ *
+ * @see Prototype#caches
+ * @see OperationHelper#getTable(LuaState, LuaValue, LuaString, int, InlineCache)
+ */
+public final class InlineCache {
+	/**
+	 * The maximum number of slots we remember.
+	 */
+	static final int SIZE = 4;
+
+	final Entry[] entries = new Entry[SIZE];
+	private int next;
+
+	InlineCache() {
+	}
+
+	/**
+	 * Remember that this key was found in the given slot.
+	 *
+	 * @param slot The slot the key was found in, or {@code -1} if absent from a shape.
+	 * @param key  The key instance stored in this slot, or the {@link Shape} of the table.
+	 */
+	void put(int slot, Object key) {
+		int index = next;
+		next = (index + 1) & (SIZE - 1);
+		entries[index] = new Entry(slot, key);
+	}
+
+	/**
+	 * A single remembered lookup.
+	 */
+	static final class Entry {
+		final int slot;
+		final Object key;
+
+		private Entry(int slot, Object key) {
+			this.slot = slot;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Get the cache for a particular instruction, creating it if needed.
+	 *
+	 * @param p  The prototype this instruction belongs to
+	 * @param pc The instruction's index
+	 * @return The cache for this instruction.
+	 */
+	public static InlineCache get(Prototype p, int pc) {
+		InlineCache[] caches = p.caches;
+		if (caches == null) p.caches = caches = new InlineCache[p.code.length];
+
+		InlineCache cache = caches[pc];
+		if (cache == null) caches[pc] = cache = new InlineCache();
+		return cache;
+	}
+}
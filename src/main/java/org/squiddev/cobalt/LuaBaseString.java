@@ -169,6 +169,43 @@ public abstract class LuaBaseString extends LuaValue {
 
 	public abstract int length();
 
+	/**
+	 * Get the byte at a position in this string.
+	 *
+	 * @param index The index of the byte, starting from 0.
+	 * @return The byte, as an unsigned value between 0 and 255.
+	 */
+	public abstract int luaByte(int index);
+
+	/**
+	 * Get a portion of this string.
+	 *
+	 * @param beginIndex The first index in the string, inclusive.
+	 * @param endIndex   The last index in the string, exclusive.
+	 * @return The substring.
+	 */
+	public abstract LuaString substring(int beginIndex, int endIndex);
+
+	/**
+	 * Find the index of a string starting at a point in this string
+	 *
+	 * @param s     the string to search for
+	 * @param start the first index in the string
+	 * @return index of first match found, or -1 if not found.
+	 */
+	public abstract int indexOf(LuaString s, int start);
+
+	/**
+	 * Copy the bytes of the string into the given byte array.
+	 *
+	 * @param strOffset   offset from which to copy
+	 * @param bytes       destination byte array
+	 * @param arrayOffset offset in destination
+	 * @param len         number of bytes to copy
+	 * @return The next byte free
+	 */
+	public abstract int copyTo(int strOffset, byte[] bytes, int arrayOffset, int len);
+
 	/**
 	 * Convert to a number in a base, or return Double.NaN if not a number.
 	 *
@@ -1,28 +1,63 @@
 package org.squiddev.cobalt;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public final class LuaRope extends LuaBaseString {
 	private static final int SMALL_STRING = 32;
 
+	/**
+	 * The maximum depth of a rope before it is rebalanced. Loops of the form {@code s = s .. x} build left-leaning
+	 * ropes, which gain one level per iteration.
+	 */
+	private static final int MAX_DEPTH = 32;
+
+	/**
+	 * When rebalancing, runs of smaller segments are merged into a single string of at least this length.
+	 */
+	private static final int LEAF_SIZE = 512;
+
+	/**
+	 * The number of children of each node in a rebalanced rope.
+	 */
+	private static final int BRANCH_FACTOR = 8;
+
 	private LuaString string;
 	private LuaBaseString[] contents;
 	private final int length;
+	private final int depth;
+
+	/**
+	 * Whether this is a complete node built by {@link #rebalance(LuaRope)}. These are never split apart when
+	 * rebalancing again.
+	 */
+	private final boolean balanced;
 
 	private LuaRope parent;
 	private int index;
 
-	private LuaRope(LuaBaseString[] contents, int length) {
+	private LuaRope(LuaBaseString[] contents, int length, int depth, boolean balanced) {
 		this.contents = contents;
 		this.length = length;
+		this.depth = depth;
+		this.balanced = balanced;
 	}
 
 	public static LuaBaseString valueOf(LuaValue[] contents, int start, int length, int strLength) {
 		if (length == 0 || strLength == 0) return Constants.EMPTYSTRING;
-		if (length == 1) return (LuaBaseString) contents[0];
+		if (length == 1) return (LuaBaseString) contents[start];
 
 		if (strLength > SMALL_STRING) {
 			LuaBaseString[] slice = new LuaBaseString[length];
-			System.arraycopy(contents, start, slice, 0, length);
-			return new LuaRope(slice, strLength);
+			int depth = 0;
+			for (int i = 0; i < length; i++) {
+				LuaBaseString child = slice[i] = (LuaBaseString) contents[start + i];
+				depth = Math.max(depth, depthOf(child));
+			}
+
+			LuaRope rope = new LuaRope(slice, strLength, depth + 1, false);
+			return rope.depth > MAX_DEPTH ? rebalance(rope) : rope;
 		}
 
 		byte[] out = new byte[strLength];
@@ -36,6 +71,119 @@ public final class LuaRope extends LuaBaseString {
 		return LuaString.valueOf(out);
 	}
 
+	private static int depthOf(LuaBaseString string) {
+		if (!(string instanceof LuaRope)) return 0;
+		LuaRope rope = (LuaRope) string;
+		return rope.contents == null ? 0 : rope.depth;
+	}
+
+	/**
+	 * Rebuild a rope as a balanced tree.
+	 *
+	 * Small segments are merged together, so repeatedly appending to a string does not leave a node for every
+	 * concatenation. Subtrees built by a previous rebalance are reused as-is, so only the newly appended part of the rope
+	 * needs to be visited.
+	 *
+	 * @param rope The rope to rebalance.
+	 * @return The rebalanced rope, or a string if it only has a single segment.
+	 */
+	private static LuaBaseString rebalance(LuaRope rope) {
+		Rebalancer rebalancer = new Rebalancer();
+		rebalancer.add(rope);
+		return rebalancer.build();
+	}
+
+	private static LuaRope node(List<LuaBaseString> children, boolean balanced) {
+		int length = 0, depth = 0;
+		for (LuaBaseString child : children) {
+			length += child.length();
+			depth = Math.max(depth, depthOf(child));
+		}
+		return new LuaRope(children.toArray(new LuaBaseString[0]), length, depth + 1, balanced);
+	}
+
+	private static final class Rebalancer {
+		private final List<LuaBaseString> stack = new ArrayList<>();
+		private byte[] pending;
+		private int pendingLength;
+
+		void add(LuaBaseString string) {
+			if (string instanceof LuaRope) {
+				LuaRope rope = (LuaRope) string;
+				if (rope.string != null) {
+					addString(rope.string);
+				} else if (rope.balanced) {
+					flush();
+					push(rope);
+				} else {
+					for (LuaBaseString child : rope.contents) add(child);
+				}
+			} else {
+				addString((LuaString) string);
+			}
+		}
+
+		private void addString(LuaString string) {
+			if (string.length >= LEAF_SIZE) {
+				flush();
+				push(string);
+				return;
+			}
+
+			if (pending == null) pending = new byte[LEAF_SIZE * 2];
+			pendingLength = string.copyTo(pending, pendingLength);
+			if (pendingLength >= LEAF_SIZE) flush();
+		}
+
+		private void flush() {
+			if (pendingLength == 0) return;
+			push(LuaString.valueOf(Arrays.copyOf(pending, pendingLength)));
+			pendingLength = 0;
+		}
+
+		/**
+		 * Push a node onto the stack. Whenever the top of the stack holds {@link #BRANCH_FACTOR} nodes of the same
+		 * depth, they are replaced by a single balanced node.
+		 *
+		 * @param node The node to push.
+		 */
+		private void push(LuaBaseString node) {
+			List<LuaBaseString> stack = this.stack;
+			stack.add(node);
+
+			int size;
+			merge:
+			while ((size = stack.size()) >= BRANCH_FACTOR) {
+				int depth = depthOf(stack.get(size - 1));
+				for (int i = size - BRANCH_FACTOR; i < size - 1; i++) {
+					if (depthOf(stack.get(i)) != depth) break merge;
+				}
+
+				List<LuaBaseString> children = stack.subList(size - BRANCH_FACTOR, size);
+				LuaRope parent = node(children, true);
+				children.clear();
+				stack.add(parent);
+			}
+		}
+
+		LuaBaseString build() {
+			// The trailing segment is left out of any balanced node, so it can be merged with later appends.
+			List<LuaBaseString> nodes = stack;
+			if (pendingLength > 0) nodes.add(LuaString.valueOf(Arrays.copyOf(pending, pendingLength)));
+
+			while (nodes.size() > 1) {
+				List<LuaBaseString> parents = new ArrayList<>((nodes.size() + BRANCH_FACTOR - 1) / BRANCH_FACTOR);
+				for (int i = 0; i < nodes.size(); i += BRANCH_FACTOR) {
+					List<LuaBaseString> children = nodes.subList(i, Math.min(i + BRANCH_FACTOR, nodes.size()));
+					parents.add(children.size() == 1 ? children.get(0) : node(children, false));
+				}
+				nodes = parents;
+			}
+
+			return nodes.get(0);
+		}
+	}
+
 	@Override
 	public LuaString strvalue() {
 		return string != null ? string : actualise(this);
@@ -92,14 +240,179 @@ public final class LuaRope extends LuaBaseString {
 		return current.string = LuaString.valueOf(out);
 	}
 
+	/**
+	 * Append the segments of this rope to a list, without converting it into a single string.
+	 *
+	 * @param out The list to append to.
+	 */
+	public void segments(List<LuaString> out) {
+		if (string != null) {
+			out.add(string);
+			return;
+		}
+
+		for (LuaBaseString child : contents) {
+			if (child instanceof LuaRope) {
+				((LuaRope) child).segments(out);
+			} else {
+				out.add((LuaString) child);
+			}
+		}
+	}
+
 	@Override
 	public int length() {
 		return length;
 	}
 
+	@Override
+	public int luaByte(int index) {
+		LuaRope rope = this;
+		while (rope.string == null) {
+			LuaBaseString child = null;
+			for (LuaBaseString next : rope.contents) {
+				child = next;
+				int childLength = child.length();
+				if (index < childLength) break;
+				index -= childLength;
+			}
+
+			if (!(child instanceof LuaRope)) return ((LuaString) child).luaByte(index);
+			rope = (LuaRope) child;
+		}
+
+		return rope.string.luaByte(index);
+	}
+
+	@Override
+	public LuaString substring(int beginIndex, int endIndex) {
+		if (string != null) return string.substring(beginIndex, endIndex);
+
+		// If this range lies entirely within one child, then defer to that. Otherwise we just copy the range.
+		int offset = 0;
+		for (LuaBaseString child : contents) {
+			int childLength = child.length();
+			if (beginIndex < offset + childLength) {
+				if (endIndex <= offset + childLength) return child.substring(beginIndex - offset, endIndex - offset);
+				break;
+			}
+			offset += childLength;
+		}
+
+		byte[] out = new byte[endIndex - beginIndex];
+		copyTo(beginIndex, out, 0, out.length);
+		return LuaString.valueOf(out);
+	}
+
+	@Override
+	public int copyTo(int strOffset, byte[] bytes, int arrayOffset, int len) {
+		if (string != null) return string.copyTo(strOffset, bytes, arrayOffset, len);
+
+		int end = arrayOffset + len;
+		for (LuaBaseString child : contents) {
+			if (len == 0) break;
+
+			int childLength = child.length();
+			if (strOffset >= childLength) {
+				strOffset -= childLength;
+				continue;
+			}
+
+			int n = Math.min(len, childLength - strOffset);
+			arrayOffset = child.copyTo(strOffset, bytes, arrayOffset, n);
+			strOffset = 0;
+			len -= n;
+		}
+
+		return end;
+	}
+
+	@Override
+	public int indexOf(LuaString s, int start) {
+		if (string != null) return string.indexOf(s, start);
+
+		final int slen = s.length;
+		if (start > length - slen) return -1;
+		if (slen == 0) return start;
+
+		return new Search(s, start).find(this);
+	}
+
+	/**
+	 * Searches for a string within a rope, visiting each segment in turn.
+	 *
+	 * We use Knuth-Morris-Pratt, as it never needs to look back at previous bytes, and so matches which span several
+	 * segments are found without flattening the rope.
+	 */
+	private static final class Search {
+		private final byte[] pattern;
+		private final int patternOffset;
+		private final int patternLength;
+		private final int[] fallback;
+		private final int start;
+
+		private int position;
+		private int matched;
+
+		Search(LuaString pattern, int start) {
+			this.pattern = pattern.bytes;
+			this.patternOffset = pattern.offset;
+			this.patternLength = pattern.length;
+			this.start = start;
+
+			int[] fallback = this.fallback = new int[patternLength];
+			for (int i = 1, k = 0; i < patternLength; i++) {
+				while (k > 0 && this.pattern[patternOffset + i] != this.pattern[patternOffset + k]) k = fallback[k - 1];
+				if (this.pattern[patternOffset + i] == this.pattern[patternOffset + k]) k++;
+				fallback[i] = k;
+			}
+		}
+
+		int find(LuaBaseString node) {
+			int length = node.length();
+			if (position + length <= start) {
+				// Skip anything before the start without visiting it.
+				position += length;
+				return -1;
+			}
+
+			LuaString string;
+			if (node instanceof LuaRope) {
+				LuaRope rope = (LuaRope) node;
+				if (rope.string == null) {
+					for (LuaBaseString child : rope.contents) {
+						int result = find(child);
+						if (result != -1) return result;
+					}
+					return -1;
+				}
+
+				string = rope.string;
+			} else {
+				string = (LuaString) node;
+			}
+
+			final byte[] pattern = this.pattern, bytes = string.bytes;
+			final int patternOffset = this.patternOffset, patternLength = this.patternLength, offset = string.offset;
+			final int[] fallback = this.fallback;
+			int matched = this.matched;
+			for (int i = Math.max(0, start - position); i < length; i++) {
+				byte b = bytes[offset + i];
+				while (matched > 0 && pattern[patternOffset + matched] != b) matched = fallback[matched - 1];
+				if (pattern[patternOffset + matched] == b && ++matched == patternLength) {
+					return position + i - patternLength + 1;
+				}
+			}
+
+			this.matched = matched;
+			position += length;
+			return -1;
+		}
+	}
+
 	@Override
 	public double scanNumber(int base) {
-		return string.scanNumber(base);
+		return strvalue().scanNumber(base);
 	}
 
 	@Override
@@ -27,6 +27,7 @@ package org.squiddev.cobalt;
 import org.squiddev.cobalt.compiler.LoadState;
 import org.squiddev.cobalt.compiler.LuaC;
 import org.squiddev.cobalt.debug.DebugHandler;
+import org.squiddev.cobalt.lib.StringCaches;
 import org.squiddev.cobalt.lib.platform.FileResourceManipulator;
 import org.squiddev.cobalt.lib.platform.ResourceManipulator;
 
@@ -36,6 +37,7 @@ import java.util.Random;
 import java.util.TimeZone;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -107,11 +109,40 @@ public final class LuaState {
 	 */
 	public final TimeZone timezone;
 
+	/**
+	 * Whether numeric temporaries and loop variables should be kept unboxed.
+	 *
+	 * @see Builder#numericRegisters(boolean)
+	 */
+	public final boolean numericRegisters;
+
+	/**
+	 * The number of times a function must be called (or loop) before it is compiled to JVM bytecode. A negative value
+	 * disables compilation.
+	 *
+	 * @see Builder#compileThreshold(int)
+	 */
+	public final int compileThreshold;
+
+	/**
+	 * The table used to intern the string constants of chunks loaded in this state. Constants are interned when the
+	 * chunk is compiled, so compilers which share prototypes between states may use the
+	 * {@linkplain StringTable#global() global table} instead.
+	 *
+	 * @see Builder#stringTable(StringTable)
+	 */
+	public final StringTable strings;
+
 	/**
 	 * The random instance for this state.
 	 */
 	public Random random;
 
+	/**
+	 * Compiled patterns and format strings used by the string library. These are not thread safe, so are never shared between states.
+	 */
+	public final StringCaches stringCaches = new StringCaches();
+
 	/**
 	 * The currently executing thread
 	 */
@@ -157,6 +188,9 @@ public final class LuaState {
 		this.random = builder.random;
 		this.debug = builder.debug;
 		this.timezone = builder.timezone;
+		this.numericRegisters = builder.numericRegisters;
+		this.compileThreshold = builder.compileThreshold;
+		this.strings = builder.strings;
 		this.threader = new YieldThreader(builder.coroutineExecutor);
 		this.globalTable = builder.globalTable;
 	}
@@ -217,11 +251,7 @@ public final class LuaState {
 	 */
 	public static class Builder {
 		private static final AtomicInteger coroutineCount = new AtomicInteger();
-		private static final Executor defaultCoroutineExecutor = Executors.newCachedThreadPool(command -> {
-			Thread thread = new Thread(command, "Coroutine-" + coroutineCount.getAndIncrement());
-			thread.setDaemon(true);
-			return thread;
-		});
+		private static final Executor defaultCoroutineExecutor = createDefaultExecutor();
 
 		private InputStream stdin = System.in;
 		private PrintStream stdout = System.out;
@@ -238,6 +268,40 @@ public final class LuaState {
 		private TimeZone timezone = TimeZone.getDefault();
 		private Executor coroutineExecutor = defaultCoroutineExecutor;
 		private LuaTable globalTable = new LuaTable();
+		private boolean numericRegisters = false;
+		private int compileThreshold = -1;
+		private StringTable strings = StringTable.global();
+
+		/**
+		 * Create an executor which runs each task on a new virtual thread.
+		 *
+		 * @return The created executor, or {@code null} if virtual threads are not supported by this JVM.
+		 */
+		static Executor createVirtualExecutor() {
+			ThreadFactory factory;
+			try {
+				// Thread.ofVirtual().name("Coroutine-", 0).factory(), but we compile against Java 8.
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+				virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, "Coroutine-", 0L);
+				factory = (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+			} catch (ReflectiveOperationException | LinkageError e) {
+				return null;
+			}
+
+			return command -> factory.newThread(command).start();
+		}
+
+		private static Executor createDefaultExecutor() {
+			Executor executor = createVirtualExecutor();
+			if (executor != null) return executor;
+
+			return Executors.newCachedThreadPool(command -> {
+				Thread thread = new Thread(command, "Coroutine-" + coroutineCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
 
 		/**
 		 * Build a Lua state from this builder
@@ -404,7 +468,11 @@ public final class LuaState {
 
 
 		/**
-		 * Set the coroutine executor for this state.
+		 * Set the coroutine executor for this state. This is used to run coroutines which yield from within a Java
+		 * function, each of which will block a thread while suspended.
+		 *
+		 * On Java 21 and later, this defaults to running each coroutine on a new virtual thread, so suspended
+		 * coroutines do not consume an OS thread. Otherwise it defaults to a shared cached thread pool.
 		 *
 		 * @param coroutineExecutor The new executor
 		 * @return This builder
@@ -426,5 +494,48 @@ public final class LuaState {
 			this.globalTable = table;
 			return this;
 		}
+
+		/**
+		 * Keep numeric temporaries and {@code for} loop variables in unboxed registers, rather than allocating a
+		 * {@link LuaNumber} for each intermediate value.
+		 *
+		 * This relies on the bytecode having been produced by Cobalt's own compiler, and so should not be enabled
+		 * when loading arbitrary precompiled chunks.
+		 *
+		 * @param numericRegisters Whether to use unboxed numeric registers
+		 * @return This builder
+		 */
+		public Builder numericRegisters(boolean numericRegisters) {
+			this.numericRegisters = numericRegisters;
+			return this;
+		}
+
+		/**
+		 * Compile functions to JVM bytecode once they have been called, or have looped, this many times. Compiled
+		 * functions behave identically to interpreted ones, including debug hooks and yielding.
+		 *
+		 * This is disabled by default, as it requires being able to define classes at runtime. It has no effect on
+		 * functions using {@link #numericRegisters(boolean)}.
+		 *
+		 * @param compileThreshold The compilation threshold, or a negative value to disable compilation.
+		 * @return This builder
+		 */
+		public Builder compileThreshold(int compileThreshold) {
+			this.compileThreshold = compileThreshold;
+			return this;
+		}
+
+		/**
+		 * Set the table used to intern string constants of chunks loaded by this state. This defaults to the
+		 * {@linkplain StringTable#global() global table}, meaning constants are shared with other states.
+		 *
+		 * @param strings The new string table.
+		 * @return This builder
+		 */
+		public Builder stringTable(StringTable strings) {
+			if (strings == null) throw new NullPointerException("strings cannot be null");
+			this.strings = strings;
+			return this;
+		}
 	}
 }
@@ -0,0 +1,601 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.squiddev.cobalt.debug.DebugHook;
+import org.squiddev.cobalt.debug.DebugState;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.squiddev.cobalt.Constants.NIL;
+
+/**
+ * A bounded pool of {@link LuaState}s, allowing many independent scripts to be run concurrently.
+ *
+ * All states are built up front, each from a fresh {@link LuaState.Builder}. When a state is returned to the pool its
+ * globals, the library tables stored in them, {@code package.loaded}, the state's metatables, the main thread's debug
+ * hook and the state's random number generator are reset to a snapshot taken when the state was built, so scripts
+ * cannot observe each other's changes. Deeper changes (such as modifying a table nested within a library) are not
+ * undone. Resetting the random number generator undoes {@code math.randomseed}, but does not rewind the generator,
+ * so successive scripts see different random numbers. Other settings, such as the state's compiler, are fixed when
+ * the state is built.
+ *
+ * States which are discarded (see {@link PooledState#invalidate()}) are replaced when the pool next runs out of idle
+ * states. If creating the replacement fails, the error is thrown to the thread acquiring the state and creation is
+ * retried on the next acquisition, so the pool never shrinks.
+ *
+ * A state is only ever used by one thread at a time. Threads may either {@link #acquire()} a state directly, or
+ * {@link #submit(Task)} a task to be run on one of the pool's worker threads:
+ *
+ * <pre> {@code
+ * try (LuaStatePool pool = LuaStatePool.builder().size(4).build()) {
+ *     Future<Varargs> result = pool.submit((state, globals) ->
+ *         LuaThread.runMain(state, LoadState.load(state, input, "main.lua", globals)));
+ * }
+ * } </pre>
+ */
+public final class LuaStatePool implements AutoCloseable {
+	private static final AtomicInteger poolCount = new AtomicInteger();
+
+	private final Supplier<LuaState.Builder> builder;
+	private final Function<LuaState, LuaTable> globals;
+	private final int size;
+	private final int id = poolCount.getAndIncrement();
+
+	private final List<PooledState> states;
+	private final Deque<PooledState> idle;
+	private final Semaphore permits;
+
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder failedCreations = new LongAdder();
+	private final LongAdder totalWait = new LongAdder();
+	private final AtomicLong maxWait = new AtomicLong();
+
+	private ExecutorService executor;
+	private volatile boolean closed;
+
+	private LuaStatePool(Builder builder) {
+		this.builder = builder.builder;
+		this.globals = builder.globals;
+		this.size = builder.size;
+
+		PooledState[] states = new PooledState[size];
+		for (int i = 0; i < size; i++) states[i] = create();
+
+		this.states = new CopyOnWriteArrayList<>(states);
+		this.idle = new ConcurrentLinkedDeque<>(this.states);
+		this.permits = new Semaphore(size);
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	private PooledState create() {
+		LuaState state = builder.get().build();
+		LuaTable table = globals.apply(state);
+		if (state.getMainThread() == null) state.setupThread(table);
+		return new PooledState(this, state, table);
+	}
+
+	/**
+	 * Take a state from the pool, waiting until one is available.
+	 *
+	 * @return The acquired state. This must be {@linkplain PooledState#close() closed} once finished with.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public PooledState acquire() throws InterruptedException {
+		checkOpen();
+		long start = System.nanoTime();
+		permits.acquire();
+		return acquired(start);
+	}
+
+	/**
+	 * Take a state from the pool, waiting up to the given time for one to become available.
+	 *
+	 * @param timeout The maximum time to wait
+	 * @param unit    The unit of {@code timeout}
+	 * @return The acquired state, or {@code null} if none became available in time.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public PooledState tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		checkOpen();
+		long start = System.nanoTime();
+		return permits.tryAcquire(timeout, unit) ? acquired(start) : null;
+	}
+
+	/**
+	 * Take an idle state once a permit has been acquired, creating one if a previous state was discarded.
+	 *
+	 * @param start The time we started waiting for a permit.
+	 * @return The acquired state.
+	 */
+	private PooledState acquired(long start) {
+		long wait = System.nanoTime() - start;
+
+		PooledState state = idle.pollFirst();
+		if (state == null) {
+			try {
+				state = create();
+			} catch (RuntimeException | Error e) {
+				failedCreations.increment();
+				permits.release();
+				throw e;
+			}
+			states.add(state);
+		}
+
+		state.acquire(wait);
+
+		acquisitions.increment();
+		totalWait.add(wait);
+		long max;
+		while (wait > (max = maxWait.get()) && !maxWait.compareAndSet(max, wait)) {
+			// Retry until we succeed or another thread has waited longer.
+		}
+
+		return state;
+	}
+
+	private void release(PooledState state) {
+		boolean reusable = false;
+		try {
+			reusable = state.valid && !closed && state.reset();
+		} finally {
+			if (reusable) {
+				idle.addFirst(state);
+			} else {
+				// Discard this state. A replacement will be created when one is next needed.
+				state.state.abandon();
+				states.remove(state);
+			}
+
+			permits.release();
+		}
+	}
+
+	/**
+	 * Run a task on one of this pool's worker threads, using a state from the pool.
+	 *
+	 * At most {@link #getSize()} tasks will run at once. If a task throws anything other than a {@link LuaError}, its
+	 * state is discarded and replaced with a fresh one.
+	 *
+	 * @param task The task to run.
+	 * @param <T>  The result of this task.
+	 * @return A future which will be completed with the task's result.
+	 */
+	public <T> CompletableFuture<T> submit(Task<T> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		executor().execute(() -> {
+			PooledState state;
+			try {
+				state = acquire();
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+				return;
+			}
+
+			try {
+				result.complete(task.run(state.state, state.globals));
+			} catch (Throwable e) {
+				if (!(e instanceof LuaError)) state.invalidate();
+				result.completeExceptionally(e);
+			} finally {
+				state.close();
+			}
+		});
+		return result;
+	}
+
+	private synchronized ExecutorService executor() {
+		checkOpen();
+		ExecutorService executor = this.executor;
+		if (executor == null) {
+			AtomicInteger count = new AtomicInteger();
+			this.executor = executor = Executors.newFixedThreadPool(size, command -> {
+				Thread thread = new Thread(command, "LuaStatePool-" + id + "-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	private void checkOpen() {
+		if (closed) throw new IllegalStateException("Pool is closed");
+	}
+
+	/**
+	 * Shut down this pool. Idle states are abandoned immediately, and states currently in use are abandoned once they
+	 * are released.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			if (executor != null) executor.shutdown();
+		}
+
+		PooledState state;
+		while ((state = idle.pollFirst()) != null) state.state.abandon();
+	}
+
+	/**
+	 * @return The maximum number of states in this pool.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of states not currently in use.
+	 */
+	public int getIdleCount() {
+		return permits.availablePermits();
+	}
+
+	/**
+	 * @return The number of times a state has been acquired from this pool.
+	 */
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	/**
+	 * @return The number of times creating a replacement for a discarded state has failed.
+	 */
+	public long getFailedCreations() {
+		return failedCreations.sum();
+	}
+
+	/**
+	 * @return The total time spent waiting for a state, in nanoseconds.
+	 */
+	public long getTotalWaitNanos() {
+		return totalWait.sum();
+	}
+
+	/**
+	 * @return The longest time spent waiting for a state, in nanoseconds.
+	 */
+	public long getMaxWaitNanos() {
+		return maxWait.get();
+	}
+
+	/**
+	 * Get all states currently owned by this pool, for instance to inspect their statistics.
+	 *
+	 * @return An immutable view of this pool's states.
+	 */
+	public List<PooledState> getStates() {
+		return Collections.unmodifiableList(new ArrayList<>(states));
+	}
+
+	/**
+	 * A task to run with a pooled state.
+	 *
+	 * @param <T> The result of this task.
+	 * @see #submit(Task)
+	 */
+	@FunctionalInterface
+	public interface Task<T> {
+		T run(LuaState state, LuaTable globals) throws Exception;
+	}
+
+	/**
+	 * A {@link LuaState} owned by a pool, along with its globals and usage statistics.
+	 */
+	public static final class PooledState implements AutoCloseable {
+		private final LuaStatePool pool;
+		private final LuaState state;
+		private final LuaTable globals;
+		private final Snapshot snapshot;
+
+		private volatile boolean inUse;
+		private volatile boolean valid = true;
+		private volatile int uses;
+		private volatile long lastWait;
+		private volatile long totalWait;
+
+		private PooledState(LuaStatePool pool, LuaState state, LuaTable globals) {
+			this.pool = pool;
+			this.state = state;
+			this.globals = globals;
+			this.snapshot = new Snapshot(state, globals);
+		}
+
+		private void acquire(long wait) {
+			inUse = true;
+			uses++;
+			lastWait = wait;
+			totalWait += wait;
+		}
+
+		private boolean reset() {
+			LuaThread main = state.getMainThread();
+			if (main != null && main.getStatus().equals("suspended")) return false;
+
+			snapshot.restore(state);
+			return true;
+		}
+
+		public LuaState getState() {
+			return state;
+		}
+
+		public LuaTable getGlobals() {
+			return globals;
+		}
+
+		/**
+		 * @return The number of times this state has been acquired.
+		 */
+		public int getUses() {
+			return uses;
+		}
+
+		/**
+		 * @return The time spent waiting for this state when it was last acquired, in nanoseconds.
+		 */
+		public long getLastWaitNanos() {
+			return lastWait;
+		}
+
+		/**
+		 * @return The total time spent waiting for this state, in nanoseconds.
+		 */
+		public long getTotalWaitNanos() {
+			return totalWait;
+		}
+
+		/**
+		 * Mark this state as unusable, so it is discarded rather than returned to the pool.
+		 */
+		public void invalidate() {
+			valid = false;
+		}
+
+		/**
+		 * Return this state to the pool.
+		 */
+		@Override
+		public void close() {
+			if (!inUse) return;
+			inUse = false;
+			pool.release(this);
+		}
+	}
+
+	/**
+	 * The initial contents of a state's globals, libraries and metatables, along with its other mutable settings.
+	 */
+	private static final class Snapshot {
+		private final InputStream stdin;
+		private final PrintStream stdout;
+		private final Random random;
+		private final DebugHook hookfunc;
+		private final boolean hookcall, hookline, hookrtrn;
+		private final int hookcount;
+		private final LuaTable stringMetatable;
+		private final LuaTable booleanMetatable;
+		private final LuaTable numberMetatable;
+		private final LuaTable nilMetatable;
+		private final LuaTable functionMetatable;
+		private final LuaTable threadMetatable;
+		private final LuaTable globals;
+
+		private final Map<LuaTable, TableSnapshot> tables = new IdentityHashMap<>();
+
+		Snapshot(LuaState state, LuaTable globals) {
+			stdin = state.stdin;
+			stdout = state.stdout;
+			random = state.random;
+			stringMetatable = state.stringMetatable;
+			booleanMetatable = state.booleanMetatable;
+			numberMetatable = state.numberMetatable;
+			nilMetatable = state.nilMetatable;
+			functionMetatable = state.functionMetatable;
+			threadMetatable = state.threadMetatable;
+			this.globals = globals;
+
+			DebugState ds = state.getMainThread().getDebugState();
+			hookfunc = ds.hookfunc;
+			hookcall = ds.hookcall;
+			hookline = ds.hookline;
+			hookrtrn = ds.hookrtrn;
+			hookcount = ds.hookcount;
+
+			addWithChildren(globals);
+			addWithChildren(state.loadedPackages);
+			addWithChildren(stringMetatable);
+			addWithChildren(booleanMetatable);
+			addWithChildren(numberMetatable);
+			addWithChildren(nilMetatable);
+			addWithChildren(functionMetatable);
+			addWithChildren(threadMetatable);
+		}
+
+		private void addWithChildren(LuaTable table) {
+			if (table == null || add(table) == null) return;
+
+			LuaValue k = NIL;
+			while (true) {
+				Varargs n = next(table, k);
+				if ((k = n.first()).isNil()) break;
+
+				LuaValue value = n.arg(2);
+				if (value instanceof LuaTable) add((LuaTable) value);
+			}
+		}
+
+		private TableSnapshot add(LuaTable table) {
+			if (tables.containsKey(table)) return null;
+
+			TableSnapshot snapshot = new TableSnapshot(table);
+			tables.put(table, snapshot);
+			return snapshot;
+		}
+
+		void restore(LuaState state) {
+			state.stdin = stdin;
+			state.stdout = stdout;
+			state.random = random;
+			state.stringMetatable = stringMetatable;
+			state.booleanMetatable = booleanMetatable;
+			state.numberMetatable = numberMetatable;
+			state.nilMetatable = nilMetatable;
+			state.functionMetatable = functionMetatable;
+			state.threadMetatable = threadMetatable;
+			state.globalTable = globals;
+
+			DebugState ds = state.getMainThread().getDebugState();
+			ds.setHook(hookfunc, hookcall, hookline, hookrtrn, hookcount);
+			ds.hookcodes = 0;
+			ds.inhook = false;
+
+			for (Map.Entry<LuaTable, TableSnapshot> entry : tables.entrySet()) {
+				entry.getValue().restore(entry.getKey());
+			}
+		}
+	}
+
+	private static final class TableSnapshot {
+		private final LuaTable contents = new LuaTable();
+		private final LuaTable metatable;
+
+		TableSnapshot(LuaTable table) {
+			metatable = table.getMetatable(null);
+
+			LuaValue k = NIL;
+			while (true) {
+				Varargs n = next(table, k);
+				if ((k = n.first()).isNil()) break;
+				contents.rawset(k, n.arg(2));
+			}
+		}
+
+		void restore(LuaTable table) {
+			// Remove any keys added since the snapshot was taken.
+			LuaValue k = NIL;
+			while (true) {
+				Varargs n = next(table, k);
+				if ((k = n.first()).isNil()) break;
+				if (contents.rawget(k).isNil()) table.rawset(k, NIL);
+			}
+
+			// And restore any values which have changed.
+			while (true) {
+				Varargs n = next(contents, k);
+				if ((k = n.first()).isNil()) break;
+
+				LuaValue value = n.arg(2);
+				if (table.rawget(k) != value) table.rawset(k, value);
+			}
+
+			if (table.getMetatable(null) != metatable) table.setMetatable(metatable);
+		}
+	}
+
+	private static Varargs next(LuaTable table, LuaValue key) {
+		try {
+			return table.next(key);
+		} catch (LuaError e) {
+			// We only ever pass keys which exist in the table.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A mutable builder for {@link LuaStatePool}s.
+	 */
+	public static final class Builder {
+		private Supplier<LuaState.Builder> builder = LuaState::builder;
+		private Function<LuaState, LuaTable> globals = JsePlatform::standardGlobals;
+		private int size = Runtime.getRuntime().availableProcessors();
+
+		private Builder() {
+		}
+
+		/**
+		 * Build a pool from this builder. This constructs every state in the pool.
+		 *
+		 * @return The constructed pool.
+		 */
+		public LuaStatePool build() {
+			return new LuaStatePool(this);
+		}
+
+		/**
+		 * Set the factory for state builders. A new builder is requested for every state in the pool. This defaults to
+		 * {@link LuaState#builder()}.
+		 *
+		 * @param builder The builder factory
+		 * @return This builder
+		 */
+		public Builder state(Supplier<LuaState.Builder> builder) {
+			if (builder == null) throw new NullPointerException("builder cannot be null");
+			this.builder = builder;
+			return this;
+		}
+
+		/**
+		 * Set the function used to create each state's globals. This defaults to
+		 * {@link JsePlatform#standardGlobals(LuaState)}. If the function does not set up the state's main thread, it
+		 * will be set up with the returned globals.
+		 *
+		 * @param globals The globals factory
+		 * @return This builder
+		 */
+		public Builder globals(Function<LuaState, LuaTable> globals) {
+			if (globals == null) throw new NullPointerException("globals cannot be null");
+			this.globals = globals;
+			return this;
+		}
+
+		/**
+		 * Set the number of states in this pool, and so the maximum number of scripts which may run at once. This
+		 * defaults to the number of available processors.
+		 *
+		 * @param size The size of this pool
+		 * @return This builder
+		 */
+		public Builder size(int size) {
+			if (size <= 0) throw new IllegalArgumentException("size must be positive");
+			this.size = size;
+			return this;
+		}
+	}
+}
@@ -26,10 +26,11 @@ package org.squiddev.cobalt;
 
 import org.squiddev.cobalt.lib.StringLib;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 /**
  * Subclass of {@link LuaValue} for representing lua strings.
@@ -41,7 +42,7 @@ import java.io.InputStream;
  * {@link LuaString} values are generally not mutable once constructed,
  * so multiple {@link LuaString} values can chare a single byte array.
  *
- * Currently {@link LuaString}s are pooled via a centrally managed weak table.
+ * Short {@link LuaString}s are pooled via a centrally managed weak table, see {@link StringTable}.
  * To ensure that as many string values as possible take advantage of this,
  * Constructors are not exposed directly.  As with number, booleans, and nil,
  * instance construction should be via {@link ValueFactory#valueOf(byte[])} or similar API.
@@ -52,15 +53,17 @@ import java.io.InputStream;
  */
 public final class LuaString extends LuaBaseString {
 	/**
-	 * Size of cache of recent short strings. This is the maximum number of LuaStrings that
-	 * will be retained in the cache of recent short strings.
+	 * Size of cache of recent short strings.
+	 *
+	 * @deprecated Short strings are now interned in {@link StringTable#global()}, whose size is
+	 * {@link StringTable#DEFAULT_MAX_SIZE}.
 	 */
+	@Deprecated
 	public static final int RECENT_STRINGS_CACHE_SIZE = 128;
 
 	/**
-	 * Maximum length of a string to be considered for recent short strings caching.
-	 * This effectively limits the total memory that can be spent on the recent strings cache,
-	 * because no LuaString whose backing exceeds this length will be put into the cache.
+	 * Maximum length of a string to be considered for interning in the {@linkplain StringTable#global() global string
+	 * table}. No LuaString whose backing exceeds this length will be put into the table.
 	 */
 	public static final int RECENT_STRINGS_MAX_LENGTH = 32;
 
@@ -81,28 +84,43 @@ public final class LuaString extends LuaBaseString {
 
 	private int hashCode;
 
-	private static class Cache {
-		/**
-		 * Simple cache of recently created strings that are short.
-		 * This is simply a list of strings, indexed by their hash codes modulo the cache size
-		 * that have been recently constructed.  If a string is being constructed frequently
-		 * from different contexts, it will generally may show up as a cache hit and resolve
-		 * to the same value.
-		 */
-		public final LuaString[] recentShortStrings = new LuaString[RECENT_STRINGS_CACHE_SIZE];
-
-		public LuaString get(LuaString s) {
-			final int index = s.hashCode() & (RECENT_STRINGS_CACHE_SIZE - 1);
-			final LuaString cached = recentShortStrings[index];
-			if (cached != null && s.raweq(cached)) {
-				return cached;
-			}
-			recentShortStrings[index] = s;
-			return s;
-		}
+	/**
+	 * Whether long strings are hashed using {@link #hashLong(byte[], int, int)} rather than Lua's original hash.
+	 *
+	 * This is off by default, and enabled by setting the {@code cobalt.seededStringHash} system property to
+	 * {@code true}. As hashes are cached on each string, this is read once, before any string is created.
+	 */
+	private static final boolean SEEDED_HASH = Boolean.getBoolean("cobalt.seededStringHash");
 
-		public static final Cache instance = new Cache();
-	}
+	/**
+	 * When {@link #SEEDED_HASH} is enabled, strings at least this long are hashed using
+	 * {@link #hashLong(byte[], int, int)}. Lua's original hash already covers every byte of shorter strings.
+	 */
+	private static final int LONG_HASH_LENGTH = 32;
+
+	/**
+	 * The seed for {@link #hashLong(byte[], int, int)}. This is chosen at random, so the slots long strings land in are
+	 * not predictable, making it harder to construct keys which all collide.
+	 */
+	private static final long HASH_SEED = new SplittableRandom().nextLong();
+
+	/**
+	 * {@link #indexOf(LuaString, int)} uses Boyer-Moore-Horspool for search strings at least this long. Shorter ones
+	 * gain little from the skips, and so just scan for their first byte.
+	 */
+	private static final int SKIP_SEARCH_LENGTH = 4;
+
+	/**
+	 * {@link #indexOf(LuaString, int)} only builds a table of skips when searching at least this many bytes.
+	 */
+	private static final int SKIP_SEARCH_MIN_BYTES = 256;
+
+	/**
+	 * The {@link StringTable} this string has been interned in, or {@code null} if it has not been interned.
+	 *
+	 * @see StringTable#intern(LuaString)
+	 */
+	StringTable owner;
 
 	/**
 	 * Get a {@link LuaString} instance whose bytes match
@@ -129,8 +147,8 @@ public final class LuaString extends LuaBaseString {
 	 */
 	public static LuaString valueOf(byte[] bytes, int off, int len) {
 		if (bytes.length < RECENT_STRINGS_MAX_LENGTH) {
-			// Short string.  Reuse the backing and check the cache of recent strings before returning.
-			return Cache.instance.get(new LuaString(bytes, off, len));
+			// Short string.  Reuse the backing and check the table of interned strings before returning.
+			return StringTable.global().internRecent(new LuaString(bytes, off, len));
 		} else if (len >= bytes.length / 2) {
 			// Reuse backing only when more than half the bytes are part of the result.
 			return new LuaString(bytes, off, len);
@@ -139,7 +157,7 @@ public final class LuaString extends LuaBaseString {
 			final byte[] b = new byte[len];
 			System.arraycopy(bytes, off, b, 0, len);
 			LuaString string = new LuaString(b, 0, len);
-			return len < RECENT_STRINGS_MAX_LENGTH ? Cache.instance.get(string) : string;
+			return len < RECENT_STRINGS_MAX_LENGTH ? StringTable.global().internRecent(string) : string;
 		}
 	}
 
@@ -184,7 +202,7 @@ public final class LuaString extends LuaBaseString {
 	 * @param offset offset into the byte buffer
 	 * @param length length of the byte buffer
 	 */
-	private LuaString(byte[] bytes, int offset, int length) {
+	LuaString(byte[] bytes, int offset, int length) {
 		super();
 		this.bytes = bytes;
 		this.offset = offset;
@@ -210,6 +228,7 @@ public final class LuaString extends LuaBaseString {
 		return this;
 	}
 
+	@Override
 	public LuaString substring(int beginIndex, int endIndex) {
 		return valueOf(bytes, offset + beginIndex, endIndex - beginIndex);
 	}
@@ -223,6 +242,8 @@ public final class LuaString extends LuaBaseString {
 		int h = hashCode;
 		if (h != 0) return h;
 
+		if (SEEDED_HASH && length >= LONG_HASH_LENGTH) return hashCode = hashLong(bytes, offset, length);
+
 		h = length;  /* seed */
 		int step = (length >> 5) + 1;  /* if string is too long, don't hash all its chars */
 		for (int l1 = length; l1 >= step; l1 -= step)  /* compute hash */ {
@@ -232,6 +253,50 @@ public final class LuaString extends LuaBaseString {
 		return h;
 	}
 
+	/**
+	 * Hash every byte of a long string, reading 8 bytes at a time. This is based on the body of MurmurHash3.
+	 *
+	 * Lua (and previous versions of Cobalt) only sample every {@code (length >> 5) + 1}th byte of a string, meaning
+	 * long strings which differ only in the skipped bytes all collide. This is only used when {@link #SEEDED_HASH} is
+	 * enabled.
+	 *
+	 * @param bytes  The bytes to hash.
+	 * @param offset The offset into the byte array.
+	 * @param length The number of bytes to hash.
+	 * @return The computed hash. This will never be 0.
+	 */
+	static int hashLong(byte[] bytes, int offset, int length) {
+		long h = HASH_SEED ^ (length * 0x9E3779B97F4A7C15L);
+
+		int i = offset, end = offset + length;
+		for (; i + 8 <= end; i += 8) {
+			long k = (bytes[i] & 0xFFL)
+				| (bytes[i + 1] & 0xFFL) << 8
+				| (bytes[i + 2] & 0xFFL) << 16
+				| (bytes[i + 3] & 0xFFL) << 24
+				| (bytes[i + 4] & 0xFFL) << 32
+				| (bytes[i + 5] & 0xFFL) << 40
+				| (bytes[i + 6] & 0xFFL) << 48
+				| (bytes[i + 7] & 0xFFL) << 56;
+			h ^= Long.rotateLeft(k * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+			h = Long.rotateLeft(h, 27) * 5 + 0x52DCE729;
+		}
+
+		long k = 0;
+		for (int shift = 0; i < end; i++, shift += 8) k |= (bytes[i] & 0xFFL) << shift;
+		h ^= Long.rotateLeft(k * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+
+		// Finalisation mix, so every input bit affects the lower bits used for table slots.
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+
+		int result = (int) h;
+		return result == 0 ? 1 : result;
+	}
+
 	// object comparison, used in key comparison
 	@Override
 	public boolean equals(Object o) {
@@ -249,6 +314,10 @@ public final class LuaString extends LuaBaseString {
 		if (this == s) {
 			return true;
 		}
+		if (owner != null && owner == s.owner) {
+			// Both strings are interned in the same table, and so would be the same instance if equal.
+			return false;
+		}
 		if (s.length != length) {
 			return false;
 		}
@@ -291,6 +360,7 @@ public final class LuaString extends LuaBaseString {
 		return length;
 	}
 
+	@Override
 	public int luaByte(int index) {
 		return bytes[offset + index] & 0xFF;
 	}
@@ -312,7 +382,7 @@ public final class LuaString extends LuaBaseString {
 	 * @return {@link InputStream} whose data matches the bytes in this {@link LuaString}
 	 */
 	public InputStream toInputStream() {
-		return new ByteArrayInputStream(bytes, offset, length);
+		return new LuaStringInputStream(this);
 	}
 
 	/**
@@ -324,6 +394,7 @@ public final class LuaString extends LuaBaseString {
 	 * @param len         number of bytes to copy
 	 * @return The next byte free
 	 */
+	@Override
 	public int copyTo(int strOffset, byte[] bytes, int arrayOffset, int len) {
 		System.arraycopy(this.bytes, offset + strOffset, bytes, arrayOffset, len);
 		return arrayOffset + len;
@@ -375,17 +446,64 @@ public final class LuaString extends LuaBaseString {
 	 * @param start the first index in the string
 	 * @return index of first match found, or -1 if not found.
 	 */
+	@Override
 	public int indexOf(LuaString s, int start) {
-		final int slen = s.length();
+		final int slen = s.length;
+		if (slen >= SKIP_SEARCH_LENGTH && length - start >= SKIP_SEARCH_MIN_BYTES) {
+			return indexOf(s, start, skipTable(s));
+		}
+
+		if (slen == 0) return start <= length ? start : -1;
+
+		// Find each occurrence of the first byte, and then compare the remainder.
+		final byte[] bytes = this.bytes, other = s.bytes;
+		final byte first = other[s.offset];
 		final int limit = offset + length - slen;
 		for (int i = offset + start; i <= limit; ++i) {
-			if (equals(bytes, i, s.bytes, s.offset, slen)) {
+			if (bytes[i] == first && equals(bytes, i + 1, other, s.offset + 1, slen - 1)) {
 				return i - offset;
 			}
 		}
 		return -1;
 	}
 
+	/**
+	 * Find the index of a string starting at a point in this string, using Boyer-Moore-Horspool.
+	 *
+	 * @param s     the string to search for. This must not be empty.
+	 * @param start the first index in the string
+	 * @param skips the table of skips for {@code s}, as created by {@link #skipTable(LuaString)}.
+	 * @return index of first match found, or -1 if not found.
+	 */
+	public int indexOf(LuaString s, int start, int[] skips) {
+		final byte[] bytes = this.bytes, other = s.bytes;
+		final int slen = s.length, otherOffset = s.offset;
+		final byte last = other[otherOffset + slen - 1];
+		final int limit = offset + length - slen;
+		for (int i = offset + start; i <= limit; ) {
+			byte b = bytes[i + slen - 1];
+			if (b == last && equals(bytes, i, other, otherOffset, slen - 1)) return i - offset;
+			i += skips[b & 0xFF];
+		}
+		return -1;
+	}
+
+	/**
+	 * Build a table of skips for searching for a string with {@link #indexOf(LuaString, int, int[])}.
+	 *
+	 * For each byte, this holds how far we can move forward when it is the last byte of the current window.
+	 *
+	 * @param s the string which will be searched for. This must not be empty.
+	 * @return The table of skips.
+	 */
+	public static int[] skipTable(LuaString s) {
+		final int slen = s.length;
+		int[] skips = new int[256];
+		Arrays.fill(skips, slen);
+		for (int i = 0; i < slen - 1; i++) skips[s.bytes[s.offset + i] & 0xFF] = slen - 1 - i;
+		return skips;
+	}
+
 	/**
 	 * Find the last index of a string in this string
 	 *
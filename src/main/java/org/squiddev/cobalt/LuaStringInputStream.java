@@ -0,0 +1,52 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * An input stream reading the contents of a {@link LuaString}.
+ *
+ * This allows consumers which know they are reading from a string (such as the compiler) to access the remaining
+ * contents directly, rather than copying them out of the stream.
+ *
+ * @see LuaString#toInputStream()
+ */
+public final class LuaStringInputStream extends ByteArrayInputStream {
+	LuaStringInputStream(LuaString string) {
+		super(string.bytes, string.offset, string.length);
+	}
+
+	/**
+	 * Read the remainder of this stream as a string. This does not copy the underlying bytes.
+	 *
+	 * @return The unread contents of this stream.
+	 */
+	public synchronized LuaString readRemaining() {
+		LuaString remaining = new LuaString(buf, pos, count - pos);
+		pos = count;
+		return remaining;
+	}
+}
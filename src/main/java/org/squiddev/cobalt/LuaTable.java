@@ -29,6 +29,7 @@ import org.squiddev.cobalt.lib.LuaLibrary;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.squiddev.cobalt.Constants.*;
@@ -64,6 +65,12 @@ import static org.squiddev.cobalt.ValueFactory.*;
  *    process( k, v )
  * }}</pre>
  *
+ * The hash part of a table is stored in one of two ways. Small record-like tables, whose hash keys are all strings,
+ * describe the position of their keys with a {@link Shape} shared with other tables built the same way, and store
+ * their values in a flat array. Once a table acquires other keys, too many keys, or weak references, or has a key
+ * removed, it switches to a conventional chained hash table. Both layouts place keys in the same positions, so
+ * iteration order is unaffected.
+ *
  * As with other types, {@link LuaTable} instances should be constructed via one of the table constructor
  * methods on {@link LuaValue}:
  * <ul>
@@ -81,16 +88,36 @@ import static org.squiddev.cobalt.ValueFactory.*;
  */
 public final class LuaTable extends LuaValue {
 	private static final Object[] EMPTY_ARRAY = new Object[0];
-	private static final Node[] EMPTY_NODES = new Node[0];
+	private static final int[] EMPTY_NEXT = new int[0];
 	private static final LuaString N = valueOf("n");
 
 	private Object[] array = EMPTY_ARRAY;
-	private Node[] nodes = EMPTY_NODES;
+	/**
+	 * The hash part of the table, stored as parallel arrays of keys, values and the index of the next slot in each
+	 * collision chain (or {@code -1}). Free slots have a key of {@link Constants#NIL}. Keys and values may be weak
+	 * references, depending on {@link #weakKeys} and {@link #weakValues}.
+	 */
+	private Object[] keys = EMPTY_ARRAY;
+	private Object[] values = EMPTY_ARRAY;
+	private int[] next = EMPTY_NEXT;
 	private int lastFree = 0;
 
+	/**
+	 * The shape of the hash part, or {@code null} if this table uses {@link #keys} instead.
+	 */
+	private Shape shape = Shape.root(0);
+	private LuaValue[] shapeValues = NOVALS;
+
 	private boolean weakKeys;
 	private boolean weakValues;
 
+	/**
+	 * Whether this table's storage may be shared with other tables, and so must be copied before it is modified.
+	 *
+	 * @see #shallowCopy()
+	 */
+	private boolean shared;
+
 	private int metatableFlags;
 	private LuaTable metatable;
 
@@ -110,7 +137,7 @@ public final class LuaTable extends LuaValue {
 	 */
 	public LuaTable(int narray, int nhash) {
 		super(TTABLE);
-		resize(narray, nhash, false);
+		resize(narray, nhash, false, null);
 	}
 
 	/**
@@ -125,7 +152,7 @@ public final class LuaTable extends LuaValue {
 		int nn = (named != null ? named.length : 0);
 		int nu = (unnamed != null ? unnamed.length : 0);
 		int nl = (lastarg != null ? lastarg.count() : 0);
-		resize(nu + nl, nn >> 1, false);
+		resize(nu + nl, nn >> 1, false, null);
 		for (int i = 0; i < nu; i++) {
 			rawset(i + 1, unnamed[i]);
 		}
@@ -160,13 +187,61 @@ public final class LuaTable extends LuaValue {
 		super(TTABLE);
 		int nskip = firstarg - 1;
 		int n = Math.max(varargs.count() - nskip, 0);
-		resize(n, 1, false);
+		resize(n, 1, false, null);
 		rawset(N, valueOf(n));
 		for (int i = 1; i <= n; i++) {
 			rawset(i, varargs.arg(i + nskip));
 		}
 	}
 
+	/**
+	 * Create a shallow copy of this table, with the same entries and metatable.
+	 *
+	 * The copy shares its storage with this table until either one is modified, so copying a table which is rarely
+	 * written to (such as a library) is cheap. This is safe to call from multiple threads, as long as this table is not
+	 * modified concurrently.
+	 *
+	 * @return The copied table.
+	 */
+	public LuaTable shallowCopy() {
+		LuaTable copy = new LuaTable();
+		copy.array = array;
+		copy.keys = keys;
+		copy.values = values;
+		copy.next = next;
+		copy.lastFree = lastFree;
+		copy.shape = shape;
+		copy.shapeValues = shapeValues;
+		copy.weakKeys = weakKeys;
+		copy.weakValues = weakValues;
+		copy.metatable = metatable;
+		copy.metatableFlags = metatableFlags;
+
+		if (weakKeys || weakValues) {
+			// Reading from weak tables may clear collected entries, so copy immediately.
+			copy.unshare();
+		} else {
+			copy.shared = true;
+			if (!shared) shared = true;
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Take a private copy of this table's storage, so it may be modified.
+	 */
+	private void unshare() {
+		shared = false;
+		if (array.length > 0) array = array.clone();
+		if (keys.length > 0) {
+			keys = keys.clone();
+			values = values.clone();
+			next = next.clone();
+		}
+		if (shapeValues.length > 0) shapeValues = shapeValues.clone();
+	}
+
 	@Override
 	public LuaTable checkTable() {
 		return this;
@@ -185,6 +260,7 @@ public final class LuaTable extends LuaValue {
 	 * @param nArray the number of array slots to preallocate in the table.
 	 */
 	public void presize(int nArray) {
+		if (shared) unshare();
 		if (nArray > array.length) {
 			array = setArrayVector(array, 1 << log2(nArray), false, weakValues);
 		}
@@ -205,7 +281,7 @@ public final class LuaTable extends LuaValue {
 	 * @return length of the hash part, does not relate to count of objects in the table.
 	 */
 	public int getHashLength() {
-		return nodes.length;
+		return shape == null ? keys.length : shape.keys.length;
 	}
 
 	@Override
@@ -228,6 +304,7 @@ public final class LuaTable extends LuaValue {
 		}
 
 		if (newWeakKeys != weakKeys || newWeakValues != weakValues) {
+			if (shared) unshare();
 			weakKeys = newWeakKeys;
 			weakValues = newWeakValues;
 			rehash(null, true);
@@ -236,6 +313,7 @@ public final class LuaTable extends LuaValue {
 
 	public void useWeak(boolean newWeakKeys, boolean newWeakValues) {
 		if (newWeakKeys != weakKeys || newWeakValues != weakValues) {
+			if (shared) unshare();
 			weakKeys = newWeakKeys;
 			weakValues = newWeakValues;
 			rehash(null, true);
@@ -317,10 +395,10 @@ public final class LuaTable extends LuaValue {
 	public LuaValue concat(LuaString sep, int i, int j) throws LuaError {
 		Buffer sb = new Buffer();
 		if (i <= j) {
-			sb.append(rawget(i).checkLuaString());
+			sb.append(rawget(i).checkLuaBaseString());
 			while (++i <= j) {
 				sb.append(sep);
-				sb.append(rawget(i).checkLuaString());
+				sb.append(rawget(i).checkLuaBaseString());
 			}
 		}
 		return sb.toLuaString();
@@ -369,8 +447,8 @@ public final class LuaTable extends LuaValue {
 				n = i + 1;
 			}
 		}
-		for (Node node : nodes) {
-			LuaValue value = node.key();
+		for (int i = 0; i < keys.length; i++) {
+			LuaValue value = key(i);
 			if (value.type() == Constants.TNUMBER) {
 				double key = value.toDouble();
 				if (key > n) n = key;
@@ -416,10 +494,21 @@ public final class LuaTable extends LuaValue {
 		}
 
 		i -= array.length;
-		for (; i < nodes.length; i++) {
-			Node node = nodes[i];
-			LuaValue value = node.value();
-			if (!node.key().isNil() && !value.isNil()) return varargsOf(node.key(), value);
+		Shape shape = this.shape;
+		if (shape != null) {
+			LuaString[] shapeKeys = shape.keys;
+			for (; i < shapeKeys.length; i++) {
+				LuaString shapeKey = shapeKeys[i];
+				if (shapeKey != null) return varargsOf(shapeKey, shapeValues[i]);
+			}
+
+			return NIL;
+		}
+
+		for (; i < keys.length; i++) {
+			LuaValue nextKey = key(i);
+			LuaValue value = value(i);
+			if (!nextKey.isNil() && !value.isNil()) return varargsOf(nextKey, value);
 		}
 
 		return NIL;
@@ -438,22 +527,24 @@ public final class LuaTable extends LuaValue {
 		// Its in the array part so just return that
 		int arrayIndex = arraySlot(key);
 		if (arrayIndex > 0 && arrayIndex <= array.length) return arrayIndex;
-		if (nodes.length == 0) return -1;
+
+		if (shape != null) {
+			LuaString shapeKey = shapeKey(key);
+			int index = shapeKey == null ? -1 : shape.indexOf(shapeKey);
+			return index < 0 ? -1 : index + array.length + 1;
+		}
+
+		if (keys.length == 0) return -1;
 
 		// Must be in the main part so try to find it in the chain.
 		int idx = hashSlot(key);
-		Node node = nodes[idx];
 		while (true) {
-			if (node.key().equals(key)) {
+			if (keys[idx] == key || key(idx).equals(key)) {
 				return idx + array.length + 1;
 			}
 
-			if (node.next >= 0) {
-				idx = node.next;
-				node = nodes[node.next];
-			} else {
-				return -1;
-			}
+			idx = next[idx];
+			if (idx < 0) return -1;
 		}
 	}
 
@@ -536,6 +627,18 @@ public final class LuaTable extends LuaValue {
 		return 0;
 	}
 
+	/**
+	 * Get the string to use as a key for the table's shape.
+	 *
+	 * @param value The key to convert.
+	 * @return The string value, or {@code null} if this key cannot be stored in a shape.
+	 */
+	private static LuaString shapeKey(LuaValue value) {
+		if (value instanceof LuaString) return (LuaString) value;
+		if (value instanceof LuaRope) return ((LuaRope) value).strvalue();
+		return null;
+	}
+
 	/**
 	 * Find the hashtable slot to use
 	 *
@@ -543,7 +646,7 @@ public final class LuaTable extends LuaValue {
 	 * @return slot to use
 	 */
 	private int hashSlot(LuaValue key) {
-		return hashSlot(key, nodes.length - 1);
+		return hashSlot(key, keys.length - 1);
 	}
 
 	private void dropWeakArrayValues() {
@@ -643,6 +746,7 @@ public final class LuaTable extends LuaValue {
 	 * @throws LuaError On a runtime error.
 	 */
 	public int prepSort() throws LuaError {
+		if (shared) unshare();
 		if (weakValues) dropWeakArrayValues();
 		int n = array.length;
 		while (n > 0 && array[n - 1] == NIL) {
@@ -669,6 +773,7 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void swap(int i, int j) {
+		if (shared) unshare();
 		Object a = array[i];
 		array[i] = array[j];
 		array[j] = a;
@@ -790,24 +895,66 @@ public final class LuaTable extends LuaValue {
 
 	private void setNodeVector(int size) {
 		if (size == 0) {
-			nodes = EMPTY_NODES;
+			keys = EMPTY_ARRAY;
+			values = EMPTY_ARRAY;
+			next = EMPTY_NEXT;
 			lastFree = 0;
 		} else {
 			int lsize = log2(size);
 			size = 1 << lsize;
-			Node[] nodes = this.nodes = new Node[size];
-			for (int i = 0; i < size; i++) nodes[i] = new Node(weakKeys, weakValues);
+			Object[] keys = this.keys = new Object[size];
+			Object[] values = this.values = new Object[size];
+			int[] next = this.next = new int[size];
+			Arrays.fill(keys, NIL);
+			Arrays.fill(values, NIL);
+			Arrays.fill(next, -1);
 
 			// All positions are free
 			lastFree = size - 1;
 		}
 	}
 
-	private void resize(int newArraySize, int newHashSize, boolean modeChange) {
+	/**
+	 * Determine whether the hash part can be stored using a {@link Shape} after resizing.
+	 *
+	 * @param newArraySize The new size of the array part.
+	 * @param newHashSize  The new size of the hash part.
+	 * @param extraKey     The key which triggered this resize, or {@code null}.
+	 * @return Whether all keys in the hash part will be strings.
+	 */
+	private boolean canUseShape(int newArraySize, int newHashSize, LuaValue extraKey) {
+		if (weakKeys || weakValues || newHashSize > Shape.MAX_SIZE) return false;
+		if (extraKey != null && !isShapeKey(extraKey, newArraySize)) return false;
+
+		// Values which do not fit in the new array part will be moved to the hash.
+		for (int i = newArraySize; i < array.length; i++) {
+			if (!strengthen(array[i]).isNil()) return false;
+		}
+
+		// Keys are strengthened directly, as the table's weakness may have just changed.
+		Object[] keys = this.keys, values = this.values;
+		for (int i = 0; i < keys.length; i++) {
+			LuaValue key = strengthen(keys[i]);
+			if (!key.isNil() && !strengthen(values[i]).isNil() && !isShapeKey(key, newArraySize)) return false;
+		}
+
+		return true;
+	}
+
+	private static boolean isShapeKey(LuaValue key, int arraySize) {
+		if (shapeKey(key) != null) return true;
+
+		int slot = arraySlot(key);
+		return slot > 0 && slot <= arraySize;
+	}
+
+	private void resize(int newArraySize, int newHashSize, boolean modeChange, LuaValue extraKey) {
 		int oldArraySize = array.length;
-		int oldHashSize = nodes.length;
+		int oldHashSize = keys.length;
+		boolean useShape = canUseShape(newArraySize, newHashSize, extraKey);
 
-		if (newArraySize != 0 && newHashSize != 0 && newArraySize == oldArraySize && newHashSize == oldHashSize && !modeChange) {
+		if (newArraySize != 0 && newHashSize != 0 && newArraySize == oldArraySize && newHashSize == getHashLength()
+			&& !modeChange && useShape == (shape != null)) {
 			throw new IllegalStateException("Attempting to resize with no change");
 		}
 
@@ -816,8 +963,20 @@ public final class LuaTable extends LuaValue {
 			array = setArrayVector(array, newArraySize, modeChange, weakValues);
 		}
 
-		Node[] oldNode = nodes;
-		setNodeVector(newHashSize);
+		Object[] oldKeys = keys;
+		Object[] oldValues = values;
+		Shape oldShape = shape;
+		LuaValue[] oldShapeValues = shapeValues;
+		if (useShape) {
+			int capacity = newHashSize == 0 ? 0 : 1 << log2(newHashSize);
+			setNodeVector(0);
+			shape = Shape.root(capacity);
+			shapeValues = capacity == 0 ? NOVALS : new LuaValue[capacity];
+		} else {
+			shape = null;
+			shapeValues = NOVALS;
+			setNodeVector(newHashSize);
+		}
 
 		if (newArraySize < oldArraySize) {
 			Object[] oldArray = array;
@@ -830,18 +989,25 @@ public final class LuaTable extends LuaValue {
 			}
 
 		} else if (newArraySize == oldArraySize && modeChange) {
-			Object[] values = array;
+			Object[] array = this.array;
 			for (int i = 0; i < oldArraySize; i++) {
-				LuaValue value = strengthen(values[i]);
-				values[i] = weakValues ? weaken(value) : value;
+				LuaValue value = strengthen(array[i]);
+				array[i] = weakValues ? weaken(value) : value;
 			}
 		}
 
 		// Re-insert elements from hash part
+		if (oldShape != null) {
+			LuaString[] shapeKeys = oldShape.keys;
+			for (int i = shapeKeys.length - 1; i >= 0; i--) {
+				LuaString key = shapeKeys[i];
+				if (key != null) rawset(key, oldShapeValues[i]);
+			}
+		}
+
 		for (int i = oldHashSize - 1; i >= 0; i--) {
-			Node old = oldNode[i];
-			LuaValue key = old.key();
-			LuaValue value = old.value();
+			LuaValue key = strengthen(oldKeys[i]);
+			LuaValue value = strengthen(oldValues[i]);
 			if (!key.isNil() && !value.isNil()) rawset(key, value);
 		}
 	}
@@ -857,15 +1023,18 @@ public final class LuaTable extends LuaValue {
 		// Count the number of hash values that can be moved to the array, as well as the total count.
 		// See numusehash in ltable.c
 		{
-			int i = nodes.length;
+			Object[] keys = this.keys;
+			int i = keys.length;
 			while (--i >= 0) {
-				Node node = nodes[i];
-				LuaValue key = node.key();
+				LuaValue key = strengthen(keys[i]);
 				if (!key.isNil()) {
 					arrayCount += countInt(key, nums);
 					totalCount++;
 				}
 			}
+
+			// Shaped keys are all strings, so can never move to the array part.
+			if (shape != null) totalCount += shape.size;
 		}
 
 		if (extraKey != null) {
@@ -897,7 +1066,7 @@ public final class LuaTable extends LuaValue {
 			arrayCount = numArray;
 		}
 
-		resize(arraySize, totalCount - arrayCount, mode);
+		resize(arraySize, totalCount - arrayCount, mode, extraKey);
 	}
 	//endregion
 
@@ -909,10 +1078,10 @@ public final class LuaTable extends LuaValue {
 	 * @return The first slot in the map
 	 */
 	private int getFreePos() {
-		if (nodes.length == 0) return -1;
+		Object[] keys = this.keys;
+		if (keys.length == 0) return -1;
 		while (lastFree >= 0) {
-			Node last = nodes[lastFree--];
-			if (last.key == NIL) {
+			if (keys[lastFree--] == NIL) {
 				return lastFree + 1;
 			}
 		}
@@ -928,142 +1097,193 @@ public final class LuaTable extends LuaValue {
 	 * colliding node is in its main position and the new key goes to an empty position.
 	 *
 	 * @param key The key to set
+	 * @return The slot the key was inserted into, or {@code -1} if the table was rehashed instead.
 	 * @throws IllegalArgumentException If this key cannot be used.
 	 */
-	private Node newKey(LuaValue key) {
+	private int newKey(LuaValue key) {
 		if (key.isNil()) throw new IllegalArgumentException("table index is nil");
 
 		// Rehash and let the rawgetter handle it
-		if (nodes.length == 0) {
+		if (keys.length == 0) {
 			rehash(key, false);
-			return null;
+			return -1;
 		}
 
-		Node mainNode = nodes[hashSlot(key)];
-		LuaValue mainKey = mainNode.key();
-		if (!mainKey.isNil() && !mainNode.value().isNil()) {
+		Object[] keys = this.keys;
+		Object[] values = this.values;
+		int[] next = this.next;
+
+		int mainPos = hashSlot(key);
+		LuaValue mainKey = key(mainPos);
+		if (!mainKey.isNil() && !value(mainPos).isNil()) {
 			// If we've got a collision then
 			final int freePos = getFreePos();
 
 			if (freePos < 0) {
 				rehash(key, false);
-				return null;
+				return -1;
 			}
 
-			final Node freeNode = nodes[freePos];
-
 			int otherPos = hashSlot(mainKey);
-			Node otherNode = nodes[otherPos];
-
-			if (otherNode != mainNode) {
+			if (otherPos != mainPos) {
 				// If the colliding position isn't at its main position then we move it to a free position
 
 				// Walk the chain to find the node just before the desired one
-				while (nodes[otherNode.next] != mainNode) {
-					otherNode = nodes[otherNode.next];
+				while (next[otherPos] != mainPos) {
+					otherPos = next[otherPos];
 				}
 
 				// Rechain other to point to the free position
-				otherNode.next = freePos;
+				next[otherPos] = freePos;
 
 				// Copy colliding node into free position
-				freeNode.key = mainNode.key;
-				freeNode.value = mainNode.value;
-				freeNode.next = mainNode.next;
+				keys[freePos] = keys[mainPos];
+				values[freePos] = values[mainPos];
+				next[freePos] = next[mainPos];
 
 				// Clear main node
-				mainNode.next = -1;
-				mainNode.key = NIL;
-				mainNode.value = NIL;
+				next[mainPos] = -1;
+				keys[mainPos] = NIL;
+				values[mainPos] = NIL;
 			} else {
 				// Colliding node is in the main position so we will assign to a free position.
 
-				if (mainNode.next != -1) {
+				if (next[mainPos] != -1) {
 					// We're inserting "after" the first node in the linked list so change the
 					// next node.
-					freeNode.next = mainNode.next;
+					next[freePos] = next[mainPos];
 				} else {
-					assert freeNode.next == -1;
+					assert next[freePos] == -1;
 				}
 
 				// Insert after the main node
-				mainNode.next = freePos;
+				next[mainPos] = freePos;
 
-				mainNode = freeNode;
+				mainPos = freePos;
 			}
 		}
 
-		mainNode.key = weakKeys ? weaken(key) : key;
+		keys[mainPos] = weakKeys ? weaken(key) : key;
 
-		return mainNode;
+		return mainPos;
 	}
 
-	private Node rawgetNode(int search) {
-		if (nodes.length == 0) return null;
+	private int findSlot(int search) {
+		int length = keys.length;
+		if (length == 0) return -1;
 
-		Node node = nodes[hashmod(search, nodes.length - 1)];
-		while (true) {
-			LuaValue key = node.key();
-			if (key instanceof LuaInteger && ((LuaInteger) key).v == search) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
-		}
+		int slot = hashmod(search, length - 1);
+		do {
+			LuaValue key = key(slot);
+			if (key instanceof LuaInteger && ((LuaInteger) key).v == search) return slot;
+			slot = next[slot];
+		} while (slot >= 0);
+
+		return -1;
 	}
 
-	private Node rawgetNode(LuaValue search) {
-		if (nodes.length == 0) return null;
+	private int findSlot(LuaValue search) {
+		if (keys.length == 0) return -1;
 
 		int slot = hashSlot(search);
-		Node node = nodes[slot];
-		while (true) {
-			LuaValue key = node.key();
-			if (key.equals(search)) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
-		}
+		do {
+			if (keys[slot] == search || key(slot).equals(search)) return slot;
+			slot = next[slot];
+		} while (slot >= 0);
+
+		return -1;
 	}
 
 	public LuaValue rawget(int search) {
 		if (search > 0 && search <= array.length) {
 			return strengthen(array[search - 1]);
-		} else if (nodes.length == 0) {
+		} else if (keys.length == 0) {
 			return NIL;
 		} else {
-			Node node = rawgetNode(search);
-			return node == null ? NIL : node.value();
+			int slot = findSlot(search);
+			return slot < 0 ? NIL : value(slot);
 		}
 	}
 
 	public LuaValue rawget(LuaValue search) {
 		if (search instanceof LuaInteger) return rawget(((LuaInteger) search).v);
 
-		Node node = rawgetNode(search);
-		return node == null ? NIL : node.value();
+		Shape shape = this.shape;
+		if (shape != null) {
+			LuaString key = shapeKey(search);
+			int index = key == null ? -1 : shape.indexOf(key);
+			return index < 0 ? NIL : shapeValues[index];
+		}
+
+		int slot = findSlot(search);
+		return slot < 0 ? NIL : value(slot);
+	}
+
+	/**
+	 * Get a value with a string key, using and updating an inline cache.
+	 *
+	 * @param search The key to look up.
+	 * @param cache  The cache for this lookup. This must always be used with keys equal to {@code search}.
+	 * @return The value for this key, or {@link Constants#NIL} if not found.
+	 */
+	LuaValue rawget(LuaString search, InlineCache cache) {
+		InlineCache.Entry[] entries = cache.entries;
+
+		Shape shape = this.shape;
+		if (shape != null) {
+			for (int i = 0; i < InlineCache.SIZE; i++) {
+				InlineCache.Entry entry = entries[i];
+				if (entry == null) break;
+				if (entry.key == shape) {
+					int slot = entry.slot;
+					return slot < 0 ? NIL : shapeValues[slot];
+				}
+			}
+
+			int slot = shape.indexOf(search);
+			cache.put(slot, shape);
+			return slot < 0 ? NIL : shapeValues[slot];
+		}
+
+		Object[] keys = this.keys;
+		int length = keys.length;
+		if (length == 0) return NIL;
+
+		for (int i = 0; i < InlineCache.SIZE; i++) {
+			InlineCache.Entry entry = entries[i];
+			if (entry == null) break;
+
+			int slot = entry.slot;
+			if (slot >= 0 && slot < length && keys[slot] == entry.key) return value(slot);
+		}
+
+		int slot = hashSlot(search, length - 1);
+		do {
+			if (keys[slot] == search || key(slot).equals(search)) {
+				cache.put(slot, keys[slot]);
+				return value(slot);
+			}
+
+			slot = next[slot];
+		} while (slot >= 0);
+
+		return NIL;
 	}
 
 	public LuaValue rawget(CachedMetamethod search) {
 		int flag = 1 << search.ordinal();
 		if ((metatableFlags & flag) != 0) return NIL;
 
-		Node node = rawgetNode(search.getKey());
-		if (node != null) {
-			LuaValue value = node.value();
-			if (!value.isNil()) return value;
-		}
+		LuaValue value = rawget(search.getKey());
+		if (!value.isNil()) return value;
 
 		metatableFlags |= flag;
 		return NIL;
 	}
 
 	public void rawset(int key, LuaValue value) {
+		if (shared) unshare();
+
 		LuaValue valueOf = null;
 		do {
 			if (key > 0 && key <= array.length) {
@@ -1071,15 +1291,16 @@ public final class LuaTable extends LuaValue {
 				return;
 			}
 
+			if (shape != null) shapeToNodes();
+
 			if (valueOf == null) valueOf = valueOf(key);
 
-			Node node = rawgetNode(valueOf);
-			if (node == null) node = newKey(valueOf);
+			int slot = findSlot(key);
+			if (slot < 0) slot = newKey(valueOf);
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
+			if (slot >= 0) {
+				values[slot] = weakValues ? weaken(value) : value;
 				return;
 			}
 		} while (true);
@@ -1091,18 +1312,106 @@ public final class LuaTable extends LuaValue {
 			return;
 		}
 
-		do {
-			Node node = rawgetNode(key);
-			if (node == null) node = newKey(key);
+		if (shared) unshare();
+
+		while (true) {
+			Shape shape = this.shape;
+			if (shape != null) {
+				LuaString shapeKey = shapeKey(key);
+				if (shapeKey != null && !value.isNil()) {
+					LuaValue[] values = shapeValues;
+					int slot = shape.indexOf(shapeKey);
+					if (slot >= 0) {
+						values[slot] = value;
+						metatableFlags = 0;
+						return;
+					}
+
+					Shape next = shape.add(shapeKey);
+					if (next == null) {
+						// No room for this key, so rehash as the hash part would and try again.
+						rehash(key, false);
+						continue;
+					}
+
+					if (next.movedFrom >= 0) {
+						values[next.movedTo] = values[next.movedFrom];
+						values[next.movedFrom] = null;
+					}
+					values[next.slot] = value;
+					this.shape = next;
+					metatableFlags = 0;
+					return;
+				}
+
+				// Other keys and removals are handled by the hash part.
+				shapeToNodes();
+			}
+
+			int slot = findSlot(key);
+			if (slot < 0) slot = newKey(key);
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
+			if (slot >= 0) {
+				values[slot] = weakValues ? weaken(value) : value;
 				metatableFlags = 0;
 				return;
 			}
-		} while (true);
+		}
+	}
+
+	/**
+	 * Convert a shaped hash part into the equivalent chained hash table.
+	 */
+	private void shapeToNodes() {
+		Shape shape = this.shape;
+		LuaValue[] shapeValues = this.shapeValues;
+		this.shape = null;
+		this.shapeValues = NOVALS;
+
+		LuaString[] shapeKeys = shape.keys;
+		setNodeVector(shapeKeys.length);
+		for (int i = 0; i < shapeKeys.length; i++) {
+			LuaString key = shapeKeys[i];
+			if (key != null) {
+				keys[i] = key;
+				values[i] = shapeValues[i];
+			}
+		}
+		if (shapeKeys.length > 0) System.arraycopy(shape.next, 0, next, 0, shapeKeys.length);
+		lastFree = shape.lastFree;
+	}
+
+	/**
+	 * Get the key in a hash slot, converting it to a strong reference if required. If the key has been collected,
+	 * the slot's value is cleared (marking it as "dead").
+	 *
+	 * @param slot The slot to read.
+	 * @return The slot's key.
+	 */
+	private LuaValue key(int slot) {
+		Object key = keys[slot];
+		if (key == NIL || !weakKeys) return (LuaValue) key;
+
+		LuaValue strengthened = strengthen(key);
+		if (strengthened.isNil()) values[slot] = NIL; // We preserve the key so we can check it is nil
+
+		return strengthened;
+	}
+
+	/**
+	 * Get the value in a hash slot, converting it to a strong reference if required.
+	 *
+	 * @param slot The slot to read.
+	 * @return The slot's value.
+	 */
+	private LuaValue value(int slot) {
+		Object value = values[slot];
+		if (value == NIL || !weakValues) return (LuaValue) value;
+
+		LuaValue strengthened = strengthen(value);
+		if (strengthened.isNil()) values[slot] = NIL;
+		return strengthened;
 	}
 	//endregion
 
@@ -1175,58 +1484,4 @@ public final class LuaTable extends LuaValue {
 		}
 	}
 	//endregion
-
-	/**
-	 * Represents a node in the hash element of the table.
-	 */
-	private static final class Node {
-		private final boolean weakKey;
-		private final boolean weakValue;
-		Object value = NIL;
-		Object key = NIL;
-		int next = -1;
-
-		Node(boolean weakKey, boolean weakValue) {
-			this.weakKey = weakKey;
-			this.weakValue = weakValue;
-		}
-
-		@Override
-		public String toString() {
-			String main = key + "=" + value;
-			if (next >= 0) main += "->" + next;
-			return main;
-		}
-
-		/**
-		 * Get the current key, converting it to a strong reference if
-		 * required. If it is nil then it clears the key and value (marking it
-		 * as "dead").
-		 *
-		 * @return The entry's key.
-		 */
-		LuaValue key() {
-			Object key = this.key;
-			if (key == NIL || !weakKey) return (LuaValue) key;
-
-			LuaValue strengthened = strengthen(key);
-			if (strengthened.isNil()) this.value = NIL; // We preserve the key so we can check it is nil
-
-			return strengthened;
-		}
-
-		/**
-		 * Get the current value, converting it to a strong reference if required.
-		 *
-		 * @return The entry's value.
-		 */
-		LuaValue value() {
-			Object value = this.value;
-			if (value == NIL || !weakValue) return (LuaValue) value;
-
-			LuaValue strengthened = strengthen(value);
-			if (strengthened.isNil()) this.value = NIL;
-			return strengthened;
-		}
-	}
 }
@@ -247,11 +247,33 @@ public class LuaThread extends LuaValue {
 	 * @throws InterruptedError If we had a blocking yield which threw.
 	 */
 	public static Varargs yield(LuaState state, Varargs args) throws LuaError, UnwindThrowable {
+		Varargs result = yieldDirect(state, args);
+		if (result == null) throw state.currentThread.state.unwind;
+		return result;
+	}
+
+	/**
+	 * Yield the current thread with arguments, without unwinding the stack.
+	 *
+	 * This behaves like {@link #yield(LuaState, Varargs)}, but rather than throwing an {@link UnwindThrowable}, the
+	 * transfer is recorded against the current thread and {@code null} is returned. The caller must then return
+	 * {@code null} straight back to the coroutine loop, which completes the transfer. This allows the interpreter to
+	 * switch coroutines without throwing.
+	 *
+	 * @param state The current lua state
+	 * @param args  The arguments to send as return values to {@link #resume(LuaState, LuaThread, Varargs)}
+	 * @return The arguments to resume with if yielding is currently blocked, otherwise {@code null}.
+	 * @throws LuaError         If attempting to yield the main thread.
+	 * @throws InterruptedError If we had a blocking yield which threw.
+	 */
+	public static Varargs yieldDirect(LuaState state, Varargs args) throws LuaError {
 		Objects.requireNonNull(args, "args cannot be null");
 		checkYield(state);
 
-		if (state.currentThread.state.javaCount == 0) {
-			throw UnwindThrowable.yield(args);
+		State current = state.currentThread.state;
+		if (current.javaCount == 0) {
+			current.unwind().reuseYield(args);
+			return null;
 		} else {
 			try {
 				return yieldBlockingImpl(state, args);
@@ -305,6 +327,25 @@ public class LuaThread extends LuaValue {
 	 * @throws UnwindThrowable If we can yield this stack with an exception
 	 */
 	public static Varargs resume(LuaState state, LuaThread thread, Varargs args) throws LuaError, UnwindThrowable {
+		Varargs result = resumeDirect(state, thread, args);
+		if (result == null) throw state.currentThread.state.unwind;
+		return result;
+	}
+
+	/**
+	 * Resume a thread with arguments, without unwinding the stack.
+	 *
+	 * Like {@link #yieldDirect(LuaState, Varargs)}, this records the transfer against the current thread and
+	 * returns {@code null}, rather than throwing an {@link UnwindThrowable}.
+	 *
+	 * @param state  The current lua state
+	 * @param thread The thread to resume
+	 * @param args   The arguments to resume with
+	 * @return The arguments the parent coroutine yielded with if yielding is currently blocked, otherwise {@code null}.
+	 * @throws LuaError If this coroutine cannot resume another.
+	 * @see #resume(LuaState, LuaThread, Varargs)
+	 */
+	public static Varargs resumeDirect(LuaState state, LuaThread thread, Varargs args) throws LuaError {
 		LuaThread current = state.currentThread;
 		State currentState = current.state;
 		if (currentState.status != STATUS_RUNNING) {
@@ -317,7 +358,8 @@ public class LuaThread extends LuaValue {
 		}
 
 		if (currentState.javaCount == 0) {
-			throw UnwindThrowable.resume(thread, args);
+			currentState.unwind().reuseResume(thread, args);
+			return null;
 		} else {
 			try {
 				// Mark the child coroutine as "active", and transfer.
@@ -501,6 +543,8 @@ public class LuaThread extends LuaValue {
 			//noinspection UnusedAssignment
 			thread = null;
 
+			// The transfer to another coroutine, either recorded directly or thrown while unwinding.
+			UnwindThrowable transfer = null;
 			try {
 				if (function != null) {
 					threadState.status = STATUS_RUNNING;
@@ -510,11 +554,16 @@ public class LuaThread extends LuaValue {
 					function = null;
 
 					try {
-						args = toExecute.invoke(state, args);
+						args = toExecute instanceof LuaInterpretedFunction
+							? ((LuaInterpretedFunction) toExecute).invokeDirect(state, args)
+							: toExecute.invoke(state, args);
 					} catch (Exception e) {
 						args = null;
 						le = LuaError.wrap(e);
 					}
+
+					// The function switched to another coroutine without unwinding: complete the transfer.
+					if (args == null && le == null) transfer = threadState.unwind;
 				} else if (threadState.needsThreadedResume) {
 					// We only ever resume coroutines which have yielded, never those which have
 					// resumed other coroutines. Consequently, we know we will never have an error here.
@@ -557,7 +606,13 @@ public class LuaThread extends LuaValue {
 									if (frame == null) break;
 								}
 
-								args = frame.resume(state, args);
+								args = frame.func instanceof LuaInterpretedFunction
+									? ((LuaInterpretedFunction) frame.func).resumeDirect(state, args)
+									: frame.resume(state, args);
+								if (args == null) {
+									transfer = threadState.unwind;
+									break outer;
+								}
 							}
 						} catch (Exception e) {
 							args = null;
@@ -566,37 +621,45 @@ public class LuaThread extends LuaValue {
 					}
 				}
 
-				// We've died, yield into the parent coroutine
-				threadState.status = STATUS_DEAD;
-				LuaThread previous = threadState.previousThread;
-				threadState.previousThread = null;
-				thread = previous;
+				if (transfer == null) {
+					// We've died, yield into the parent coroutine
+					threadState.status = STATUS_DEAD;
+					LuaThread previous = threadState.previousThread;
+					threadState.previousThread = null;
+					thread = previous;
 
-				if (le != null) {
-					// If we've an error, fill in the debug info and clean up the stack.
-					le.fillTracebackNoHandler(state);
+					if (le != null) {
+						// If we've an error, fill in the debug info and clean up the stack.
+						le.fillTracebackNoHandler(state);
 
-					DebugFrame di;
-					for (int i = 0; (di = ds.getFrame(i)) != null; i++) di.cleanup();
+						DebugFrame di;
+						for (int i = 0; (di = ds.getFrame(i)) != null; i++) di.cleanup();
+					}
 				}
 			} catch (UnwindThrowable e) {
-				if (e.isSuspend()) {
+				transfer = e;
+			}
+
+			if (transfer != null) {
+				if (transfer.isSuspend()) {
 					threadState.status = STATUS_SUSPENDED;
 					return null;
-				} else if (e.isYield()) {
+				} else if (transfer.isYield()) {
 					// Yield into the parent coroutine
 					threadState.status = STATUS_SUSPENDED;
 					LuaThread previous = threadState.previousThread;
 					threadState.previousThread = null;
 					thread = previous;
-					args = e.getArgs();
+					args = transfer.getArgs();
+					transfer.clear();
 				} else {
 					// Resume into the next coroutine
 					threadState.status = STATUS_NORMAL;
-					LuaThread next = e.getThread();
+					LuaThread next = transfer.getThread();
 					next.state.previousThread = state.currentThread;
 					thread = next;
-					args = e.getArgs();
+					args = transfer.getArgs();
+					transfer.clear();
 				}
 			}
 		} while (thread != null);
@@ -659,6 +722,13 @@ public class LuaThread extends LuaValue {
 		 */
 		boolean needsThreadedResume;
 
+		/**
+		 * The throwable used to yield from or resume another coroutine without blocking.
+		 *
+		 * @see #unwind()
+		 */
+		private UnwindThrowable unwind;
+
 		/**
 		 * Constructor for main thread only
 		 */
@@ -666,6 +736,11 @@ public class LuaThread extends LuaValue {
 			this.owner = new WeakReference<>(owner);
 			this.status = status;
 		}
+
+		UnwindThrowable unwind() {
+			UnwindThrowable unwind = this.unwind;
+			return unwind != null ? unwind : (this.unwind = UnwindThrowable.reusable());
+		}
 	}
 
 	/**
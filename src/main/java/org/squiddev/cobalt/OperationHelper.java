@@ -540,6 +540,41 @@ public final class OperationHelper {
 		throw new LuaError("loop in gettable");
 	}
 
+	/**
+	 * Return value for field reference including metatag processing, using an inline cache for table lookups.
+	 *
+	 * @param state The current lua state
+	 * @param t     {@link LuaValue} on which field is being referenced
+	 * @param key   The constant key to look up
+	 * @param stack The stack slot of {@code t}, used for error messages
+	 * @param cache The inline cache for this lookup
+	 * @return {@link LuaValue} for the {@code key} if it exists, or {@link Constants#NIL}
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __get} metamethod yielded.
+	 * @see #getTable(LuaState, LuaValue, LuaValue, int)
+	 */
+	public static LuaValue getTable(LuaState state, LuaValue t, LuaString key, int stack, InlineCache cache) throws LuaError, UnwindThrowable {
+		LuaValue tm;
+		int loop = 0;
+		do {
+			if (t.isTable()) {
+				LuaValue res = ((LuaTable) t).rawget(key, cache);
+				if (!res.isNil() || (tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+					return res;
+				}
+			} else if ((tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+				throw ErrorFactory.operandError(state, t, "index", stack);
+			}
+			if (tm.isFunction()) {
+				return ((LuaFunction) tm).call(state, t, key);
+			}
+			t = tm;
+			stack = -1;
+		}
+		while (++loop < Constants.MAXTAGLOOP);
+		throw new LuaError("loop in gettable");
+	}
+
 	/**
 	 * Perform field assignment including metatag processing.
 	 *
@@ -24,6 +24,7 @@
  */
 package org.squiddev.cobalt;
 
+import org.squiddev.cobalt.function.CompiledPrototype;
 import org.squiddev.cobalt.function.LocalVariable;
 import org.squiddev.cobalt.function.LuaInterpretedFunction;
 
@@ -62,6 +63,44 @@ public final class Prototype {
 	public boolean isLua52;
 	public int[] upvalue_info;
 
+	/**
+	 * Cached analysis of which instructions may use unboxed numeric registers. This is volatile as prototypes may be
+	 * shared between threads: the array must be fully written before it is visible to other threads.
+	 *
+	 * @see LuaState#numericRegisters
+	 */
+	public volatile byte[] numericHints;
+
+	/**
+	 * The number of times this prototype has been entered or looped, used to determine when it should be compiled.
+	 * This is updated without synchronisation, and so is only approximate when the prototype is shared between
+	 * threads.
+	 *
+	 * @see LuaState#compileThreshold
+	 */
+	public int hotness;
+
+	/**
+	 * This prototype compiled to JVM bytecode, or {@code null} if it has not been compiled yet.
+	 *
+	 * @see LuaState#compileThreshold
+	 */
+	public volatile CompiledPrototype compiled;
+
+	/**
+	 * Whether compiling this prototype to JVM bytecode failed, in which case it will always be interpreted.
+	 *
+	 * @see LuaState#compileThreshold
+	 */
+	public volatile boolean compileFailed;
+
+	/**
+	 * Inline caches for table lookups with constant keys, indexed by instruction. This is lazily populated.
+	 *
+	 * @see InlineCache#get(Prototype, int)
+	 */
+	public volatile InlineCache[] caches;
+
 	public LuaString sourceShort() {
 		return getShortName(source);
 	}
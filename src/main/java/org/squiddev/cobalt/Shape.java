@@ -0,0 +1,229 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Describes the hash part of a record-like table: which string keys are present and which slot each one lives in.
+ *
+ * A shape is a frozen copy of the layout a {@link LuaTable}'s hash nodes would have, including collision chains and
+ * the free pointer. Adding a key moves a table to a child shape, computed by running the same insertion algorithm as
+ * the hash part. This means tables which have had the same keys added in the same order share a shape, while still
+ * being iterated in exactly the same order as a normal hash table.
+ *
+ * As the layout of a shape never changes, an {@link InlineCache} can remember the slot a key lives at (or that it is
+ * absent) for a given shape, turning a field lookup into a comparison and an array load.
+ *
+ * Shapes are shared between all Lua states. Children are only weakly referenced by their parent (bar the most
+ * recently used transition), so layouts which are no longer used by any table may be collected.
+ *
+ * @see LuaTable
+ */
+final class Shape {
+	/**
+	 * The maximum number of keys a shape may hold. Tables which grow beyond this are considered to be dictionaries
+	 * and use a normal hash part instead.
+	 */
+	static final int MAX_SIZE = 16;
+
+	private static final Shape[] ROOTS = new Shape[]{
+		new Shape(0), new Shape(1), new Shape(2), new Shape(4), new Shape(8), new Shape(16),
+	};
+
+	/**
+	 * The key in each slot, or {@code null} if the slot is free.
+	 */
+	final LuaString[] keys;
+
+	/**
+	 * The next slot in each collision chain, or {@code -1}.
+	 */
+	final int[] next;
+
+	/**
+	 * Slots above this are known to be in use.
+	 */
+	final int lastFree;
+
+	final int size;
+
+	/**
+	 * The slot the most recently added key was placed in.
+	 */
+	final int slot;
+
+	/**
+	 * If adding the last key moved an existing key out of its slot, the slot it was moved from and to. Otherwise
+	 * {@code -1}.
+	 */
+	final int movedFrom, movedTo;
+
+	private Shape lastTransition;
+	private Map<LuaString, WeakReference<Shape>> transitions;
+
+	private Shape(int capacity) {
+		keys = new LuaString[capacity];
+		next = new int[capacity];
+		for (int i = 0; i < capacity; i++) next[i] = -1;
+		lastFree = capacity == 0 ? 0 : capacity - 1;
+		size = 0;
+		slot = movedFrom = movedTo = -1;
+	}
+
+	private Shape(LuaString[] keys, int[] next, int lastFree, int size, int slot, int movedFrom, int movedTo) {
+		this.keys = keys;
+		this.next = next;
+		this.lastFree = lastFree;
+		this.size = size;
+		this.slot = slot;
+		this.movedFrom = movedFrom;
+		this.movedTo = movedTo;
+	}
+
+	/**
+	 * Get the empty shape with a given capacity.
+	 *
+	 * @param capacity The capacity of this shape. This must be 0 or a power of two no larger than {@link #MAX_SIZE}.
+	 * @return The empty shape.
+	 */
+	static Shape root(int capacity) {
+		return ROOTS[capacity == 0 ? 0 : Integer.numberOfTrailingZeros(capacity) + 1];
+	}
+
+	/**
+	 * Find the slot containing a key.
+	 *
+	 * @param key The key to find.
+	 * @return The key's slot, or {@code -1} if this shape does not contain the key.
+	 */
+	int indexOf(LuaString key) {
+		LuaString[] keys = this.keys;
+		int capacity = keys.length;
+		if (capacity == 0) return -1;
+
+		int slot = key.hashCode() & (capacity - 1);
+		do {
+			LuaString other = keys[slot];
+			if (other == key || (other != null && other.raweq(key))) return slot;
+			slot = next[slot];
+		} while (slot >= 0);
+
+		return -1;
+	}
+
+	/**
+	 * Get the shape formed by adding a key to this one. The key must not already be in this shape.
+	 *
+	 * @param key The key to add.
+	 * @return The child shape, or {@code null} if there is no room for this key and so the table must be rehashed.
+	 */
+	Shape add(LuaString key) {
+		if (size == keys.length) return null;
+
+		Shape last = lastTransition;
+		if (last != null && last.keys[last.slot].raweq(key)) return last;
+
+		synchronized (this) {
+			Map<LuaString, WeakReference<Shape>> transitions = this.transitions;
+			if (transitions == null) this.transitions = transitions = new WeakHashMap<>(4);
+
+			WeakReference<Shape> ref = transitions.get(key);
+			Shape child = ref == null ? null : ref.get();
+			if (child == null) {
+				child = insert(key);
+				if (child == null) return null;
+				transitions.put(key, new WeakReference<>(child));
+			}
+
+			return lastTransition = child;
+		}
+	}
+
+	/**
+	 * Insert a key into a copy of this layout. This mirrors {@link LuaTable}'s insertion algorithm.
+	 *
+	 * @param key The key to insert.
+	 * @return The new shape, or {@code null} if there is no free slot.
+	 */
+	private Shape insert(LuaString key) {
+		int capacity = keys.length;
+		LuaString[] keys = this.keys.clone();
+		int[] next = this.next.clone();
+		int lastFree = this.lastFree;
+		int movedFrom = -1, movedTo = -1;
+
+		int main = key.hashCode() & (capacity - 1);
+		LuaString mainKey = keys[main];
+		if (mainKey != null) {
+			int free = -1;
+			while (lastFree >= 0) {
+				if (keys[lastFree--] == null) {
+					free = lastFree + 1;
+					break;
+				}
+			}
+			if (free < 0) return null;
+
+			int other = mainKey.hashCode() & (capacity - 1);
+			if (other != main) {
+				// The colliding key isn't in its main position, so move it to the free slot.
+				while (next[other] != main) other = next[other];
+				next[other] = free;
+
+				keys[free] = mainKey;
+				next[free] = next[main];
+				keys[main] = null;
+				next[main] = -1;
+
+				movedFrom = main;
+				movedTo = free;
+			} else {
+				// The colliding key is in its main position, so chain the new key after it.
+				if (next[main] != -1) next[free] = next[main];
+				next[main] = free;
+				main = free;
+			}
+		}
+
+		keys[main] = key;
+		return new Shape(keys, next, lastFree, size + 1, main, movedFrom, movedTo);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("Shape{");
+		boolean first = true;
+		for (LuaString key : keys) {
+			if (key == null) continue;
+			if (!first) builder.append(", ");
+			builder.append(key);
+			first = false;
+		}
+		return builder.append('}').toString();
+	}
+}
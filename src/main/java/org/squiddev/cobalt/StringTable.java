@@ -0,0 +1,396 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * A concurrent table of interned {@link LuaString}s, ensuring equal short strings share a single instance.
+ *
+ * The table is split into several independently locked segments, each of which is an open-addressed hash table of
+ * weak references. Lookups of existing strings do not take the lock, only adding new strings does. Strings are only
+ * held as long as something else refers to them, and each segment holds at most a fixed number of strings: once full,
+ * new strings are returned as-is until older ones are collected.
+ *
+ * Strings interned by a table remember which table they belong to, meaning two different strings from the same table
+ * can be compared without looking at their contents.
+ *
+ * @see LuaState.Builder#stringTable(StringTable)
+ * @see #global()
+ */
+public final class StringTable {
+	/**
+	 * The default maximum number of strings held by a table.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+	private static final int SEGMENT_SHIFT = 4;
+	private static final int SEGMENTS = 1 << SEGMENT_SHIFT;
+	private static final int INITIAL_CAPACITY = 32;
+	private static final int RECENT_SIZE = 1 << 12;
+
+	private static final StringTable global = new StringTable(DEFAULT_MAX_SIZE, LuaString.RECENT_STRINGS_MAX_LENGTH);
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final int maxLength;
+
+	/**
+	 * Statistics about this table. These are updated without any synchronisation, and so are only approximate when
+	 * the table is used from multiple threads.
+	 */
+	private long hits, misses;
+
+	/**
+	 * Strings recently passed to {@link #internRecent(LuaString)}. These are either interned, or have been seen once
+	 * and not yet been added to the table. This is deliberately unsynchronised: a lost update only means a string is
+	 * interned slightly later than it otherwise would be.
+	 */
+	private final LuaString[] recent = new LuaString[RECENT_SIZE];
+	private final int[] recentHashes = new int[RECENT_SIZE];
+	private int recentSeed = 0x2545F491;
+
+	/**
+	 * Create a new string table.
+	 *
+	 * @param maxSize   The maximum number of strings this table will hold.
+	 * @param maxLength The maximum length of a string which will be interned. Longer strings are returned unchanged.
+	 */
+	public StringTable(int maxSize, int maxLength) {
+		if (maxSize < 0) throw new IllegalArgumentException("maxSize must be >= 0");
+		if (maxLength < 0) throw new IllegalArgumentException("maxLength must be >= 0");
+
+		int segmentSize = (maxSize + SEGMENTS - 1) / SEGMENTS;
+		for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(segmentSize);
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Get the table shared by all Lua states. This is used when creating short strings through
+	 * {@link LuaString#valueOf(byte[], int, int)}.
+	 *
+	 * @return The global string table.
+	 */
+	public static StringTable global() {
+		return global;
+	}
+
+	/**
+	 * Get the canonical instance of a string, adding it to this table if no equal string is present.
+	 *
+	 * @param string The string to intern.
+	 * @return A string equal to {@code string}. This will be {@code string} itself if it was added to the table, or is
+	 * too long to be interned.
+	 */
+	public LuaString intern(LuaString string) {
+		if (string.owner == this || string.length > maxLength) return string;
+
+		int hash = mix(string.hashCode());
+		Segment segment = segments[hash >>> (32 - SEGMENT_SHIFT)];
+		LuaString existing = segment.find(string, hash);
+		if (existing != null) {
+			hits++;
+			return existing;
+		}
+
+		LuaString result = segment.intern(this, string, hash);
+		if (result == string) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return result;
+	}
+
+	/**
+	 * Get the canonical instance of a string if one exists, otherwise only adding it to the table if an equal string
+	 * has been seen recently.
+	 *
+	 * This avoids filling the table with strings which are only created once, and is used when creating strings
+	 * through {@link LuaString#valueOf(byte[], int, int)}. Recently used strings are also kept in a small direct-mapped
+	 * cache in front of the table, so repeatedly creating the same string is cheap.
+	 *
+	 * @param string The string to intern.
+	 * @return A string equal to {@code string}.
+	 */
+	LuaString internRecent(LuaString string) {
+		if (string.owner == this || string.length > maxLength) return string;
+
+		// Each string may be remembered in one of two slots, chosen at random, so two frequently used strings cannot
+		// keep evicting each other.
+		int hash = mix(string.hashCode());
+		int first = hash & (RECENT_SIZE - 1), second = (hash >>> 12) & (RECENT_SIZE - 1);
+		LuaString[] recent = this.recent;
+		int[] recentHashes = this.recentHashes;
+		LuaString candidate;
+		int slot;
+		if (recentHashes[slot = first] == hash && (candidate = recent[slot]) != null && candidate.raweq(string)
+			|| recentHashes[slot = second] == hash && (candidate = recent[slot]) != null && candidate.raweq(string)) {
+			hits++;
+			if (candidate.owner == this) return candidate;
+
+			// We've seen this string before, so add the original to the table.
+			LuaString result = segments[hash >>> (32 - SEGMENT_SHIFT)].intern(this, candidate, hash);
+			recent[slot] = result;
+			return result;
+		}
+
+		int seed = recentSeed;
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		recentSeed = seed;
+		slot = seed < 0 ? first : second;
+
+		LuaString existing = segments[hash >>> (32 - SEGMENT_SHIFT)].find(string, hash);
+		if (existing != null) {
+			hits++;
+			string = existing;
+		} else {
+			misses++;
+		}
+
+		recentHashes[slot] = hash;
+		recent[slot] = string;
+		return string;
+	}
+
+	/**
+	 * Get the number of strings looked up in this table which were already present. This is approximate if the table
+	 * is used from multiple threads.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of strings looked up in this table which were not already present. This is approximate if the
+	 * table is used from multiple threads.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of strings currently in this table. This may include strings which are no longer reachable, but
+	 * have not yet been removed.
+	 *
+	 * @return The size of this table.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.expunge();
+				size += segment.live;
+			}
+		}
+		return size;
+	}
+
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static final class Entry extends WeakReference<LuaString> {
+		final int hash;
+
+		Entry(LuaString referent, int hash, ReferenceQueue<LuaString> queue) {
+			super(referent, queue);
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Marks a slot whose entry has been removed. Probes continue past it, but it may be reused for a new entry.
+	 */
+	private static final Entry TOMBSTONE = new Entry(null, 0, null);
+
+	/**
+	 * The slots of a segment. The hash of each entry is also stored inline, so probing does not need to visit every
+	 * entry.
+	 */
+	private static final class Slots {
+		final Entry[] entries;
+		final int[] hashes;
+
+		Slots(int capacity) {
+			entries = new Entry[capacity];
+			hashes = new int[capacity];
+		}
+	}
+
+	private static final class Segment {
+		private final ReferenceQueue<LuaString> queue = new ReferenceQueue<>();
+		private final int maxSize;
+
+		private volatile Slots slots = new Slots(INITIAL_CAPACITY);
+
+		/**
+		 * The number of entries in the table, excluding tombstones.
+		 */
+		private int live;
+
+		/**
+		 * The number of non-null slots in the table, including tombstones.
+		 */
+		private int used;
+
+		Segment(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * Find an existing string without acquiring the lock. As this may observe a partially updated table, a
+		 * {@code null} result must be confirmed with {@link #intern(StringTable, LuaString, int)}.
+		 *
+		 * @param string The string to find.
+		 * @param hash   The string's mixed hash.
+		 * @return The interned string, or {@code null} if it could not be found.
+		 */
+		LuaString find(LuaString string, int hash) {
+			Slots slots = this.slots;
+			Entry[] entries = slots.entries;
+			int[] hashes = slots.hashes;
+			int mask = entries.length - 1;
+			int index = hash & mask;
+			Entry entry;
+			while ((entry = entries[index]) != null) {
+				if (hashes[index] == hash) {
+					LuaString existing = entry.get();
+					if (existing != null && existing.raweq(string)) return existing;
+				}
+
+				index = (index + 1) & mask;
+			}
+
+			return null;
+		}
+
+		synchronized LuaString intern(StringTable owner, LuaString string, int hash) {
+			expunge();
+
+			Slots slots = this.slots;
+			Entry[] entries = slots.entries;
+			int[] hashes = slots.hashes;
+			int mask = entries.length - 1;
+			int index = hash & mask;
+			int free = -1;
+			Entry entry;
+			while ((entry = entries[index]) != null) {
+				if (entry == TOMBSTONE) {
+					if (free < 0) free = index;
+				} else if (hashes[index] == hash) {
+					LuaString existing = entry.get();
+					if (existing != null && existing.raweq(string)) return existing;
+				}
+
+				index = (index + 1) & mask;
+			}
+
+			if (live >= maxSize) return string;
+
+			if (free < 0) {
+				if ((used + 1) * 2 > entries.length) {
+					slots = rehash();
+					entries = slots.entries;
+					hashes = slots.hashes;
+					mask = entries.length - 1;
+					index = hash & mask;
+					while (entries[index] != null) index = (index + 1) & mask;
+				}
+
+				free = index;
+				used++;
+			}
+
+			hashes[free] = hash;
+			entries[free] = new Entry(string, hash, queue);
+			live++;
+			string.owner = owner;
+			return string;
+		}
+
+		/**
+		 * Remove any entries whose strings have been collected.
+		 */
+		void expunge() {
+			Entry entry = (Entry) queue.poll();
+			if (entry == null) return;
+
+			Entry[] entries = slots.entries;
+			int mask = entries.length - 1;
+			do {
+				// Entries may have been dropped by a rehash, so only count those we actually find.
+				int index = entry.hash & mask;
+				Entry other;
+				while ((other = entries[index]) != null) {
+					if (other == entry) {
+						entries[index] = TOMBSTONE;
+						live--;
+						break;
+					}
+					index = (index + 1) & mask;
+				}
+			} while ((entry = (Entry) queue.poll()) != null);
+		}
+
+		/**
+		 * Rebuild the table, dropping any tombstones and collected strings, and growing it if needed.
+		 *
+		 * @return The new slots.
+		 */
+		private Slots rehash() {
+			Entry[] old = slots.entries;
+			int capacity = old.length;
+			if (live * 4 >= capacity) capacity <<= 1;
+
+			Slots slots = new Slots(capacity);
+			Entry[] entries = slots.entries;
+			int[] hashes = slots.hashes;
+			int mask = capacity - 1;
+			int live = 0;
+			for (Entry entry : old) {
+				if (entry == null || entry == TOMBSTONE || entry.get() == null) continue;
+
+				int index = entry.hash & mask;
+				while (entries[index] != null) index = (index + 1) & mask;
+				hashes[index] = entry.hash;
+				entries[index] = entry;
+				live++;
+			}
+
+			this.slots = slots;
+			this.live = live;
+			this.used = live;
+			return slots;
+		}
+	}
+}
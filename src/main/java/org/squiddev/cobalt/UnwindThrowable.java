@@ -34,12 +34,13 @@ public final class UnwindThrowable extends Throwable {
 
 	private static final UnwindThrowable suspendCache = new UnwindThrowable(Constants.NONE, null, true, true);
 
-	private final Varargs args;
-	private final LuaThread thread;
+	private Varargs args;
+	private LuaThread thread;
 	private final boolean suspend;
-	private final boolean yield;
+	private boolean yield;
 
 	private UnwindThrowable(Varargs args, LuaThread thread, boolean suspend, boolean yield) {
+		super(null, null, false, false);
 		this.args = args;
 		this.thread = thread;
 		this.suspend = suspend;
@@ -77,6 +78,61 @@ public final class UnwindThrowable extends Throwable {
 		return suspendCache;
 	}
 
+	/**
+	 * Create a throwable which may be reused for multiple transfers, avoiding allocating a new one every time a
+	 * coroutine yields or resumes another.
+	 *
+	 * As a coroutine can only have one transfer in progress at once, each coroutine may own a single reusable
+	 * throwable.
+	 *
+	 * @return The reusable throwable.
+	 * @see #reuseYield(Varargs)
+	 * @see #reuseResume(LuaThread, Varargs)
+	 */
+	static UnwindThrowable reusable() {
+		return new UnwindThrowable(null, null, false, false);
+	}
+
+	/**
+	 * Set up a {@linkplain #reusable() reusable throwable} to yield with the specified arguments.
+	 *
+	 * @param args The arguments to yield with
+	 * @return This throwable
+	 * @see #yield(Varargs)
+	 */
+	UnwindThrowable reuseYield(Varargs args) {
+		Objects.requireNonNull(args, "args cannot be null");
+		this.args = args;
+		this.thread = null;
+		this.yield = true;
+		return this;
+	}
+
+	/**
+	 * Set up a {@linkplain #reusable() reusable throwable} to enter a different thread.
+	 *
+	 * @param thread The thread to resume
+	 * @param args   The arguments to resume with
+	 * @return This throwable
+	 * @see #resume(LuaThread, Varargs)
+	 */
+	UnwindThrowable reuseResume(LuaThread thread, Varargs args) {
+		this.args = args;
+		this.thread = thread;
+		this.yield = false;
+		return this;
+	}
+
+	/**
+	 * Clear the arguments and thread of a reusable throwable once the transfer has been handled, so they are not kept
+	 * alive while the coroutine is suspended.
+	 */
+	void clear() {
+		if (suspend) return;
+		args = null;
+		thread = null;
+	}
+
 	/**
 	 * Whether this throwable should suspend all threads, rather than just the current one
 	 *
@@ -119,8 +175,4 @@ public final class UnwindThrowable extends Throwable {
 		return thread;
 	}
 
-	@Override
-	public Throwable fillInStackTrace() {
-		return this;
-	}
 }
@@ -29,6 +29,16 @@ import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Runs coroutines which yield from within a Java function on their own thread.
+ *
+ * Control is passed between the resuming thread and the coroutine's thread using {@link #lock}: the thread giving up
+ * control signals the other's {@link Condition} and then waits on its own. Only one thread runs Lua code at a time.
+ * Waiting on a {@link Condition} parks a virtual thread without pinning its carrier, so this handoff works the same
+ * whether the executor uses platform or virtual threads.
+ *
+ * @see LuaState.Builder#coroutineExecutor(Executor)
+ */
 public final class YieldThreader implements Executor {
 	private final Executor executor;
 	final Lock lock = new ReentrantLock();
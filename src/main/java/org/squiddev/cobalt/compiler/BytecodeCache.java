@@ -0,0 +1,357 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.LuaString;
+import org.squiddev.cobalt.LuaTable;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.StringTable;
+import org.squiddev.cobalt.compiler.LoadState.LuaCompiler;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link LuaCompiler} which stores compiled chunks in a directory, so later processes can load the
+ * {@linkplain DumpState dumped} bytecode rather than parsing the source again.
+ *
+ * Only chunks loaded from files (those whose name starts with {@code @}, such as ones loaded by {@code loadfile},
+ * {@code dofile} and {@code require}) are cached. Each chunk is stored in a file named after a SHA-256 digest of its
+ * name and contents, so editing a source file will use a new cache entry rather than the old one.
+ *
+ * Cache files are written to a temporary file and then atomically moved into place, so concurrent processes never
+ * see partially written entries. Each entry contains the digest it was stored under, the length of the bytecode and a
+ * checksum of it. Entries which do not match are treated as missing and are replaced.
+ *
+ * This may be combined with a {@link CachingCompiler} to also share prototypes within a process.
+ *
+ * @see LuaState.Builder#compiler(LuaCompiler)
+ */
+public final class BytecodeCache implements LuaCompiler {
+	private static final byte[] MAGIC = {'C', 'o', 'b', 'a', 'l', 't', 'B', 'C'};
+
+	/**
+	 * The version of the cache format. This should be incremented whenever the format of cache files, or the
+	 * bytecode the compiler generates, changes.
+	 */
+	private static final int VERSION = 1;
+
+	private static final int DIGEST_LENGTH = 32;
+	private static final int HEADER_LENGTH = MAGIC.length + 4 + DIGEST_LENGTH + 4 + 4;
+
+	private final LuaCompiler delegate;
+
+	/**
+	 * Whether {@link #delegate} runs {@link BytecodeOptimizer}. Compilers other than {@link LuaC} are assumed to.
+	 */
+	private final boolean optimize;
+	private final Path directory;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * Create a new cache wrapping {@link LuaC}.
+	 *
+	 * @param directory The directory to store compiled chunks in. This will be created if it does not exist.
+	 */
+	public BytecodeCache(Path directory) {
+		this(LuaC.INSTANCE, directory);
+	}
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param delegate  The compiler to use for chunks not in the cache. Only functions it returns as a
+	 *                  {@link LuaInterpretedFunction} are cached.
+	 * @param directory The directory to store compiled chunks in. This will be created if it does not exist.
+	 */
+	public BytecodeCache(LuaCompiler delegate, Path directory) {
+		if (delegate == null) throw new NullPointerException("delegate cannot be null");
+		if (directory == null) throw new NullPointerException("directory cannot be null");
+		this.delegate = delegate;
+		this.optimize = !(delegate instanceof LuaC) || ((LuaC) delegate).isOptimizing();
+		this.directory = directory;
+	}
+
+	@Override
+	public LuaFunction load(InputStream stream, LuaString name, LuaString mode, LuaTable env) throws IOException, CompileException {
+		return load(stream, name, mode, env, StringTable.global());
+	}
+
+	@Override
+	public LuaFunction load(InputStream stream, LuaString name, LuaString mode, LuaTable env, StringTable strings) throws IOException, CompileException {
+		if (name == null || name.length() == 0 || name.luaByte(0) != '@' || (mode != null && mode.indexOf((byte) 't', 0) < 0)) {
+			return delegate.load(stream, name, mode, env, strings);
+		}
+
+		byte[] chunk = readAll(stream);
+		if (chunk.length > 0 && chunk[0] == '\033') {
+			// Binary chunks are already compiled, so there is no point caching them.
+			return delegate.load(new ByteArrayInputStream(chunk), name, mode, env, strings);
+		}
+
+		byte[] digest = digest(chunk, name, optimize);
+		Path path = directory.resolve(toHex(digest) + ".luac");
+
+		Prototype prototype = read(path, digest, name, strings);
+		if (prototype != null) {
+			hits.increment();
+			return LuaC.instantiate(prototype, env);
+		}
+
+		misses.increment();
+		LuaFunction function = delegate.load(new ByteArrayInputStream(chunk), name, mode, env, strings);
+		if (function instanceof LuaInterpretedFunction) write(path, digest, ((LuaInterpretedFunction) function).getPrototype());
+		return function;
+	}
+
+	/**
+	 * Read a prototype from the cache.
+	 *
+	 * @param path    The path to the cache entry.
+	 * @param digest  The digest of the chunk we expect this entry to contain.
+	 * @param name    The name of the chunk.
+	 * @param strings The table to intern string constants into.
+	 * @return The loaded prototype, or {@code null} if the entry does not exist or is invalid.
+	 */
+	private Prototype read(Path path, byte[] digest, LuaString name, StringTable strings) {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+				reject(path);
+				return null;
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} catch (IOException e) {
+			return null;
+		}
+
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		if (!check(buffer, digest)) {
+			reject(path);
+			return null;
+		}
+
+		try {
+			InputStream stream = new BufferInputStream(buffer);
+			return LoadState.loadBinaryChunk(stream.read(), stream, name, strings);
+		} catch (IOException | CompileException | RuntimeException e) {
+			reject(path);
+			return null;
+		}
+	}
+
+	/**
+	 * Validate a cache entry's header, leaving the buffer positioned at the start of the bytecode.
+	 *
+	 * @param buffer The contents of the cache entry.
+	 * @param digest The digest we expect this entry to contain.
+	 * @return Whether this entry is valid.
+	 */
+	private static boolean check(ByteBuffer buffer, byte[] digest) {
+		for (byte b : MAGIC) {
+			if (buffer.get() != b) return false;
+		}
+		if (buffer.getInt() != VERSION) return false;
+		for (byte b : digest) {
+			if (buffer.get() != b) return false;
+		}
+
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+		if (length != buffer.remaining()) return false;
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate());
+		return (int) crc.getValue() == checksum;
+	}
+
+	private void reject(Path path) {
+		rejected.increment();
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException ignored) {
+			// We'll just overwrite it later.
+		}
+	}
+
+	/**
+	 * Write a prototype to the cache. Failures are ignored, as the cache is only an optimisation.
+	 *
+	 * @param path      The path to the cache entry.
+	 * @param digest    The digest of the chunk.
+	 * @param prototype The prototype to store.
+	 */
+	private void write(Path path, byte[] digest, Prototype prototype) {
+		ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+		try {
+			DumpState.dump(prototype, bytecode, false);
+		} catch (IOException | RuntimeException e) {
+			return;
+		}
+
+		CRC32 crc = new CRC32();
+		byte[] contents = bytecode.toByteArray();
+		crc.update(contents, 0, contents.length);
+
+		Path temp = null;
+		try {
+			Files.createDirectories(directory);
+			temp = Files.createTempFile(directory, "chunk", ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.write(MAGIC);
+				out.writeInt(VERSION);
+				out.write(digest);
+				out.writeInt(contents.length);
+				out.writeInt((int) crc.getValue());
+				out.write(contents);
+			}
+
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+		} catch (IOException | SecurityException ignored) {
+			// Just don't cache this chunk.
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of chunks which were loaded from the cache.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of chunks which were not in the cache and so had to be compiled.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of cache entries which were found to be corrupt or out of date, and so were discarded.
+	 *
+	 * @return The number of rejected entries.
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	private static byte[] readAll(InputStream stream) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = stream.read(buffer)) > 0) out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+
+	private static byte[] digest(byte[] chunk, LuaString name, boolean optimize) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+
+		byte[] nameBytes = new byte[name.length()];
+		name.copyTo(nameBytes, 0);
+
+		digest.update((byte) VERSION);
+		digest.update((byte) (LuaC.blockGoto ? 1 : 0));
+		digest.update((byte) (optimize ? 1 : 0));
+		digest.update(ByteBuffer.allocate(4).putInt(nameBytes.length).array());
+		digest.update(nameBytes);
+		digest.update(chunk);
+		return digest.digest();
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] out = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			out[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			out[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+		return new String(out);
+	}
+
+	/**
+	 * An input stream reading from a (memory mapped) buffer.
+	 */
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (length == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
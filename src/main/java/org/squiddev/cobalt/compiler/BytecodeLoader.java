@@ -84,13 +84,29 @@ public final class BytecodeLoader {
 	 */
 	public final DataInputStream is;
 
+	/**
+	 * The table string constants are interned into
+	 */
+	private final StringTable strings;
+
 	/**
 	 * Private constructor for create a load state
 	 *
 	 * @param stream The stream to read from
 	 */
 	public BytecodeLoader(InputStream stream) {
+		this(stream, StringTable.global());
+	}
+
+	/**
+	 * Private constructor for create a load state
+	 *
+	 * @param stream  The stream to read from
+	 * @param strings The table to intern string constants into
+	 */
+	public BytecodeLoader(InputStream stream, StringTable strings) {
 		this.is = new DataInputStream(stream);
+		this.strings = strings;
 	}
 
 	private static final LuaValue[] NOVALUES = {};
@@ -238,9 +254,11 @@ public final class BytecodeLoader {
 				case TNUMBER:
 					values[i] = loadNumber();
 					break;
-				case TSTRING:
-					values[i] = loadString();
+				case TSTRING: {
+					LuaString string = loadString();
+					values[i] = string == null ? null : strings.intern(string);
 					break;
+				}
 				default:
 					throw new IllegalStateException("bad constant");
 			}
@@ -345,7 +363,7 @@ public final class BytecodeLoader {
 		luacNumberFormat = is.readByte();
 		if (isLua52) {
 			byte[] data = new byte[6];
-			is.read(data);
+			is.readFully(data);
 			if (!Arrays.equals(data, Lua52.error_check)) {
 				throw new CompileException("corrupted precompiled chunk");
 			}
@@ -0,0 +1,919 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.squiddev.cobalt.LuaValue;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.function.LocalVariable;
+
+import java.util.*;
+
+import static org.squiddev.cobalt.Lua52.*;
+import static org.squiddev.cobalt.compiler.LuaC.*;
+
+/**
+ * Peephole optimisations over the bytecode emitted by {@link FuncState}. These are run on each function once it has
+ * been closed, and so never see binary chunks.
+ *
+ * <ul>
+ *     <li>Constant keys which did not fit in an RK operand (as the function has more than {@link Lua52#MAXINDEXRK}
+ *     constants) are moved into the lower part of the constant table, so the {@link Lua52#OP_LOADK} into a temporary
+ *     can be folded into the instruction which uses it.</li>
+ *     <li>A conditional jump over an unconditional one is inverted.</li>
+ *     <li>Jumps to jumps are threaded to their final target, and jumps to a {@link Lua52#OP_RETURN} are replaced
+ *     with the return itself.</li>
+ *     <li>Unreachable code, jumps to the next instruction and moves which do not change any register are removed.</li>
+ *     <li>{@link Prototype#maxstacksize} is shrunk to the registers which are actually used.</li>
+ * </ul>
+ *
+ * Each transformation preserves the sequence of line events seen by debug hooks, and {@link Prototype#lineinfo} and
+ * {@link Prototype#locvars} are rewritten alongside the code, so tracebacks and {@code debug.getlocal} are unchanged.
+ *
+ * @see LuaC#UNOPTIMIZED
+ */
+final class BytecodeOptimizer {
+	/**
+	 * The maximum number of times to run the optimisation passes. Removing instructions may expose new opportunities,
+	 * but this almost always settles after one or two rounds.
+	 */
+	private static final int MAX_ROUNDS = 4;
+
+	/**
+	 * The maximum number of instructions between a constant being loaded and used for it to be folded.
+	 */
+	private static final int MAX_FOLD_DISTANCE = 64;
+
+	/**
+	 * The maximum number of instructions to visit when determining if a register is still live.
+	 */
+	private static final int MAX_LIVENESS_STEPS = 256;
+
+	private BytecodeOptimizer() {
+	}
+
+	static void optimize(Prototype p) {
+		int[] code = p.code;
+		if (!p.isLua52 || p.lineinfo == null || p.lineinfo.length != code.length) return;
+		for (int i : code) {
+			if (GET_OPCODE(i) > OP_EXTRAARG) return;
+		}
+
+		for (int round = 0; round < MAX_ROUNDS; round++) {
+			if (!optimizeOnce(p)) break;
+		}
+
+		shrinkStack(p);
+	}
+
+	private static boolean optimizeOnce(Prototype p) {
+		int[] code = p.code, lines = p.lineinfo;
+		boolean[] remove = new boolean[code.length];
+
+		boolean changed = foldConstantKeys(p, branchTargets(code), remove);
+		changed |= invertBranches(code, lines, branchTargets(code), remove);
+		changed |= threadJumps(code, lines);
+		removeNops(code, lines, branchTargets(code), remove);
+		removeUnreachable(code, remove);
+		keepLines(lines, remove);
+
+		int kept = 0;
+		for (int pc = 0; pc < code.length; pc++) {
+			// Instructions which skip or consume the next one must keep it in place.
+			if (pc > 0 && !remove[pc - 1] && hasOperand(code, pc - 1)) remove[pc] = false;
+			if (!remove[pc]) kept++;
+		}
+
+		if (kept == code.length) return changed;
+		compact(p, remove, kept);
+		return true;
+	}
+
+	/**
+	 * Fold {@code LOADK} instructions into the RK operand of the instruction which uses them.
+	 *
+	 * @param p       The prototype to optimise.
+	 * @param targets The number of branches to each instruction.
+	 * @param remove  The instructions to be removed.
+	 * @return Whether any instructions were changed.
+	 */
+	private static boolean foldConstantKeys(Prototype p, int[] targets, boolean[] remove) {
+		int[] code = p.code;
+		if (p.k.length <= MAXINDEXRK + 1) return false;
+
+		// Find any loads which could be folded if the constant fit within an RK operand.
+		int[] uses = new int[p.k.length];
+		boolean any = false;
+		for (int pc = 0; pc < code.length - 1; pc++) {
+			if (GET_OPCODE(code[pc]) == OP_LOADK && GETARG_Bx(code[pc]) > MAXINDEXRK && findUse(p, targets, pc) >= 0) {
+				uses[GETARG_Bx(code[pc])]++;
+				any = true;
+			}
+		}
+		if (!any) return false;
+
+		// Constants which are only loaded with LOADK can be moved to the upper part of the table.
+		boolean[] fixed = new boolean[MAXINDEXRK + 1];
+		for (int i : code) {
+			if (hasRK(GET_OPCODE(i))) {
+				if (ISK(GETARG_B(i))) fixed[INDEXK(GETARG_B(i))] = true;
+				if (ISK(GETARG_C(i))) fixed[INDEXK(GETARG_C(i))] = true;
+			}
+		}
+
+		// Swap the most commonly used keys with the movable constants.
+		int[] mapping = new int[p.k.length];
+		for (int i = 0; i < mapping.length; i++) mapping[i] = i;
+		Integer[] keys = new Integer[p.k.length - (MAXINDEXRK + 1)];
+		for (int i = 0; i < keys.length; i++) keys[i] = MAXINDEXRK + 1 + i;
+		Arrays.sort(keys, (x, y) -> Integer.compare(uses[y], uses[x]));
+
+		boolean moved = false;
+		int slot = 0;
+		for (int key : keys) {
+			if (uses[key] == 0) break;
+			while (slot <= MAXINDEXRK && fixed[slot]) slot++;
+			if (slot > MAXINDEXRK) break;
+
+			mapping[key] = slot;
+			mapping[slot] = key;
+			slot++;
+			moved = true;
+		}
+		if (moved) renumberConstants(p, mapping);
+
+		boolean changed = false;
+		for (int pc = 0; pc < code.length - 1; pc++) {
+			int load = code[pc];
+			if (remove[pc] || GET_OPCODE(load) != OP_LOADK || GETARG_Bx(load) > MAXINDEXRK) continue;
+
+			int use = findUse(p, targets, pc);
+			if (use < 0) continue;
+
+			int register = GETARG_A(load), constant = RKASK(GETARG_Bx(load)), i = code[use], op = GET_OPCODE(i);
+			int b = GETARG_B(i), c = GETARG_C(i);
+			if (b == register && op != OP_GETTABUP) b = constant;
+			if (c == register) c = constant;
+			code[use] = CREATE_ABC(op, GETARG_A(i), b, c);
+			remove[pc] = true;
+			changed = true;
+		}
+
+		return changed || moved;
+	}
+
+	/**
+	 * Find the instruction which uses the result of a {@code LOADK} into a temporary register. This must only read
+	 * the register through its RK operands, and be the only instruction which does so.
+	 *
+	 * @param p       The prototype to check.
+	 * @param targets The number of branches to each instruction.
+	 * @param pc      The {@code LOADK} instruction.
+	 * @return The instruction using this constant, or {@code -1} if this load cannot be folded.
+	 */
+	private static int findUse(Prototype p, int[] targets, int pc) {
+		int[] code = p.code;
+		int register = GETARG_A(code[pc]);
+
+		// Removing the load must not change which line events are fired.
+		if (p.lineinfo[pc] != p.lineinfo[pc + 1]) return -1;
+
+		// Find the next instruction to use this register, which must be in the same basic block.
+		int use = -1;
+		for (int next = pc + 1; next < code.length && next <= pc + MAX_FOLD_DISTANCE; next++) {
+			int i = code[next];
+			if (targets[next] != 0 || register < activeLocals(p, next) || writes(i, register) && !reads(p, i, register)) {
+				return -1;
+			}
+			if (reads(p, i, register)) {
+				use = next;
+				break;
+			}
+			if (isBranch(GET_OPCODE(i))) return -1;
+		}
+		if (use < 0) return -1;
+
+		int i = code[use], op = GET_OPCODE(i), a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+		switch (op) {
+			case OP_GETTABUP:
+				if (c != register) return -1;
+				break;
+			case OP_GETTABLE:
+			case OP_SELF:
+				if (c != register || b == register) return -1;
+				break;
+			case OP_SETTABLE:
+				if (a == register) return -1;
+				break;
+			case OP_SETTABUP:
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				break;
+			default:
+				return -1;
+		}
+
+		// The register must not be read again before it is next written.
+		return writes(i, register) || !isLive(p, use, register) ? use : -1;
+	}
+
+	/**
+	 * Determine if a register may be read after an instruction, before it is written to again.
+	 *
+	 * @param p        The prototype to check.
+	 * @param pc       The instruction after which to check.
+	 * @param register The register to check.
+	 * @return If this register may still be used. This is conservative, and so may return {@code true} even if the
+	 * register is never read.
+	 */
+	private static boolean isLive(Prototype p, int pc, int register) {
+		int[] code = p.code;
+		boolean[] visited = new boolean[code.length];
+		int[] stack = new int[code.length * 2 + 2], next = new int[2];
+		int top = successors(code, pc, stack);
+		int steps = 0;
+
+		while (top > 0) {
+			int current = stack[--top];
+			if (visited[current]) continue;
+			visited[current] = true;
+			if (++steps > MAX_LIVENESS_STEPS) return true;
+
+			int i = code[current];
+			if (reads(p, i, register)) return true;
+			if (writes(i, register)) continue;
+
+			int count = successors(code, current, next);
+			for (int j = 0; j < count; j++) stack[top++] = next[j];
+		}
+
+		return false;
+	}
+
+	/**
+	 * Renumber the constant table, updating every instruction which refers to it.
+	 *
+	 * @param p       The prototype to update.
+	 * @param mapping The new index of each constant.
+	 */
+	private static void renumberConstants(Prototype p, int[] mapping) {
+		int[] code = p.code;
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc], op = GET_OPCODE(i);
+			if (op == OP_LOADK) {
+				code[pc] = CREATE_ABx(op, GETARG_A(i), mapping[GETARG_Bx(i)]);
+			} else if (op == OP_LOADKX) {
+				pc++;
+				code[pc] = CREATE_Ax(OP_EXTRAARG, mapping[GETARG_Ax(code[pc])]);
+			} else if (hasRK(op)) {
+				int b = GETARG_B(i), c = GETARG_C(i);
+				if (ISK(b)) b = RKASK(mapping[INDEXK(b)]);
+				if (ISK(c)) c = RKASK(mapping[INDEXK(c)]);
+				code[pc] = CREATE_ABC(op, GETARG_A(i), b, c);
+			} else if (op == OP_SETLIST && GETARG_C(i) == 0) {
+				pc++;
+			}
+		}
+
+		LuaValue[] k = new LuaValue[p.k.length];
+		for (int i = 0; i < k.length; i++) k[mapping[i]] = p.k[i];
+		p.k = k;
+	}
+
+	/**
+	 * Invert a comparison followed by a jump over a second jump, so the comparison jumps directly to the second
+	 * jump's target.
+	 *
+	 * @param code    The code to optimise.
+	 * @param lines   The line of each instruction.
+	 * @param targets The number of branches to each instruction.
+	 * @param remove  The instructions to be removed.
+	 * @return Whether any instructions were changed.
+	 */
+	private static boolean invertBranches(int[] code, int[] lines, int[] targets, boolean[] remove) {
+		boolean changed = false;
+		for (int pc = 0; pc < code.length - 3; pc++) {
+			int test = code[pc], skip = code[pc + 1], jump = code[pc + 2];
+			int op = GET_OPCODE(test);
+			if (op != OP_EQ && op != OP_LT && op != OP_LE && op != OP_TEST) continue;
+			if (GET_OPCODE(skip) != OP_JMP || GETARG_A(skip) != 0 || GETARG_sBx(skip) != 1) continue;
+			if (GET_OPCODE(jump) != OP_JMP || GETARG_A(jump) != 0 || GETARG_sBx(jump) == -1) continue;
+
+			// The second jump should only be reached by skipping the first, and the removed jump must not produce any
+			// line events.
+			if (remove[pc] || remove[pc + 2] || targets[pc + 2] != 1 || lines[pc + 1] != lines[pc]) continue;
+
+			code[pc] = op == OP_TEST
+				? CREATE_ABC(op, GETARG_A(test), GETARG_B(test), GETARG_C(test) == 0 ? 1 : 0)
+				: CREATE_ABC(op, GETARG_A(test) == 0 ? 1 : 0, GETARG_B(test), GETARG_C(test));
+			setJump(code, pc + 1, pc + 3 + GETARG_sBx(jump));
+			lines[pc + 1] = lines[pc + 2];
+
+			// Replace the second jump with a no-op, so that skipping over the first still falls through.
+			code[pc + 2] = CREATE_ABx(OP_JMP, 0, MAXARG_sBx);
+			remove[pc + 2] = true;
+			changed = true;
+			pc += 2;
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Retarget jumps to other jumps to the final destination, and replace jumps to returns with the return itself.
+	 *
+	 * @param code  The code to optimise.
+	 * @param lines The line of each instruction.
+	 * @return Whether any instructions were changed.
+	 */
+	private static boolean threadJumps(int[] code, int[] lines) {
+		boolean changed = false;
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			if (GET_OPCODE(i) != OP_JMP) continue;
+
+			int original = pc + 1 + GETARG_sBx(i), target = original;
+			for (int hops = 0; hops < code.length && target < code.length; hops++) {
+				int next = code[target];
+				if (GET_OPCODE(next) != OP_JMP || GETARG_A(next) != 0) break;
+
+				int nextTarget = target + 1 + GETARG_sBx(next);
+				if (nextTarget == target || !sameEvents(lines, pc, target, nextTarget)) break;
+				target = nextTarget;
+			}
+
+			if (target != original && setJump(code, pc, target)) changed = true;
+
+			// A jump which is not part of a comparison can be replaced with the return it jumps to.
+			if (target > pc && target < code.length && (pc == 0 || !isTest(GET_OPCODE(code[pc - 1])))) {
+				int ret = code[target];
+				if (GET_OPCODE(ret) == OP_RETURN && GETARG_B(ret) != 0 && lines[target] == lines[pc]) {
+					code[pc] = ret;
+					changed = true;
+				}
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Determine if jumping from {@code from} directly to {@code to} produces the same line events as jumping via
+	 * {@code via}.
+	 *
+	 * @param lines The line of each instruction.
+	 * @param from  The instruction we are jumping from.
+	 * @param via   The instruction we would previously go through.
+	 * @param to    The instruction we are jumping to.
+	 * @return Whether these two paths are indistinguishable to debug hooks.
+	 */
+	private static boolean sameEvents(int[] lines, int from, int via, int to) {
+		boolean viaEvent = via <= from || lines[via] != lines[from];
+		boolean toEvent = to <= via || lines[to] != lines[via];
+		boolean directEvent = to <= from || lines[to] != lines[from];
+		if (viaEvent) {
+			return !toEvent && directEvent && lines[via] == lines[to];
+		} else {
+			return toEvent == directEvent;
+		}
+	}
+
+	/**
+	 * Mark jumps to the next instruction, and moves which do not change any register, for removal.
+	 *
+	 * @param code    The code to optimise.
+	 * @param lines   The line of each instruction.
+	 * @param targets The number of branches to each instruction.
+	 * @param remove  The instructions to be removed.
+	 */
+	private static void removeNops(int[] code, int[] lines, int[] targets, boolean[] remove) {
+		for (int pc = 0; pc < code.length - 1; pc++) {
+			if (lines[pc] != lines[pc + 1]) continue;
+
+			int i = code[pc];
+			switch (GET_OPCODE(i)) {
+				case OP_JMP:
+					if (GETARG_A(i) == 0 && GETARG_sBx(i) == 0 && (pc == 0 || !isTest(GET_OPCODE(code[pc - 1])))) {
+						remove[pc] = true;
+					}
+					break;
+				case OP_MOVE: {
+					int a = GETARG_A(i), b = GETARG_B(i);
+					if (a == b) {
+						remove[pc] = true;
+						break;
+					}
+
+					// Copying the same value back again.
+					int previous = pc == 0 ? -1 : code[pc - 1];
+					if (pc > 0 && targets[pc] == 0 && !remove[pc - 1] && GET_OPCODE(previous) == OP_MOVE
+						&& lines[pc - 1] == lines[pc]
+						&& ((GETARG_A(previous) == a && GETARG_B(previous) == b) || (GETARG_A(previous) == b && GETARG_B(previous) == a))) {
+						remove[pc] = true;
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark any instructions which can never be executed for removal.
+	 *
+	 * @param code   The code to optimise.
+	 * @param remove The instructions to be removed.
+	 */
+	private static void removeUnreachable(int[] code, boolean[] remove) {
+		boolean[] reachable = new boolean[code.length];
+		int[] queue = new int[code.length];
+		int head = 0, tail = 0;
+		reachable[0] = true;
+		queue[tail++] = 0;
+
+		int[] next = new int[2];
+		while (head < tail) {
+			int pc = queue[head++], i = code[pc];
+
+			// Arguments to an instruction are never executed, but must be kept alongside it.
+			int op = GET_OPCODE(i);
+			if (op == OP_LOADKX || (op == OP_SETLIST && GETARG_C(i) == 0)) reachable[pc + 1] = true;
+
+			int count = successors(code, pc, next);
+			for (int j = 0; j < count; j++) {
+				if (!reachable[next[j]]) {
+					reachable[next[j]] = true;
+					queue[tail++] = next[j];
+				}
+			}
+		}
+
+		for (int pc = 0; pc < code.length; pc++) {
+			if (!reachable[pc]) remove[pc] = true;
+		}
+	}
+
+	/**
+	 * Ensure every line still has at least one instruction, so the active lines reported by {@code debug.getinfo} are
+	 * unchanged.
+	 *
+	 * @param lines  The line of each instruction.
+	 * @param remove The instructions to be removed.
+	 */
+	private static void keepLines(int[] lines, boolean[] remove) {
+		Map<Integer, Integer> last = new HashMap<>();
+		Set<Integer> kept = new HashSet<>();
+		for (int pc = 0; pc < lines.length; pc++) {
+			if (remove[pc]) {
+				last.put(lines[pc], pc);
+			} else {
+				kept.add(lines[pc]);
+			}
+		}
+
+		for (Map.Entry<Integer, Integer> line : last.entrySet()) {
+			if (!kept.contains(line.getKey())) remove[line.getValue()] = false;
+		}
+	}
+
+	/**
+	 * Find the instructions which may be executed after this one.
+	 *
+	 * @param code The code to check.
+	 * @param pc   The instruction whose successors should be found.
+	 * @param next An array with space for at least two instructions, to write the successors to.
+	 * @return The number of successors.
+	 */
+	private static int successors(int[] code, int pc, int[] next) {
+		int i = code[pc], count = 0;
+		switch (GET_OPCODE(i)) {
+			case OP_JMP:
+			case OP_FORPREP:
+				next[count++] = pc + 1 + GETARG_sBx(i);
+				break;
+			case OP_FORLOOP:
+			case OP_TFORLOOP:
+				next[count++] = pc + 1;
+				next[count++] = pc + 1 + GETARG_sBx(i);
+				break;
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+			case OP_TEST:
+			case OP_TESTSET:
+				next[count++] = pc + 1;
+				next[count++] = pc + 2;
+				break;
+			case OP_LOADBOOL:
+				next[count++] = GETARG_C(i) != 0 ? pc + 2 : pc + 1;
+				break;
+			case OP_LOADKX:
+				next[count++] = pc + 2;
+				break;
+			case OP_SETLIST:
+				next[count++] = GETARG_C(i) == 0 ? pc + 2 : pc + 1;
+				break;
+			case OP_RETURN:
+				break;
+			default:
+				next[count++] = pc + 1;
+				break;
+		}
+
+		int valid = 0;
+		for (int j = 0; j < count; j++) {
+			if (next[j] >= 0 && next[j] < code.length) next[valid++] = next[j];
+		}
+		return valid;
+	}
+
+	/**
+	 * Remove instructions from a prototype, updating jumps, line information and local variable ranges.
+	 *
+	 * @param p      The prototype to update.
+	 * @param remove The instructions to be removed.
+	 * @param kept   The number of instructions which are kept.
+	 */
+	private static void compact(Prototype p, boolean[] remove, int kept) {
+		int[] code = p.code, lines = p.lineinfo;
+
+		// Removed instructions are mapped to the next instruction which is kept.
+		int[] mapping = new int[code.length + 1];
+		for (int pc = 0, index = 0; pc <= code.length; pc++) {
+			mapping[pc] = index;
+			if (pc < code.length && !remove[pc]) index++;
+		}
+
+		int[] newCode = new int[kept], newLines = new int[kept];
+		for (int pc = 0; pc < code.length; pc++) {
+			if (remove[pc]) continue;
+
+			int index = mapping[pc], i = code[pc];
+			newCode[index] = i;
+			newLines[index] = lines[pc];
+			if (isJump(GET_OPCODE(i))) setJump(newCode, index, mapping[pc + 1 + GETARG_sBx(i)]);
+		}
+
+		for (LocalVariable local : p.locvars) {
+			local.startpc = mapping[Math.min(local.startpc, code.length)];
+			local.endpc = mapping[Math.min(local.endpc, code.length)];
+		}
+
+		p.code = newCode;
+		p.lineinfo = newLines;
+	}
+
+	/**
+	 * Shrink {@link Prototype#maxstacksize} to the registers which are actually used.
+	 *
+	 * @param p The prototype to update.
+	 */
+	private static void shrinkStack(Prototype p) {
+		int size = Math.max(2, p.numparams);
+		for (int i : p.code) size = Math.max(size, maxRegister(p, i) + 1);
+
+		// Every local must still have a register, even if it is never used.
+		for (LocalVariable local : p.locvars) {
+			if (local.startpc < local.endpc) size = Math.max(size, activeLocals(p, local.startpc));
+		}
+
+		if (size < p.maxstacksize) p.maxstacksize = size;
+	}
+
+	/**
+	 * Count the number of branches to each instruction, including those which skip over the next instruction.
+	 *
+	 * @param code The code to check.
+	 * @return The number of branches to each instruction.
+	 */
+	private static int[] branchTargets(int[] code) {
+		int[] targets = new int[code.length + 2];
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc], op = GET_OPCODE(i);
+			if (isJump(op)) {
+				int target = pc + 1 + GETARG_sBx(i);
+				if (target >= 0 && target < code.length) targets[target]++;
+			} else if (isTest(op) || (op == OP_LOADBOOL && GETARG_C(i) != 0)) {
+				targets[pc + 2]++;
+			}
+		}
+		return targets;
+	}
+
+	private static int activeLocals(Prototype p, int pc) {
+		int active = 0;
+		for (LocalVariable local : p.locvars) {
+			if (local.startpc <= pc && pc < local.endpc) active++;
+		}
+		return active;
+	}
+
+	private static boolean setJump(int[] code, int pc, int target) {
+		int offset = target - (pc + 1);
+		if (offset < -MAXARG_sBx || offset > MAXARG_Bx - MAXARG_sBx) return false;
+		code[pc] = (code[pc] & ~MASK_Bx) | (((offset + MAXARG_sBx) << POS_Bx) & MASK_Bx);
+		return true;
+	}
+
+	private static boolean isJump(int op) {
+		return op == OP_JMP || op == OP_FORLOOP || op == OP_FORPREP || op == OP_TFORLOOP;
+	}
+
+	/**
+	 * Determine if an instruction may not continue to the next one.
+	 *
+	 * @param op The instruction's opcode.
+	 * @return If this instruction is a branch.
+	 */
+	private static boolean isBranch(int op) {
+		switch (op) {
+			case OP_JMP:
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+			case OP_TEST:
+			case OP_TESTSET:
+			case OP_FORLOOP:
+			case OP_FORPREP:
+			case OP_TFORCALL:
+			case OP_TFORLOOP:
+			case OP_LOADBOOL:
+			case OP_LOADKX:
+			case OP_SETLIST:
+			case OP_RETURN:
+			case OP_TAILCALL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isTest(int op) {
+		return op == OP_EQ || op == OP_LT || op == OP_LE || op == OP_TEST || op == OP_TESTSET;
+	}
+
+	/**
+	 * Determine if an instruction at {@code pc} consumes or skips the next instruction, and so the next instruction
+	 * cannot be removed.
+	 *
+	 * @param code The code to check.
+	 * @param pc   The instruction to check.
+	 * @return If the next instruction must be kept.
+	 */
+	private static boolean hasOperand(int[] code, int pc) {
+		int i = code[pc], op = GET_OPCODE(i);
+		return isTest(op) || op == OP_LOADKX || op == OP_TFORCALL
+			|| (op == OP_LOADBOOL && GETARG_C(i) != 0) || (op == OP_SETLIST && GETARG_C(i) == 0);
+	}
+
+	/**
+	 * Determine if an instruction's B and C operands are RK values.
+	 *
+	 * @param op The instruction's opcode.
+	 * @return Whether this instruction has RK operands.
+	 */
+	private static boolean hasRK(int op) {
+		switch (op) {
+			case OP_GETTABUP:
+			case OP_GETTABLE:
+			case OP_SETTABUP:
+			case OP_SETTABLE:
+			case OP_SELF:
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Determine if an instruction may read a register. Instructions which read up to the top of the stack are
+	 * assumed to read every register above their base.
+	 *
+	 * @param p        The prototype this instruction belongs to.
+	 * @param i        The instruction to check.
+	 * @param register The register to check.
+	 * @return If this register may be read.
+	 */
+	private static boolean reads(Prototype p, int i, int register) {
+		int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+		switch (GET_OPCODE(i)) {
+			case OP_MOVE:
+			case OP_UNM:
+			case OP_NOT:
+			case OP_LEN:
+			case OP_TESTSET:
+				return b == register;
+			case OP_GETTABUP:
+				return c == register;
+			case OP_GETTABLE:
+			case OP_SELF:
+				return b == register || c == register;
+			case OP_SETTABUP:
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				return b == register || c == register;
+			case OP_SETTABLE:
+				return a == register || b == register || c == register;
+			case OP_SETUPVAL:
+			case OP_TEST:
+				return a == register;
+			case OP_CONCAT:
+				return register >= b && register <= c;
+			case OP_JMP:
+				// Closing upvalues reads the register.
+				return a != 0 && register >= a - 1;
+			case OP_CALL:
+			case OP_TAILCALL:
+				return register >= a && (b == 0 || register < a + b);
+			case OP_RETURN:
+				return register >= a && (b == 0 || register < a + b - 1);
+			case OP_SETLIST:
+				return register >= a && (b == 0 || register <= a + b);
+			case OP_FORLOOP:
+			case OP_FORPREP:
+			case OP_TFORCALL:
+				return register >= a && register <= a + 2;
+			case OP_TFORLOOP:
+				return register == a + 1;
+			case OP_CLOSURE: {
+				Prototype child = p.p[GETARG_Bx(i)];
+				for (int j = 0; j < child.nups; j++) {
+					int info = child.upvalue_info[j];
+					if ((info >> 8) != 0 && (info & 0xFF) == register) return true;
+				}
+				return false;
+			}
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Determine if an instruction always writes to a register.
+	 *
+	 * @param i        The instruction to check.
+	 * @param register The register to check.
+	 * @return If this register is always written to.
+	 */
+	private static boolean writes(int i, int register) {
+		int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+		switch (GET_OPCODE(i)) {
+			case OP_MOVE:
+			case OP_LOADK:
+			case OP_LOADKX:
+			case OP_LOADBOOL:
+			case OP_GETUPVAL:
+			case OP_GETTABUP:
+			case OP_GETTABLE:
+			case OP_NEWTABLE:
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+			case OP_UNM:
+			case OP_NOT:
+			case OP_LEN:
+			case OP_CONCAT:
+			case OP_CLOSURE:
+				return a == register;
+			case OP_LOADNIL:
+				return register >= a && register <= a + b;
+			case OP_SELF:
+				return register == a || register == a + 1;
+			case OP_CALL:
+				return c != 0 && register >= a && register < a + c - 1;
+			case OP_VARARG:
+				return b != 0 && register >= a && register < a + b - 1;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Find the highest register an instruction accesses.
+	 *
+	 * @param p The prototype this instruction belongs to.
+	 * @param i The instruction to check.
+	 * @return The highest register used, or {@code -1} if none are.
+	 */
+	private static int maxRegister(Prototype p, int i) {
+		int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+		switch (GET_OPCODE(i)) {
+			case OP_MOVE:
+			case OP_UNM:
+			case OP_NOT:
+			case OP_LEN:
+			case OP_TESTSET:
+				return Math.max(a, b);
+			case OP_LOADK:
+			case OP_LOADKX:
+			case OP_LOADBOOL:
+			case OP_GETUPVAL:
+			case OP_SETUPVAL:
+			case OP_NEWTABLE:
+			case OP_TEST:
+				return a;
+			case OP_LOADNIL:
+				return a + b;
+			case OP_GETTABUP:
+				return Math.max(a, rk(c));
+			case OP_GETTABLE:
+			case OP_SETTABLE:
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+				return Math.max(a, Math.max(rk(b), rk(c)));
+			case OP_SELF:
+				return Math.max(a + 1, Math.max(b, rk(c)));
+			case OP_SETTABUP:
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				return Math.max(rk(b), rk(c));
+			case OP_CONCAT:
+				return Math.max(a, c);
+			case OP_CALL:
+				return Math.max(a + b - 1, a + c - 2);
+			case OP_TAILCALL:
+				return a + b - 1;
+			case OP_RETURN:
+				return a + b - 2;
+			case OP_FORLOOP:
+			case OP_FORPREP:
+				return a + 3;
+			case OP_TFORCALL:
+				return a + 2 + c;
+			case OP_TFORLOOP:
+				return a + 1;
+			case OP_SETLIST:
+				return a + b;
+			case OP_VARARG:
+				return a + b - 2;
+			case OP_CLOSURE: {
+				int max = a;
+				Prototype child = p.p[GETARG_Bx(i)];
+				for (int j = 0; j < child.nups; j++) {
+					int info = child.upvalue_info[j];
+					if ((info >> 8) != 0) max = Math.max(max, info & 0xFF);
+				}
+				return max;
+			}
+			case OP_JMP:
+				return a - 1;
+			default:
+				return -1;
+		}
+	}
+
+	private static int rk(int x) {
+		return ISK(x) ? -1 : x;
+	}
+}
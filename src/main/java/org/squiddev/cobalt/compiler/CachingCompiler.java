@@ -0,0 +1,302 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.compiler.LoadState.LuaCompiler;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link LuaCompiler} which remembers the {@link Prototype}s it has compiled, so loading the same chunk again only
+ * needs to create a new closure.
+ *
+ * Chunks are identified by a SHA-256 digest of their contents, along with the chunk name, load mode, whether
+ * {@link LuaC#blockGoto} is set and whether the delegate {@linkplain LuaC#isOptimizing() optimises} functions, as
+ * these all affect the resulting prototype. Compile errors are not cached.
+ *
+ * The code and constants of a prototype are not modified once compiled. String constants are interned into the
+ * {@linkplain org.squiddev.cobalt.StringTable#global() global table} when compiling, rather than the table of the
+ * state loading the chunk. The data prototypes compute lazily at runtime ({@link Prototype#numericHints},
+ * {@link Prototype#compiled} and {@link Prototype#caches}) is safely published, and so a single cache may be shared
+ * between any number of {@link LuaState}s, including ones running on different threads. Closures for cached
+ * prototypes are created with {@link LuaC#instantiate(Prototype, LuaTable)}.
+ *
+ * The cache is bounded by the approximate size of the prototypes it holds. Once full, entries are evicted in
+ * roughly the order they were added, though entries which have been used since the last eviction pass are given a
+ * second chance.
+ *
+ * @see LuaState.Builder#compiler(LuaCompiler)
+ */
+public final class CachingCompiler implements LuaCompiler {
+	/**
+	 * The default maximum size of the cache, in bytes.
+	 */
+	public static final long DEFAULT_MAX_SIZE = 32L << 20;
+
+	private final LuaCompiler delegate;
+
+	/**
+	 * Whether {@link #delegate} runs {@link BytecodeOptimizer}. Compilers other than {@link LuaC} are assumed to.
+	 */
+	private final boolean optimize;
+	private final long maxSize;
+
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<>();
+	private final AtomicLong size = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Create a new cache wrapping {@link LuaC}, with the {@linkplain #DEFAULT_MAX_SIZE default size}.
+	 */
+	public CachingCompiler() {
+		this(LuaC.INSTANCE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param delegate The compiler to use for chunks not in the cache. Only functions it returns as a
+	 *                 {@link LuaInterpretedFunction} are cached.
+	 * @param maxSize  The maximum approximate size of all cached prototypes, in bytes.
+	 */
+	public CachingCompiler(LuaCompiler delegate, long maxSize) {
+		if (delegate == null) throw new NullPointerException("delegate cannot be null");
+		if (maxSize < 0) throw new IllegalArgumentException("maxSize must be >= 0");
+		this.delegate = delegate;
+		this.optimize = !(delegate instanceof LuaC) || ((LuaC) delegate).isOptimizing();
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public LuaFunction load(InputStream stream, LuaString name, LuaString mode, LuaTable env) throws IOException, CompileException {
+		byte[] chunk = readAll(stream);
+		Key key = new Key(digest(chunk, name, mode, optimize));
+
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			entry.used = true;
+			hits.increment();
+			return LuaC.instantiate(entry.prototype, env);
+		}
+
+		misses.increment();
+		LuaFunction function = delegate.load(new ByteArrayInputStream(chunk), name, mode, env);
+		if (function instanceof LuaInterpretedFunction) add(key, ((LuaInterpretedFunction) function).getPrototype());
+		return function;
+	}
+
+	private void add(Key key, Prototype prototype) {
+		long weight = weigh(prototype);
+		if (weight > maxSize) return;
+
+		Entry entry = new Entry(key, prototype, weight);
+		if (entries.putIfAbsent(key, entry) != null) return;
+		order.add(entry);
+
+		if (size.addAndGet(weight) <= maxSize) return;
+
+		// Walk the queue, giving recently used entries a second chance. We bound the number of entries visited, so
+		// constant use from other threads cannot keep us here forever.
+		int remaining = 2 * entries.size() + 1;
+		while (size.get() > maxSize && remaining-- > 0) {
+			Entry oldest = order.poll();
+			if (oldest == null) break;
+
+			if (oldest.used) {
+				oldest.used = false;
+				order.add(oldest);
+			} else if (entries.remove(oldest.key, oldest)) {
+				size.addAndGet(-oldest.weight);
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Remove all entries from this cache. This does not reset the statistics.
+	 */
+	public void clear() {
+		Entry entry;
+		while ((entry = order.poll()) != null) {
+			if (entries.remove(entry.key, entry)) size.addAndGet(-entry.weight);
+		}
+	}
+
+	/**
+	 * Get the number of chunks which were loaded from the cache.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of chunks which were not in the cache and so had to be compiled.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of prototypes which have been removed from the cache to make space for new ones.
+	 *
+	 * @return The number of evictions.
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Get the number of prototypes currently in the cache.
+	 *
+	 * @return The number of cached prototypes.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the approximate size of all prototypes currently in the cache.
+	 *
+	 * @return The size of the cache, in bytes.
+	 * @see #weigh(Prototype)
+	 */
+	public long getWeight() {
+		return size.get();
+	}
+
+	/**
+	 * Estimate the memory used by a prototype and all of its children.
+	 *
+	 * @param prototype The prototype to weigh.
+	 * @return The approximate size of this prototype, in bytes.
+	 */
+	static long weigh(Prototype prototype) {
+		long size = 128 + 4L * prototype.code.length + 16L * prototype.k.length;
+		for (LuaValue constant : prototype.k) {
+			if (constant instanceof LuaString) size += ((LuaString) constant).length();
+		}
+		if (prototype.lineinfo != null) size += 4L * prototype.lineinfo.length;
+		if (prototype.locvars != null) size += 32L * prototype.locvars.length;
+		if (prototype.upvalues != null) size += 8L * prototype.upvalues.length;
+		if (prototype.upvalue_info != null) size += 4L * prototype.upvalue_info.length;
+		for (Prototype child : prototype.p) size += weigh(child);
+		return size;
+	}
+
+	private static byte[] readAll(InputStream stream) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = stream.read(buffer)) > 0) out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+
+	private static byte[] digest(byte[] chunk, LuaString name, LuaString mode, boolean optimize) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+
+		digest.update((byte) (LuaC.blockGoto ? 1 : 0));
+		digest.update((byte) (optimize ? 1 : 0));
+		update(digest, bytes(name));
+		update(digest, bytes(mode));
+		update(digest, chunk);
+		return digest.digest();
+	}
+
+	private static byte[] bytes(LuaString string) {
+		if (string == null) return null;
+		byte[] bytes = new byte[string.length()];
+		string.copyTo(bytes, 0);
+		return bytes;
+	}
+
+	private static void update(MessageDigest digest, byte[] bytes) {
+		// Prefix each part with its length, so adjacent parts cannot be confused with each other.
+		int length = bytes == null ? -1 : bytes.length;
+		digest.update((byte) (length >>> 24));
+		digest.update((byte) (length >>> 16));
+		digest.update((byte) (length >>> 8));
+		digest.update((byte) length);
+		if (bytes != null) digest.update(bytes);
+	}
+
+	private static final class Key {
+		final byte[] digest;
+		private final int hash;
+
+		Key(byte[] digest) {
+			this.digest = digest;
+			this.hash = Arrays.hashCode(digest);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return this == other || other instanceof Key && Arrays.equals(digest, ((Key) other).digest);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static final class Entry {
+		final Key key;
+		final Prototype prototype;
+		final long weight;
+		volatile boolean used;
+
+		Entry(Key key, Prototype prototype, long weight) {
+			this.key = key;
+			this.prototype = prototype;
+			this.weight = weight;
+		}
+	}
+}
@@ -30,7 +30,8 @@ import org.squiddev.cobalt.lib.Utf8Lib;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Hashtable;
 
 public class LexState {
@@ -62,6 +63,7 @@ public class LexState {
 	public static final LuaString ENV = LuaString.valueOf("_ENV");
 
 	private static final int EOZ = -1;
+	private static final int INPUT_SIZE = 8192;
 	private static final int MAXSRC = 80;
 	private static final int MAX_INT = Integer.MAX_VALUE - 2;
 	private static final int UCHAR_MAX = 255; // TODO, convert to unicode CHAR_MAX?
@@ -142,13 +144,22 @@ public class LexState {
 	private final Token t = new Token();  /* current token */
 	private final Token lookahead = new Token();  /* look ahead token */
 	FuncState fs;  /* `FuncState' is private to the parser */
-	private InputStream z;  /* input stream */
+	private final InputStream z;  /* input stream, or null if reading from a fixed array */
+	private final byte[] input;  /* window of input being read */
+	private int inputStart;  /* start of the current window */
+	private int inputPos;  /* position of the next character in the window */
+	private int inputLimit;  /* end of the current window */
 	private byte[] buff;  /* buffer for tokens */
 	private int nbuff; /* length of buffer */
+	private LuaString bufferName;  /* last name read without using the buffer */
 	private LuaString source;  /* current source name */
 	private byte decpoint;  /* locale decimal point */
 	public int nCcalls;
-	private final HashMap<LuaString, LuaString> strings = new HashMap<>();
+	private LuaString[] strings = new LuaString[64];  /* strings used by this chunk, see newString */
+	private int[] stringHashes = new int[64];
+	private int stringCount;
+	StringTable stringTable = StringTable.global(); /* table to intern strings into */
+	boolean optimize = true; /* whether to run BytecodeOptimizer on closed functions */
 	DynamicData dyd;
 
 	/* ORDER RESERVED */
@@ -176,12 +187,49 @@ public class LexState {
 	private final static int FIRST_RESERVED = TK_AND;
 	private final static int NUM_RESERVED = TK_WHILE + 1 - FIRST_RESERVED;
 
-	private final static Hashtable<LuaString, Integer> RESERVED = new Hashtable<>();
+	/**
+	 * The reserved words, as an open-addressed hash table indexed by {@link #hash(byte[], int, int)}. {@code goto} is
+	 * not included, as it is lexed as a name and only treated as a keyword by {@link #statement()}.
+	 */
+	private final static byte[][] RESERVED = new byte[64][];
+	private final static int[] RESERVED_TOKENS = new int[64];
+
+	private static final LuaString GOTO = LuaString.valueOf("goto");
 
 	static {
 		for (int i = 0; i < NUM_RESERVED; i++) {
-			LuaString ts = ValueFactory.valueOf(luaX_tokens[i]);
-			RESERVED.put(ts, FIRST_RESERVED + i);
+			if (FIRST_RESERVED + i == TK_GOTO) continue;
+
+			byte[] word = luaX_tokens[i].getBytes(StandardCharsets.US_ASCII);
+			int slot = hash(word, 0, word.length) & (RESERVED.length - 1);
+			while (RESERVED[slot] != null) slot = (slot + 1) & (RESERVED.length - 1);
+			RESERVED[slot] = word;
+			RESERVED_TOKENS[slot] = FIRST_RESERVED + i;
+		}
+	}
+
+	private static int hash(byte[] bytes, int offset, int length) {
+		int hash = length;
+		for (int i = 0; i < length; i++) hash = hash * 31 + bytes[offset + i];
+		return hash ^ (hash >>> 7);
+	}
+
+	/**
+	 * Find the reserved word with the given contents.
+	 *
+	 * @param bytes  The array containing the word.
+	 * @param offset The offset of the word.
+	 * @param length The length of the word.
+	 * @return The token for this reserved word, or {@code -1} if it is not reserved.
+	 */
+	private static int reserved(byte[] bytes, int offset, int length, int hash) {
+		if (length < 2 || length > 8) return -1;
+
+		int mask = RESERVED.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			byte[] word = RESERVED[slot];
+			if (word == null) return -1;
+			if (word.length == length && LuaString.equals(word, 0, bytes, offset, length)) return RESERVED_TOKENS[slot];
 		}
 	}
 
@@ -208,18 +256,62 @@ public class LexState {
 		return c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
 	}
 
+	/**
+	 * Create a lexer reading from a stream. The stream is read in blocks, so does not need to be buffered.
+	 *
+	 * @param stream The stream to read from.
+	 */
 	public LexState(InputStream stream) {
 		this.z = stream;
+		this.input = new byte[INPUT_SIZE];
+		this.buff = new byte[32];
+	}
+
+	/**
+	 * Create a lexer reading directly from a string, without copying it.
+	 *
+	 * @param contents The string to read from.
+	 */
+	public LexState(LuaString contents) {
+		this.z = null;
+		this.input = contents.bytes;
+		this.inputStart = this.inputPos = contents.offset;
+		this.inputLimit = contents.offset + contents.length;
 		this.buff = new byte[32];
 	}
 
 	private void nextChar() {
+		current = inputPos < inputLimit ? input[inputPos++] & 0xFF : fill();
+	}
+
+	/**
+	 * Read the next window of input, returning its first character.
+	 *
+	 * @return The next character, or {@link #EOZ} if at the end of the input.
+	 * @throws UncheckedIOException If the stream could not be read. This is rethrown as a checked exception by
+	 *                              {@link LuaC}.
+	 */
+	private int fill() {
+		if (z == null) return EOZ;
+
+		int read;
 		try {
-			current = z.read();
+			do {
+				read = z.read(input, 0, input.length);
+			} while (read == 0);
 		} catch (IOException e) {
-			e.printStackTrace();
-			current = EOZ;
+			throw new UncheckedIOException(e);
+		}
+
+		inputStart = 0;
+		inputLimit = Math.max(read, 0);
+		if (read < 0) {
+			inputPos = 0;
+			return EOZ;
 		}
+
+		inputPos = 1;
+		return input[0] & 0xFF;
 	}
 
 	private boolean currIsNewline() {
@@ -256,8 +348,10 @@ public class LexState {
 		switch (token) {
 			case TK_NAME:
 			case TK_STRING:
-			case TK_NUMBER:
-				return LUA_QS(new String(buff, 0, nbuff));
+			case TK_NUMBER: {
+				LuaString name = bufferName;
+				return LUA_QS(name != null ? new String(name.bytes, name.offset, name.length) : new String(buff, 0, nbuff));
+			}
 			default:
 				return token2str(token);
 		}
@@ -294,18 +388,46 @@ public class LexState {
 
 	// look up and keep at most one copy of each string
 	public LuaString newString(byte[] bytes, int offset, int len) {
-		LuaString tmp = LuaString.valueOf(bytes, offset, len);
-		LuaString v = strings.get(tmp);
-		if (v == null) {
-			// must copy bytes, since bytes could be from reusable buffer
-			byte[] copy = new byte[len];
-			System.arraycopy(bytes, offset, copy, 0, len);
-			v = LuaString.valueOf(copy);
-			strings.put(v, v);
+		return newString(bytes, offset, len, hash(bytes, offset, len));
+	}
+
+	private LuaString newString(byte[] bytes, int offset, int len, int hash) {
+		LuaString[] strings = this.strings;
+		int[] hashes = stringHashes;
+		int mask = strings.length - 1;
+		int slot = hash & mask;
+		for (LuaString existing; (existing = strings[slot]) != null; slot = (slot + 1) & mask) {
+			if (hashes[slot] == hash && existing.length == len && LuaString.equals(existing.bytes, existing.offset, bytes, offset, len)) {
+				return existing;
+			}
 		}
+
+		// must copy bytes, since bytes could be from reusable buffer
+		byte[] copy = new byte[len];
+		System.arraycopy(bytes, offset, copy, 0, len);
+		LuaString v = stringTable.intern(LuaString.valueOf(copy));
+		strings[slot] = v;
+		hashes[slot] = hash;
+		if (++stringCount * 2 > strings.length) growStrings();
 		return v;
 	}
 
+	private void growStrings() {
+		LuaString[] oldStrings = strings;
+		int[] oldHashes = stringHashes;
+		LuaString[] strings = this.strings = new LuaString[oldStrings.length * 2];
+		int[] hashes = stringHashes = new int[oldStrings.length * 2];
+		int mask = strings.length - 1;
+		for (int i = 0; i < oldStrings.length; i++) {
+			if (oldStrings[i] == null) continue;
+
+			int slot = oldHashes[i] & mask;
+			while (strings[slot] != null) slot = (slot + 1) & mask;
+			strings[slot] = oldStrings[i];
+			hashes[slot] = oldHashes[i];
+		}
+	}
+
 	// only called by new_localvarliteral() for var names.
 	private LuaString newString(String s) {
 		byte[] b = s.getBytes();
@@ -324,10 +446,9 @@ public class LexState {
 		}
 	}
 
-	void setinput(int firstByte, InputStream z, LuaString source) {
+	void setinput(int firstByte, LuaString source) {
 		this.decpoint = '.';
 		this.lookahead.token = TK_EOS; /* no look-ahead token */
-		this.z = z;
 		this.fs = null;
 		this.linenumber = 1;
 		this.lastline = 1;
@@ -415,6 +536,51 @@ public class LexState {
 		str2d(str, seminfo);
 	}
 
+	/**
+	 * Read an identifier or reserved word.
+	 *
+	 * If the name is entirely within the current window of input, we read it in place rather than copying it into
+	 * {@link #buff}.
+	 *
+	 * @param seminfo The token's semantic information, set to the name if this is not a reserved word.
+	 * @return The token which was read.
+	 */
+	private int read_name(SemInfo seminfo) {
+		byte[] bytes;
+		int start, length;
+
+		int end = inputPos;
+		// The current character is not in the window for the very first token, or if there is no more input.
+		if (end > inputStart && current != EOZ) {
+			byte[] input = this.input;
+			int limit = inputLimit;
+			while (end < limit && isAlphaNum(input[end])) end++;
+		}
+
+		if (end > inputStart && current != EOZ && (end < inputLimit || z == null)) {
+			bytes = input;
+			start = inputPos - 1;
+			length = end - start;
+			inputPos = end;
+			nextChar();
+		} else {
+			do {
+				save_and_next();
+			} while (isAlphaNum(current));
+			bytes = buff;
+			start = 0;
+			length = nbuff;
+		}
+
+		int hash = hash(bytes, start, length);
+		int reserved = reserved(bytes, start, length, hash);
+		if (reserved >= 0) return reserved;
+
+		LuaString ts = seminfo.ts = newString(bytes, start, length, hash);
+		if (bytes != buff) bufferName = ts;
+		return TK_NAME;
+	}
+
 	private int skip_sep() throws CompileException {
 		int count = 0;
 		int s = current;
@@ -638,6 +804,7 @@ public class LexState {
 
 	private int llex(SemInfo seminfo) throws CompileException {
 		nbuff = 0;
+		bufferName = null;
 		while (true) {
 			switch (current) {
 				case '\n':
@@ -754,18 +921,7 @@ public class LexState {
 						read_numeral(seminfo);
 						return TK_NUMBER;
 					} else if (isAlpha(current) || current == '_') {
-						/* identifier or reserved word */
-						LuaString ts;
-						do {
-							save_and_next();
-						} while (isAlphaNum(current) || current == '_');
-						ts = newString(buff, 0, nbuff);
-						if (RESERVED.containsKey(ts) && !ts.equals(LuaString.valueOf("goto"))) {
-							return RESERVED.get(ts);
-						} else {
-							seminfo.ts = ts;
-							return TK_NAME;
-						}
+						return read_name(seminfo);
 					} else {
 						int c = current;
 						nextChar();
@@ -1174,6 +1330,7 @@ public class LexState {
 		f.locvars = LuaC.realloc(f.locvars, fs.nlocvars);
 		// f.sizelocvars = fs.nlocvars;
 		f.upvalues = LuaC.realloc(f.upvalues, f.nups);
+		if (optimize) BytecodeOptimizer.optimize(f);
 		// LuaC._assert (CheckCode.checkcode(f));
 		LuaC._assert(fs.bl == null, linenumber);
 		this.fs = fs.prev;
@@ -1618,7 +1775,7 @@ public class LexState {
 		}
 	}
 
-	private static Priority[] priority = {  /* ORDER OPR */
+	private static final Priority[] priority = {  /* ORDER OPR */
 		new Priority(6, 6), new Priority(6, 6), new Priority(7, 7), new Priority(7, 7), new Priority(7, 7),  /* `+' `-' `/' `%' */
 		new Priority(10, 9), new Priority(5, 4),                 /* power and concat (right associative) */
 		new Priority(3, 3), new Priority(3, 3),                  /* equality and inequality */
@@ -2122,7 +2279,7 @@ public class LexState {
 	private void statement() throws CompileException {
 		int line = this.linenumber; /* may be needed for error messages */
 		enterlevel();
-		if (this.t.token == TK_NAME && this.t.seminfo.ts.equals(LuaString.valueOf("goto"))) {
+		if (this.t.token == TK_NAME && this.t.seminfo.ts.equals(GOTO)) {
 			lookahead();
 			if (lookahead.token == TK_NAME) {
 				this.t.token = TK_GOTO;
@@ -24,10 +24,7 @@
  */
 package org.squiddev.cobalt.compiler;
 
-import org.squiddev.cobalt.LuaState;
-import org.squiddev.cobalt.LuaString;
-import org.squiddev.cobalt.LuaTable;
-import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.function.LuaClosure;
 import org.squiddev.cobalt.function.LuaFunction;
 import org.squiddev.cobalt.function.LuaInterpretedFunction;
@@ -86,6 +83,25 @@ public final class LoadState {
 		 * @throws CompileException If the stream cannot be loaded.
 		 */
 		LuaFunction load(InputStream stream, LuaString filename, LuaString mode, LuaTable env) throws IOException, CompileException;
+
+		/**
+		 * Load into a Closure or LuaFunction from a Stream, interning string constants into the given table.
+		 *
+		 * Compilers which share prototypes between several states may ignore the table, and intern constants into the
+		 * {@linkplain StringTable#global() global table} instead.
+		 *
+		 * @param stream   Stream to read
+		 * @param filename Name of chunk
+		 * @param mode
+		 * @param env      Environment to load
+		 * @param strings  The table to intern string constants into.
+		 * @return The loaded function
+		 * @throws IOException      On stream read error
+		 * @throws CompileException If the stream cannot be loaded.
+		 */
+		default LuaFunction load(InputStream stream, LuaString filename, LuaString mode, LuaTable env, StringTable strings) throws IOException, CompileException {
+			return load(stream, filename, mode, env);
+		}
 	}
 
 	/**
@@ -120,13 +136,13 @@ public final class LoadState {
 	}
 
 	public static LuaFunction load(LuaState state, InputStream stream, LuaString name, LuaString mode, LuaTable env) throws IOException, CompileException {
-		if (state.compiler != null) return state.compiler.load(stream, name, mode, env);
+		if (state.compiler != null) return state.compiler.load(stream, name, mode, env, state.strings);
 
 		int firstByte = stream.read();
 		if (firstByte != LUA_SIGNATURE[0]) throw new CompileException("no compiler");
 		checkMode(mode, "binary");
 
-		Prototype p = loadBinaryChunk(firstByte, stream, name);
+		Prototype p = loadBinaryChunk(firstByte, stream, name, state.strings);
 		LuaInterpretedFunction closure = new LuaInterpretedFunction(p, env);
 		closure.nilUpvalues();
 		if (p.isLua52 && p.nups == 1) {
@@ -147,6 +163,22 @@ public final class LoadState {
 	 * @throws CompileException         If the stream cannot be loaded.
 	 */
 	public static Prototype loadBinaryChunk(int firstByte, InputStream stream, LuaString name) throws IOException, CompileException {
+		return loadBinaryChunk(firstByte, stream, name, StringTable.global());
+	}
+
+	/**
+	 * Load lua thought to be a binary chunk from its first byte from an input stream.
+	 *
+	 * @param firstByte the first byte of the input stream
+	 * @param stream    InputStream to read, after having read the first byte already
+	 * @param name      Name to apply to the loaded chunk
+	 * @param strings   The table to intern string constants into
+	 * @return {@link Prototype} that was loaded
+	 * @throws IllegalArgumentException If the signature is bac
+	 * @throws IOException              If an IOException occurs
+	 * @throws CompileException         If the stream cannot be loaded.
+	 */
+	public static Prototype loadBinaryChunk(int firstByte, InputStream stream, LuaString name, StringTable strings) throws IOException, CompileException {
 		name = getSourceName(name);
 		// check rest of signature
 		if (firstByte != LUA_SIGNATURE[0]
@@ -157,7 +189,7 @@ public final class LoadState {
 		}
 
 		// load file as a compiled chunk
-		BytecodeLoader s = new BytecodeLoader(stream);
+		BytecodeLoader s = new BytecodeLoader(stream, strings);
 		s.loadHeader();
 		return s.loadFunction(name);
 	}
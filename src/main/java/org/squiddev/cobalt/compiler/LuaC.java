@@ -36,6 +36,11 @@ import org.squiddev.cobalt.lib.jse.JsePlatform;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static org.squiddev.cobalt.ValueFactory.valueOf;
 import static org.squiddev.cobalt.compiler.LoadState.checkMode;
@@ -69,7 +74,16 @@ import static org.squiddev.cobalt.compiler.LoadState.checkMode;
  * @see Prototype
  */
 public class LuaC implements LuaCompiler {
-	public static final LuaC INSTANCE = new LuaC();
+	/**
+	 * The default compiler, which runs {@link BytecodeOptimizer} over compiled functions.
+	 */
+	public static final LuaC INSTANCE = new LuaC(true);
+
+	/**
+	 * A compiler which does not run {@link BytecodeOptimizer}, and so produces the same bytecode as the reference
+	 * compiler.
+	 */
+	public static final LuaC UNOPTIMIZED = new LuaC(false);
 
 	protected static void _assert(boolean b) throws CompileException { _assert(b, 0); }
 
@@ -85,6 +99,7 @@ public class LuaC implements LuaCompiler {
 	public static final int LUAI_MAXVARS = 200;
 	public static boolean blockGoto = false;
 
+	private final boolean optimize;
 
 	public static void SET_OPCODE(InstructionPtr i, int o) {
 		i.set((i.get() & (Lua52.MASK_NOT_OP)) | ((o << Lua52.POS_OP) & Lua52.MASK_OP));
@@ -186,7 +201,18 @@ public class LuaC implements LuaCompiler {
 		return a;
 	}
 
-	private LuaC() {
+	private LuaC(boolean optimize) {
+		this.optimize = optimize;
+	}
+
+	/**
+	 * Whether this compiler runs {@link BytecodeOptimizer} over compiled functions.
+	 *
+	 * @return If this compiler optimises functions.
+	 * @see #UNOPTIMIZED
+	 */
+	public boolean isOptimizing() {
+		return optimize;
 	}
 
 	/**
@@ -194,7 +220,22 @@ public class LuaC implements LuaCompiler {
 	 */
 	@Override
 	public LuaFunction load(InputStream stream, LuaString name, LuaString mode, LuaTable env) throws IOException, CompileException {
-		Prototype p = compile(stream, name, mode);
+		return instantiate(compile(stream, name, mode, StringTable.global(), optimize), env);
+	}
+
+	@Override
+	public LuaFunction load(InputStream stream, LuaString name, LuaString mode, LuaTable env, StringTable strings) throws IOException, CompileException {
+		return instantiate(compile(stream, name, mode, strings, optimize), env);
+	}
+
+	/**
+	 * Create a new closure for a top-level prototype, binding its environment.
+	 *
+	 * @param p   The prototype to instantiate. This is not modified, so may be shared between multiple closures.
+	 * @param env The environment for this closure.
+	 * @return The newly created closure.
+	 */
+	public static LuaInterpretedFunction instantiate(Prototype p, LuaTable env) {
 		LuaInterpretedFunction closure = new LuaInterpretedFunction(p, env);
 		closure.nilUpvalues();
 		if (p.isLua52 && p.nups == 1) {
@@ -223,25 +264,149 @@ public class LuaC implements LuaCompiler {
 	}
 
 	public static Prototype compile(InputStream stream, LuaString name, LuaString mode) throws IOException, CompileException {
+		return compile(stream, name, mode, StringTable.global());
+	}
+
+	/**
+	 * Compile a prototype or load as a binary chunk
+	 *
+	 * @param stream  The stream to read
+	 * @param name    Name of the chunk
+	 * @param mode    The kinds of chunk which may be loaded, or {@code null} to allow any.
+	 * @param strings The table to intern string constants into.
+	 * @return The compiled code
+	 * @throws IOException      On stream read errors
+	 * @throws CompileException If there is a syntax error.
+	 */
+	public static Prototype compile(InputStream stream, LuaString name, LuaString mode, StringTable strings) throws IOException, CompileException {
+		return compile(stream, name, mode, strings, true);
+	}
+
+	/**
+	 * Compile a prototype or load as a binary chunk
+	 *
+	 * @param stream   The stream to read
+	 * @param name     Name of the chunk
+	 * @param mode     The kinds of chunk which may be loaded, or {@code null} to allow any.
+	 * @param strings  The table to intern string constants into.
+	 * @param optimize Whether to run {@link BytecodeOptimizer} over compiled functions. This has no effect on binary
+	 *                 chunks.
+	 * @return The compiled code
+	 * @throws IOException      On stream read errors
+	 * @throws CompileException If there is a syntax error.
+	 */
+	public static Prototype compile(InputStream stream, LuaString name, LuaString mode, StringTable strings, boolean optimize) throws IOException, CompileException {
 		int firstByte = stream.read();
 		if (firstByte == '\033') {
 			checkMode(mode, "binary");
-			return LoadState.loadBinaryChunk(firstByte, stream, name);
+			return LoadState.loadBinaryChunk(firstByte, stream, name, strings);
 		} else {
 			checkMode(mode, "text");
 			LexState.DynamicData dyd = new LexState.DynamicData();
-			return luaY_parser(firstByte, stream, dyd, name);
+			return luaY_parser(firstByte, stream, dyd, name, strings, optimize);
+		}
+	}
+
+	/**
+	 * Compile several independent chunks in parallel.
+	 *
+	 * @param chunks The chunks to compile, mapping from each chunk's name to its contents. The streams are not closed.
+	 * @return The compiled prototypes, in the same order as {@code chunks}. These may be shared between
+	 * {@link LuaState}s.
+	 * @throws IOException      If any stream could not be read.
+	 * @throws CompileException If any chunk has a syntax error. If several chunks fail, the first one (in the order
+	 *                          of {@code chunks}) is reported.
+	 * @see #compileAll(Map, ForkJoinPool)
+	 */
+	public static Map<LuaString, Prototype> compileAll(Map<LuaString, InputStream> chunks) throws IOException, CompileException {
+		return compileAll(chunks, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Compile several independent chunks in parallel.
+	 *
+	 * @param chunks The chunks to compile, mapping from each chunk's name to its contents. The streams are not closed.
+	 * @param pool   The pool to compile chunks on.
+	 * @return The compiled prototypes, in the same order as {@code chunks}. These may be shared between
+	 * {@link LuaState}s.
+	 * @throws IOException      If any stream could not be read.
+	 * @throws CompileException If any chunk has a syntax error. If several chunks fail, the first one (in the order
+	 *                          of {@code chunks}) is reported.
+	 */
+	public static Map<LuaString, Prototype> compileAll(Map<LuaString, InputStream> chunks, ForkJoinPool pool) throws IOException, CompileException {
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Map.Entry<LuaString, InputStream>[] entries = chunks.entrySet().toArray(new Map.Entry[0]);
+		Object[] results = new Object[entries.length];
+		pool.invoke(new CompileTask(entries, results, 0, entries.length));
+
+		Map<LuaString, Prototype> prototypes = new LinkedHashMap<>();
+		for (int i = 0; i < entries.length; i++) {
+			Object result = results[i];
+			if (result instanceof IOException) throw (IOException) result;
+			if (result instanceof CompileException) throw (CompileException) result;
+			if (result instanceof RuntimeException) throw (RuntimeException) result;
+			prototypes.put(entries[i].getKey(), (Prototype) result);
+		}
+		return prototypes;
+	}
+
+	/**
+	 * Compiles a range of chunks, splitting it in half until only a single chunk remains. The prototype (or error) for
+	 * each chunk is stored in {@code results}.
+	 */
+	private static final class CompileTask extends RecursiveAction {
+		private static final long serialVersionUID = -4562383640196541839L;
+
+		private final Map.Entry<LuaString, InputStream>[] entries;
+		private final Object[] results;
+		private final int start, end;
+
+		CompileTask(Map.Entry<LuaString, InputStream>[] entries, Object[] results, int start, int end) {
+			this.entries = entries;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > 1) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new CompileTask(entries, results, start, middle), new CompileTask(entries, results, middle, end));
+				return;
+			}
+
+			if (start == end) return;
+			Map.Entry<LuaString, InputStream> entry = entries[start];
+			try {
+				results[start] = compile(entry.getValue(), entry.getKey());
+			} catch (IOException | CompileException | RuntimeException e) {
+				results[start] = e;
+			}
+		}
+	}
+
+	private static Prototype luaY_parser(int firstByte, InputStream z, LexState.DynamicData dyd, LuaString name, StringTable strings, boolean optimize) throws IOException, CompileException {
+		// Strings can be lexed in place, other streams are read in blocks by the lexer.
+		LexState lexstate = z instanceof LuaStringInputStream
+			? new LexState(((LuaStringInputStream) z).readRemaining())
+			: new LexState(z);
+		lexstate.stringTable = strings;
+		lexstate.optimize = optimize;
+		try {
+			return luaY_parser(lexstate, firstByte, dyd, name);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
 		}
 	}
 
-	private static Prototype luaY_parser(int firstByte, InputStream z, LexState.DynamicData dyd, LuaString name) throws CompileException {
-		LexState lexstate = new LexState(z);
+	private static Prototype luaY_parser(LexState lexstate, int firstByte, LexState.DynamicData dyd, LuaString name) throws CompileException {
 		FuncState funcstate = new FuncState();
 		FuncState.BlockCnt bl = new FuncState.BlockCnt();
 		// lexstate.buff = buff;
 		lexstate.dyd = dyd;
 		dyd.nactvar = dyd.ngt = dyd.nlabel = 0;
-		lexstate.setinput(firstByte, z, name);
+		lexstate.setinput(firstByte, name);
 		funcstate.f = new Prototype();
 		lexstate.open_func(funcstate, bl);
 		/* main func. is always vararg */
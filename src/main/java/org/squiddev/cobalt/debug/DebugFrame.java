@@ -27,6 +27,8 @@ package org.squiddev.cobalt.debug;
 import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.function.*;
 
+import java.util.Arrays;
+
 /**
  * Each thread will get a DebugState attached to it by the debug library
  * which will track function calls, hook functions, etc.
@@ -131,10 +133,42 @@ public final class DebugFrame {
 	 */
 	public Upvalue[] stackUpvalues;
 
+	/**
+	 * Unboxed numeric registers. If a slot in {@link #stack} is {@code null}, its value is held here instead.
+	 *
+	 * @see LuaState#numericRegisters
+	 * @see #getStackValue(int)
+	 */
+	public double[] numbers;
+
 	public Object state;
 
 	public final DebugFrame previous;
 
+	/**
+	 * The register window owned by this frame. This is kept when the frame is popped, so that later calls at the same
+	 * depth can reuse it rather than allocating a fresh stack.
+	 *
+	 * @see #acquireStack(int, boolean)
+	 */
+	private LuaValue[] window;
+
+	/**
+	 * The {@link Upvalue} equivalent of {@link #window}.
+	 */
+	private Upvalue[] windowUpvalues;
+
+	/**
+	 * The number of slots of {@link #window} which the current function may have written to, and so must be reset
+	 * when this frame is popped.
+	 */
+	private int windowSize;
+
+	/**
+	 * The {@link #numbers} equivalent of {@link #window}.
+	 */
+	private double[] numberWindow;
+
 	private static final LuaString TEMPORARY = ValueFactory.valueOf("(*temporary)");
 
 	public Varargs varargs, extras;
@@ -182,15 +216,82 @@ public final class DebugFrame {
 		this.state = state;
 	}
 
+	/**
+	 * Acquire a register window for a Lua function running in this frame and set it as the current {@link #stack}.
+	 *
+	 * Every slot of the returned stack up to {@code size} will be {@link Constants#NIL}. The window will be reset when
+	 * this frame is popped, so it must not be referenced once the function has returned: any open upvalues must be
+	 * closed first.
+	 *
+	 * @param size      The number of registers the function requires.
+	 * @param upvalues  Whether the function also needs an {@link #stackUpvalues} array.
+	 * @return The current stack.
+	 */
+	public LuaValue[] acquireStack(int size, boolean upvalues) {
+		LuaValue[] stack = window;
+		if (stack == null || stack.length < size) {
+			stack = window = new LuaValue[size];
+			System.arraycopy(Constants.NILS, 0, stack, 0, size);
+			windowUpvalues = null;
+		}
+
+		if (upvalues) {
+			Upvalue[] stackUpvalues = windowUpvalues;
+			if (stackUpvalues == null) stackUpvalues = windowUpvalues = new Upvalue[stack.length];
+			this.stackUpvalues = stackUpvalues;
+		}
+
+		windowSize = size;
+		return this.stack = stack;
+	}
+
 	public void cleanup() {
 		LuaInterpreter.closeAll(stackUpvalues);
 	}
 
+	/**
+	 * Acquire a set of unboxed numeric registers for the current function.
+	 *
+	 * Unlike {@link #acquireStack(int, boolean)}, these do not need to be reset when popped, as a register is only
+	 * read when the corresponding {@link #stack} slot is {@code null}.
+	 *
+	 * @param size The number of registers required
+	 * @return The numeric registers.
+	 */
+	public double[] acquireNumbers(int size) {
+		double[] numbers = numberWindow;
+		if (numbers == null || numbers.length < size) numbers = numberWindow = new double[size];
+		return this.numbers = numbers;
+	}
+
+	/**
+	 * Get the value of a register, boxing it if it is held in {@link #numbers}.
+	 *
+	 * @param slot The register to read
+	 * @return The register's value.
+	 */
+	public LuaValue getStackValue(int slot) {
+		LuaValue value = stack[slot];
+		if (value != null) return value;
+		return numbers == null ? Constants.NIL : LuaDouble.valueOf(numbers[slot]);
+	}
+
 	void clear() {
+		// Only reset the slots the previous function could have used. Any open upvalues will have been closed by now,
+		// so nothing else can observe these arrays.
+		if (stack == window && stack != null) {
+			System.arraycopy(Constants.NILS, 0, stack, 0, windowSize);
+			if (stackUpvalues == windowUpvalues && stackUpvalues != null) {
+				Arrays.fill(stackUpvalues, 0, windowSize, null);
+			}
+		}
+		windowSize = 0;
+
 		func = null;
 		closure = null;
 		stack = null;
 		stackUpvalues = null;
+		numbers = null;
 		state = null;
 		varargs = extras = null;
 		flags = 0;
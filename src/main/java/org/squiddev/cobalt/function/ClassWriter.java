@@ -0,0 +1,358 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.function;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A minimal writer for Java class files, sufficient for the code emitted by {@link PrototypeCompiler}.
+ *
+ * Classes are written with version 49 (Java 5), and so the JVM will infer stack map frames itself. This means
+ * we only need to track labels and branch offsets, rather than the types of every local and stack slot.
+ */
+final class ClassWriter {
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	static final int ICONST_0 = 0x03;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int LDC_W = 0x13;
+	static final int ILOAD = 0x15;
+	static final int ALOAD = 0x19;
+	static final int AALOAD = 0x32;
+	static final int ASTORE = 0x3a;
+	static final int AASTORE = 0x53;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IF_ICMPNE = 0xa0;
+	static final int GOTO = 0xa7;
+	static final int TABLESWITCH = 0xaa;
+	static final int IRETURN = 0xac;
+	static final int RETURN = 0xb1;
+	static final int GETSTATIC = 0xb2;
+	static final int GETFIELD = 0xb4;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+	static final int INSTANCEOF = 0xc1;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_FIELD = 9;
+	private static final int CONSTANT_METHOD = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final Map<String, Integer> constants = new HashMap<>();
+	private int poolSize = 1;
+
+	private final String name;
+	private final String superName;
+	private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	private final DataOutputStream methodsOut = new DataOutputStream(methods);
+	private int methodCount;
+
+	ClassWriter(String name, String superName) {
+		this.name = name;
+		this.superName = superName;
+	}
+
+	byte[] toByteArray() {
+		try {
+			int thisClass = classConstant(name), superClass = classConstant(superName);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(pool.size() + methods.size() + 32);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolSize);
+			pool.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // Interfaces
+			out.writeShort(0); // Fields
+			out.writeShort(methodCount);
+			methods.writeTo(out);
+			out.writeShort(0); // Attributes
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void method(int access, String name, String descriptor, Code code) {
+		try {
+			byte[] bytes = code.toByteArray();
+			int codeAttribute = utf8("Code");
+
+			methodsOut.writeShort(access);
+			methodsOut.writeShort(utf8(name));
+			methodsOut.writeShort(utf8(descriptor));
+			methodsOut.writeShort(1);
+			methodsOut.writeShort(codeAttribute);
+			methodsOut.writeInt(12 + bytes.length);
+			methodsOut.writeShort(code.maxStack);
+			methodsOut.writeShort(code.maxLocals);
+			methodsOut.writeInt(bytes.length);
+			methodsOut.write(bytes);
+			methodsOut.writeShort(0); // Exception table
+			methodsOut.writeShort(0); // Attributes
+			methodCount++;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int constant(String key, int tag, int a, int b) {
+		Integer existing = constants.get(key);
+		if (existing != null) return existing;
+
+		try {
+			poolOut.writeByte(tag);
+			poolOut.writeShort(a);
+			if (b >= 0) poolOut.writeShort(b);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		int index = poolSize++;
+		constants.put(key, index);
+		return index;
+	}
+
+	private int utf8(String value) {
+		String key = "U" + value;
+		Integer existing = constants.get(key);
+		if (existing != null) return existing;
+
+		try {
+			poolOut.writeByte(CONSTANT_UTF8);
+			poolOut.writeUTF(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		int index = poolSize++;
+		constants.put(key, index);
+		return index;
+	}
+
+	private int integer(int value) {
+		String key = "I" + value;
+		Integer existing = constants.get(key);
+		if (existing != null) return existing;
+
+		try {
+			poolOut.writeByte(CONSTANT_INTEGER);
+			poolOut.writeInt(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		int index = poolSize++;
+		constants.put(key, index);
+		return index;
+	}
+
+	private int classConstant(String name) {
+		return constant("C" + name, CONSTANT_CLASS, utf8(name), -1);
+	}
+
+	private int member(int tag, String owner, String name, String descriptor) {
+		int nameAndType = constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+		return constant(tag + owner + "." + name + ":" + descriptor, tag, classConstant(owner), nameAndType);
+	}
+
+	/**
+	 * The body of a single method.
+	 */
+	final class Code {
+		private byte[] code = new byte[256];
+		private int length;
+
+		private int[] labels = new int[16];
+		private int labelCount;
+
+		private int[] fixups = new int[16];
+		private int fixupCount;
+
+		int maxStack;
+		int maxLocals;
+
+		Code(int maxStack, int maxLocals) {
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+
+		int size() {
+			return length;
+		}
+
+		private void ensure(int extra) {
+			if (length + extra > code.length) code = Arrays.copyOf(code, Math.max(code.length * 2, length + extra));
+		}
+
+		private void u1(int value) {
+			ensure(1);
+			code[length++] = (byte) value;
+		}
+
+		private void u2(int value) {
+			ensure(2);
+			code[length++] = (byte) (value >> 8);
+			code[length++] = (byte) value;
+		}
+
+		private void u4(int value) {
+			ensure(4);
+			code[length++] = (byte) (value >> 24);
+			code[length++] = (byte) (value >> 16);
+			code[length++] = (byte) (value >> 8);
+			code[length++] = (byte) value;
+		}
+
+		/**
+		 * Create a new label, which may be jumped to before it is {@link #mark(int) marked}.
+		 *
+		 * @return The new label.
+		 */
+		int newLabel() {
+			if (labelCount == labels.length) labels = Arrays.copyOf(labels, labelCount * 2);
+			labels[labelCount] = -1;
+			return labelCount++;
+		}
+
+		void mark(int label) {
+			labels[label] = length;
+		}
+
+		void op(int opcode) {
+			u1(opcode);
+		}
+
+		void iconst(int value) {
+			if (value >= -1 && value <= 5) {
+				u1(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				u1(BIPUSH);
+				u1(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				u1(SIPUSH);
+				u2(value);
+			} else {
+				u1(LDC_W);
+				u2(integer(value));
+			}
+		}
+
+		void local(int opcode, int index) {
+			u1(opcode);
+			u1(index);
+		}
+
+		void field(int opcode, String owner, String name, String descriptor) {
+			u1(opcode);
+			u2(member(CONSTANT_FIELD, owner, name, descriptor));
+		}
+
+		void method(int opcode, String owner, String name, String descriptor) {
+			u1(opcode);
+			u2(member(CONSTANT_METHOD, owner, name, descriptor));
+		}
+
+		void type(int opcode, String type) {
+			u1(opcode);
+			u2(classConstant(type));
+		}
+
+		void jump(int opcode, int label) {
+			int start = length;
+			u1(opcode);
+			fixup(start, length, label, false);
+			u2(0);
+		}
+
+		/**
+		 * Emit a {@code tableswitch} instruction over {@code [0, targets.length)}.
+		 *
+		 * @param fallback The label to jump to if the value is out of range.
+		 * @param targets  The label for each value.
+		 */
+		void tableSwitch(int fallback, int[] targets) {
+			int start = length;
+			u1(TABLESWITCH);
+			while (length % 4 != 0) u1(0);
+
+			fixup(start, length, fallback, true);
+			u4(0);
+			u4(0);
+			u4(targets.length - 1);
+			for (int target : targets) {
+				fixup(start, length, target, true);
+				u4(0);
+			}
+		}
+
+		private void fixup(int instruction, int position, int label, boolean wide) {
+			if (fixupCount + 4 > fixups.length) fixups = Arrays.copyOf(fixups, fixups.length * 2);
+			fixups[fixupCount++] = instruction;
+			fixups[fixupCount++] = position;
+			fixups[fixupCount++] = label;
+			fixups[fixupCount++] = wide ? 1 : 0;
+		}
+
+		byte[] toByteArray() {
+			for (int i = 0; i < fixupCount; i += 4) {
+				int instruction = fixups[i], position = fixups[i + 1], target = labels[fixups[i + 2]];
+				if (target < 0) throw new IllegalStateException("Unmarked label");
+
+				int offset = target - instruction;
+				if (fixups[i + 3] != 0) {
+					code[position] = (byte) (offset >> 24);
+					code[position + 1] = (byte) (offset >> 16);
+					code[position + 2] = (byte) (offset >> 8);
+					code[position + 3] = (byte) offset;
+				} else {
+					if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) throw new IllegalStateException("Jump too large");
+					code[position] = (byte) (offset >> 8);
+					code[position + 1] = (byte) offset;
+				}
+			}
+
+			return Arrays.copyOf(code, length);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.debug.DebugFrame;
+import org.squiddev.cobalt.debug.DebugState;
+
+import static org.squiddev.cobalt.Constants.*;
+import static org.squiddev.cobalt.Lua52.LFIELDS_PER_FLUSH;
+import static org.squiddev.cobalt.LuaDouble.valueOf;
+
+/**
+ * A {@link Prototype} which has been compiled to JVM bytecode by {@link PrototypeCompiler}.
+ *
+ * Compiled code operates on the same {@link DebugFrame} as the interpreter, and may be entered at any instruction.
+ * When it reaches an instruction it cannot handle (such as calling another Lua function, or returning), it hands
+ * control back to {@link LuaInterpreter}, which executes that instruction and then re-enters the compiled code. As
+ * no state is held in Java locals between instructions, yielding and resuming works exactly as it does for
+ * interpreted code.
+ *
+ * The static methods on this class are helpers for the generated code, and should not be used elsewhere.
+ *
+ * @see LuaState#compileThreshold
+ */
+public abstract class CompiledPrototype {
+	protected CompiledPrototype() {
+	}
+
+	/**
+	 * Execute instructions, starting at {@code pc}, until one is reached which must be run by the interpreter.
+	 *
+	 * @param state    The current Lua state
+	 * @param ds       The current debug state
+	 * @param di       The current frame
+	 * @param function The function being executed
+	 * @param pc       The instruction to start executing at
+	 * @return The instruction which the interpreter should execute next.
+	 * @throws LuaError        If an instruction errored
+	 * @throws UnwindThrowable If an instruction yielded
+	 */
+	public abstract int execute(LuaState state, DebugState ds, DebugFrame di, LuaInterpretedFunction function, int pc) throws LuaError, UnwindThrowable;
+
+	protected static void close(Upvalue[] openups, int from) {
+		for (int x = openups.length; --x >= from; ) {
+			Upvalue upvalue = openups[x];
+			if (upvalue != null) {
+				upvalue.close();
+				openups[x] = null;
+			}
+		}
+	}
+
+	protected static LuaValue getTable(LuaState state, LuaInterpretedFunction function, int pc, LuaValue t, LuaValue key, int stack) throws LuaError, UnwindThrowable {
+		return LuaInterpreter.getTable(state, function.p, pc, t, key, stack);
+	}
+
+	protected static LuaValue not(LuaValue value) {
+		return value.toBoolean() ? FALSE : TRUE;
+	}
+
+	protected static LuaValue newTable(int b, int c) {
+		return new LuaTable(b, c);
+	}
+
+	protected static void concat(LuaState state, DebugFrame di, LuaValue[] stack, int a, int b, int c) throws LuaError, UnwindThrowable {
+		di.top = c + 1;
+		LuaInterpreter.concat(state, di, stack, di.top, c - b + 1);
+		stack[a] = stack[b];
+		di.top = b;
+	}
+
+	protected static boolean forLoop(LuaValue[] stack, int a) throws LuaError {
+		double limit = stack[a + 1].checkDouble();
+		double step = stack[a + 2].checkDouble();
+		double value = stack[a].checkDouble();
+		double idx = step + value;
+		if (0 < step ? idx <= limit : limit <= idx) {
+			stack[a + 3] = stack[a] = valueOf(idx);
+			return true;
+		}
+
+		return false;
+	}
+
+	protected static void forPrep(LuaValue[] stack, int a) throws LuaError {
+		LuaNumber init = stack[a].checkNumber("'for' initial value must be a number");
+		LuaNumber limit = stack[a + 1].checkNumber("'for' limit must be a number");
+		LuaNumber step = stack[a + 2].checkNumber("'for' step must be a number");
+		stack[a] = valueOf(init.toDouble() - step.toDouble());
+		stack[a + 1] = limit;
+		stack[a + 2] = step;
+	}
+
+	protected static void setList(LuaValue[] stack, int a, int b, int c) throws LuaError {
+		int offset = (c - 1) * LFIELDS_PER_FLUSH;
+		LuaTable tbl = stack[a].checkTable();
+		tbl.presize(offset + b);
+		for (int j = 1; j <= b; j++) tbl.rawset(offset + j, stack[a + j]);
+	}
+
+	protected static void varargs(DebugFrame di, LuaValue[] stack, int a, int b) {
+		Varargs varargs = di.varargs;
+		if (b == 0) {
+			di.top = a + varargs.count();
+			di.extras = varargs;
+		} else {
+			for (int j = 1; j < b; ++j) stack[a + j - 1] = varargs.arg(j);
+		}
+	}
+
+	/**
+	 * Call a function which is not a {@link LuaInterpretedFunction}. Those are instead executed by the interpreter,
+	 * so that they get their own frame.
+	 *
+	 * @param state The current Lua state
+	 * @param di    The current frame
+	 * @param stack The current frame's stack
+	 * @param a     The {@code A} argument of the {@link Lua#OP_CALL} instruction
+	 * @param b     The {@code B} argument of the {@link Lua#OP_CALL} instruction
+	 * @param c     The {@code C} argument of the {@link Lua#OP_CALL} instruction
+	 * @throws LuaError        If the function errored
+	 * @throws UnwindThrowable If the function yielded
+	 */
+	protected static void call(LuaState state, DebugFrame di, LuaValue[] stack, int a, int b, int c) throws LuaError, UnwindThrowable {
+		LuaValue val = stack[a];
+		if ((c == 1 || c == 2) && b > 0 && b <= 4) {
+			LuaValue result;
+			switch (b) {
+				case 1:
+					result = OperationHelper.call(state, val, a);
+					break;
+				case 2:
+					result = OperationHelper.call(state, val, stack[a + 1], a);
+					break;
+				case 3:
+					result = OperationHelper.call(state, val, stack[a + 1], stack[a + 2], a);
+					break;
+				default:
+					result = OperationHelper.call(state, val, stack[a + 1], stack[a + 2], stack[a + 3], a);
+					break;
+			}
+			if (c == 2) stack[a] = result;
+			return;
+		}
+
+		Varargs args = b > 0 ?
+			ValueFactory.varargsOf(stack, a + 1, b - 1) : // exact arg count
+			ValueFactory.varargsOf(stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
+		Varargs v = OperationHelper.invoke(state, val, args.asImmutable(), a);
+		if (c > 0) {
+			while (--c > 0) stack[a + c - 1] = v.arg(c);
+		} else {
+			di.top = a + v.count();
+			di.extras = v;
+		}
+	}
+}
@@ -163,6 +163,20 @@ public final class LuaInterpretedFunction extends LuaClosure implements Resumabl
 		return execute(state, setupCall(state, this, varargs, FLAG_FRESH), this);
 	}
 
+	/**
+	 * Invoke this function from the coroutine loop, allowing it to switch coroutines without unwinding the stack.
+	 *
+	 * @param state   The current lua state
+	 * @param varargs The arguments to invoke with
+	 * @return The function's return values, or {@code null} if it transferred control to another coroutine.
+	 * @throws LuaError        If the function errored.
+	 * @throws UnwindThrowable If the function yielded from somewhere other than the interpreter.
+	 * @see LuaThread#yieldDirect(LuaState, Varargs)
+	 */
+	public final Varargs invokeDirect(LuaState state, Varargs varargs) throws LuaError, UnwindThrowable {
+		return execute(state, setupCall(state, this, varargs, FLAG_FRESH), this, true);
+	}
+
 	@Override
 	public LuaTable getfenv() {
 		if (!p.isLua52) return (LuaTable)upvalues[0].getValue();
@@ -211,6 +225,24 @@ public final class LuaInterpretedFunction extends LuaClosure implements Resumabl
 
 	@Override
 	public Varargs resume(LuaState state, Object object, Varargs value) throws LuaError, UnwindThrowable {
+		return resume(state, value, false);
+	}
+
+	/**
+	 * Resume this function from the coroutine loop, allowing it to switch coroutines without unwinding the stack.
+	 *
+	 * @param state The current lua state
+	 * @param value The value to resume with
+	 * @return The function's return values, or {@code null} if it transferred control to another coroutine.
+	 * @throws LuaError        If the function errored.
+	 * @throws UnwindThrowable If the function yielded from somewhere other than the interpreter.
+	 * @see #invokeDirect(LuaState, Varargs)
+	 */
+	public Varargs resumeDirect(LuaState state, Varargs value) throws LuaError, UnwindThrowable {
+		return resume(state, value, true);
+	}
+
+	private Varargs resume(LuaState state, Varargs value, boolean direct) throws LuaError, UnwindThrowable {
 		DebugState ds = DebugHandler.getDebugState(state);
 		DebugFrame di = ds.getStackUnsafe();
 
@@ -233,6 +265,6 @@ public final class LuaInterpretedFunction extends LuaClosure implements Resumabl
 			LuaInterpreter.resume(state, di, this, value);
 		}
 
-		return execute(state, di, this);
+		return execute(state, di, this, direct);
 	}
 }
@@ -39,102 +39,114 @@ import static org.squiddev.cobalt.debug.DebugFrame.*;
  */
 public final class LuaInterpreter {
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, int flags) throws LuaError, UnwindThrowable {
-		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
-
-		return setupCall(state, function, NONE, stack, flags);
+		DebugFrame di = pushFrame(state, function.p, flags);
+		return setupCall(state, function, NONE, di, flags);
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugFrame di = pushFrame(state, p, flags);
+		LuaValue[] stack = di.stack;
 
 		switch (p.numparams) {
 			case 0:
-				return setupCall(state, function, arg, stack, flags);
+				return setupCall(state, function, arg, di, flags);
 
 			default:
 				stack[0] = arg;
-				return setupCall(state, function, NONE, stack, flags);
+				return setupCall(state, function, NONE, di, flags);
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugFrame di = pushFrame(state, p, flags);
+		LuaValue[] stack = di.stack;
 
 		switch (p.numparams) {
 			case 0:
-				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2) : NONE, stack, flags);
+				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2) : NONE, di, flags);
 
 			case 1:
 				stack[0] = arg1;
-				return setupCall(state, function, arg2, stack, flags);
+				return setupCall(state, function, arg2, di, flags);
 
 			default:
 				stack[0] = arg1;
 				stack[1] = arg2;
-				return setupCall(state, function, NONE, stack, flags);
+				return setupCall(state, function, NONE, di, flags);
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, LuaValue arg3, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugFrame di = pushFrame(state, p, flags);
+		LuaValue[] stack = di.stack;
 
 		switch (p.numparams) {
 			case 0:
-				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2, arg3) : NONE, stack, flags);
+				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2, arg3) : NONE, di, flags);
 
 			case 1:
 				stack[0] = arg1;
-				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg2, arg3) : NONE, stack, flags);
+				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg2, arg3) : NONE, di, flags);
 
 			case 2:
 				stack[0] = arg1;
 				stack[1] = arg2;
-				return setupCall(state, function, arg3, stack, flags);
+				return setupCall(state, function, arg3, di, flags);
 
 			default:
 				stack[0] = arg1;
 				stack[1] = arg2;
 				stack[2] = arg3;
-				return setupCall(state, function, NONE, stack, flags);
+				return setupCall(state, function, NONE, di, flags);
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugFrame di = pushFrame(state, p, flags);
+		LuaValue[] stack = di.stack;
 		for (int i = 0; i < p.numparams; i++) stack[i] = varargs.arg(i + 1);
 
-		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
+		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, di, flags);
 	}
 
 	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize, Varargs varargs, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugFrame di = pushFrame(state, p, flags);
+		LuaValue[] stack = di.stack;
 
 		varargs = ValueFactory.varargsOf(args, argStart, argSize, varargs);
 		for (int i = 0; i < p.numparams; i++) stack[i] = varargs.arg(i + 1);
 
-		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
+		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, di, flags);
+	}
+
+	/**
+	 * Push a new frame for a Lua function, reusing the register window from the last function called at this depth.
+	 *
+	 * @param state The current Lua state
+	 * @param p     The prototype which will be executed
+	 * @param flags The flags for this call
+	 * @return The new frame, with {@link DebugFrame#stack} filled with {@link Constants#NIL}.
+	 * @throws LuaError On a stack overflow
+	 */
+	private static DebugFrame pushFrame(LuaState state, Prototype p, int flags) throws LuaError {
+		DebugState ds = DebugHandler.getDebugState(state);
+		DebugFrame di = (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
+		di.acquireStack(p.maxstacksize, p.p.length > 0);
+		return di;
 	}
 
-	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, LuaValue[] stack, int flags) throws LuaError, UnwindThrowable {
+	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, DebugFrame di, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		Upvalue[] upvalues = p.p.length > 0 ? new Upvalue[stack.length] : null;
+		LuaValue[] stack = di.stack;
 		if (p.is_vararg >= VARARG_NEEDSARG) stack[p.numparams] = new LuaTable(varargs);
 
 		DebugState ds = DebugHandler.getDebugState(state);
-		DebugFrame di = (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
-		di.setFunction(function, varargs.asImmutable(), stack, upvalues);
+		di.setFunction(function, varargs.asImmutable(), stack, di.stackUpvalues);
 		di.flags |= flags;
 		di.extras = NONE;
 		di.pc = 0;
@@ -149,7 +161,27 @@ public final class LuaInterpreter {
 		return di;
 	}
 
-	private static int jumpStatement(Prototype p, Upvalue[] openups, int pc, int a, int b) {
+	/**
+	 * Index a table with a constant key, using the instruction's inline cache if possible.
+	 *
+	 * @param state The current Lua state
+	 * @param p     The current prototype
+	 * @param pc    The current instruction
+	 * @param t     The value to index
+	 * @param key   The constant key
+	 * @param stack The stack slot of {@code t}, used for error messages
+	 * @return The indexed value
+	 * @throws LuaError        If indexing failed
+	 * @throws UnwindThrowable If an {@code __index} metamethod yielded.
+	 * @see InlineCache
+	 */
+	static LuaValue getTable(LuaState state, Prototype p, int pc, LuaValue t, LuaValue key, int stack) throws LuaError, UnwindThrowable {
+		return key instanceof LuaString
+			? OperationHelper.getTable(state, t, (LuaString) key, stack, InlineCache.get(p, pc))
+			: OperationHelper.getTable(state, t, key, stack);
+	}
+
+	static int jumpStatement(Prototype p, Upvalue[] openups, int pc, int a, int b) {
 		if (p.isLua52 && a > 0) {
 			for (int x = openups.length; --x >= a - 1;) {
 				Upvalue upvalue = openups[x];
@@ -163,6 +195,21 @@ public final class LuaInterpreter {
 	}
 
 	static Varargs execute(final LuaState state, DebugFrame di, LuaInterpretedFunction function) throws LuaError, UnwindThrowable {
+		return execute(state, di, function, false);
+	}
+
+	/**
+	 * Execute a function.
+	 *
+	 * @param state    The current lua state
+	 * @param di       The frame to execute
+	 * @param function The function this frame belongs to
+	 * @param direct   Whether we were called directly from the coroutine loop. If so, calls to a
+	 *                 {@link ResumableVarArgFunction} may switch coroutines without throwing, in which case this
+	 *                 returns {@code null}.
+	 * @return The function's return values, or {@code null} if control was transferred to another coroutine.
+	 */
+	static Varargs execute(final LuaState state, DebugFrame di, LuaInterpretedFunction function, boolean direct) throws LuaError, UnwindThrowable {
 		final DebugState ds = DebugHandler.getDebugState(state);
 		final DebugHandler handler = state.debug;
 
@@ -179,10 +226,16 @@ public final class LuaInterpreter {
 			final Upvalue[] openups = di.stackUpvalues;
 			final Varargs varargs = di.varargs;
 
+			final byte[] numeric = state.numericRegisters ? NumericRegisters.hints(p) : null;
+			final double[] numbers = numeric == null ? null : di.numbers != null ? di.numbers : di.acquireNumbers(p.maxstacksize);
+			CompiledPrototype compiled = numeric == null ? PrototypeCompiler.enter(state, p) : null;
+
 			int pc = di.pc;
 
 			// process instructions
 			while (true) {
+				if (compiled != null) pc = compiled.execute(state, ds, di, function, pc);
+
 				handler.onInstruction(ds, di, pc);
 
 				// pull out instruction
@@ -193,6 +246,14 @@ public final class LuaInterpreter {
 
 				if (!p.isLua52) op = lua51opcodes[op];
 
+				if (numeric != null) {
+					int hint = numeric[pc - 1];
+					if (hint != 0) {
+						pc = NumericRegisters.execute(state, di, p, stack, numbers, openups, hint, op, i, pc);
+						continue;
+					}
+				}
+
 				// process the instruction
 				switch (op) {
 					case OP_MOVE: // A B: R(A):= R(B)
@@ -234,18 +295,22 @@ public final class LuaInterpreter {
 					case OP_GETTABUP: { // A B C: R(A) := UpValue[B][RK(C)]
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >>> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.getTable(state, upvalues[b].getValue(), c > 0xff ? k[c & 0x0ff] : stack[c], b);
+						stack[a] = c > 0xff
+							? getTable(state, p, pc - 1, upvalues[b].getValue(), k[c & 0x0ff], b)
+							: OperationHelper.getTable(state, upvalues[b].getValue(), stack[c], b);
 						break;
 					}
 
 					case OP_GETGLOBAL: // A Bx	R(A):= Gbl[Kst(Bx)]
-						stack[a] = OperationHelper.getTable(state, upvalues[0].getValue(), k[(i >>> POS_Bx) & MAXARG_Bx]);
+						stack[a] = getTable(state, p, pc - 1, upvalues[0].getValue(), k[(i >>> POS_Bx) & MAXARG_Bx], -1);
 						break;
 
 					case OP_GETTABLE: { // A B C: R(A):= R(B)[RK(C)]
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >>> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.getTable(state, stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b);
+						stack[a] = c > 0xff
+							? getTable(state, p, pc - 1, stack[b], k[c & 0x0ff], b)
+							: OperationHelper.getTable(state, stack[b], stack[c], b);
 						break;
 					}
 
@@ -279,7 +344,9 @@ public final class LuaInterpreter {
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						LuaValue o = stack[a + 1] = stack[b];
-						stack[a] = OperationHelper.getTable(state, o, c > 0xff ? k[c & 0x0ff] : stack[c], b);
+						stack[a] = c > 0xff
+							? getTable(state, p, pc - 1, o, k[c & 0x0ff], b)
+							: OperationHelper.getTable(state, o, stack[c], b);
 						break;
 					}
 
@@ -352,9 +419,12 @@ public final class LuaInterpreter {
 						break;
 					}
 
-					case OP_JMP: // A sBx: pc+=sBx; if (A) close all upvalues >= R(A - 1)
-						pc = jumpStatement(p, openups, pc, a, GETARG_sBx(i));
+					case OP_JMP: { // A sBx: pc+=sBx; if (A) close all upvalues >= R(A - 1)
+						int offset = GETARG_sBx(i);
+						pc = jumpStatement(p, openups, pc, a, offset);
+						if (offset < 0 && numeric == null) compiled = PrototypeCompiler.backEdge(state, p);
 						break;
+					}
 
 					case OP_EQ: { // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
 						int b = (i >>> POS_B) & MAXARG_B;
@@ -436,6 +506,22 @@ public final class LuaInterpreter {
 							continue newFrame;
 						}
 
+						if (direct && val instanceof ResumableVarArgFunction<?>) {
+							Varargs args = b > 0 ?
+								ValueFactory.varargsOf(stack, a + 1, b - 1) : // exact arg count
+								ValueFactory.varargsOf(stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
+							Varargs v = ((ResumableVarArgFunction<?>) val).invokeDirect(state, args.asImmutable());
+							if (v == null) return null;
+
+							if (c > 0) {
+								while (--c > 0) stack[a + c - 1] = v.arg(c);
+							} else {
+								di.top = a + v.count();
+								di.extras = v;
+							}
+							break;
+						}
+
 						switch (i & (MASK_B | MASK_C)) {
 							case (1 << POS_B) | (0 << POS_C): {
 								Varargs v = di.extras = OperationHelper.invoke(state, val, NONE, a);
@@ -523,6 +609,9 @@ public final class LuaInterpreter {
 						if (functionVal instanceof LuaInterpretedFunction) {
 							int flags = di.flags;
 							closeAll(openups);
+
+							// The arguments may still point into our stack, which will be reused by the callee.
+							args = args.asImmutable();
 							ds.popInfo();
 
 							// Replace the current frame with a new one.
@@ -544,8 +633,8 @@ public final class LuaInterpreter {
 						int flags = di.flags, top = di.top;
 						Varargs v = di.extras;
 						closeAll(openups);
-						handler.onReturn(ds, di);
 
+						// Read the return values before popping the frame, as its stack will be cleared.
 						Varargs ret;
 						switch (b) {
 							case 0:
@@ -562,6 +651,8 @@ public final class LuaInterpreter {
 								break;
 						}
 
+						handler.onReturn(ds, di);
+
 						if ((flags & FLAG_FRESH) != 0) {
 							// If we're a fresh invocation then return to the parent.
 							return ret;
@@ -581,6 +672,7 @@ public final class LuaInterpreter {
 						if (0 < step ? idx <= limit : limit <= idx) {
 							stack[a + 3] = stack[a] = valueOf(idx);
 							pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							if (numeric == null) compiled = PrototypeCompiler.backEdge(state, p);
 						}
 					}
 					break;
@@ -719,7 +811,7 @@ public final class LuaInterpreter {
 		}
 	}
 
-	private static void concat(LuaState state, DebugFrame frame, LuaValue[] stack, int top, int total) throws LuaError, UnwindThrowable {
+	static void concat(LuaState state, DebugFrame frame, LuaValue[] stack, int top, int total) throws LuaError, UnwindThrowable {
 		try {
 			do {
 				LuaValue left = stack[top - 2];
@@ -733,7 +825,7 @@ public final class LuaInterpreter {
 					// If one of these isn't convertible to a string then use the metamethod
 					stack[top - 2] = OperationHelper.concatNonStrings(state, left, right, top - 2, top - 1);
 				} else if ((rString = right.checkLuaBaseString()).length() == 0) {
-					stack[top - 2] = left.checkLuaString();
+					stack[top - 2] = left.checkLuaBaseString();
 				} else if ((lString = left.checkLuaBaseString()).length() == 0) {
 					stack[top - 2] = rString;
 				} else {
@@ -0,0 +1,555 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.debug.DebugFrame;
+
+import static org.squiddev.cobalt.Lua52.*;
+import static org.squiddev.cobalt.LuaDouble.valueOf;
+
+/**
+ * Support for {@link LuaState#numericRegisters}, where numeric temporaries are kept unboxed in
+ * {@link DebugFrame#numbers} rather than allocating a {@link LuaNumber} for every intermediate result.
+ *
+ * A register whose value is held unboxed has its {@link DebugFrame#stack} slot set to {@code null}. Before a function is
+ * first executed, we determine which instructions may produce or consume such registers. An arithmetic result is only
+ * left unboxed if every read of it before it is overwritten (or dies as a temporary) is an instruction which knows how
+ * to handle unboxed values, and it never crosses a jump. The control variables of numeric {@code for} loops are always
+ * unboxed, and the loop variable is too if it is only ever used as a number within the loop body.
+ *
+ * This relies on the invariants of bytecode produced by {@link org.squiddev.cobalt.compiler.LuaC} (namely that
+ * temporaries are never read after being consumed), and so should not be used with arbitrary precompiled bytecode.
+ *
+ * @see LuaInterpreter
+ */
+final class NumericRegisters {
+	/**
+	 * This instruction may read unboxed registers, and so should be executed by
+	 * {@link #execute(LuaState, DebugFrame, Prototype, LuaValue[], double[], Upvalue[], int, int, int, int)}.
+	 */
+	private static final byte AWARE = 1;
+
+	/**
+	 * This instruction should store its result unboxed.
+	 */
+	private static final byte UNBOXED = 2;
+
+	private static final byte[] NONE = new byte[0];
+
+	private static final int READ = 1;
+	private static final int READ_OTHER = 2;
+	private static final int WRITE = 4;
+
+	private NumericRegisters() {
+	}
+
+	/**
+	 * Get the numeric hints for a prototype, computing them if required.
+	 *
+	 * @param p The prototype to get hints for
+	 * @return The hints for each instruction, or {@code null} if no instruction can use unboxed registers.
+	 */
+	static byte[] hints(Prototype p) {
+		byte[] hints = p.numericHints;
+		if (hints == null) p.numericHints = hints = analyse(p);
+		return hints.length == 0 ? null : hints;
+	}
+
+	private static byte[] analyse(Prototype p) {
+		int[] code = p.code;
+		byte[] hints = new byte[code.length];
+		boolean[] captured = capturedRegisters(p);
+		boolean any = false;
+
+		for (int pc = 0; pc < code.length; pc = next(p, code, pc)) {
+			int i = code[pc];
+			int op = opcode(p, i);
+			int a = GETARG_A(i);
+
+			switch (op) {
+				case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW: case OP_UNM:
+					if (!captured[a] && consumedUnboxed(p, code, hints, pc, a)) {
+						hints[pc] |= AWARE | UNBOXED;
+						any = true;
+					}
+					break;
+
+				case OP_FORPREP: {
+					int loop = pc + 1 + GETARG_sBx(i);
+					if (loop >= code.length || opcode(p, code[loop]) != OP_FORLOOP || GETARG_A(code[loop]) != a) break;
+
+					hints[pc] |= AWARE;
+					hints[loop] |= AWARE;
+					if (!captured[a + 3] && loopVariableUnboxed(p, code, hints, pc + 1, loop, a + 3)) {
+						hints[loop] |= UNBOXED;
+					}
+					any = true;
+					break;
+				}
+			}
+		}
+
+		return any ? hints : NONE;
+	}
+
+	/**
+	 * Determine if the result of an instruction is only consumed by instructions which can read unboxed values.
+	 *
+	 * @param p        The current prototype
+	 * @param code     The prototype's code
+	 * @param hints    The hints to mark consumers in
+	 * @param producer The instruction which writes to {@code register}
+	 * @param register The register to check
+	 * @return If this register can be stored unboxed.
+	 */
+	private static boolean consumedUnboxed(Prototype p, int[] code, byte[] hints, int producer, int register) {
+		int consumers = 0;
+		boolean dead = false;
+		int pc = next(p, code, producer);
+		for (; pc < code.length; pc = next(p, code, pc)) {
+			int i = code[pc];
+			int op = opcode(p, i);
+			int access = access(p, op, i, register);
+
+			if ((access & READ_OTHER) != 0) break;
+			if ((access & READ) != 0) {
+				consumers++;
+
+				// Temporaries are consumed exactly once, so once read they are dead.
+				if (!isLocal(p, register, pc)) {
+					dead = true;
+					break;
+				}
+			}
+			if ((access & WRITE) != 0) {
+				dead = true;
+				break;
+			}
+
+			// Be conservative and give up when we encounter any control flow.
+			if (isControl(op, i)) break;
+		}
+
+		if (!dead || consumers == 0) return false;
+
+		for (int consumer = next(p, code, producer); consumer <= pc; consumer = next(p, code, consumer)) {
+			int i = code[consumer];
+			if ((access(p, opcode(p, i), i, register) & READ) != 0) hints[consumer] |= AWARE;
+		}
+		return true;
+	}
+
+	/**
+	 * Determine if a numeric for loop variable is only ever used as a number within the loop body.
+	 *
+	 * @param p        The current prototype
+	 * @param code     The prototype's code
+	 * @param hints    The hints to mark consumers in
+	 * @param start    The first instruction of the loop body
+	 * @param end      The {@link Lua52#OP_FORLOOP} instruction.
+	 * @param register The loop variable
+	 * @return If this register can be stored unboxed.
+	 */
+	private static boolean loopVariableUnboxed(Prototype p, int[] code, byte[] hints, int start, int end, int register) {
+		for (int pc = start; pc < end; pc = next(p, code, pc)) {
+			int i = code[pc];
+			if ((access(p, opcode(p, i), i, register) & (READ_OTHER | WRITE)) != 0) return false;
+		}
+
+		for (int pc = start; pc < end; pc = next(p, code, pc)) {
+			int i = code[pc];
+			if ((access(p, opcode(p, i), i, register) & READ) != 0) hints[pc] |= AWARE;
+		}
+		return true;
+	}
+
+	/**
+	 * Find all registers which are captured as upvalues by a closure.
+	 *
+	 * @param p The prototype to check
+	 * @return The captured registers
+	 */
+	private static boolean[] capturedRegisters(Prototype p) {
+		boolean[] captured = new boolean[Math.max(p.maxstacksize, 4) + 4];
+		if (p.isLua52) {
+			for (Prototype child : p.p) {
+				if (child.upvalue_info == null) continue;
+				for (int j = 0; j < child.nups; j++) {
+					int info = child.upvalue_info[j];
+					if ((info >> 8) != 0) captured[info & 0xFF] = true;
+				}
+			}
+		} else {
+			int[] code = p.code;
+			for (int pc = 0; pc < code.length; pc = next(p, code, pc)) {
+				int i = code[pc];
+				if (opcode(p, i) != OP_CLOSURE) continue;
+
+				Prototype child = p.p[GETARG_Bx(i)];
+				for (int j = 1; j <= child.nups && pc + j < code.length; j++) {
+					int pseudo = code[pc + j];
+					if ((pseudo & 4) == 0) captured[GETARG_B(pseudo)] = true;
+				}
+			}
+		}
+		return captured;
+	}
+
+	/**
+	 * Determine if a register is a named local variable at a given instruction.
+	 *
+	 * @param p        The current prototype
+	 * @param register The register to check
+	 * @param pc       The current instruction
+	 * @return If this register holds a local. This is always true if debug information is not available.
+	 */
+	private static boolean isLocal(Prototype p, int register, int pc) {
+		LocalVariable[] locals = p.locvars;
+		if (locals == null || locals.length == 0) return true;
+
+		int active = 0;
+		for (int i = 0; i < locals.length && locals[i].startpc <= pc; i++) {
+			if (pc < locals[i].endpc) active++;
+		}
+		return register < active;
+	}
+
+	private static int opcode(Prototype p, int i) {
+		int op = GET_OPCODE(i);
+		return p.isLua52 ? op : lua51opcodes[op];
+	}
+
+	/**
+	 * Get the next instruction, skipping any arguments to this one.
+	 *
+	 * @param p    The current prototype
+	 * @param code The prototype's code
+	 * @param pc   The current instruction
+	 * @return The next instruction
+	 */
+	private static int next(Prototype p, int[] code, int pc) {
+		int i = code[pc];
+		switch (opcode(p, i)) {
+			case OP_LOADKX:
+				return pc + 2;
+			case OP_SETLIST:
+				return GETARG_C(i) == 0 ? pc + 2 : pc + 1;
+			case OP_CLOSURE:
+				return p.isLua52 ? pc + 1 : pc + 1 + p.p[GETARG_Bx(i)].nups;
+			default:
+				return pc + 1;
+		}
+	}
+
+	private static boolean isControl(int op, int i) {
+		switch (op) {
+			case OP_JMP: case OP_EQ: case OP_LT: case OP_LE: case OP_TEST: case OP_TESTSET:
+			case OP_FORLOOP: case OP_FORPREP: case OP_TFORCALL: case OP_TFORLOOP:
+			case OP_RETURN: case OP_TAILCALL:
+				return true;
+			case OP_LOADBOOL:
+				return GETARG_C(i) != 0;
+			default:
+				return false;
+		}
+	}
+
+	private static int rk(int x, int register) {
+		return x <= 0xff && x == register ? READ : 0;
+	}
+
+	private static int rkOther(int x, int register) {
+		return x <= 0xff && x == register ? READ_OTHER : 0;
+	}
+
+	private static int range(int start, int count, int register, int access) {
+		return register >= start && (count < 0 || register < start + count) ? access : 0;
+	}
+
+	/**
+	 * Determine how an instruction accesses a register.
+	 *
+	 * @param p        The current prototype
+	 * @param op       The instruction's opcode
+	 * @param i        The instruction
+	 * @param register The register to check
+	 * @return Some combination of {@link #READ} (this instruction can read an unboxed value), {@link #READ_OTHER} and
+	 * {@link #WRITE}.
+	 */
+	private static int access(Prototype p, int op, int i, int register) {
+		int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+		int write = a == register ? WRITE : 0;
+		switch (op) {
+			case OP_MOVE: case OP_NOT: case OP_LEN: case OP_TESTSET:
+				return (b == register ? READ_OTHER : 0) | write;
+
+			case OP_LOADK: case OP_LOADKX: case OP_LOADBOOL: case OP_GETUPVAL: case OP_GETGLOBAL:
+			case OP_NEWTABLE: case OP_CLOSURE:
+				return write;
+
+			case OP_LOADNIL:
+				return p.isLua52 ? range(a, b + 1, register, WRITE) : range(a, b - a + 1, register, WRITE);
+
+			case OP_GETTABUP:
+				return rkOther(c, register) | write;
+			case OP_GETTABLE:
+				return (b == register ? READ_OTHER : 0) | rk(c, register) | write;
+
+			case OP_SETGLOBAL: case OP_SETUPVAL: case OP_TEST:
+				return a == register ? READ_OTHER : 0;
+			case OP_SETTABUP:
+				return rkOther(b, register) | rkOther(c, register);
+			case OP_SETTABLE:
+				return (a == register ? READ_OTHER : 0) | rk(b, register) | rkOther(c, register);
+
+			case OP_SELF:
+				return (b == register ? READ_OTHER : 0) | rkOther(c, register) | range(a, 2, register, WRITE);
+
+			case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW:
+				return rk(b, register) | rk(c, register) | write;
+			case OP_UNM:
+				return (b == register ? READ : 0) | write;
+
+			case OP_CONCAT:
+				return range(b, c - b + 1, register, READ_OTHER) | write;
+
+			case OP_JMP: case OP_CLOSE: case OP_EXTRAARG:
+				return 0;
+
+			case OP_EQ: case OP_LT: case OP_LE:
+				return rk(b, register) | rk(c, register);
+
+			case OP_CALL:
+				// Results are written up to top, so treat any register above the function as being read.
+				return range(a, c == 0 || b == 0 ? -1 : Math.max(b, c - 1), register, READ_OTHER);
+			case OP_TAILCALL:
+				return range(a, b == 0 ? -1 : b, register, READ_OTHER);
+			case OP_RETURN:
+				return range(a, b == 0 ? -1 : b - 1, register, READ_OTHER);
+
+			case OP_TFORCALL: case OP_TFORLOOP: case OP_FORLOOP: case OP_FORPREP:
+				return range(a, p.isLua52 ? 3 + c : 3, register, READ_OTHER) | range(a, -1, register, WRITE);
+
+			case OP_SETLIST:
+				return range(a, b == 0 ? -1 : b + 1, register, READ_OTHER);
+			case OP_VARARG:
+				return range(a, -1, register, READ_OTHER);
+
+			default:
+				return READ_OTHER;
+		}
+	}
+
+	/**
+	 * Execute a single instruction marked as {@link #AWARE}.
+	 *
+	 * @param state   The current Lua state
+	 * @param di      The current frame
+	 * @param p       The current prototype
+	 * @param stack   The current frame's stack
+	 * @param numbers The current frame's unboxed registers
+	 * @param openups The current frame's open upvalues
+	 * @param hint    The hint for this instruction
+	 * @param op      The instruction's opcode
+	 * @param i       The instruction to execute
+	 * @param pc      The program counter of the next instruction
+	 * @return The new program counter
+	 * @throws LuaError        If the instruction errored
+	 * @throws UnwindThrowable If a metamethod yielded
+	 */
+	static int execute(LuaState state, DebugFrame di, Prototype p, LuaValue[] stack, double[] numbers, Upvalue[] openups, int hint, int op, int i, int pc) throws LuaError, UnwindThrowable {
+		LuaValue[] k = p.k;
+		int a = GETARG_A(i);
+		switch (op) {
+			case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW: {
+				int b = GETARG_B(i), c = GETARG_C(i);
+				LuaValue left = b > 0xff ? k[b & 0x0ff] : stack[b];
+				LuaValue right = c > 0xff ? k[c & 0x0ff] : stack[c];
+
+				if ((left == null || left instanceof LuaNumber) && (right == null || right instanceof LuaNumber)) {
+					double x = left == null ? numbers[b] : left.toDouble();
+					double y = right == null ? numbers[c] : right.toDouble();
+					double result;
+					switch (op) {
+						case OP_ADD: result = x + y; break;
+						case OP_SUB: result = x - y; break;
+						case OP_MUL: result = x * y; break;
+						case OP_DIV: result = OperationHelper.div(x, y); break;
+						case OP_MOD: result = OperationHelper.mod(x, y); break;
+						default: result = Math.pow(x, y); break;
+					}
+
+					store(stack, numbers, a, result, hint);
+				} else {
+					if (left == null) left = valueOf(numbers[b]);
+					if (right == null) right = valueOf(numbers[c]);
+					stack[a] = arith(state, op, left, right, b, c);
+				}
+				return pc;
+			}
+
+			case OP_UNM: {
+				int b = GETARG_B(i);
+				LuaValue value = stack[b];
+				if (value == null || value instanceof LuaNumber) {
+					store(stack, numbers, a, -(value == null ? numbers[b] : value.toDouble()), hint);
+				} else {
+					stack[a] = OperationHelper.neg(state, value, b);
+				}
+				return pc;
+			}
+
+			case OP_EQ: case OP_LT: case OP_LE: {
+				int b = GETARG_B(i), c = GETARG_C(i);
+				LuaValue left = b > 0xff ? k[b & 0x0ff] : stack[b];
+				LuaValue right = c > 0xff ? k[c & 0x0ff] : stack[c];
+
+				boolean result;
+				if ((left == null || left instanceof LuaNumber) && (right == null || right instanceof LuaNumber)) {
+					double x = left == null ? numbers[b] : left.toDouble();
+					double y = right == null ? numbers[c] : right.toDouble();
+					result = op == OP_EQ ? x == y : op == OP_LT ? x < y : x <= y;
+				} else {
+					if (left == null) left = valueOf(numbers[b]);
+					if (right == null) right = valueOf(numbers[c]);
+					result = op == OP_EQ ? OperationHelper.eq(state, left, right)
+						: op == OP_LT ? OperationHelper.lt(state, left, right)
+						: OperationHelper.le(state, left, right);
+				}
+
+				if (result == (a != 0)) {
+					int[] code = p.code;
+					pc = LuaInterpreter.jumpStatement(p, openups, pc, GETARG_A(code[pc]), GETARG_sBx(code[pc]));
+				}
+				return pc + 1;
+			}
+
+			case OP_GETTABLE: {
+				int b = GETARG_B(i), c = GETARG_C(i);
+				LuaValue table = stack[b];
+				LuaValue key = c > 0xff ? k[c & 0x0ff] : stack[c];
+				if (key == null) {
+					double number = numbers[c];
+					int index = (int) number;
+					if (index == number && table instanceof LuaTable) {
+						LuaValue result = ((LuaTable) table).rawget(index);
+						if (!result.isNil() || table.metatag(state, CachedMetamethod.INDEX).isNil()) {
+							stack[a] = result;
+							return pc;
+						}
+					}
+					key = valueOf(number);
+				}
+
+				stack[a] = OperationHelper.getTable(state, table, key, b);
+				return pc;
+			}
+
+			case OP_SETTABLE: {
+				int b = GETARG_B(i), c = GETARG_C(i);
+				LuaValue table = stack[a];
+				LuaValue key = b > 0xff ? k[b & 0x0ff] : stack[b];
+				LuaValue value = c > 0xff ? k[c & 0x0ff] : stack[c];
+				if (key == null) {
+					double number = numbers[b];
+					int index = (int) number;
+					if (index == number && table instanceof LuaTable) {
+						LuaTable tbl = (LuaTable) table;
+						if (!tbl.rawget(index).isNil() || tbl.metatag(state, CachedMetamethod.NEWINDEX).isNil()) {
+							tbl.rawset(index, value);
+							return pc;
+						}
+					}
+					key = valueOf(number);
+				}
+
+				OperationHelper.setTable(state, table, key, value, a);
+				return pc;
+			}
+
+			case OP_FORPREP: {
+				LuaNumber init = stack[a].checkNumber("'for' initial value must be a number");
+				LuaNumber limit = stack[a + 1].checkNumber("'for' limit must be a number");
+				LuaNumber step = stack[a + 2].checkNumber("'for' step must be a number");
+				numbers[a] = init.toDouble() - step.toDouble();
+				numbers[a + 1] = limit.toDouble();
+				numbers[a + 2] = step.toDouble();
+				stack[a] = stack[a + 1] = stack[a + 2] = null;
+				return pc + GETARG_sBx(i);
+			}
+
+			case OP_FORLOOP: {
+				// The control variables may have been replaced with debug.setlocal, so check for that.
+				LuaValue value;
+				double limit = (value = stack[a + 1]) == null ? numbers[a + 1] : value.checkDouble();
+				double step = (value = stack[a + 2]) == null ? numbers[a + 2] : value.checkDouble();
+				double index = step + ((value = stack[a]) == null ? numbers[a] : value.checkDouble());
+				if (0 < step ? index <= limit : limit <= index) {
+					numbers[a] = index;
+					stack[a] = null;
+					if ((hint & UNBOXED) != 0) {
+						numbers[a + 3] = index;
+						stack[a + 3] = null;
+					} else {
+						stack[a + 3] = valueOf(index);
+					}
+					pc += GETARG_sBx(i);
+				}
+				return pc;
+			}
+
+			default:
+				throw new IllegalStateException("Cannot execute unboxed instruction " + op);
+		}
+	}
+
+	private static void store(LuaValue[] stack, double[] numbers, int register, double value, int hint) {
+		if ((hint & UNBOXED) != 0) {
+			numbers[register] = value;
+			stack[register] = null;
+		} else {
+			stack[register] = valueOf(value);
+		}
+	}
+
+	private static LuaValue arith(LuaState state, int op, LuaValue left, LuaValue right, int b, int c) throws LuaError, UnwindThrowable {
+		switch (op) {
+			case OP_ADD:
+				return OperationHelper.add(state, left, right, b, c);
+			case OP_SUB:
+				return OperationHelper.sub(state, left, right, b, c);
+			case OP_MUL:
+				return OperationHelper.mul(state, left, right, b, c);
+			case OP_DIV:
+				return OperationHelper.div(state, left, right, b, c);
+			case OP_MOD:
+				return OperationHelper.mod(state, left, right, b, c);
+			default:
+				return OperationHelper.pow(state, left, right, b, c);
+		}
+	}
+
+}
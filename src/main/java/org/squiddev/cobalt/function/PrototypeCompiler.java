@@ -0,0 +1,703 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.Prototype;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.squiddev.cobalt.Lua52.*;
+import static org.squiddev.cobalt.function.ClassWriter.*;
+
+/**
+ * Compiles hot {@link Prototype}s to JVM bytecode.
+ *
+ * Each instruction is translated to the same sequence of calls the interpreter would make, but with operands
+ * resolved at compile time and jumps compiled to native branches. This removes the cost of decoding and dispatching
+ * instructions, and allows the JVM to optimise across instructions.
+ *
+ * Instructions which create or destroy frames ({@link Lua52#OP_CALL} of a Lua function, {@link Lua52#OP_TAILCALL},
+ * {@link Lua52#OP_RETURN}) and a handful of rarer ones are left to the interpreter.
+ *
+ * @see CompiledPrototype
+ * @see LuaState#compileThreshold
+ */
+final class PrototypeCompiler {
+	/**
+	 * The maximum size of a generated method. HotSpot will not JIT compile methods larger than this, at which point
+	 * the interpreter will be faster.
+	 */
+	private static final int MAX_CODE_SIZE = 8000;
+
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private static final String STATE = "org/squiddev/cobalt/LuaState";
+	private static final String VALUE = "org/squiddev/cobalt/LuaValue";
+	private static final String OPERATION = "org/squiddev/cobalt/OperationHelper";
+	private static final String FRAME = "org/squiddev/cobalt/debug/DebugFrame";
+	private static final String HANDLER = "org/squiddev/cobalt/debug/DebugHandler";
+	private static final String UPVALUE = "org/squiddev/cobalt/function/Upvalue";
+	private static final String FUNCTION = "org/squiddev/cobalt/function/LuaInterpretedFunction";
+	private static final String COMPILED = "org/squiddev/cobalt/function/CompiledPrototype";
+
+	private static final String EXECUTE = "(L" + STATE + ";Lorg/squiddev/cobalt/debug/DebugState;L" + FRAME + ";L" + FUNCTION + ";I)I";
+	private static final String GET_TABLE = "(L" + STATE + ";L" + VALUE + ";L" + VALUE + ";I)L" + VALUE + ";";
+	private static final String SET_TABLE = "(L" + STATE + ";L" + VALUE + ";L" + VALUE + ";L" + VALUE + ";I)V";
+	private static final String ARITH = "(L" + STATE + ";L" + VALUE + ";L" + VALUE + ";II)L" + VALUE + ";";
+	private static final String COMPARE = "(L" + STATE + ";L" + VALUE + ";L" + VALUE + ";)Z";
+	private static final String UNARY = "(L" + STATE + ";L" + VALUE + ";I)L" + VALUE + ";";
+
+	private static final int L_STATE = 1;
+	private static final int L_DEBUG_STATE = 2;
+	private static final int L_FRAME = 3;
+	private static final int L_FUNCTION = 4;
+	private static final int L_PC = 5;
+	private static final int L_HANDLER = 6;
+	private static final int L_STACK = 7;
+	private static final int L_CONSTANTS = 8;
+	private static final int L_UPVALUES = 9;
+	private static final int L_OPENUPS = 10;
+	private static final int L_TEMP = 11;
+
+	private PrototypeCompiler() {
+	}
+
+	/**
+	 * Record that a prototype is being executed, compiling it if it has become hot.
+	 *
+	 * @param state The current Lua state
+	 * @param p     The prototype being entered
+	 * @return The compiled code, or {@code null} if this should be interpreted.
+	 */
+	static CompiledPrototype enter(LuaState state, Prototype p) {
+		if (state.compileThreshold < 0) return null;
+
+		CompiledPrototype compiled = p.compiled;
+		if (compiled != null || p.compileFailed) return compiled;
+		return ++p.hotness >= state.compileThreshold ? compile(p) : null;
+	}
+
+	/**
+	 * Record that a prototype has taken a backwards branch, compiling it if it has become hot.
+	 *
+	 * @param state The current Lua state
+	 * @param p     The prototype being executed
+	 * @return The compiled code, or {@code null} if this should continue to be interpreted.
+	 * @see #enter(LuaState, Prototype)
+	 */
+	static CompiledPrototype backEdge(LuaState state, Prototype p) {
+		return enter(state, p);
+	}
+
+	private static CompiledPrototype compile(Prototype p) {
+		String name = "org/squiddev/cobalt/function/CompiledPrototype$" + counter.incrementAndGet();
+		byte[] bytes = generate(p, name);
+		if (bytes == null) {
+			p.compileFailed = true;
+			return null;
+		}
+
+		try {
+			Class<?> klass = new Loader(CompiledPrototype.class.getClassLoader()).define(name.replace('/', '.'), bytes);
+			return p.compiled = (CompiledPrototype) klass.getConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+			// Fall back to the interpreter if we cannot define classes in this environment.
+			p.compileFailed = true;
+			return null;
+		}
+	}
+
+	/**
+	 * Generate a {@link CompiledPrototype} for a prototype.
+	 *
+	 * @param p    The prototype to compile
+	 * @param name The internal name of the class to generate
+	 * @return The class file, or {@code null} if this prototype should not be compiled.
+	 */
+	static byte[] generate(Prototype p, String name) {
+		ClassWriter writer = new ClassWriter(name, COMPILED);
+
+		ClassWriter.Code init = writer.new Code(1, 1);
+		init.local(ALOAD, 0);
+		init.method(INVOKESPECIAL, COMPILED, "<init>", "()V");
+		init.op(RETURN);
+		writer.method(ACC_PUBLIC, "<init>", "()V", init);
+
+		ClassWriter.Code code = writer.new Code(10, L_TEMP + 1);
+		if (!new Emitter(p, code).emit() || code.size() > MAX_CODE_SIZE) return null;
+		writer.method(ACC_PUBLIC, "execute", EXECUTE, code);
+
+		return writer.toByteArray();
+	}
+
+	private static final class Emitter {
+		private final Prototype p;
+		private final int[] instructions;
+		private final ClassWriter.Code code;
+		private final int[] labels;
+
+		Emitter(Prototype p, ClassWriter.Code code) {
+			this.p = p;
+			this.instructions = p.code;
+			this.code = code;
+
+			labels = new int[instructions.length];
+			for (int i = 0; i < labels.length; i++) labels[i] = code.newLabel();
+		}
+
+		boolean emit() {
+			if (instructions.length == 0) return false;
+
+			// Load everything we need into locals
+			code.local(ALOAD, L_STATE);
+			code.field(GETFIELD, STATE, "debug", "L" + HANDLER + ";");
+			code.local(ASTORE, L_HANDLER);
+			code.local(ALOAD, L_FRAME);
+			code.field(GETFIELD, FRAME, "stack", "[L" + VALUE + ";");
+			code.local(ASTORE, L_STACK);
+			code.local(ALOAD, L_FUNCTION);
+			code.field(GETFIELD, FUNCTION, "p", "Lorg/squiddev/cobalt/Prototype;");
+			code.field(GETFIELD, "org/squiddev/cobalt/Prototype", "k", "[L" + VALUE + ";");
+			code.local(ASTORE, L_CONSTANTS);
+			code.local(ALOAD, L_FUNCTION);
+			code.field(GETFIELD, FUNCTION, "upvalues", "[L" + UPVALUE + ";");
+			code.local(ASTORE, L_UPVALUES);
+			code.local(ALOAD, L_FRAME);
+			code.field(GETFIELD, FRAME, "stackUpvalues", "[L" + UPVALUE + ";");
+			code.local(ASTORE, L_OPENUPS);
+
+			// Then jump to the requested instruction.
+			int invalid = code.newLabel();
+			code.local(ILOAD, L_PC);
+			code.tableSwitch(invalid, labels);
+
+			code.mark(invalid);
+			code.local(ILOAD, L_PC);
+			code.op(IRETURN);
+
+			int pc = 0;
+			while (pc < instructions.length) {
+				int next = next(pc);
+				// Any arguments to an instruction are never entered, but still need a label for the switch.
+				for (int i = pc + 1; i < next && i < instructions.length; i++) {
+					code.mark(labels[i]);
+					exit(i);
+				}
+
+				code.mark(labels[pc]);
+				instruction(pc, instructions[pc]);
+				pc = next;
+			}
+
+			return true;
+		}
+
+		private int opcode(int i) {
+			int op = GET_OPCODE(i);
+			return p.isLua52 ? op : lua51opcodes[op];
+		}
+
+		private int next(int pc) {
+			int i = instructions[pc];
+			switch (opcode(i)) {
+				case OP_LOADKX:
+					return pc + 2;
+				case OP_SETLIST:
+					return GETARG_C(i) == 0 ? pc + 2 : pc + 1;
+				case OP_CLOSURE:
+					return p.isLua52 ? pc + 1 : pc + 1 + p.p[GETARG_Bx(i)].nups;
+				default:
+					return pc + 1;
+			}
+		}
+
+		private void instruction(int pc, int i) {
+			int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+			switch (opcode(i)) {
+				case OP_MOVE:
+					hook(pc);
+					storeStart(a);
+					register(b);
+					code.op(AASTORE);
+					break;
+
+				case OP_LOADK:
+					hook(pc);
+					storeStart(a);
+					constant(GETARG_Bx(i));
+					code.op(AASTORE);
+					break;
+
+				case OP_LOADKX:
+					hook(pc);
+					storeStart(a);
+					constant(GETARG_Ax(instructions[pc + 1]));
+					code.op(AASTORE);
+					break;
+
+				case OP_LOADBOOL:
+					hook(pc);
+					storeStart(a);
+					code.field(GETSTATIC, "org/squiddev/cobalt/Constants", b != 0 ? "TRUE" : "FALSE", "Lorg/squiddev/cobalt/LuaBoolean;");
+					code.op(AASTORE);
+					if (c != 0) jump(pc + 2);
+					break;
+
+				case OP_LOADNIL: {
+					hook(pc);
+					int from = a, to = p.isLua52 ? a + b : b;
+					for (int x = from; x <= to; x++) {
+						storeStart(x);
+						code.field(GETSTATIC, "org/squiddev/cobalt/Constants", "NIL", "L" + VALUE + ";");
+						code.op(AASTORE);
+					}
+					break;
+				}
+
+				case OP_GETUPVAL:
+					hook(pc);
+					storeStart(a);
+					upvalue(b + (p.isLua52 ? 0 : 1));
+					code.op(AASTORE);
+					break;
+
+				case OP_GETTABUP:
+					hook(pc);
+					storeStart(a);
+					upvalue(b);
+					getTable(pc, b, c);
+					code.op(AASTORE);
+					break;
+
+				case OP_GETGLOBAL:
+					hook(pc);
+					storeStart(a);
+					upvalue(0);
+					getTableConstant(pc, -1, GETARG_Bx(i));
+					code.op(AASTORE);
+					break;
+
+				case OP_GETTABLE:
+					hook(pc);
+					storeStart(a);
+					register(b);
+					getTable(pc, b, c);
+					code.op(AASTORE);
+					break;
+
+				case OP_SETGLOBAL:
+					hook(pc);
+					code.local(ALOAD, L_STATE);
+					upvalue(0);
+					constant(GETARG_Bx(i));
+					register(a);
+					code.method(INVOKESTATIC, OPERATION, "setTable", "(L" + STATE + ";L" + VALUE + ";L" + VALUE + ";L" + VALUE + ";)V");
+					break;
+
+				case OP_SETTABUP:
+					hook(pc);
+					code.local(ALOAD, L_STATE);
+					upvalue(a);
+					registerOrConstant(b);
+					registerOrConstant(c);
+					code.iconst(a);
+					code.method(INVOKESTATIC, OPERATION, "setTable", SET_TABLE);
+					break;
+
+				case OP_SETUPVAL:
+					hook(pc);
+					code.local(ALOAD, L_UPVALUES);
+					code.iconst(b + (p.isLua52 ? 0 : 1));
+					code.op(AALOAD);
+					register(a);
+					code.method(INVOKEVIRTUAL, UPVALUE, "setValue", "(L" + VALUE + ";)V");
+					break;
+
+				case OP_SETTABLE:
+					hook(pc);
+					code.local(ALOAD, L_STATE);
+					register(a);
+					registerOrConstant(b);
+					registerOrConstant(c);
+					code.iconst(a);
+					code.method(INVOKESTATIC, OPERATION, "setTable", SET_TABLE);
+					break;
+
+				case OP_NEWTABLE:
+					hook(pc);
+					storeStart(a);
+					code.iconst(b);
+					code.iconst(c);
+					code.method(INVOKESTATIC, COMPILED, "newTable", "(II)L" + VALUE + ";");
+					code.op(AASTORE);
+					break;
+
+				case OP_SELF:
+					hook(pc);
+					storeStart(a + 1);
+					register(b);
+					code.op(AASTORE);
+
+					storeStart(a);
+					register(a + 1);
+					getTable(pc, b, c);
+					code.op(AASTORE);
+					break;
+
+				case OP_ADD:
+					arith(pc, "add", a, b, c);
+					break;
+				case OP_SUB:
+					arith(pc, "sub", a, b, c);
+					break;
+				case OP_MUL:
+					arith(pc, "mul", a, b, c);
+					break;
+				case OP_DIV:
+					arith(pc, "div", a, b, c);
+					break;
+				case OP_MOD:
+					arith(pc, "mod", a, b, c);
+					break;
+				case OP_POW:
+					arith(pc, "pow", a, b, c);
+					break;
+
+				case OP_UNM:
+					hook(pc);
+					storeStart(a);
+					code.local(ALOAD, L_STATE);
+					registerOrConstant(b);
+					code.iconst(b);
+					code.method(INVOKESTATIC, OPERATION, "neg", UNARY);
+					code.op(AASTORE);
+					break;
+
+				case OP_NOT:
+					hook(pc);
+					storeStart(a);
+					register(b);
+					code.method(INVOKESTATIC, COMPILED, "not", "(L" + VALUE + ";)L" + VALUE + ";");
+					code.op(AASTORE);
+					break;
+
+				case OP_LEN:
+					hook(pc);
+					storeStart(a);
+					code.local(ALOAD, L_STATE);
+					register(b);
+					code.iconst(b);
+					code.method(INVOKESTATIC, OPERATION, "length", UNARY);
+					code.op(AASTORE);
+					break;
+
+				case OP_CONCAT:
+					hook(pc);
+					code.local(ALOAD, L_STATE);
+					code.local(ALOAD, L_FRAME);
+					code.local(ALOAD, L_STACK);
+					code.iconst(a);
+					code.iconst(b);
+					code.iconst(c);
+					code.method(INVOKESTATIC, COMPILED, "concat", "(L" + STATE + ";L" + FRAME + ";[L" + VALUE + ";III)V");
+					break;
+
+				case OP_JMP:
+					hook(pc);
+					jump(a, pc + 1 + GETARG_sBx(i));
+					break;
+
+				case OP_EQ:
+					compare(pc, "eq", a, b, c);
+					break;
+				case OP_LT:
+					compare(pc, "lt", a, b, c);
+					break;
+				case OP_LE:
+					compare(pc, "le", a, b, c);
+					break;
+
+				case OP_TEST: {
+					if (!isJump(pc + 1)) {
+						exit(pc);
+						break;
+					}
+
+					hook(pc);
+					register(a);
+					code.method(INVOKEVIRTUAL, VALUE, "toBoolean", "()Z");
+					code.iconst(c != 0 ? 1 : 0);
+					code.jump(IF_ICMPNE, labels[pc + 2]);
+					conditionalJump(pc + 1);
+					break;
+				}
+
+				case OP_TESTSET: {
+					if (!isJump(pc + 1)) {
+						exit(pc);
+						break;
+					}
+
+					hook(pc);
+					register(b);
+					code.local(ASTORE, L_TEMP);
+					code.local(ALOAD, L_TEMP);
+					code.method(INVOKEVIRTUAL, VALUE, "toBoolean", "()Z");
+					code.iconst(c != 0 ? 1 : 0);
+					code.jump(IF_ICMPNE, labels[pc + 2]);
+					storeStart(a);
+					code.local(ALOAD, L_TEMP);
+					code.op(AASTORE);
+					conditionalJump(pc + 1);
+					break;
+				}
+
+				case OP_CALL: {
+					// Lua functions are called by the interpreter, so that they get their own frame.
+					int call = code.newLabel();
+					register(a);
+					code.type(INSTANCEOF, FUNCTION);
+					code.jump(IFEQ, call);
+					exit(pc);
+
+					code.mark(call);
+					hook(pc);
+					code.local(ALOAD, L_STATE);
+					code.local(ALOAD, L_FRAME);
+					code.local(ALOAD, L_STACK);
+					code.iconst(a);
+					code.iconst(b);
+					code.iconst(c);
+					code.method(INVOKESTATIC, COMPILED, "call", "(L" + STATE + ";L" + FRAME + ";[L" + VALUE + ";III)V");
+					break;
+				}
+
+				case OP_FORLOOP:
+					hook(pc);
+					code.local(ALOAD, L_STACK);
+					code.iconst(a);
+					code.method(INVOKESTATIC, COMPILED, "forLoop", "([L" + VALUE + ";I)Z");
+					code.jump(IFNE, labels[pc + 1 + GETARG_sBx(i)]);
+					break;
+
+				case OP_FORPREP:
+					hook(pc);
+					code.local(ALOAD, L_STACK);
+					code.iconst(a);
+					code.method(INVOKESTATIC, COMPILED, "forPrep", "([L" + VALUE + ";I)V");
+					jump(pc + 1 + GETARG_sBx(i));
+					break;
+
+				case OP_SETLIST:
+					if (b == 0 || c == 0) {
+						exit(pc);
+						break;
+					}
+
+					hook(pc);
+					code.local(ALOAD, L_STACK);
+					code.iconst(a);
+					code.iconst(b);
+					code.iconst(c);
+					code.method(INVOKESTATIC, COMPILED, "setList", "([L" + VALUE + ";III)V");
+					break;
+
+				case OP_CLOSE:
+					hook(pc);
+					code.local(ALOAD, L_OPENUPS);
+					code.iconst(a);
+					code.method(INVOKESTATIC, COMPILED, "close", "([L" + UPVALUE + ";I)V");
+					break;
+
+				case OP_VARARG:
+					hook(pc);
+					code.local(ALOAD, L_FRAME);
+					code.local(ALOAD, L_STACK);
+					code.iconst(a);
+					code.iconst(b);
+					code.method(INVOKESTATIC, COMPILED, "varargs", "(L" + FRAME + ";[L" + VALUE + ";II)V");
+					break;
+
+				default:
+					// OP_TAILCALL, OP_RETURN, OP_CLOSURE, OP_TFORCALL and OP_TFORLOOP
+					exit(pc);
+					break;
+			}
+		}
+
+		/**
+		 * Index the value on the top of the stack.
+		 *
+		 * @param pc    The current instruction, used for the inline cache
+		 * @param stack The register being indexed, used for error messages
+		 * @param key   The register or constant to use as a key
+		 */
+		private void getTable(int pc, int stack, int key) {
+			if (key > 0xff) {
+				getTableConstant(pc, stack, key & 0xff);
+				return;
+			}
+
+			code.local(ASTORE, L_TEMP);
+			code.local(ALOAD, L_STATE);
+			code.local(ALOAD, L_TEMP);
+			register(key);
+			code.iconst(stack);
+			code.method(INVOKESTATIC, OPERATION, "getTable", GET_TABLE);
+		}
+
+		/**
+		 * Index the value on the top of the stack with a constant, using this instruction's inline cache.
+		 *
+		 * @param pc    The current instruction
+		 * @param stack The register being indexed, used for error messages
+		 * @param key   The index of the constant to use as a key
+		 */
+		private void getTableConstant(int pc, int stack, int key) {
+			code.local(ASTORE, L_TEMP);
+			code.local(ALOAD, L_STATE);
+			code.local(ALOAD, L_FUNCTION);
+			code.iconst(pc);
+			code.local(ALOAD, L_TEMP);
+			constant(key);
+			code.iconst(stack);
+			code.method(INVOKESTATIC, COMPILED, "getTable", "(L" + STATE + ";L" + FUNCTION + ";IL" + VALUE + ";L" + VALUE + ";I)L" + VALUE + ";");
+		}
+
+		private void arith(int pc, String name, int a, int b, int c) {
+			hook(pc);
+			storeStart(a);
+			code.local(ALOAD, L_STATE);
+			registerOrConstant(b);
+			registerOrConstant(c);
+			code.iconst(b);
+			code.iconst(c);
+			code.method(INVOKESTATIC, OPERATION, name, ARITH);
+			code.op(AASTORE);
+		}
+
+		private void compare(int pc, String name, int a, int b, int c) {
+			// The interpreter assumes the next instruction is a jump: we're a little more cautious.
+			if (!isJump(pc + 1)) {
+				exit(pc);
+				return;
+			}
+
+			hook(pc);
+			code.local(ALOAD, L_STATE);
+			registerOrConstant(b);
+			registerOrConstant(c);
+			code.method(INVOKESTATIC, OPERATION, name, COMPARE);
+			code.iconst(a != 0 ? 1 : 0);
+			code.jump(IF_ICMPNE, labels[pc + 2]);
+			conditionalJump(pc + 1);
+		}
+
+		private boolean isJump(int pc) {
+			return pc + 1 < instructions.length && opcode(instructions[pc]) == OP_JMP;
+		}
+
+		/**
+		 * Execute the jump at {@code pc} without running any hooks, as done by conditional instructions.
+		 *
+		 * @param pc The jump instruction.
+		 */
+		private void conditionalJump(int pc) {
+			int i = instructions[pc];
+			jump(GETARG_A(i), pc + 1 + GETARG_sBx(i));
+		}
+
+		private void jump(int a, int target) {
+			if (p.isLua52 && a > 0) {
+				code.local(ALOAD, L_OPENUPS);
+				code.iconst(a - 1);
+				code.method(INVOKESTATIC, COMPILED, "close", "([L" + UPVALUE + ";I)V");
+			}
+
+			jump(target);
+		}
+
+		private void jump(int target) {
+			if (target < 0 || target >= labels.length) throw new IllegalStateException("Jump out of bounds");
+			code.jump(GOTO, labels[target]);
+		}
+
+		private void hook(int pc) {
+			code.local(ALOAD, L_HANDLER);
+			code.local(ALOAD, L_DEBUG_STATE);
+			code.local(ALOAD, L_FRAME);
+			code.iconst(pc);
+			code.method(INVOKEVIRTUAL, HANDLER, "onInstruction", "(Lorg/squiddev/cobalt/debug/DebugState;L" + FRAME + ";I)V");
+		}
+
+		private void exit(int pc) {
+			code.iconst(pc);
+			code.op(IRETURN);
+		}
+
+		private void storeStart(int register) {
+			code.local(ALOAD, L_STACK);
+			code.iconst(register);
+		}
+
+		private void register(int register) {
+			code.local(ALOAD, L_STACK);
+			code.iconst(register);
+			code.op(AALOAD);
+		}
+
+		private void constant(int index) {
+			code.local(ALOAD, L_CONSTANTS);
+			code.iconst(index);
+			code.op(AALOAD);
+		}
+
+		private void registerOrConstant(int index) {
+			if (index > 0xff) {
+				constant(index & 0xff);
+			} else {
+				register(index);
+			}
+		}
+
+		private void upvalue(int index) {
+			code.local(ALOAD, L_UPVALUES);
+			code.iconst(index);
+			code.op(AALOAD);
+			code.method(INVOKEVIRTUAL, UPVALUE, "getValue", "()L" + VALUE + ";");
+		}
+	}
+
+	private static final class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
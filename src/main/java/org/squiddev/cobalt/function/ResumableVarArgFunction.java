@@ -58,6 +58,35 @@ public abstract class ResumableVarArgFunction<T> extends LibFunction implements
 
 	@Override
 	public final Varargs invoke(LuaState state, Varargs args) throws LuaError, UnwindThrowable {
+		return invoke(state, args, false);
+	}
+
+	/**
+	 * Invoke this function from the interpreter, allowing it to switch coroutines without unwinding the stack.
+	 *
+	 * @param state The current lua state
+	 * @param args  The arguments to invoke with
+	 * @return The function's return values, or {@code null} if it transferred control to another coroutine.
+	 * @throws LuaError        If the function errored.
+	 * @throws UnwindThrowable If the function yielded by unwinding the stack.
+	 * @see #invokeDirect(LuaState, DebugFrame, Varargs)
+	 */
+	public final Varargs invokeDirect(LuaState state, Varargs args) throws LuaError, UnwindThrowable {
+		return invoke(state, args, true);
+	}
+
+	/**
+	 * Push a frame for this function, run the call hook, invoke it and then run the return hook.
+	 *
+	 * @param state  The current lua state
+	 * @param args   The arguments to invoke with
+	 * @param direct Whether to use {@link #invokeDirect(LuaState, DebugFrame, Varargs)}, allowing transfers without
+	 *               unwinding.
+	 * @return The function's return values, or {@code null} if it transferred control to another coroutine.
+	 * @throws LuaError        If the function errored.
+	 * @throws UnwindThrowable If the function yielded by unwinding the stack.
+	 */
+	private Varargs invoke(LuaState state, Varargs args, boolean direct) throws LuaError, UnwindThrowable {
 		DebugState ds = DebugHandler.getDebugState(state);
 
 		// Push the frame
@@ -74,7 +103,9 @@ public abstract class ResumableVarArgFunction<T> extends LibFunction implements
 			}
 		}
 
-		Varargs result = invoke(state, di, args);
+		Varargs result = direct ? invokeDirect(state, di, args) : invoke(state, di, args);
+		if (result == null) return null;
+
 		onReturn(state.debug, ds, di, result);
 		return result;
 	}
@@ -127,6 +158,23 @@ public abstract class ResumableVarArgFunction<T> extends LibFunction implements
 
 	protected abstract Varargs invoke(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable;
 
+	/**
+	 * Invoke this function from the interpreter. This may return {@code null} rather than throwing an
+	 * {@link UnwindThrowable} in order to transfer control to another coroutine, in which case the transfer must have
+	 * been recorded using {@link LuaThread#yieldDirect(LuaState, Varargs)} or
+	 * {@link LuaThread#resumeDirect(LuaState, LuaThread, Varargs)}.
+	 *
+	 * @param state The current lua state
+	 * @param di    The frame for this function
+	 * @param args  The arguments to invoke with
+	 * @return The function's return values, or {@code null} if it transferred control to another coroutine.
+	 * @throws LuaError        If the function errored.
+	 * @throws UnwindThrowable If the function yielded by unwinding the stack.
+	 */
+	protected Varargs invokeDirect(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+		return invoke(state, di, args);
+	}
+
 	protected abstract Varargs resumeThis(LuaState state, T object, Varargs value) throws LuaError, UnwindThrowable;
 
 	protected Varargs resumeErrorThis(LuaState state, T object, LuaError error) throws LuaError, UnwindThrowable {
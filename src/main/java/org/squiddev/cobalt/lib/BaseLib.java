@@ -518,32 +518,48 @@ public class BaseLib implements LuaLibrary {
 
 		@Override
 		public int read() {
-			if (remaining <= 0) {
-				LuaValue s;
-				try {
-					s = OperationHelper.noUnwind(state, () -> OperationHelper.call(state, func));
-				} catch (LuaError e) {
-					throw new UncheckedLuaError(e);
-				}
+			if (remaining <= 0 && !fill()) return -1;
+			--remaining;
+			return bytes[offset++] & 0xFF;
+		}
 
-				if (s.isNil()) {
-					return -1;
-				}
-				LuaString ls;
-				try {
-					ls = s.strvalue();
-				} catch (LuaError e) {
-					throw new UncheckedLuaError(e);
-				}
-				bytes = ls.bytes;
-				offset = ls.offset;
-				remaining = ls.length;
-				if (remaining <= 0) {
-					return -1;
-				}
+		/**
+		 * Read from the current piece, only calling the function again if it has been exhausted. This ensures the
+		 * function is not called more often than needed.
+		 */
+		@Override
+		public int read(byte[] out, int off, int len) {
+			if (len == 0) return 0;
+			if (remaining <= 0 && !fill()) return -1;
+
+			int read = Math.min(len, remaining);
+			System.arraycopy(bytes, offset, out, off, read);
+			offset += read;
+			remaining -= read;
+			return read;
+		}
+
+		private boolean fill() {
+			LuaValue s;
+			try {
+				s = OperationHelper.noUnwind(state, () -> OperationHelper.call(state, func));
+			} catch (LuaError e) {
+				throw new UncheckedLuaError(e);
 			}
-			--remaining;
-			return bytes[offset++];
+
+			if (s.isNil()) {
+				return false;
+			}
+			LuaString ls;
+			try {
+				ls = s.strvalue();
+			} catch (LuaError e) {
+				throw new UncheckedLuaError(e);
+			}
+			bytes = ls.bytes;
+			offset = ls.offset;
+			remaining = ls.length;
+			return remaining > 0;
 		}
 	}
 }
@@ -0,0 +1,86 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib;
+
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.LuaString;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of values compiled from strings, such as patterns or format strings. The least recently used
+ * entries are evicted first.
+ *
+ * This is not thread safe, and so there should be one per {@link LuaState}.
+ *
+ * @param <T> The type of compiled values.
+ */
+final class CompiledCache<T> {
+	private final int maxLength;
+	private final Function<LuaString, T> compile;
+	private final Map<LuaString, T> entries;
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param size      The maximum number of entries to keep.
+	 * @param maxLength The maximum length of a string to cache. Longer strings are compiled each time.
+	 * @param compile   The function to compile a string.
+	 */
+	CompiledCache(int size, int maxLength, Function<LuaString, T> compile) {
+		this.maxLength = maxLength;
+		this.compile = compile;
+		entries = new Entries<>(size);
+	}
+
+	T get(LuaString key) {
+		if (key.length() > maxLength) return compile.apply(key);
+
+		T value = entries.get(key);
+		if (value == null) entries.put(key, value = compile.apply(key));
+		return value;
+	}
+
+	/**
+	 * An access-ordered map which evicts its least recently used entry once full.
+	 */
+	private static final class Entries<T> extends LinkedHashMap<LuaString, T> {
+		private static final long serialVersionUID = 6412839172531820964L;
+
+		private final int size;
+
+		Entries(int size) {
+			super(16, 0.75f, true);
+			this.size = size;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<LuaString, T> eldest) {
+			return size() > size;
+		}
+	}
+}
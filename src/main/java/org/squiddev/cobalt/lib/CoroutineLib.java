@@ -121,6 +121,28 @@ public class CoroutineLib extends ResumableVarArgFunction<Object> implements Lua
 		}
 	}
 
+	@Override
+	protected Varargs invokeDirect(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+		switch (opcode) {
+			case RESUME: {
+				di.flags |= FLAG_YPCALL;
+				LuaThread thread = args.arg(1).checkThread();
+				try {
+					Varargs result = LuaThread.resumeDirect(state, thread, args.subargs(2));
+					return result == null ? null : varargsOf(Constants.TRUE, result);
+				} catch (LuaError le) {
+					return varargsOf(Constants.FALSE, le.value);
+				}
+			}
+			case YIELD:
+				return LuaThread.yieldDirect(state, args);
+			case WRAPPED:
+				return LuaThread.resumeDirect(state, thread, args);
+			default:
+				return invoke(state, di, args);
+		}
+	}
+
 	@Override
 	public Varargs resumeThis(LuaState state, Object object, Varargs value) {
 		switch (opcode) {
@@ -332,7 +332,7 @@ public class DebugLib extends VarArgFunction implements LuaLibrary {
 
 			LuaString name = di.getLocalName(local);
 			if (name == null || di.stack == null) return NIL;
-			LuaValue value = di.stack[local - 1];
+			LuaValue value = di.getStackValue(local - 1);
 			return varargsOf(name, value);
 		}
 	}
@@ -43,6 +43,11 @@ public class FormatDesc {
 	final int conversion;
 	final int length;
 
+	/**
+	 * Whether this has no flags, width or precision, and so its value can be written as-is.
+	 */
+	final boolean plain;
+
 	private static boolean useOracleFormatting = true;
 
 	FormatDesc(LuaString strfrmt, final int start) throws LuaError {
@@ -110,6 +115,7 @@ public class FormatDesc {
 		space &= !explicitPlus;
 		conversion = c;
 		length = p - start;
+		plain = p - start == 1;
 	}
 
 	public static FormatDesc ofUnsafe(String format) {
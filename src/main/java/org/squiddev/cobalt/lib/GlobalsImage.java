@@ -0,0 +1,229 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib;
+
+import org.squiddev.cobalt.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.squiddev.cobalt.Constants.NIL;
+
+/**
+ * A frozen image of a set of globals, which can be cheaply installed into many {@link LuaState}s.
+ *
+ * The image is built once by loading libraries into a template state. Installing it gives each state a
+ * {@linkplain LuaTable#shallowCopy() copy-on-write copy} of every table reachable from the template's globals,
+ * {@link LuaState#loadedPackages} and metatables, with references between them pointing to the new copies. Library
+ * functions themselves are shared between states, so an image should only contain libraries whose functions do not
+ * hold any per-state data. Other libraries (such as {@link PackageLib} or {@link IoLib}) should be loaded after the
+ * image is installed.
+ *
+ * @see org.squiddev.cobalt.lib.jse.JsePlatform#standardGlobals(LuaState)
+ */
+public final class GlobalsImage {
+	private static final int GLOBALS = 0;
+	private static final int LOADED = 1;
+
+	/**
+	 * Every table in the template, indexed by the order they were discovered.
+	 */
+	private final LuaTable[] tables;
+
+	/**
+	 * The entries of the template's {@link LuaState#loadedPackages}, which are copied directly as the table cannot
+	 * be replaced.
+	 */
+	private final LuaValue[] loadedEntries;
+
+	/**
+	 * References between tables which must be updated in each copy: {@code tables[patchTable[i]][patchKeys[i]]}
+	 * should be set to {@code tables[patchValue[i]]}.
+	 */
+	private final int[] patchTable;
+	private final LuaValue[] patchKeys;
+	private final int[] patchValue;
+
+	/**
+	 * The index of each table's metatable, or {@code -1} if it has no metatable or it need not be updated.
+	 */
+	private final int[] metatables;
+
+	private final int stringMetatable;
+	private final int booleanMetatable;
+	private final int numberMetatable;
+	private final int nilMetatable;
+	private final int functionMetatable;
+	private final int threadMetatable;
+
+	private GlobalsImage(LuaState state, LuaTable globals) {
+		Builder builder = new Builder();
+		builder.add(globals);
+		builder.add(state.loadedPackages);
+		stringMetatable = builder.add(state.stringMetatable);
+		booleanMetatable = builder.add(state.booleanMetatable);
+		numberMetatable = builder.add(state.numberMetatable);
+		nilMetatable = builder.add(state.nilMetatable);
+		functionMetatable = builder.add(state.functionMetatable);
+		threadMetatable = builder.add(state.threadMetatable);
+
+		// Visit every table, finding all other tables it references.
+		List<LuaTable> tables = builder.tables;
+		List<Integer> patchTable = new ArrayList<>();
+		List<LuaValue> patchKeys = new ArrayList<>();
+		List<Integer> patchValue = new ArrayList<>();
+		List<Integer> metatables = new ArrayList<>();
+		for (int i = 0; i < tables.size(); i++) {
+			LuaTable table = tables.get(i);
+
+			LuaValue k = NIL;
+			while (true) {
+				Varargs n = next(table, k);
+				if ((k = n.first()).isNil()) break;
+
+				LuaValue value = n.arg(2);
+				if (value instanceof LuaTable) {
+					patchTable.add(i);
+					patchKeys.add(k);
+					patchValue.add(builder.add((LuaTable) value));
+				}
+			}
+
+			metatables.add(builder.add(table.getMetatable(null)));
+		}
+
+		this.tables = tables.toArray(new LuaTable[0]);
+		this.patchTable = toArray(patchTable);
+		this.patchKeys = patchKeys.toArray(new LuaValue[0]);
+		this.patchValue = toArray(patchValue);
+		this.metatables = toArray(metatables);
+
+		// Freeze the template, ensuring it is never modified by later copies.
+		for (LuaTable table : this.tables) table.shallowCopy();
+
+		List<LuaValue> loadedEntries = new ArrayList<>();
+		LuaValue k = NIL;
+		while (true) {
+			Varargs n = next(state.loadedPackages, k);
+			if ((k = n.first()).isNil()) break;
+			loadedEntries.add(k);
+			loadedEntries.add(n.arg(2));
+		}
+		this.loadedEntries = loadedEntries.toArray(new LuaValue[0]);
+	}
+
+	/**
+	 * Create an image by loading libraries into a new template state.
+	 *
+	 * @param globals A function which creates and populates the globals of a state, such as
+	 *                {@link org.squiddev.cobalt.lib.jse.JsePlatform#standardGlobals(LuaState)}.
+	 * @return The constructed image.
+	 */
+	public static GlobalsImage create(Function<LuaState, LuaTable> globals) {
+		LuaState state = new LuaState();
+		try {
+			return new GlobalsImage(state, globals.apply(state));
+		} finally {
+			state.abandon();
+		}
+	}
+
+	/**
+	 * Install a copy of this image into a state, setting up its main thread.
+	 *
+	 * @param state The state to install into. This should not have had any libraries loaded into it.
+	 * @return The new globals table.
+	 */
+	public LuaTable install(LuaState state) {
+		LuaTable[] tables = this.tables;
+		int count = tables.length;
+
+		LuaTable[] copies = new LuaTable[count];
+		for (int i = 0; i < count; i++) copies[i] = i == LOADED ? state.loadedPackages : tables[i].shallowCopy();
+
+		LuaValue[] loadedEntries = this.loadedEntries;
+		for (int i = 0; i < loadedEntries.length; i += 2) {
+			state.loadedPackages.rawset(loadedEntries[i], loadedEntries[i + 1]);
+		}
+
+		int[] patchTable = this.patchTable, patchValue = this.patchValue;
+		LuaValue[] patchKeys = this.patchKeys;
+		for (int i = 0; i < patchTable.length; i++) {
+			copies[patchTable[i]].rawset(patchKeys[i], copies[patchValue[i]]);
+		}
+
+		int[] metatables = this.metatables;
+		for (int i = 0; i < count; i++) {
+			int metatable = metatables[i];
+			if (metatable >= 0) copies[i].setMetatable(copies[metatable]);
+		}
+
+		if (stringMetatable >= 0) state.stringMetatable = copies[stringMetatable];
+		if (booleanMetatable >= 0) state.booleanMetatable = copies[booleanMetatable];
+		if (numberMetatable >= 0) state.numberMetatable = copies[numberMetatable];
+		if (nilMetatable >= 0) state.nilMetatable = copies[nilMetatable];
+		if (functionMetatable >= 0) state.functionMetatable = copies[functionMetatable];
+		if (threadMetatable >= 0) state.threadMetatable = copies[threadMetatable];
+
+		LuaTable globals = copies[GLOBALS];
+		state.setupThread(globals);
+		return globals;
+	}
+
+	private static Varargs next(LuaTable table, LuaValue key) {
+		try {
+			return table.next(key);
+		} catch (LuaError e) {
+			// We only ever pass keys which exist in the table.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int[] toArray(List<Integer> values) {
+		int[] out = new int[values.size()];
+		for (int i = 0; i < out.length; i++) out[i] = values.get(i);
+		return out;
+	}
+
+	private static final class Builder {
+		final List<LuaTable> tables = new ArrayList<>();
+		final Map<LuaTable, Integer> indices = new IdentityHashMap<>();
+
+		int add(LuaTable table) {
+			if (table == null) return -1;
+
+			Integer index = indices.get(table);
+			if (index != null) return index;
+
+			int newIndex = tables.size();
+			tables.add(table);
+			indices.put(table, newIndex);
+			return newIndex;
+		}
+	}
+}
@@ -32,6 +32,8 @@ import org.squiddev.cobalt.lib.jse.JseIoLib;
 import org.squiddev.cobalt.lib.jse.JsePlatform;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.ValueFactory.valueOf;
@@ -68,6 +70,19 @@ public abstract class IoLib implements LuaLibrary {
 
 		public abstract void write(LuaString string) throws IOException;
 
+		/**
+		 * Write several strings to this file.
+		 *
+		 * Files may override this to write all strings at once, rather than one at a time.
+		 *
+		 * @param strings The strings to write.
+		 * @param count   The number of strings to write.
+		 * @throws IOException If the strings could not be written.
+		 */
+		public void write(LuaString[] strings, int count) throws IOException {
+			for (int i = 0; i < count; i++) write(strings[i]);
+		}
+
 		public abstract void flush() throws IOException;
 
 		public abstract boolean isstdfile();
@@ -93,6 +108,35 @@ public abstract class IoLib implements LuaLibrary {
 		// return number of bytes read if positive, false if eof, throw IOException on other exception
 		public abstract int read(byte[] bytes, int offset, int length) throws IOException;
 
+		/**
+		 * Read a line from this file, excluding the trailing newline.
+		 *
+		 * Files which buffer their input may override this to search their buffer directly, rather than reading a
+		 * byte at a time.
+		 *
+		 * @return The line read, or {@link Constants#NIL} if at the end of the file.
+		 * @throws IOException If the file could not be read.
+		 */
+		public LuaValue readLine() throws IOException {
+			return freaduntil(this, true);
+		}
+
+		/**
+		 * Read up to {@code count} bytes from this file.
+		 *
+		 * @param count The maximum number of bytes to read.
+		 * @return The bytes read, or {@link Constants#NIL} if at the end of the file.
+		 * @throws IOException If the file could not be read.
+		 */
+		public LuaValue readBytes(int count) throws IOException {
+			byte[] b = new byte[count];
+			int r;
+			if ((r = read(b, 0, b.length)) < 0) {
+				return NIL;
+			}
+			return LuaString.valueOf(b, 0, r);
+		}
+
 		@Override
 		public LuaTable getMetatable(LuaState state) {
 			return metatable;
@@ -483,8 +527,29 @@ public abstract class IoLib implements LuaLibrary {
 	}
 
 	private static Varargs iowrite(File f, Varargs args) throws IOException, LuaError {
-		for (int i = 1, n = args.count(); i <= n; i++) {
-			f.write(args.arg(i).checkLuaString());
+		int n = args.count();
+		if (n == 1 && !(args.first() instanceof LuaRope)) {
+			f.write(args.first().checkLuaString());
+		} else if (n > 0) {
+			// Ropes are written a segment at a time, rather than being flattened first.
+			List<LuaString> strings = new ArrayList<>(n);
+			for (int i = 1; i <= n; i++) {
+				LuaBaseString string;
+				try {
+					string = args.arg(i).checkLuaBaseString();
+				} catch (LuaError e) {
+					// Arguments before the invalid one are still written.
+					f.write(strings.toArray(new LuaString[0]), strings.size());
+					throw e;
+				}
+
+				if (string instanceof LuaRope) {
+					((LuaRope) string).segments(strings);
+				} else {
+					strings.add((LuaString) string);
+				}
+			}
+			f.write(strings.toArray(new LuaString[0]), strings.size());
 		}
 		return TRUE;
 	}
@@ -567,12 +632,7 @@ public abstract class IoLib implements LuaLibrary {
 	// ------------- file reading utilitied ------------------
 
 	public static LuaValue freadbytes(File f, int count) throws IOException {
-		byte[] b = new byte[count];
-		int r;
-		if ((r = f.read(b, 0, b.length)) < 0) {
-			return NIL;
-		}
-		return LuaString.valueOf(b, 0, r);
+		return f.readBytes(count);
 	}
 
 	public static LuaValue freaduntil(File f, boolean lineonly) throws IOException {
@@ -606,7 +666,7 @@ public abstract class IoLib implements LuaLibrary {
 	}
 
 	public static LuaValue freadline(File f) throws IOException {
-		return freaduntil(f, true);
+		return f.readLine();
 	}
 
 	public static LuaValue freadall(File f) throws IOException {
@@ -0,0 +1,50 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib;
+
+import org.squiddev.cobalt.LuaState;
+
+/**
+ * Caches of compiled patterns and format strings used by the {@link StringLib}.
+ *
+ * The string library's functions may be shared between several states (see {@link GlobalsImage}), and so cannot
+ * hold these themselves. Instead, each {@link LuaState} has its own instance.
+ *
+ * @see LuaState#stringCaches
+ */
+public final class StringCaches {
+	/**
+	 * The number of compiled patterns and format strings kept by each state.
+	 */
+	private static final int CACHE_SIZE = 128;
+
+	/**
+	 * The maximum length of a pattern or format string which will be cached.
+	 */
+	private static final int MAX_CACHED_LENGTH = 1024;
+
+	final CompiledCache<StringPattern> patterns = new CompiledCache<>(CACHE_SIZE, MAX_CACHED_LENGTH, StringPattern::compile);
+	final CompiledCache<StringFormat.Template> formats = new CompiledCache<>(CACHE_SIZE, MAX_CACHED_LENGTH, StringFormat.Template::compile);
+}
@@ -2,12 +2,16 @@ package org.squiddev.cobalt.lib;
 
 import org.squiddev.cobalt.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.lib.StringLib.L_ESC;
 
 class StringFormat {
 	static class FormatState {
-		final LuaString format;
+		final Template template;
 		int i = 0;
 
 		final Buffer buffer;
@@ -16,13 +20,107 @@ class StringFormat {
 		final Varargs args;
 		FormatDesc current;
 
-		FormatState(LuaString format, Buffer buffer, Varargs args) {
+		FormatState(Template template, Buffer buffer, Varargs args) {
 			this.args = args;
-			this.format = format;
+			this.template = template;
 			this.buffer = buffer;
 		}
 	}
 
+	/**
+	 * A format string which has been split into literal text and {@link FormatDesc}s.
+	 *
+	 * Literals and directives alternate, starting and ending with a (possibly empty) literal. If the format string is
+	 * invalid, we stop at the first error and only report it once formatting reaches that point, so that any errors
+	 * in earlier arguments take priority.
+	 */
+	static final class Template {
+		final LuaString[] literals;
+		final FormatDesc[] directives;
+		final String error;
+
+		private Template(LuaString[] literals, FormatDesc[] directives, String error) {
+			this.literals = literals;
+			this.directives = directives;
+			this.error = error;
+		}
+
+		static Template compile(LuaString format) {
+			final int n = format.length();
+			List<LuaString> literals = new ArrayList<>();
+			List<FormatDesc> directives = new ArrayList<>();
+			String error = null;
+
+			byte[] literal = new byte[n];
+			int i = 0;
+			while (true) {
+				int length = 0;
+				while (i < n) {
+					int c = format.luaByte(i);
+					if (c != L_ESC) {
+						literal[length++] = (byte) c;
+						i++;
+					} else if (i + 1 < n && format.luaByte(i + 1) == L_ESC) {
+						literal[length++] = (byte) L_ESC;
+						i += 2;
+					} else {
+						break;
+					}
+				}
+				literals.add(length == 0 ? EMPTYSTRING : LuaString.valueOf(Arrays.copyOf(literal, length)));
+
+				if (i >= n) break;
+				if (++i >= n) {
+					error = "invalid option '%' to 'format'";
+					break;
+				}
+
+				FormatDesc desc;
+				try {
+					desc = new FormatDesc(format, i);
+				} catch (LuaError e) {
+					error = e.getMessage();
+					break;
+				}
+
+				if (!isConversion(desc.conversion)) {
+					error = "invalid option '%" + (char) desc.conversion + "' to 'format'";
+					break;
+				}
+
+				directives.add(desc);
+				i += desc.length;
+			}
+
+			// Ensure we always end on a literal, even when stopping early.
+			if (literals.size() == directives.size()) literals.add(EMPTYSTRING);
+
+			return new Template(literals.toArray(new LuaString[0]), directives.toArray(new FormatDesc[0]), error);
+		}
+
+		private static boolean isConversion(int c) {
+			switch (c) {
+				case 'c':
+				case 'i':
+				case 'd':
+				case 'o':
+				case 'u':
+				case 'x':
+				case 'X':
+				case 'e':
+				case 'E':
+				case 'f':
+				case 'g':
+				case 'G':
+				case 'q':
+				case 's':
+					return true;
+				default:
+					return false;
+			}
+		}
+	}
+
 	/**
 	 * string.format (formatstring, ...)
 	 *
@@ -49,28 +147,17 @@ class StringFormat {
 	 * @throws LuaError On invalid arguments.
 	 */
 	static Varargs format(LuaState state, FormatState format) throws LuaError, UnwindThrowable {
-		LuaString fmt = format.format;
-		final int n = fmt.length();
+		Template template = format.template;
+		LuaString[] literals = template.literals;
+		FormatDesc[] directives = template.directives;
 		Buffer result = format.buffer;
 
-		for (int i = format.i; i < n; ) {
-			int c = fmt.luaByte(i++);
-			if (c != L_ESC) {
-				result.append((byte) c);
-				continue;
-			}
-
-			if (i >= n) throw new LuaError("invalid option '%' to 'format'");
-
-			if (fmt.luaByte(i) == L_ESC) {
-				i++;
-				result.append((byte) L_ESC);
-				continue;
-			}
+		for (int i = format.i; ; ) {
+			result.append(literals[i]);
+			if (i == directives.length) break;
 
+			FormatDesc fdsc = directives[i++];
 			LuaValue value = format.args.arg(++format.arg);
-			FormatDesc fdsc = new FormatDesc(fmt, i);
-			i += fdsc.length;
 
 			switch (fdsc.conversion) {
 				case 'c':
@@ -78,10 +165,22 @@ class StringFormat {
 					break;
 				case 'i':
 				case 'd':
-				case 'o':
-				case 'u':
+					if (fdsc.plain) {
+						appendDecimal(result, value.checkLong());
+					} else {
+						fdsc.format(result, value.checkLong());
+					}
+					break;
 				case 'x':
 				case 'X':
+					if (fdsc.plain) {
+						appendHex(result, value.checkLong(), fdsc.conversion == 'X');
+					} else {
+						fdsc.format(result, value.checkLong());
+					}
+					break;
+				case 'o':
+				case 'u':
 					fdsc.format(result, value.checkLong());
 					break;
 				case 'e':
@@ -105,21 +204,64 @@ class StringFormat {
 				}
 				break;
 				default:
-					throw new LuaError("invalid option '%" + (char) fdsc.conversion + "' to 'format'");
+					throw new IllegalStateException("Unknown conversion " + fdsc.conversion);
 			}
 		}
 
+		if (template.error != null) throw new LuaError(template.error);
 		return result.toLuaString();
 	}
 
 	static void addString(Buffer result, FormatDesc fdsc, LuaString s) {
 		if (fdsc.precision == -1 && s.length() >= 100) {
 			result.append(s);
+		} else if (fdsc.plain) {
+			// Equivalent to FormatDesc.format, but without creating a substring.
+			int end = s.indexOf((byte) '\0', 0);
+			result.append(s.bytes, s.offset, end == -1 ? s.length() : end);
 		} else {
 			fdsc.format(result, s);
 		}
 	}
 
+	/**
+	 * Append a number in decimal, as {@link Long#toString(long)} would.
+	 *
+	 * @param buffer The buffer to append to.
+	 * @param number The number to append.
+	 */
+	private static void appendDecimal(Buffer buffer, long number) {
+		if (number < 0) {
+			buffer.append((byte) '-');
+		} else {
+			// Work with negative numbers, so that Long.MIN_VALUE can be handled.
+			number = -number;
+		}
+
+		long divisor = -1;
+		while (divisor >= number / 10) divisor *= 10;
+		for (; divisor != 0; divisor /= 10) {
+			buffer.append((byte) ('0' + number / divisor));
+			number %= divisor;
+		}
+	}
+
+	/**
+	 * Append a number in hexadecimal, as {@link Long#toHexString(long)} would.
+	 *
+	 * @param buffer The buffer to append to.
+	 * @param number The number to append.
+	 * @param upper  Whether to use upper case letters.
+	 */
+	private static void appendHex(Buffer buffer, long number, boolean upper) {
+		int shift = number == 0 ? 0 : (63 - Long.numberOfLeadingZeros(number)) & ~3;
+		int letter = upper ? 'A' - 10 : 'a' - 10;
+		for (; shift >= 0; shift -= 4) {
+			int digit = (int) (number >>> shift) & 0xF;
+			buffer.append((byte) (digit < 10 ? '0' + digit : letter + digit));
+		}
+	}
+
 	private static void addQuoted(Buffer buf, int arg, LuaValue s) throws LuaError {
 		switch (s.type()) {
 			case TSTRING:
@@ -76,7 +76,7 @@ public class StringLib implements LuaLibrary {
 		public LuaValue call(LuaState state, LuaValue arg) throws LuaError {
 			switch (opcode) {
 				case 0: // len (function)
-					return valueOf(arg.checkLuaString().length());
+					return valueOf(arg.checkLuaBaseString().length());
 
 				case 1: { // lower (function)
 					LuaString string = arg.checkLuaString();
@@ -131,11 +131,11 @@ public class StringLib implements LuaLibrary {
 				case 2:
 					return StringLib.char_(args);
 				case 3:
-					return StringMatch.find(state, args);
+					return StringMatch.find(state, state.stringCaches.patterns, args);
 				case 4:
-					return StringMatch.gmatch(state, args);
+					return StringMatch.gmatch(state, state.stringCaches.patterns, args);
 				case 5:
-					return StringMatch.match(state, args);
+					return StringMatch.match(state, state.stringCaches.patterns, args);
 				case 6:
 					return StringLib.rep(args);
 				case 7:
@@ -159,13 +159,13 @@ public class StringLib implements LuaLibrary {
 					LuaValue replace = args.arg(3);
 					int maxS = args.arg(4).optInteger(src.length() + 1);
 
-					GSubState gsub = new GSubState(state, src, p, replace, maxS);
+					GSubState gsub = new GSubState(state, src, state.stringCaches.patterns.get(p), replace, maxS);
 					di.state = gsub;
 					return StringMatch.gsubRun(state, gsub, null);
 				}
 				case 1: { // format
 					LuaString src = args.arg(1).checkLuaString();
-					FormatState format = new FormatState(src, new Buffer(src.length), args);
+					FormatState format = new FormatState(state.stringCaches.formats.get(src), new Buffer(src.length), args);
 					di.state = format;
 					return StringFormat.format(state, format);
 				}
@@ -203,8 +203,8 @@ public class StringLib implements LuaLibrary {
 	 * @param args the calling args
 	 */
 	static Varargs byte_(Varargs args) throws LuaError {
-		LuaString s = args.arg(1).checkLuaString();
-		int l = s.length;
+		LuaBaseString s = args.arg(1).checkLuaBaseString();
+		int l = s.length();
 		int posi = posRelative(args.arg(2).optInteger(1), l);
 		int pose = posRelative(args.arg(3).optInteger(posi), l);
 		int n, i;
@@ -307,7 +307,7 @@ public class StringLib implements LuaLibrary {
 	 * returns a suffix of s with length i.
 	 */
 	static Varargs sub(Varargs args) throws LuaError {
-		final LuaString s = args.arg(1).checkLuaString();
+		final LuaBaseString s = args.arg(1).checkLuaBaseString();
 		final int l = s.length();
 
 		int start = posRelative(args.arg(2).checkInteger(), l);
@@ -73,8 +73,8 @@ class StringMatch {
 	 *
 	 * @throws LuaError On invalid arguments.
 	 */
-	static Varargs find(LuaState state, Varargs args) throws LuaError {
-		return str_find_aux(state, args, true);
+	static Varargs find(LuaState state, CompiledCache<StringPattern> patterns, Varargs args) throws LuaError {
+		return str_find_aux(state, patterns, args, true);
 	}
 
 	/**
@@ -101,10 +101,10 @@ class StringMatch {
 	 * For this function, a '^' at the start of a pattern does not work as an anchor,
 	 * as this would prevent the iteration.
 	 */
-	static Varargs gmatch(LuaState state, Varargs args) throws LuaError {
+	static Varargs gmatch(LuaState state, CompiledCache<StringPattern> patterns, Varargs args) throws LuaError {
 		LuaString src = args.arg(1).checkLuaString();
 		LuaString pat = args.arg(2).checkLuaString();
-		return new GMatchAux(state, src, pat);
+		return new GMatchAux(state, src, patterns.get(pat));
 	}
 
 	/**
@@ -155,10 +155,10 @@ class StringMatch {
 	static Varargs gsubRun(LuaState state, GSubState gsub, Varargs result) throws LuaError, UnwindThrowable {
 		LuaString src = gsub.string;
 		final int srclen = src.length();
-		LuaString p = gsub.pattern;
+		StringPattern pattern = gsub.pattern;
 		LuaValue repl = gsub.replace;
 		int max_s = gsub.maxS;
-		final boolean anchor = p.length() > 0 && p.charAt(0) == '^';
+		final boolean anchor = pattern.anchored;
 
 		Buffer lbuf = gsub.buffer;
 		MatchState ms = gsub.ms;
@@ -169,6 +169,16 @@ class StringMatch {
 			int res;
 
 			if (gsub.count == GSubState.EMPTY) {
+				if (!anchor) {
+					// Copy across everything before the next place a match could start.
+					int next = pattern.nextStart(src, soffset);
+					if (next == -1) break;
+					if (next > soffset) {
+						lbuf.append(src.bytes, src.offset + soffset, next - soffset);
+						soffset = next;
+					}
+				}
+
 				// We haven't matched so we'll match here
 				gsub.count = res = ms.match(soffset, anchor ? 1 : 0);
 
@@ -209,43 +219,44 @@ class StringMatch {
 	 * A third, optional numerical argument init specifies where to start the
 	 * search; its default value is 1 and may be negative.
 	 */
-	static Varargs match(LuaState state, Varargs args) throws LuaError {
-		return str_find_aux(state, args, false);
+	static Varargs match(LuaState state, CompiledCache<StringPattern> patterns, Varargs args) throws LuaError {
+		return str_find_aux(state, patterns, args, false);
 	}
 
 	/**
 	 * This utility method implements both string.find and string.match.
 	 */
-	private static Varargs str_find_aux(LuaState state, Varargs args, boolean find) throws LuaError {
-		LuaString s = args.arg(1).checkLuaString();
+	private static Varargs str_find_aux(LuaState state, CompiledCache<StringPattern> patterns, Varargs args, boolean find) throws LuaError {
+		LuaBaseString str = args.arg(1).checkLuaBaseString();
 		LuaString pat = args.arg(2).checkLuaString();
 		int init = args.arg(3).optInteger(1);
 
 		if (init > 0) {
-			init = Math.min(init - 1, s.length());
+			init = Math.min(init - 1, str.length());
 		} else if (init < 0) {
-			init = Math.max(0, s.length() + init);
+			init = Math.max(0, str.length() + init);
 		}
 
 		boolean fastMatch = find && (args.arg(4).toBoolean() || pat.indexOfAny(SPECIALS) == -1);
 
 		if (fastMatch) {
-			int result = s.indexOf(pat, init);
+			// Plain searches work over the string's segments directly, so ropes do not need to be flattened.
+			int result = str.indexOf(pat, init);
 			if (result != -1) {
 				return varargsOf(valueOf(result + 1), valueOf(result + pat.length()));
 			}
 		} else {
-			MatchState ms = new MatchState(state.debug, s, pat);
+			LuaString s = str.strvalue();
+			StringPattern pattern = patterns.get(pat);
+			MatchState ms = new MatchState(state.debug, s, pattern);
 
-			boolean anchor = false;
-			int poff = 0;
-			if (pat.length() > 0 && pat.luaByte(0) == '^') {
-				anchor = true;
-				poff = 1;
-			}
+			boolean anchor = pattern.anchored;
+			int poff = anchor ? 1 : 0;
 
 			int soff = init;
 			do {
+				if (!anchor && (soff = pattern.nextStart(s, soff)) == -1) break;
+
 				int res;
 				ms.reset();
 				if ((res = ms.match(soff, poff)) != -1) {
@@ -265,15 +276,21 @@ class StringMatch {
 		private final MatchState ms;
 		private int soffset;
 
-		public GMatchAux(LuaState state, LuaString src, LuaString pat) {
+		GMatchAux(LuaState state, LuaString src, StringPattern pattern) {
 			this.srclen = src.length();
-			this.ms = new MatchState(state.debug, src, pat);
+			this.ms = new MatchState(state.debug, src, pattern);
 			this.soffset = 0;
 		}
 
 		@Override
 		public Varargs invoke(LuaState state, Varargs args) throws LuaError {
 			for (; soffset < srclen; soffset++) {
+				// gmatch treats "^" as a literal, so we can only skip ahead for unanchored patterns.
+				if (!ms.pattern.anchored && (soffset = ms.pattern.nextStart(ms.s, soffset)) == -1) {
+					soffset = srclen;
+					break;
+				}
+
 				ms.reset();
 				int res = ms.match(soffset, 0);
 				if (res >= 0) {
@@ -292,7 +309,7 @@ class StringMatch {
 
 		final Buffer buffer;
 		final LuaString string;
-		final LuaString pattern;
+		final StringPattern pattern;
 		final LuaValue replace;
 		final int maxS;
 		int n;
@@ -300,7 +317,7 @@ class StringMatch {
 		MatchState ms;
 		int count;
 
-		GSubState(LuaState state, LuaString src, LuaString pattern, LuaValue replace, int maxS) {
+		GSubState(LuaState state, LuaString src, StringPattern pattern, LuaValue replace, int maxS) {
 			this.buffer = new Buffer(src.length);
 			this.string = src;
 			this.pattern = pattern;
@@ -315,15 +332,17 @@ class StringMatch {
 	static class MatchState {
 		private final DebugHandler handler;
 		final LuaString s;
+		final StringPattern pattern;
 		final LuaString p;
 		int level;
 		int[] cinit;
 		int[] clen;
 
-		MatchState(DebugHandler handler, LuaString s, LuaString pattern) {
+		MatchState(DebugHandler handler, LuaString s, StringPattern pattern) {
 			this.handler = handler;
 			this.s = s;
-			this.p = pattern;
+			this.pattern = pattern;
+			this.p = pattern.source;
 			this.level = 0;
 			this.cinit = new int[MAX_CAPTURES];
 			this.clen = new int[MAX_CAPTURES];
@@ -443,6 +462,9 @@ class StringMatch {
 		}
 
 		int classend(int poffset) throws LuaError {
+			int end = pattern.classEnd(poffset);
+			if (end != 0) return end;
+
 			switch (p.luaByte(poffset++)) {
 				case L_ESC:
 					if (poffset == p.length()) {
@@ -510,7 +532,7 @@ class StringMatch {
 			return (lcl == cl) ? res : !res;
 		}
 
-		boolean matchbracketclass(int c, int poff, int ec) {
+		static boolean matchbracketclass(LuaString p, int c, int poff, int ec) {
 			boolean sig = true;
 			if (p.luaByte(poff + 1) == '^') {
 				sig = false;
@@ -533,13 +555,17 @@ class StringMatch {
 		}
 
 		boolean singlematch(int c, int poff, int ep) {
+			return pattern.classEnd(poff) != 0 ? pattern.matches(c, poff) : singlematch(p, c, poff, ep);
+		}
+
+		static boolean singlematch(LuaString p, int c, int poff, int ep) {
 			switch (p.luaByte(poff)) {
 				case '.':
 					return true;
 				case L_ESC:
 					return match_class(c, p.luaByte(poff + 1));
 				case '[':
-					return matchbracketclass(c, poff, ep - 1);
+					return matchbracketclass(p, c, poff, ep - 1);
 				default:
 					return p.luaByte(poff) == c;
 			}
@@ -585,7 +611,7 @@ class StringMatch {
 								}
 								int ep = classend(poffset);
 								int previous = (soffset == 0) ? 0 : s.luaByte(soffset - 1);
-								if (matchbracketclass(previous, poffset, ep - 1) || (soffset < s.length && !matchbracketclass(s.luaByte(soffset), poffset, ep - 1))) {
+								if (singlematch(previous, poffset, ep) || (soffset < s.length && !singlematch(s.luaByte(soffset), poffset, ep))) {
 									return -1;
 								}
 								poffset = ep;
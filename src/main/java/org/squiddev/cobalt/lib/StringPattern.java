@@ -0,0 +1,270 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib;
+
+import org.squiddev.cobalt.LuaString;
+
+import static org.squiddev.cobalt.lib.StringLib.L_ESC;
+
+/**
+ * A Lua pattern which has been parsed ahead of time.
+ *
+ * The matcher in {@link StringMatch.MatchState} still walks the original pattern, but every single character class it
+ * reaches is looked up here rather than being parsed again. Any position which could not be parsed (such as a
+ * malformed class) is left empty, and so is handled (and reported) by the matcher as normal.
+ */
+final class StringPattern {
+	final LuaString source;
+
+	/**
+	 * Whether this pattern starts with {@code ^}, and so may only match at the start of a string.
+	 */
+	final boolean anchored;
+
+	/**
+	 * The end of the single character class at each position in the pattern, or 0 if not known.
+	 */
+	private final int[] ends;
+
+	/**
+	 * The set of characters matched by the single character class at each position, as four 64-bit words.
+	 */
+	private final long[][] sets;
+
+	/**
+	 * A literal string which all matches must start with, or {@code null}.
+	 */
+	private final LuaString prefix;
+
+	/**
+	 * The table of skips used to search for {@link #prefix}, or {@code null}.
+	 *
+	 * @see LuaString#skipTable(LuaString)
+	 */
+	private final int[] prefixSkips;
+
+	/**
+	 * The set of characters a match may start with, or {@code null} if this pattern could match the empty string.
+	 */
+	private final long[] first;
+
+	private StringPattern(LuaString source, boolean anchored, int[] ends, long[][] sets, LuaString prefix, long[] first) {
+		this.source = source;
+		this.anchored = anchored;
+		this.ends = ends;
+		this.sets = sets;
+		this.prefix = prefix;
+		this.prefixSkips = prefix == null ? null : LuaString.skipTable(prefix);
+		this.first = first;
+	}
+
+	static StringPattern compile(LuaString p) {
+		final int length = p.length();
+		int[] ends = new int[length];
+		long[][] sets = new long[length][];
+
+		// string.gmatch treats a leading ^ as a literal, so we parse it as a class as well.
+		boolean anchored = length > 0 && p.luaByte(0) == '^';
+		int start = anchored ? 1 : 0;
+		if (anchored) {
+			ends[0] = 1;
+			sets[0] = classSet(p, 0, 1);
+		}
+
+		// Walk through the pattern in the same order as the matcher.
+		int poff = start;
+		parse:
+		while (poff < length) {
+			switch (p.luaByte(poff)) {
+				case '(':
+					poff += poff + 1 < length && p.luaByte(poff + 1) == ')' ? 2 : 1;
+					continue;
+				case ')':
+					poff++;
+					continue;
+				case L_ESC: {
+					if (poff + 1 == length) break parse;
+					int next = p.luaByte(poff + 1);
+					if (next == 'b') {
+						poff += 4;
+						continue;
+					} else if (next == 'f') {
+						poff += 2;
+						if (poff == length || p.luaByte(poff) != '[') break parse;
+
+						int ep = classEnd(p, poff);
+						if (ep == -1) break parse;
+						ends[poff] = ep;
+						sets[poff] = classSet(p, poff, ep);
+						poff = ep;
+						continue;
+					} else if (Character.isDigit((char) next)) {
+						poff += 2;
+						continue;
+					}
+					break;
+				}
+				case '$':
+					if (poff + 1 == length) break parse;
+					break;
+			}
+
+			int ep = classEnd(p, poff);
+			if (ep == -1) break;
+			ends[poff] = ep;
+			sets[poff] = classSet(p, poff, ep);
+
+			poff = ep;
+			if (poff < length && isQuantifier(p.luaByte(poff))) poff++;
+		}
+
+		// Find what any match must start with. We only look at the leading single character classes, which is enough
+		// for the common cases.
+		int prefixLength = 0;
+		poff = start;
+		while (poff < length && ends[poff] != 0) {
+			int ep = ends[poff];
+			int quantifier = ep < length ? p.luaByte(ep) : 0;
+			if (quantifier == '?' || quantifier == '*' || quantifier == '-' || size(sets[poff]) != 1) break;
+
+			prefixLength++;
+			if (quantifier == '+') break;
+			poff = ep;
+		}
+
+		LuaString prefix = null;
+		long[] first = null;
+		if (prefixLength > 1) {
+			byte[] bytes = new byte[prefixLength];
+			poff = start;
+			for (int i = 0; i < prefixLength; i++) {
+				bytes[i] = (byte) firstMember(sets[poff]);
+				poff = ends[poff];
+			}
+			prefix = LuaString.valueOf(bytes);
+		} else if (start < length && ends[start] != 0) {
+			int ep = ends[start];
+			int quantifier = ep < length ? p.luaByte(ep) : 0;
+			if (quantifier != '?' && quantifier != '*' && quantifier != '-') first = sets[start];
+		}
+
+		return new StringPattern(p, anchored, ends, sets, prefix, first);
+	}
+
+	/**
+	 * Get the end of the single character class at a position.
+	 *
+	 * @param poff The position in the pattern.
+	 * @return The end of this class, or 0 if it has not been parsed.
+	 */
+	int classEnd(int poff) {
+		return ends[poff];
+	}
+
+	/**
+	 * Determine if a character matches the single character class at a position.
+	 *
+	 * @param c    The character to match.
+	 * @param poff The position in the pattern. This must have been parsed.
+	 * @return Whether this character matches.
+	 * @see #classEnd(int)
+	 */
+	boolean matches(int c, int poff) {
+		return (sets[poff][c >>> 6] & (1L << c)) != 0;
+	}
+
+	/**
+	 * Find the first position in a string where a match for this pattern could start.
+	 *
+	 * This is only valid for unanchored searches which start from the beginning of the pattern.
+	 *
+	 * @param s    The string to search.
+	 * @param soff The position to start searching from.
+	 * @return The next position a match could start at, or -1 if there is none.
+	 */
+	int nextStart(LuaString s, int soff) {
+		if (prefix != null) return s.indexOf(prefix, soff, prefixSkips);
+
+		long[] first = this.first;
+		if (first == null) return soff;
+
+		byte[] bytes = s.bytes;
+		int offset = s.offset, length = s.length();
+		for (; soff < length; soff++) {
+			int c = bytes[offset + soff] & 0xFF;
+			if ((first[c >>> 6] & (1L << c)) != 0) return soff;
+		}
+		return -1;
+	}
+
+	private static boolean isQuantifier(int c) {
+		return c == '?' || c == '*' || c == '+' || c == '-';
+	}
+
+	private static int size(long[] set) {
+		return Long.bitCount(set[0]) + Long.bitCount(set[1]) + Long.bitCount(set[2]) + Long.bitCount(set[3]);
+	}
+
+	private static int firstMember(long[] set) {
+		for (int i = 0; i < set.length; i++) {
+			if (set[i] != 0) return (i << 6) + Long.numberOfTrailingZeros(set[i]);
+		}
+		return -1;
+	}
+
+	/**
+	 * A non-throwing version of {@link StringMatch.MatchState#classend(int)}.
+	 *
+	 * @param p    The pattern.
+	 * @param poff The start of this class.
+	 * @return The end of this class, or -1 if it is malformed.
+	 */
+	private static int classEnd(LuaString p, int poff) {
+		final int length = p.length();
+		switch (p.luaByte(poff++)) {
+			case L_ESC:
+				return poff == length ? -1 : poff + 1;
+			case '[':
+				if (poff == length) return -1;
+				if (p.luaByte(poff) == '^' && ++poff == length) return -1;
+
+				do {
+					if (p.luaByte(poff++) == L_ESC && poff < length) poff++;
+					if (poff == length) return -1;
+				} while (p.luaByte(poff) != ']');
+				return poff + 1;
+			default:
+				return poff;
+		}
+	}
+
+	private static long[] classSet(LuaString p, int poff, int ep) {
+		long[] set = new long[4];
+		for (int c = 0; c < 256; c++) {
+			if (StringMatch.MatchState.singlematch(p, c, poff, ep)) set[c >>> 6] |= 1L << c;
+		}
+		return set;
+	}
+}
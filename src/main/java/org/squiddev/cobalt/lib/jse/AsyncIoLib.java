@@ -0,0 +1,788 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib.jse;
+
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.debug.DebugFrame;
+import org.squiddev.cobalt.function.LibFunction;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.ResumableVarArgFunction;
+import org.squiddev.cobalt.lib.LuaLibrary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.squiddev.cobalt.Constants.NIL;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+import static org.squiddev.cobalt.ValueFactory.varargsOf;
+
+/**
+ * An asynchronous version of the {@code io} library, available as {@code io.async}.
+ *
+ * Rather than blocking the current thread, reads and writes are started in the background and the whole
+ * {@link LuaState} is {@linkplain LuaThread#suspend(LuaState) suspended} until they complete. Files are accessed
+ * through an {@link AsynchronousFileChannel}. Process pipes are not selectable in Java, and so are read and written on
+ * a shared pool of threads instead.
+ *
+ * States using this library must be run with a {@link Scheduler}, which resumes each state once its operation has
+ * finished. A single scheduler thread may therefore run many I/O-bound scripts at once.
+ *
+ * <pre>{@code
+ * AsyncIoLib.Scheduler scheduler = new AsyncIoLib.Scheduler();
+ * for (String script : scripts) {
+ *     LuaState state = new LuaState();
+ *     LuaTable globals = JsePlatform.standardGlobals(state);
+ *     globals.load(state, new AsyncIoLib(scheduler));
+ *     scheduler.submit(state, LoadState.load(state, ..., globals));
+ * }
+ * scheduler.run();
+ * }</pre>
+ *
+ * @see JseIoLib
+ */
+public class AsyncIoLib implements LuaLibrary {
+	private static final int OPEN = 0;
+	private static final int POPEN = 1;
+	private static final int CLOSE = 2;
+	private static final int LINES = 3;
+	private static final int READ = 4;
+	private static final int SEEK = 5;
+	private static final int WRITE = 6;
+	private static final int LINES_ITERATOR = 7;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final LuaString READ_LINE = valueOf("*l");
+
+	private final Scheduler scheduler;
+	private LuaTable methods;
+
+	public AsyncIoLib(Scheduler scheduler) {
+		if (scheduler == null) throw new NullPointerException("scheduler cannot be null");
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public LuaValue add(LuaState state, LuaTable env) {
+		LuaTable t = new LuaTable();
+		LibFunction.bind(t, () -> new AsyncIoFunction(this, null), new String[]{"open", "popen"});
+
+		methods = new LuaTable();
+		LibFunction.bind(methods, () -> new AsyncIoFunction(this, null), new String[]{"close", "lines", "read", "seek", "write"}, CLOSE);
+		methods.rawset("__index", methods);
+
+		LuaValue io = env.rawget("io");
+		if (io instanceof LuaTable) ((LuaTable) io).rawset("async", t);
+		state.loadedPackages.rawset("io.async", t);
+		return t;
+	}
+
+	private static final class AsyncIoFunction extends ResumableVarArgFunction<Operation> {
+		private final AsyncIoLib lib;
+		private final Handle handle;
+
+		AsyncIoFunction(AsyncIoLib lib, Handle handle) {
+			this.lib = lib;
+			this.handle = handle;
+		}
+
+		@Override
+		protected Varargs invoke(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+			switch (opcode) {
+				case OPEN: {
+					String filename = args.arg(1).checkString();
+					String mode = args.arg(2).optString("r");
+					try {
+						return lib.open(filename, mode);
+					} catch (IOException | RuntimeException e) {
+						return errorResult(filename + ": " + e.getMessage());
+					}
+				}
+				case POPEN: {
+					String program = args.arg(1).checkString();
+					String mode = args.arg(2).optString("r");
+					try {
+						return lib.popen(program, mode);
+					} catch (IOException e) {
+						return errorResult(program + ": " + e.getMessage());
+					}
+				}
+				case CLOSE:
+					try {
+						checkHandle(args.first()).close();
+						return Constants.TRUE;
+					} catch (IOException e) {
+						return errorResult(e.getMessage());
+					}
+				case LINES: {
+					AsyncIoFunction iterator = new AsyncIoFunction(lib, checkHandle(args.first()));
+					iterator.name = "lines";
+					iterator.opcode = LINES_ITERATOR;
+					return iterator;
+				}
+				case READ: {
+					Handle handle = checkHandle(args.first());
+					Varargs formats = args.count() <= 1 ? READ_LINE : args.subargs(2);
+					for (int i = 1, n = formats.count(); i <= n; i++) checkFormat(formats.arg(i), i + 1);
+					return await(state, di, op -> handle.read(op, formats));
+				}
+				case SEEK: {
+					Handle handle = checkHandle(args.first());
+					try {
+						return valueOf(handle.seek(args.arg(2).optString("cur"), args.arg(3).optLong(0)));
+					} catch (IOException e) {
+						return errorResult(e.getMessage());
+					}
+				}
+				case WRITE: {
+					Handle handle = checkHandle(args.first());
+					int n = args.count();
+					int length = 0;
+					LuaString[] strings = new LuaString[n - 1];
+					for (int i = 2; i <= n; i++) {
+						LuaString string = strings[i - 2] = args.arg(i).checkLuaString();
+						length += string.length;
+					}
+
+					ByteBuffer buffer = ByteBuffer.allocate(length);
+					for (LuaString string : strings) buffer.put(string.bytes, string.offset, string.length);
+					buffer.flip();
+
+					return await(state, di, op -> handle.write(op, buffer));
+				}
+				case LINES_ITERATOR: {
+					if (handle.closed) throw new LuaError("file is already closed");
+					return await(state, di, op -> handle.read(op, READ_LINE));
+				}
+				default:
+					return Constants.NONE;
+			}
+		}
+
+		@Override
+		protected Varargs resumeThis(LuaState state, Operation op, Varargs value) {
+			return op.result();
+		}
+
+		/**
+		 * Start an operation and suspend this state until it has finished.
+		 *
+		 * @param state The current lua state
+		 * @param di    The current frame
+		 * @param start Start the operation
+		 * @return The result of the operation.
+		 * @throws LuaError        If this state could not be suspended.
+		 * @throws UnwindThrowable When suspending the state.
+		 */
+		private Varargs await(LuaState state, DebugFrame di, Consumer<Operation> start) throws LuaError, UnwindThrowable {
+			Operation op = new Operation(lib.scheduler, state);
+			start.accept(op);
+
+			// If the operation finished immediately, we don't need to suspend at all.
+			if (!op.suspend()) return op.result();
+
+			di.state = op;
+			LuaThread.suspend(state);
+			return op.result();
+		}
+
+		private static Handle checkHandle(LuaValue value) throws LuaError {
+			if (!(value instanceof Handle)) throw ErrorFactory.argError(1, "file expected, got " + value.typeName());
+			Handle handle = (Handle) value;
+			if (handle.closed) throw new LuaError("attempt to use a closed file");
+			return handle;
+		}
+
+		private static void checkFormat(LuaValue format, int arg) throws LuaError {
+			if (format.type() == Constants.TNUMBER) return;
+
+			String name = format.checkString();
+			if (!name.equals("*l") && !name.equals("*a")) throw ErrorFactory.argError(arg, "invalid format");
+		}
+	}
+
+	private static Varargs errorResult(String message) {
+		return varargsOf(NIL, valueOf(message));
+	}
+
+	private Handle open(String filename, String mode) throws IOException {
+		Set<StandardOpenOption> options = EnumSet.noneOf(StandardOpenOption.class);
+		boolean append = false;
+		switch (mode.replace("b", "")) {
+			case "r":
+				options.add(StandardOpenOption.READ);
+				break;
+			case "r+":
+				options.add(StandardOpenOption.READ);
+				options.add(StandardOpenOption.WRITE);
+				break;
+			case "w":
+				options.add(StandardOpenOption.WRITE);
+				options.add(StandardOpenOption.CREATE);
+				options.add(StandardOpenOption.TRUNCATE_EXISTING);
+				break;
+			case "w+":
+				options.add(StandardOpenOption.READ);
+				options.add(StandardOpenOption.WRITE);
+				options.add(StandardOpenOption.CREATE);
+				options.add(StandardOpenOption.TRUNCATE_EXISTING);
+				break;
+			case "a":
+				options.add(StandardOpenOption.WRITE);
+				options.add(StandardOpenOption.CREATE);
+				append = true;
+				break;
+			case "a+":
+				options.add(StandardOpenOption.READ);
+				options.add(StandardOpenOption.WRITE);
+				options.add(StandardOpenOption.CREATE);
+				append = true;
+				break;
+			default:
+				throw new IOException("invalid mode '" + mode + "'");
+		}
+
+		AsynchronousFileChannel channel = AsynchronousFileChannel.open(Paths.get(filename), options, scheduler.executor());
+		FileHandle handle = new FileHandle(this, channel);
+		if (append) handle.position = channel.size();
+		return handle;
+	}
+
+	private Handle popen(String program, String mode) throws IOException {
+		Process process = Runtime.getRuntime().exec(program);
+		return "w".equals(mode)
+			? new ProcessHandle(this, null, process.getOutputStream())
+			: new ProcessHandle(this, process.getInputStream(), null);
+	}
+
+	/**
+	 * A pending asynchronous operation.
+	 *
+	 * An operation may either finish before the state is suspended, in which case the result is returned immediately,
+	 * or after, in which case the state is resumed by the scheduler.
+	 */
+	private static final class Operation {
+		private static final int RUNNING = 0;
+		private static final int SUSPENDED = 1;
+		private static final int DONE = 2;
+
+		private final Scheduler scheduler;
+		private final LuaState state;
+		private final AtomicInteger status = new AtomicInteger(RUNNING);
+		private Varargs result;
+
+		Operation(Scheduler scheduler, LuaState state) {
+			this.scheduler = scheduler;
+			this.state = state;
+		}
+
+		/**
+		 * Mark this operation as suspended.
+		 *
+		 * @return Whether the state should be suspended, or {@code false} if the operation has already finished.
+		 */
+		boolean suspend() {
+			return status.compareAndSet(RUNNING, SUSPENDED);
+		}
+
+		void complete(Varargs result) {
+			this.result = result;
+			if (!status.compareAndSet(RUNNING, DONE)) {
+				status.set(DONE);
+				scheduler.resume(state);
+			}
+		}
+
+		void fail(Throwable error) {
+			String message = error.getMessage();
+			complete(errorResult(message != null ? message : error.toString()));
+		}
+
+		Varargs result() {
+			return result;
+		}
+	}
+
+	/**
+	 * An open file or pipe.
+	 *
+	 * Data is read from the underlying stream in chunks into {@link #buffer}, from which lines and other values are
+	 * then extracted.
+	 */
+	private abstract static class Handle extends LuaValue {
+		final AsyncIoLib lib;
+		boolean closed;
+
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private int start;
+		private int end;
+		private boolean eof;
+
+		Handle(AsyncIoLib lib) {
+			super(Constants.TUSERDATA);
+			this.lib = lib;
+		}
+
+		@Override
+		public LuaTable getMetatable(LuaState state) {
+			return lib.methods;
+		}
+
+		@Override
+		public String toString() {
+			return "file (" + (closed ? "closed" : Integer.toHexString(hashCode())) + ")";
+		}
+
+		/**
+		 * Read into the given buffer.
+		 *
+		 * @param buffer  The buffer to read into.
+		 * @param handler The handler to call with the number of bytes read, or {@code -1} at the end of the stream.
+		 */
+		protected abstract void readChunk(ByteBuffer buffer, CompletionHandler<Integer, Void> handler);
+
+		/**
+		 * Write from the given buffer.
+		 *
+		 * @param buffer  The buffer to write.
+		 * @param handler The handler to call with the number of bytes written.
+		 */
+		protected abstract void writeChunk(ByteBuffer buffer, CompletionHandler<Integer, Void> handler);
+
+		protected long seek(String whence, long offset) throws IOException {
+			throw new IOException("cannot seek on this file");
+		}
+
+		protected void close() throws IOException {
+			closed = true;
+		}
+
+		/**
+		 * The number of bytes which have been read from the underlying stream, but not yet consumed.
+		 *
+		 * @return The number of buffered bytes.
+		 */
+		int buffered() {
+			return end - start;
+		}
+
+		/**
+		 * Discard any data which has been read but not consumed.
+		 */
+		void dropBuffer() {
+			start = end = 0;
+			eof = false;
+		}
+
+		void read(Operation op, Varargs formats) {
+			read(op, formats, 1, new LuaValue[formats.count()]);
+		}
+
+		private void read(Operation op, Varargs formats, int index, LuaValue[] results) {
+			while (index <= formats.count()) {
+				LuaValue format = formats.arg(index);
+				LuaValue result = format.type() == Constants.TNUMBER
+					? readBytes(format.toInteger())
+					: format.toString().equals("*a") ? readAll() : readLine();
+
+				if (result == null) {
+					// We need more data: fetch it and try again.
+					int next = index;
+					fill(op, () -> read(op, formats, next, results));
+					return;
+				}
+
+				results[index - 1] = result;
+				if (result.isNil()) {
+					op.complete(ValueFactory.varargsOf(results, 0, index));
+					return;
+				}
+				index++;
+			}
+
+			op.complete(ValueFactory.varargsOf(results));
+		}
+
+		void write(Operation op, ByteBuffer buffer) {
+			try {
+				beforeWrite();
+			} catch (IOException e) {
+				op.fail(e);
+				return;
+			}
+
+			if (!buffer.hasRemaining()) {
+				op.complete(this);
+				return;
+			}
+
+			writeChunk(buffer, new CompletionHandler<Integer, Void>() {
+				@Override
+				public void completed(Integer result, Void attachment) {
+					if (buffer.hasRemaining()) {
+						writeChunk(buffer, this);
+					} else {
+						op.complete(Handle.this);
+					}
+				}
+
+				@Override
+				public void failed(Throwable exc, Void attachment) {
+					op.fail(exc);
+				}
+			});
+		}
+
+		protected void beforeWrite() throws IOException {
+		}
+
+		/**
+		 * Read the next chunk from the underlying stream.
+		 *
+		 * @param op   The operation we are reading for.
+		 * @param then The callback to run once the chunk has been read.
+		 */
+		private void fill(Operation op, Runnable then) {
+			if (start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				start = 0;
+			}
+			if (end == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+			readChunk(ByteBuffer.wrap(buffer, end, buffer.length - end), new CompletionHandler<Integer, Void>() {
+				@Override
+				public void completed(Integer read, Void attachment) {
+					if (read < 0) {
+						eof = true;
+					} else {
+						end += read;
+					}
+					then.run();
+				}
+
+				@Override
+				public void failed(Throwable exc, Void attachment) {
+					op.fail(exc);
+				}
+			});
+		}
+
+		private LuaValue readLine() {
+			for (int i = start; i < end; i++) {
+				if (buffer[i] == '\n') {
+					LuaString line = line(start, i);
+					start = i + 1;
+					return line;
+				}
+			}
+
+			if (!eof) return null;
+			if (start == end) return NIL;
+
+			LuaString line = line(start, end);
+			start = end;
+			return line.length == 0 ? NIL : line;
+		}
+
+		/**
+		 * Extract a line from the buffer, removing any carriage returns as {@link org.squiddev.cobalt.lib.IoLib} does.
+		 *
+		 * @param start The start of the line.
+		 * @param end   The end of the line, excluding the newline.
+		 * @return The extracted line.
+		 */
+		private LuaString line(int start, int end) {
+			byte[] line = new byte[end - start];
+			int length = 0;
+			for (int i = start; i < end; i++) {
+				if (buffer[i] != '\r') line[length++] = buffer[i];
+			}
+			return LuaString.valueOf(line, 0, length);
+		}
+
+		private LuaValue readAll() {
+			if (!eof) return null;
+			return take(end - start);
+		}
+
+		private LuaValue readBytes(int count) {
+			if (count <= end - start) return take(count);
+			if (!eof) return null;
+			return start == end ? NIL : take(end - start);
+		}
+
+		private LuaString take(int count) {
+			LuaString result = LuaString.valueOf(Arrays.copyOfRange(buffer, start, start + count));
+			start += count;
+			return result;
+		}
+	}
+
+	private static final class FileHandle extends Handle {
+		private final AsynchronousFileChannel channel;
+
+		/**
+		 * The position of the next byte to be read into the buffer.
+		 */
+		long position;
+
+		FileHandle(AsyncIoLib lib, AsynchronousFileChannel channel) {
+			super(lib);
+			this.channel = channel;
+		}
+
+		@Override
+		protected void readChunk(ByteBuffer buffer, CompletionHandler<Integer, Void> handler) {
+			channel.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+				@Override
+				public void completed(Integer result, Void attachment) {
+					if (result > 0) position += result;
+					handler.completed(result, attachment);
+				}
+
+				@Override
+				public void failed(Throwable exc, Void attachment) {
+					handler.failed(exc, attachment);
+				}
+			});
+		}
+
+		@Override
+		protected void writeChunk(ByteBuffer buffer, CompletionHandler<Integer, Void> handler) {
+			channel.write(buffer, position, null, new CompletionHandler<Integer, Void>() {
+				@Override
+				public void completed(Integer result, Void attachment) {
+					position += result;
+					handler.completed(result, attachment);
+				}
+
+				@Override
+				public void failed(Throwable exc, Void attachment) {
+					handler.failed(exc, attachment);
+				}
+			});
+		}
+
+		@Override
+		protected void beforeWrite() {
+			// Move back to the first unconsumed byte.
+			position -= buffered();
+			dropBuffer();
+		}
+
+		@Override
+		protected long seek(String whence, long offset) throws IOException {
+			long current = position - buffered();
+			long next;
+			switch (whence) {
+				case "set":
+					next = offset;
+					break;
+				case "cur":
+					next = current + offset;
+					break;
+				case "end":
+					next = channel.size() + offset;
+					break;
+				default:
+					throw new IOException("invalid option '" + whence + "'");
+			}
+			if (next < 0) throw new IOException("Invalid argument");
+
+			position = next;
+			dropBuffer();
+			return next;
+		}
+
+		@Override
+		protected void close() throws IOException {
+			super.close();
+			channel.close();
+		}
+	}
+
+	private static final class ProcessHandle extends Handle {
+		private final InputStream input;
+		private final OutputStream output;
+
+		ProcessHandle(AsyncIoLib lib, InputStream input, OutputStream output) {
+			super(lib);
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		protected void readChunk(ByteBuffer buffer, CompletionHandler<Integer, Void> handler) {
+			if (input == null) {
+				handler.failed(new IOException("file not opened for reading"), null);
+				return;
+			}
+
+			lib.scheduler.executor().execute(() -> {
+				int read;
+				try {
+					read = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				} catch (IOException e) {
+					handler.failed(e, null);
+					return;
+				}
+				handler.completed(read, null);
+			});
+		}
+
+		@Override
+		protected void writeChunk(ByteBuffer buffer, CompletionHandler<Integer, Void> handler) {
+			if (output == null) {
+				handler.failed(new IOException("file not opened for writing"), null);
+				return;
+			}
+
+			lib.scheduler.executor().execute(() -> {
+				int length = buffer.remaining();
+				try {
+					output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+					output.flush();
+				} catch (IOException e) {
+					handler.failed(e, null);
+					return;
+				}
+				buffer.position(buffer.position() + length);
+				handler.completed(length, null);
+			});
+		}
+
+		@Override
+		protected void close() throws IOException {
+			super.close();
+			if (input != null) input.close();
+			if (output != null) output.close();
+		}
+	}
+
+	/**
+	 * Runs states which use the asynchronous io library, resuming each one when its pending operation finishes.
+	 *
+	 * States are only ever run from the thread calling {@link #run()}.
+	 */
+	public static final class Scheduler {
+		private static final AtomicInteger counter = new AtomicInteger();
+
+		private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+		private final Map<LuaState, CompletableFuture<Varargs>> running = new IdentityHashMap<>();
+		private final int id = counter.incrementAndGet();
+		private volatile ExecutorService executor;
+
+		/**
+		 * Queue a function to be run by this scheduler.
+		 *
+		 * @param state    The state to run the function on. This should not be running any other function.
+		 * @param function The function to run.
+		 * @param args     The arguments to run it with.
+		 * @return A future which completes with the function's return value.
+		 */
+		public CompletableFuture<Varargs> submit(LuaState state, LuaFunction function, Varargs args) {
+			CompletableFuture<Varargs> future = new CompletableFuture<>();
+			queue.add(() -> {
+				running.put(state, future);
+				step(state, () -> LuaThread.runMain(state, function, args));
+			});
+			return future;
+		}
+
+		public CompletableFuture<Varargs> submit(LuaState state, LuaFunction function) {
+			return submit(state, function, Constants.NONE);
+		}
+
+		/**
+		 * Run all submitted functions until they have finished.
+		 *
+		 * @throws InterruptedException If interrupted while waiting for an operation to finish.
+		 */
+		public void run() throws InterruptedException {
+			while (true) {
+				Runnable task = running.isEmpty() ? queue.poll() : queue.take();
+				if (task == null) return;
+				task.run();
+			}
+		}
+
+		/**
+		 * Shut down the threads used for pipes and file operations.
+		 */
+		public void shutdown() {
+			ExecutorService executor = this.executor;
+			if (executor != null) executor.shutdown();
+		}
+
+		void resume(LuaState state) {
+			queue.add(() -> step(state, () -> LuaThread.run(state.getCurrentThread(), Constants.NONE)));
+		}
+
+		private void step(LuaState state, Callable<Varargs> run) {
+			CompletableFuture<Varargs> future = running.get(state);
+			try {
+				Varargs result = run.call();
+				if (result == null && !state.getMainThread().getStatus().equals("dead")) return;
+
+				running.remove(state);
+				future.complete(result);
+			} catch (Exception e) {
+				running.remove(state);
+				future.completeExceptionally(e);
+			}
+		}
+
+		ExecutorService executor() {
+			ExecutorService executor = this.executor;
+			if (executor != null) return executor;
+
+			synchronized (this) {
+				if (this.executor != null) return this.executor;
+
+				AtomicInteger threads = new AtomicInteger();
+				return this.executor = Executors.newCachedThreadPool(command -> {
+					Thread thread = new Thread(command, "AsyncIoLib-" + id + "-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+		}
+	}
+}
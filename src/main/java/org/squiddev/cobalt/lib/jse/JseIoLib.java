@@ -25,16 +25,25 @@
 package org.squiddev.cobalt.lib.jse;
 
 import org.squiddev.cobalt.LuaString;
+import org.squiddev.cobalt.LuaValue;
 import org.squiddev.cobalt.function.LibFunction;
 import org.squiddev.cobalt.lib.IoLib;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+
+import static org.squiddev.cobalt.Constants.EMPTYSTRING;
+import static org.squiddev.cobalt.Constants.NIL;
 
 /**
  * Subclass of {@link IoLib} and therefore {@link LibFunction} which implements the lua standard {@code io}
  * library for the JSE platform.
  *
- * It uses RandomAccessFile to implement seek on files.
+ * Files are accessed through a {@link FileChannel}, with reads and writes going through a buffer whose size may be
+ * changed with {@code file:setvbuf}. Large files opened for reading are memory-mapped instead.
  *
  * This has been implemented to match as closely as possible the behavior in the corresponding library in C.
  *
@@ -44,6 +53,20 @@ import java.io.*;
  * @see <a href="http://www.lua.org/manual/5.1/manual.html#5.7">http://www.lua.org/manual/5.1/manual.html#5.7</a>
  */
 public class JseIoLib extends IoLib {
+	/**
+	 * The default size of a file's buffer, matching C's {@code BUFSIZ}.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Files opened for reading which are at least this large are memory-mapped rather than read through a buffer.
+	 */
+	private static final long MAP_THRESHOLD = 4 << 20;
+
+	/**
+	 * The maximum size of a single mapped region. Larger files are mapped a window at a time.
+	 */
+	private static final int MAP_WINDOW = 64 << 20;
 
 	public JseIoLib() {
 		super();
@@ -62,14 +85,9 @@ public class JseIoLib extends IoLib {
 	@Override
 	protected File openFile(String filename, boolean readMode, boolean appendMode, boolean updateMode, boolean binaryMode) throws IOException {
 		RandomAccessFile f = new RandomAccessFile(filename, readMode ? "r" : "rw");
-		if (appendMode) {
-			f.seek(f.length());
-		} else {
-			if (!readMode) {
-				f.setLength(0);
-			}
-		}
-		return new FileImpl(f);
+		FileChannel channel = f.getChannel();
+		if (!appendMode && !readMode) channel.truncate(0);
+		return new ChannelFile(channel, appendMode ? channel.size() : 0, readMode);
 	}
 
 	@Override
@@ -84,34 +102,426 @@ public class JseIoLib extends IoLib {
 	protected File tmpFile() throws IOException {
 		java.io.File f = java.io.File.createTempFile(".luaj", "bin");
 		f.deleteOnExit();
-		return new FileImpl(new RandomAccessFile(f, "rw"));
+		return new ChannelFile(new RandomAccessFile(f, "rw").getChannel(), 0, false);
+	}
+
+	/**
+	 * A file backed by a {@link FileChannel}.
+	 *
+	 * Data read from the file is held in a chunk, which is never modified once filled. This allows lines and other
+	 * strings read from the file to be slices of the chunk, rather than copies of it. Data to be written is held in a
+	 * separate buffer. At most one of these contains data at any one time.
+	 */
+	private final class ChannelFile extends File {
+		private final FileChannel channel;
+		private final boolean readOnly;
+		private boolean closed = false;
+
+		private String bufferMode = "full";
+		private int bufferSize = BUFFER_SIZE;
+
+		/**
+		 * The current chunk of data read from the file. The first byte of this chunk is at {@link #position}.
+		 */
+		private byte[] chunk;
+		private int chunkPos;
+		private int chunkLimit;
+
+		/**
+		 * Whether the chunk may be used by a {@link LuaString}, and so must not be refilled.
+		 */
+		private boolean chunkShared;
+
+		/**
+		 * The currently mapped region of the file, starting at {@link #mapStart}.
+		 */
+		private MappedByteBuffer map;
+		private long mapStart;
+
+		/**
+		 * The buffer of data to be written at {@link #position}.
+		 */
+		private ByteBuffer writeBuffer;
+		private boolean writing;
+
+		/**
+		 * The position of the file, excluding any data waiting to be written or read from the chunk.
+		 */
+		private long position;
+
+		private ChannelFile(FileChannel channel, long position, boolean readOnly) {
+			this.channel = channel;
+			this.position = position;
+			this.readOnly = readOnly;
+		}
+
+		@Override
+		public String toString() {
+			return "file (" + (isclosed() ? "closed" : hashCode()) + ")";
+		}
+
+		@Override
+		public boolean isstdfile() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			try {
+				flushWrite();
+			} finally {
+				dropRead();
+				chunk = null;
+				map = null;
+				writeBuffer = null;
+				channel.close();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushWrite();
+		}
+
+		@Override
+		public void write(LuaString s) throws IOException {
+			if (readOnly) throw new IOException("Bad file descriptor");
+			dropRead();
+
+			if (s.length >= bufferSize || "no".equals(bufferMode)) {
+				// Large writes, or writes to an unbuffered file, go straight to the channel.
+				flushWrite();
+				writeFully(ByteBuffer.wrap(s.bytes, s.offset, s.length));
+				return;
+			}
+
+			ByteBuffer buffer = writeBuffer();
+			if (writing && buffer.remaining() < s.length) flushWrite();
+			writing = true;
+			buffer.put(s.bytes, s.offset, s.length);
+
+			if ("line".equals(bufferMode) && s.indexOf((byte) '\n', 0) >= 0) flushWrite();
+		}
+
+		@Override
+		public void write(LuaString[] strings, int count) throws IOException {
+			if (readOnly) throw new IOException("Bad file descriptor");
+			dropRead();
+
+			long length = 0;
+			for (int i = 0; i < count; i++) length += strings[i].length;
+
+			ByteBuffer buffer = writeBuffer();
+			if (!"no".equals(bufferMode) && length <= (writing ? buffer.remaining() : buffer.capacity())) {
+				// Everything fits within the buffer, so just append to it.
+				if (!writing) {
+					buffer.clear();
+					writing = true;
+				}
+				for (int i = 0; i < count; i++) {
+					LuaString string = strings[i];
+					buffer.put(string.bytes, string.offset, string.length);
+				}
+
+				if ("line".equals(bufferMode)) {
+					for (int i = 0; i < count; i++) {
+						if (strings[i].indexOf((byte) '\n', 0) >= 0) {
+							flushWrite();
+							break;
+						}
+					}
+				}
+				return;
+			}
+
+			// Otherwise write any pending data and all strings with a single gathering write.
+			ByteBuffer[] buffers = new ByteBuffer[count + 1];
+			int n = 0;
+			if (writing) {
+				writing = false;
+				buffer.flip();
+				buffers[n++] = buffer;
+			}
+			for (int i = 0; i < count; i++) {
+				LuaString string = strings[i];
+				buffers[n++] = ByteBuffer.wrap(string.bytes, string.offset, string.length);
+			}
+
+			try {
+				writeFully(buffers, n);
+			} finally {
+				buffer.clear();
+			}
+		}
+
+		@Override
+		public boolean isclosed() {
+			return closed;
+		}
+
+		@Override
+		public int seek(String option, int pos) throws IOException {
+			flushWrite();
+			dropRead();
+
+			long current = position;
+			if ("set".equals(option)) {
+				position = pos;
+			} else if ("end".equals(option)) {
+				position = channel.size() + pos;
+			} else {
+				position = current + pos;
+			}
+			if (position < 0) {
+				position = current;
+				throw new IOException("Invalid argument");
+			}
+			return (int) position;
+		}
+
+		@Override
+		public void setvbuf(String mode, int size) {
+			try {
+				flushWrite();
+			} catch (IOException ignored) {
+				// Errors will be reported on the next write or flush.
+				return;
+			}
+
+			// The buffers are reallocated when they are next needed.
+			bufferMode = mode;
+			if (size > 0) bufferSize = size;
+		}
+
+		// get length remaining to read
+		@Override
+		public int remaining() throws IOException {
+			flushWrite();
+			return (int) (channel.size() - position - chunkPos);
+		}
+
+		// peek ahead one character
+		@Override
+		public int peek() throws IOException {
+			if (chunkPos >= chunkLimit && !fill()) return -1;
+			return chunk[chunkPos] & 0xFF;
+		}
+
+		// return char if read, -1 if eof, throw IOException on other exception
+		@Override
+		public int read() throws IOException {
+			if (chunkPos >= chunkLimit && !fill()) return -1;
+			return chunk[chunkPos++] & 0xFF;
+		}
+
+		// return number of bytes read if positive, -1 if eof, throws IOException
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int read = 0;
+			while (read < length) {
+				if (chunkPos < chunkLimit) {
+					int count = Math.min(chunkLimit - chunkPos, length - read);
+					System.arraycopy(chunk, chunkPos, bytes, offset + read, count);
+					chunkPos += count;
+					read += count;
+				} else if (length - read >= bufferSize) {
+					// Large reads bypass the chunk entirely.
+					int count = readDirect(bytes, offset + read, length - read);
+					if (count <= 0) break;
+					read += count;
+				} else if (!fill()) {
+					break;
+				}
+			}
+
+			return read == 0 && length > 0 ? -1 : read;
+		}
+
+		@Override
+		public LuaValue readLine() throws IOException {
+			ByteArrayOutputStream out = null;
+			while (true) {
+				if (chunkPos >= chunkLimit && !fill()) {
+					return out == null || out.size() == 0 ? NIL : LuaString.valueOf(out.toByteArray());
+				}
+
+				byte[] chunk = this.chunk;
+				int start = chunkPos, limit = chunkLimit, end = start;
+				while (end < limit && chunk[end] != '\n' && chunk[end] != '\r') end++;
+
+				if (end == limit) {
+					// We've reached the end of this chunk, copy what we have and read the next one.
+					if (out == null) out = new ByteArrayOutputStream();
+					out.write(chunk, start, end - start);
+					chunkPos = end;
+				} else if (chunk[end] == '\n' && out == null) {
+					// The whole line is within this chunk: share it.
+					chunkPos = end + 1;
+					chunkShared = true;
+					return LuaString.valueOf(chunk, start, end - start);
+				} else {
+					if (out == null) out = new ByteArrayOutputStream();
+					out.write(chunk, start, end - start);
+					chunkPos = end + 1;
+					if (chunk[end] == '\n') return LuaString.valueOf(out.toByteArray());
+				}
+			}
+		}
+
+		@Override
+		public LuaValue readBytes(int count) throws IOException {
+			if (count <= 0) return EMPTYSTRING;
+			if (chunkPos >= chunkLimit && count < bufferSize && !fill()) return NIL;
+
+			if (count <= chunkLimit - chunkPos) {
+				int start = chunkPos;
+				chunkPos += count;
+				chunkShared = true;
+				return LuaString.valueOf(chunk, start, count);
+			}
+
+			int remaining = remaining();
+			if (remaining <= 0) return NIL;
+
+			byte[] bytes = new byte[Math.min(count, remaining)];
+			int read = read(bytes, 0, bytes.length);
+			return read < 0 ? NIL : LuaString.valueOf(bytes, 0, read);
+		}
+
+		/**
+		 * Read the next chunk from the file.
+		 *
+		 * @return If any data was read, or {@code false} if we are at the end of the file.
+		 * @throws IOException If the file could not be read.
+		 */
+		private boolean fill() throws IOException {
+			if (closed) throw new IOException("Stream closed");
+			flushWrite();
+			dropRead();
+
+			byte[] chunk = this.chunk;
+			if (chunk == null || chunkShared || chunk.length != bufferSize) {
+				chunk = this.chunk = new byte[bufferSize];
+				chunkShared = false;
+			}
+
+			int read = readDirect(chunk, 0, chunk.length);
+			if (read <= 0) return false;
+
+			// readDirect advances our position, so move it back to the start of the chunk.
+			position -= read;
+			chunkLimit = read;
+			return true;
+		}
+
+		/**
+		 * Read directly from the file into an array, bypassing the chunk.
+		 *
+		 * @param bytes  The array to read into.
+		 * @param offset The offset into the array.
+		 * @param length The maximum number of bytes to read.
+		 * @return The number of bytes read, or {@code -1} if at the end of the file.
+		 * @throws IOException If the file could not be read.
+		 */
+		private int readDirect(byte[] bytes, int offset, int length) throws IOException {
+			dropRead();
+
+			int read;
+			long size;
+			if (readOnly && (size = channel.size()) >= MAP_THRESHOLD) {
+				if (position >= size) return -1;
+
+				MappedByteBuffer map = this.map;
+				if (map == null || position < mapStart || position >= mapStart + map.capacity()) {
+					map = this.map = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAP_WINDOW));
+					mapStart = position;
+				}
+
+				int mapOffset = (int) (position - mapStart);
+				read = Math.min(length, map.capacity() - mapOffset);
+				map.position(mapOffset);
+				map.get(bytes, offset, read);
+			} else {
+				read = channel.read(ByteBuffer.wrap(bytes, offset, length), position);
+				if (read <= 0) return -1;
+			}
+
+			position += read;
+			return read;
+		}
+
+		/**
+		 * Discard the current chunk, moving our position to just after the last consumed byte.
+		 */
+		private void dropRead() {
+			position += chunkPos;
+			chunkPos = chunkLimit = 0;
+		}
+
+		private void flushWrite() throws IOException {
+			if (!writing) return;
+
+			writing = false;
+			ByteBuffer buffer = writeBuffer;
+			buffer.flip();
+			writeFully(buffer);
+			buffer.clear();
+		}
+
+		private ByteBuffer writeBuffer() {
+			ByteBuffer buffer = writeBuffer;
+			if (buffer == null || buffer.capacity() != bufferSize) {
+				buffer = writeBuffer = ByteBuffer.allocate(bufferSize);
+			}
+			return buffer;
+		}
+
+		private void writeFully(ByteBuffer[] buffers, int count) throws IOException {
+			long remaining = 0;
+			for (int i = 0; i < count; i++) remaining += buffers[i].remaining();
+
+			try {
+				channel.position(position);
+				while (remaining > 0) {
+					long written = channel.write(buffers, 0, count);
+					remaining -= written;
+					position += written;
+				}
+			} catch (NonWritableChannelException e) {
+				throw new IOException("Bad file descriptor");
+			}
+		}
+
+		private void writeFully(ByteBuffer buffer) throws IOException {
+			try {
+				while (buffer.hasRemaining()) position += channel.write(buffer, position);
+			} catch (NonWritableChannelException e) {
+				throw new IOException("Bad file descriptor");
+			}
+		}
 	}
 
 	private final class FileImpl extends File {
-		private final RandomAccessFile file;
 		private final InputStream is;
 		private final OutputStream os;
 		private boolean closed = false;
 		private boolean nobuffer = false;
 		private final boolean isStandard;
 
-		private FileImpl(RandomAccessFile file, InputStream is, OutputStream os, boolean isStandard) {
-			this.file = file;
+		private FileImpl(InputStream is, OutputStream os, boolean isStandard) {
 			this.is = is != null ? is.markSupported() ? is : new BufferedInputStream(is) : null;
 			this.os = os;
 			this.isStandard = isStandard;
 		}
 
-		private FileImpl(RandomAccessFile f) {
-			this(f, null, null, false);
-		}
-
 		private FileImpl(InputStream i, boolean isStandard) {
-			this(null, i, null, isStandard);
+			this(i, null, isStandard);
 		}
 
 		private FileImpl(OutputStream o, boolean isStandard) {
-			this(null, null, o, isStandard);
+			this(null, o, isStandard);
 		}
 
 		@Override
@@ -127,9 +537,6 @@ public class JseIoLib extends IoLib {
 		@Override
 		public void close() throws IOException {
 			closed = true;
-			if (file != null) {
-				file.close();
-			}
 		}
 
 		@Override
@@ -143,8 +550,6 @@ public class JseIoLib extends IoLib {
 		public void write(LuaString s) throws IOException {
 			if (os != null) {
 				os.write(s.bytes, s.offset, s.length);
-			} else if (file != null) {
-				file.write(s.bytes, s.offset, s.length);
 			} else {
 				throw new IOException("not implemented");
 			}
@@ -160,28 +565,25 @@ public class JseIoLib extends IoLib {
 
 		@Override
 		public int seek(String option, int pos) throws IOException {
-			if (file != null) {
-				if ("set".equals(option)) {
-					file.seek(pos);
-				} else if ("end".equals(option)) {
-					file.seek(file.length() + pos);
-				} else {
-					file.seek(file.getFilePointer() + pos);
-				}
-				return (int) file.getFilePointer();
-			}
 			throw new IOException("not implemented");
 		}
 
 		@Override
 		public void setvbuf(String mode, int size) {
 			nobuffer = "no".equals(mode);
+			if (nobuffer) {
+				try {
+					flush();
+				} catch (IOException ignored) {
+					// Errors will be reported on the next write or flush.
+				}
+			}
 		}
 
 		// get length remaining to read
 		@Override
 		public int remaining() throws IOException {
-			return file != null ? (int) (file.length() - file.getFilePointer()) : -1;
+			return -1;
 		}
 
 		// peek ahead one character
@@ -192,11 +594,6 @@ public class JseIoLib extends IoLib {
 				int c = is.read();
 				is.reset();
 				return c;
-			} else if (file != null) {
-				long fp = file.getFilePointer();
-				int c = file.read();
-				file.seek(fp);
-				return c;
 			}
 			throw new IOException("not implemented");
 		}
@@ -206,8 +603,6 @@ public class JseIoLib extends IoLib {
 		public int read() throws IOException {
 			if (is != null) {
 				return is.read();
-			} else if (file != null) {
-				return file.read();
 			}
 			throw new IOException("not implemented");
 		}
@@ -215,9 +610,7 @@ public class JseIoLib extends IoLib {
 		// return number of bytes read if positive, -1 if eof, throws IOException
 		@Override
 		public int read(byte[] bytes, int offset, int length) throws IOException {
-			if (file != null) {
-				return file.read(bytes, offset, length);
-			} else if (is != null) {
+			if (is != null) {
 				return is.read(bytes, offset, length);
 			} else {
 				throw new IOException("not implemented");
@@ -71,9 +71,12 @@ import org.squiddev.cobalt.lib.platform.ResourceManipulator;
  * The debug globals are simply the standard globals plus the {@code debug} library {@link DebugLib}.
  */
 public class JsePlatform {
-
 	/**
-	 * Create a standard set of globals and setup a thread
+	 * Create a standard set of globals and setup a thread.
+	 *
+	 * Rather than loading every library from scratch, this installs a copy of a shared {@link GlobalsImage}. The
+	 * {@link PackageLib} and {@link JseIoLib} libraries hold per-state data, and so are loaded separately into each
+	 * state.
 	 *
 	 * @param state The current lua state
 	 * @return Table of globals initialized with the standard JSE libraries
@@ -81,6 +84,13 @@ public class JsePlatform {
 	 * @see JsePlatform
 	 */
 	public static LuaTable standardGlobals(LuaState state) {
+		LuaTable _G = StandardImage.INSTANCE.install(state);
+		_G.load(state, new PackageLib());
+		_G.load(state, new JseIoLib());
+		return _G;
+	}
+
+	private static LuaTable createStandardGlobals(LuaState state) {
 		LuaTable _G = new LuaTable();
 		state.setupThread(_G);
 		_G.load(state, new BaseLib());
@@ -109,4 +119,11 @@ public class JsePlatform {
 		_G.load(state, new DebugLib());
 		return _G;
 	}
+
+	/**
+	 * The image used by {@link #standardGlobals(LuaState)}, built on first use.
+	 */
+	private static final class StandardImage {
+		static final GlobalsImage INSTANCE = GlobalsImage.create(JsePlatform::createStandardGlobals);
+	}
 }
@@ -52,23 +52,31 @@ public class AssertTests {
 	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
 	@ValueSource(strings = {
 		"base-issues",
+		"coroutine-transfer",
 		"debug",
 		"debug-coroutine-hook",
 		"debug-getinfo",
 		"debug-upvalue",
 		"gc",
 		"immutable",
+		"inline-cache",
 		"invalid-tailcall",
+		"io-file",
 		"lex-context",
 		"lex-number",
 		"load-error",
 		"modulo-large",
 		"no-unwind",
 		"number-format",
+		"numeric-registers",
+		"stack-reuse",
 		"string-compare",
 		"string-issues",
 		"string-format",
+		"string-pattern",
+		"string-rope",
 		"table",
+		"table-shape",
 		"time",
 		"tonumber",
 		"traceback",
@@ -79,6 +87,44 @@ public class AssertTests {
 		helpers.runWithDump(name);
 	}
 
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"debug",
+		"modulo-large",
+		"numeric-registers",
+		"stack-reuse",
+		"table",
+	})
+	public void numericRegisters(String name) throws IOException, CompileException, LuaError, InterruptedException {
+		ScriptHelper helpers = new ScriptHelper("/assert/");
+		helpers.setup(x -> x.numericRegisters(true));
+		helpers.runWithDump(name);
+	}
+
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"base-issues",
+		"coroutine-transfer",
+		"debug",
+		"debug-coroutine-hook",
+		"debug-getinfo",
+		"debug-upvalue",
+		"inline-cache",
+		"invalid-tailcall",
+		"no-unwind",
+		"numeric-registers",
+		"stack-reuse",
+		"string-issues",
+		"table",
+		"table-shape",
+		"traceback",
+	})
+	public void compiled(String name) throws IOException, CompileException, LuaError, InterruptedException {
+		ScriptHelper helpers = new ScriptHelper("/assert/");
+		helpers.setup(x -> x.compileThreshold(0));
+		helpers.runWithDump(name);
+	}
+
 	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
 	@ValueSource(strings = {
 		// Skip all, api, big and main
@@ -0,0 +1,201 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.AsyncIoLib;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Runs scripts using {@link AsyncIoLib} against temporary files and process pipes.
+ */
+@Timeout(value = 60)
+public class AsyncIoLibTest {
+	@TempDir
+	Path dir;
+
+	private AsyncIoLib.Scheduler scheduler;
+
+	@BeforeEach
+	public void setup() {
+		scheduler = new AsyncIoLib.Scheduler();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		scheduler.shutdown();
+	}
+
+	private CompletableFuture<Varargs> submit(String script, Object... args) throws Exception {
+		LuaState state = new LuaState();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		globals.load(state, new AsyncIoLib(scheduler));
+
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "script", globals);
+
+		LuaValue[] values = new LuaValue[args.length];
+		for (int i = 0; i < args.length; i++) values[i] = valueOf(args[i].toString());
+		return scheduler.submit(state, function, ValueFactory.varargsOf(values));
+	}
+
+	@Test
+	public void testReadWrite() throws Exception {
+		Path path = dir.resolve("file.txt");
+		CompletableFuture<Varargs> result = submit(
+			"local path = ...\n" +
+				"local h = assert(io.async.open(path, 'w'))\n" +
+				"assert(h:write('hello\\n', 'world\\r\\n', 12, '\\nno newline') == h)\n" +
+				"h:close()\n" +
+				"h = assert(io.async.open(path, 'r'))\n" +
+				"local a, b = h:read('*l', '*l')\n" +
+				"local c = h:read(2)\n" +
+				"assert(h:seek('cur', -2) == 13)\n" +
+				"local rest = h:read('*a')\n" +
+				"assert(h:read('*l') == nil)\n" +
+				"assert(h:seek('set', 6) == 6)\n" +
+				"local lines = {}\n" +
+				"for line in h:lines() do lines[#lines + 1] = line end\n" +
+				"h:close()\n" +
+				"return a, b, c, rest, table.concat(lines, '|')",
+			path
+		);
+
+		scheduler.run();
+		Varargs values = result.get();
+		assertEquals("hello", values.arg(1).toString());
+		assertEquals("world", values.arg(2).toString());
+		assertEquals("12", values.arg(3).toString());
+		assertEquals("12\nno newline", values.arg(4).toString());
+		assertEquals("world|12|no newline", values.arg(5).toString());
+		assertEquals("hello\nworld\r\n12\nno newline", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testManyScripts() throws Exception {
+		int count = 1000;
+		List<CompletableFuture<Varargs>> results = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			results.add(submit(
+				"local path, id = ...\n" +
+					"local h = assert(io.async.open(path, 'w'))\n" +
+					"for i = 1, 100 do h:write(id, ':', i, '\\n') end\n" +
+					"h:close()\n" +
+					"local total = 0\n" +
+					"local co = coroutine.wrap(function()\n" +
+					"  for line in assert(io.async.open(path)):lines() do coroutine.yield(line) end\n" +
+					"end)\n" +
+					"for line in co do total = total + tonumber(line:match(':(%d+)$')) end\n" +
+					"return total",
+				dir.resolve("file-" + i + ".txt"), i
+			));
+		}
+
+		scheduler.run();
+		for (CompletableFuture<Varargs> result : results) assertEquals(5050, result.get().first().toInteger());
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		CompletableFuture<Varargs> result = submit(
+			"local path = ...\n" +
+				"local h, err = io.async.open(path)\n" +
+				"assert(h == nil and type(err) == 'string', err)\n" +
+				"h = assert(io.async.open(path, 'w'))\n" +
+				"h:close()\n" +
+				"assert(not pcall(h.read, h))\n" +
+				"error('oops', 0)",
+			dir.resolve("missing.txt")
+		);
+
+		scheduler.run();
+		ExecutionException error = assertThrows(ExecutionException.class, result::get);
+		assertTrue(error.getCause() instanceof LuaError);
+		assertEquals("oops", ((LuaError) error.getCause()).value.toString());
+	}
+
+	@Test
+	public void testPipes() throws Exception {
+		assumeFalse(System.getProperty("os.name").startsWith("Windows"), "Requires a POSIX shell");
+
+		Path path = dir.resolve("pipe.txt");
+		List<CompletableFuture<Varargs>> results = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			results.add(submit(
+				"local path, id = ...\n" +
+					"local h = assert(io.async.popen('echo hello ' .. id))\n" +
+					"local line = h:read('*l')\n" +
+					"assert(h:read('*l') == nil)\n" +
+					"h:close()\n" +
+					"return line",
+				path, i
+			));
+		}
+
+		scheduler.run();
+		for (int i = 0; i < results.size(); i++) assertEquals("hello " + i, results.get(i).get().first().toString());
+	}
+
+	@Test
+	public void testWritePipe() throws Exception {
+		assumeFalse(System.getProperty("os.name").startsWith("Windows"), "Requires a POSIX shell");
+
+		Path path = dir.resolve("out.txt");
+		CompletableFuture<Varargs> result = submit(
+			"local path = ...\n" +
+				"local h = assert(io.async.popen('tee ' .. path, 'w'))\n" +
+				"h:write('piped\\n')\n" +
+				"h:close()\n" +
+				"return true",
+			path
+		);
+
+		scheduler.run();
+		assertTrue(result.get().first().toBoolean());
+
+		// tee may not have finished writing by the time we close the pipe.
+		for (int i = 0; i < 100 && (!Files.exists(path) || Files.size(path) == 0); i++) Thread.sleep(50);
+		assertEquals(Arrays.asList("piped"), Files.readAllLines(path));
+	}
+}
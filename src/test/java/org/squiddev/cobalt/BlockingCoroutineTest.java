@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.VarArgFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Suspends a large number of coroutines from within Java functions at once, each of which holds on to a thread.
+ */
+public class BlockingCoroutineTest {
+	private static final int COUNT = 50_000;
+
+	@Test
+	@Timeout(120)
+	public void testManySuspendedVirtual() throws Exception {
+		Executor executor = LuaState.Builder.createVirtualExecutor();
+		assumeTrue(executor != null, "Virtual threads are not available");
+
+		LuaState state = LuaState.builder().coroutineExecutor(executor).build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		globals.rawset("blockingYield", new VarArgFunction() {
+			@Override
+			public Varargs invoke(LuaState state, Varargs args) throws LuaError {
+				try {
+					return LuaThread.yieldBlocking(state, args);
+				} catch (InterruptedException e) {
+					throw new InterruptedError(e);
+				}
+			}
+		});
+
+		String script = "local count = ...\n" +
+			"local threads = {}\n" +
+			"for i = 1, count do\n" +
+			"  local co = coroutine.create(function(x) local y = blockingYield(x + 1) return x + y end)\n" +
+			"  assert(select(2, coroutine.resume(co, i)) == i + 1)\n" +
+			"  threads[i] = co\n" +
+			"end\n" +
+			"local total = 0\n" +
+			"for i = 1, count do\n" +
+			"  assert(coroutine.status(threads[i]) == 'suspended')\n" +
+			"  local ok, res = coroutine.resume(threads[i], i)\n" +
+			"  assert(ok, res)\n" +
+			"  total = total + res\n" +
+			"end\n" +
+			"return total";
+
+		try {
+			Varargs result = LuaThread.runMain(state, LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "script", globals), ValueFactory.valueOf(COUNT));
+			assertEquals((long) COUNT * (COUNT + 1), result.first().toLong());
+		} finally {
+			state.abandon();
+		}
+	}
+}
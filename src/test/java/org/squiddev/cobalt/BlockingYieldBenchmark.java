@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.VarArgFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Compares running coroutines which yield from within Java functions on a cached pool of platform threads against
+ * virtual threads. Each invocation suspends {@link #COUNT} coroutines at once, and then resumes them all.
+ *
+ * The virtual thread executor requires Java 21 or later.
+ *
+ * @see LuaState.Builder#coroutineExecutor(Executor)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class BlockingYieldBenchmark {
+	private static final int COUNT = 1000;
+
+	private static final String SCRIPT = "local count = ...\n" +
+		"local threads = {}\n" +
+		"for i = 1, count do\n" +
+		"  local co = coroutine.create(function(x) return blockingYield(x) end)\n" +
+		"  coroutine.resume(co, i)\n" +
+		"  threads[i] = co\n" +
+		"end\n" +
+		"for i = 1, count do coroutine.resume(threads[i], i) end";
+
+	@State(Scope.Thread)
+	public static class ExecutorScope {
+		@Param({"platform", "virtual"})
+		String executor;
+
+		ExecutorService platform;
+		LuaState state;
+		LuaFunction function;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			LuaState.Builder builder = LuaState.builder();
+			switch (executor) {
+				case "platform":
+					builder.coroutineExecutor(platform = Executors.newCachedThreadPool(command -> {
+						Thread thread = new Thread(command, "Coroutine");
+						thread.setDaemon(true);
+						return thread;
+					}));
+					break;
+				case "virtual": {
+					Executor virtual = LuaState.Builder.createVirtualExecutor();
+					if (virtual == null) throw new IllegalStateException("Virtual threads require Java 21 or later");
+					builder.coroutineExecutor(virtual);
+					break;
+				}
+				default:
+					throw new IllegalStateException("Unknown executor " + executor);
+			}
+
+			state = builder.build();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+			globals.rawset("blockingYield", new VarArgFunction() {
+				@Override
+				public Varargs invoke(LuaState state, Varargs args) throws LuaError {
+					try {
+						return LuaThread.yieldBlocking(state, args);
+					} catch (InterruptedException e) {
+						throw new InterruptedError(e);
+					}
+				}
+			});
+
+			function = LoadState.load(state, new ByteArrayInputStream(SCRIPT.getBytes(StandardCharsets.UTF_8)), "script", globals);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			state.abandon();
+			if (platform != null) platform.shutdown();
+		}
+	}
+
+	@Benchmark
+	public void suspendAndResume(ExecutorScope scope) throws Exception {
+		LuaThread.runMain(scope.state, scope.function, valueOf(COUNT));
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.BlockingYieldBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
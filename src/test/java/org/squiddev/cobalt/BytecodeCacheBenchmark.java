@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.BytecodeCache;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.compiler.LuaC;
+import org.squiddev.cobalt.lib.BaseLib;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures loading a 2MB tree of modules from disk in a fresh {@link LuaState}, comparing parsing every file against
+ * loading bytecode from a warm {@link BytecodeCache}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class BytecodeCacheBenchmark {
+	private static final int MODULES = 100;
+	private static final int FUNCTIONS = 60;
+
+	@State(Scope.Thread)
+	public static class ScriptScope {
+		@Param({"false", "true"})
+		boolean cached;
+
+		Path directory;
+		LoadState.LuaCompiler compiler;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			directory = Files.createTempDirectory("cobalt-bench");
+			for (int i = 0; i < MODULES; i++) {
+				StringBuilder module = new StringBuilder("local M = {}\n");
+				for (int j = 0; j < FUNCTIONS; j++) {
+					module.append("function M.f").append(j).append("(self, items, factor)\n")
+						.append("\tlocal total, names = 0, {}\n")
+						.append("\tfor index, item in ipairs(items) do\n")
+						.append("\t\tif type(item) == 'table' and item.value ~= nil then\n")
+						.append("\t\t\ttotal = total + item.value * factor + ").append(j).append("\n")
+						.append("\t\t\tnames[#names + 1] = ('%s:%d'):format(item.name or 'module").append(i).append("', index)\n")
+						.append("\t\tend\n")
+						.append("\tend\n")
+						.append("\treturn total, table.concat(names, ', ')\n")
+						.append("end\n");
+				}
+				module.append("return M\n");
+				Files.write(directory.resolve("module" + i + ".lua"), module.toString().getBytes(StandardCharsets.UTF_8));
+			}
+
+			compiler = cached ? new BytecodeCache(directory.resolve("cache")) : LuaC.INSTANCE;
+
+			// Populate the cache, so we only measure warm starts.
+			load(this, null);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete());
+			}
+		}
+	}
+
+	private static void load(ScriptScope scope, Blackhole blackhole) {
+		LuaState state = LuaState.builder().compiler(scope.compiler).build();
+		JsePlatform.standardGlobals(state);
+		for (int i = 0; i < MODULES; i++) {
+			Varargs result = BaseLib.loadFile(state, scope.directory.resolve("module" + i + ".lua").toString());
+			if (!result.first().isFunction()) throw new IllegalStateException(result.arg(2).toString());
+			if (blackhole != null) blackhole.consume(result);
+		}
+	}
+
+	@Benchmark
+	public void loadModules(ScriptScope scope, Blackhole blackhole) {
+		load(scope, blackhole);
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.BytecodeCacheBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
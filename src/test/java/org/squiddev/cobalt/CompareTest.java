@@ -62,4 +62,36 @@ public class CompareTest {
 		helpers.setup();
 		helpers.runComparisonTest(name);
 	}
+
+	/**
+	 * Run the compatibility tests with unboxed numeric registers.
+	 *
+	 * @see LuaState#numericRegisters
+	 */
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"debuglib", "errors", "functions", "mathlib", "metatags", "stringlib", "tablelib", "upvalues", "vm",
+	})
+	public void numericRegisters(String name) throws Exception {
+		ScriptHelper helpers = new ScriptHelper("/compare/");
+		helpers.setup(x -> x.numericRegisters(true));
+		helpers.runComparisonTest(name);
+	}
+
+	/**
+	 * Run the compatibility tests with every function compiled to JVM bytecode.
+	 *
+	 * @see LuaState#compileThreshold
+	 */
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"baselib", "coroutinelib", "debuglib", "errors", "iolib", "format", "functions", "manyupvals", "mathlib",
+		"metatags", "oslib", "stringlib", "tablelib", "tailcalls", "traceback", "upvalues", "vm",
+		"string_pack",
+	})
+	public void compiled(String name) throws Exception {
+		ScriptHelper helpers = new ScriptHelper("/compare/");
+		helpers.setup(x -> x.compileThreshold(0));
+		helpers.runComparisonTest(name);
+	}
 }
@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.squiddev.cobalt.function.LuaFunction;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Compares the interpreter against compiling functions to JVM bytecode.
+ *
+ * Unlike {@link PerformanceBenchmark}, scripts are only loaded once per trial, so that compiled code is reused
+ * between invocations.
+ *
+ * @see LuaState#compileThreshold
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class CompilerBenchmark {
+	@State(Scope.Thread)
+	public static class ScriptScope {
+		final ScriptHelper helpers = new ScriptHelper("/perf/");
+
+		@Param({"-1", "100"})
+		int compileThreshold;
+
+		LuaFunction binarytrees, fannkuch, nbody, nsieve;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			helpers.setupQuiet(x -> x.compileThreshold(compileThreshold));
+			binarytrees = helpers.loadScript("binarytrees");
+			fannkuch = helpers.loadScript("fannkuch");
+			nbody = helpers.loadScript("nbody");
+			nsieve = helpers.loadScript("nsieve");
+		}
+	}
+
+	@Benchmark
+	public void binarytrees(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.binarytrees, valueOf(10));
+	}
+
+	@Benchmark
+	public void fannkuch(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.fannkuch, valueOf(8));
+	}
+
+	@Benchmark
+	public void nbody(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.nbody, valueOf(50000));
+	}
+
+	@Benchmark
+	public void nsieve(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.nsieve, valueOf(8));
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.CompilerBenchmark.*")
+			.warmupIterations(5)
+			.measurementIterations(5)
+			.measurementTime(TimeValue.milliseconds(12000))
+			.jvmArgsPrepend("-server")
+			.forks(3)
+			.build();
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Measures switching between two coroutines which only call each other from Lua code. Each invocation performs
+ * {@link #COUNT} resume/yield pairs.
+ *
+ * @see LuaThread#yieldDirect(LuaState, Varargs)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class CoroutineBenchmark {
+	private static final int COUNT = 100_000;
+
+	private static final String WRAP = "local count = ...\n" +
+		"local co = coroutine.wrap(function(x) while true do x = coroutine.yield(x + 1) end end)\n" +
+		"local x = 0\n" +
+		"for i = 1, count do x = co(x) end\n" +
+		"return x";
+
+	private static final String RESUME = "local count = ...\n" +
+		"local co = coroutine.create(function(x, y) while true do x, y = coroutine.yield(y, x) end end)\n" +
+		"local resume, x, y = coroutine.resume, 1, 2\n" +
+		"for i = 1, count do local _ _, x, y = resume(co, x, y) end\n" +
+		"return x";
+
+	@State(Scope.Thread)
+	public static class ScriptScope {
+		@Param({"wrap", "resume"})
+		String script;
+
+		LuaState state;
+		LuaFunction function;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			state = new LuaState();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+
+			String contents = script.equals("wrap") ? WRAP : RESUME;
+			function = LoadState.load(state, new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8)), "script", globals);
+		}
+	}
+
+	@Benchmark
+	public Varargs pingPong(ScriptScope scope) throws Exception {
+		return LuaThread.runMain(scope.state, scope.function, valueOf(COUNT));
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.CoroutineBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
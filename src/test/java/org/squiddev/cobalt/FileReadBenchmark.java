@@ -0,0 +1,116 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JseIoLib;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Measures reading a file line by line with {@code file:lines()}, comparing {@link JseIoLib}'s buffered and
+ * memory-mapped files against reading directly from a {@link RandomAccessFile}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class FileReadBenchmark {
+	private static final String SCRIPT = "local h = io.open(...)\n" +
+		"local n = 0\n" +
+		"for line in h:lines() do n = n + #line end\n" +
+		"h:close()\n" +
+		"return n";
+
+	@State(Scope.Thread)
+	public static class FileScope {
+		@Param({"channel", "random-access"})
+		String implementation;
+
+		/**
+		 * The number of lines in the file. Small files are read through a buffer, larger ones are memory-mapped.
+		 */
+		@Param({"10000", "200000"})
+		int lines;
+
+		Path path;
+		LuaState state;
+		LuaFunction function;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			path = Files.createTempFile("cobalt", ".txt");
+			try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+				for (int i = 0; i < lines; i++) writer.write("Line " + i + " of a log file, with some padding\n");
+			}
+
+			state = new LuaState();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+			switch (implementation) {
+				case "channel":
+					break;
+				case "random-access":
+					globals.load(state, new RandomAccessIoLib());
+					break;
+				default:
+					throw new IllegalStateException("Unknown implementation " + implementation);
+			}
+
+			function = LoadState.load(state, new ByteArrayInputStream(SCRIPT.getBytes(StandardCharsets.UTF_8)), "script", globals);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Benchmark
+	public Varargs readLines(FileScope scope) throws Exception {
+		return LuaThread.runMain(scope.state, scope.function, valueOf(scope.path.toString()));
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.FileReadBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JseIoLib;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Measures writing a CSV-like report with {@code file:write(a, b, c, ...)}, comparing {@link JseIoLib}'s buffered
+ * writes against writing each string directly to a {@link java.io.RandomAccessFile}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class FileWriteBenchmark {
+	private static final String SCRIPT = "local path, rows = ...\n" +
+		"local h = io.open(path, 'w')\n" +
+		"for i = 1, tonumber(rows) do h:write(i, ',', i * 2, ',', 'some name', ',', 'value\\n') end\n" +
+		"h:close()";
+
+	@State(Scope.Thread)
+	public static class FileScope {
+		@Param({"channel", "random-access"})
+		String implementation;
+
+		@Param({"100000"})
+		int rows;
+
+		Path path;
+		LuaState state;
+		LuaFunction function;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			path = Files.createTempFile("cobalt", ".csv");
+
+			state = new LuaState();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+			switch (implementation) {
+				case "channel":
+					break;
+				case "random-access":
+					globals.load(state, new RandomAccessIoLib());
+					break;
+				default:
+					throw new IllegalStateException("Unknown implementation " + implementation);
+			}
+
+			function = LoadState.load(state, new ByteArrayInputStream(SCRIPT.getBytes(StandardCharsets.UTF_8)), "script", globals);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Benchmark
+	public Varargs writeRows(FileScope scope) throws Exception {
+		return LuaThread.runMain(scope.state, scope.function, ValueFactory.varargsOf(valueOf(scope.path.toString()), valueOf(scope.rows)));
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.FileWriteBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.lib.GlobalsImage;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Ensures states created from a {@link GlobalsImage} cannot observe each other's changes.
+ */
+public class GlobalsImageTest {
+	private static Varargs run(LuaState state, LuaTable globals, String script) throws Exception {
+		return LuaThread.runMain(state, LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "script", globals));
+	}
+
+	@Test
+	public void testStatesIsolated() throws Exception {
+		LuaState first = new LuaState(), second = new LuaState();
+		LuaTable firstGlobals = JsePlatform.standardGlobals(first);
+		LuaTable secondGlobals = JsePlatform.standardGlobals(second);
+
+		run(first, firstGlobals,
+			"x = 1\n" +
+				"string.upper = nil\n" +
+				"table.extra = true\n" +
+				"math.pi = 3\n" +
+				"getmetatable('').__index = { len = function() return 0 end }\n" +
+				"package.loaded.string.lower = nil\n" +
+				"package.path = ''"
+		);
+
+		Varargs result = run(second, secondGlobals,
+			"return x, ('a'):upper(), table.extra, math.pi, ('abc'):len(), string.lower('A'), package.path ~= ''"
+		);
+		assertTrue(result.arg(1).isNil());
+		assertEquals("A", result.arg(2).toString());
+		assertTrue(result.arg(3).isNil());
+		assertEquals(Math.PI, result.arg(4).toDouble());
+		assertEquals(3, result.arg(5).toInteger());
+		assertEquals("a", result.arg(6).toString());
+		assertTrue(result.arg(7).toBoolean());
+
+		assertTrue(run(first, firstGlobals, "return ('a').upper").first().isNil());
+		assertEquals(0, run(first, firstGlobals, "return ('abc'):len()").first().toInteger());
+	}
+
+	@Test
+	public void testTablesLinked() throws Exception {
+		LuaState state = new LuaState();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+
+		Varargs result = run(state, globals,
+			"return _G._G == _G, package.loaded.string == string, package.loaded._G, getmetatable('').__index == string, " +
+				"package.loaded.package == package, package.loaded.io == io, require('table') == table"
+		);
+		assertTrue(result.arg(1).toBoolean());
+		assertTrue(result.arg(2).toBoolean());
+		assertTrue(result.arg(4).toBoolean());
+		assertTrue(result.arg(5).toBoolean());
+		assertTrue(result.arg(6).toBoolean());
+		assertTrue(result.arg(7).toBoolean());
+		assertSame(globals, state.globalTable);
+	}
+
+	@Test
+	public void testCustomImage() throws Exception {
+		GlobalsImage image = GlobalsImage.create(state -> {
+			LuaTable globals = new LuaTable();
+			LuaTable nested = new LuaTable();
+			nested.rawset("parent", globals);
+			globals.rawset("nested", nested);
+			globals.setMetatable(ValueFactory.tableOf(Constants.INDEX, nested));
+			state.setupThread(globals);
+			return globals;
+		});
+
+		LuaState state = new LuaState();
+		LuaTable globals = image.install(state);
+		Varargs result = run(state, globals, "nested.value = 1 return nested.parent, value");
+		assertSame(globals, result.arg(1));
+		assertEquals(1, result.arg(2).toInteger());
+		assertSame(globals.rawget("nested"), globals.getMetatable(null).rawget(Constants.INDEX));
+
+		LuaState other = new LuaState();
+		LuaTable otherGlobals = image.install(other);
+		assertTrue(run(other, otherGlobals, "return value").first().isNil());
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs many scripts concurrently on a {@link LuaStatePool}, ensuring states are isolated from each other.
+ */
+@Timeout(value = 60)
+public class LuaStatePoolTest {
+	private static Varargs run(LuaState state, LuaTable globals, String script) throws Exception {
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "script", globals);
+		return LuaThread.runMain(state, function);
+	}
+
+	@Test
+	public void testConcurrentScripts() throws Exception {
+		int count = 5000;
+		try (LuaStatePool pool = LuaStatePool.builder().size(4).build()) {
+			List<CompletableFuture<Varargs>> results = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				String script = "assert(counter == nil, 'leaked global')\n" +
+					"assert(string.extra == nil, 'leaked library function')\n" +
+					"counter = " + i + "\n" +
+					"string.extra = function() return counter end\n" +
+					"local t = {}\n" +
+					"for j = 1, 50 do t[#t + 1] = tostring(j) end\n" +
+					"local s = ('%d:%s'):format(counter, ('x'):rep(counter % 7))\n" +
+					"assert(s:match('^(%d+):') == tostring(counter), 'bad match')\n" +
+					"assert(select(2, s:gsub('x' .. counter % 5, '')) == 0, 'bad gsub')\n" +
+					"return string.extra() * 2, table.concat(t, ',', 1, 3)";
+				results.add(pool.submit((state, globals) -> run(state, globals, script)));
+			}
+
+			for (int i = 0; i < count; i++) {
+				Varargs result = results.get(i).get();
+				assertEquals(i * 2, result.arg(1).toInteger());
+				assertEquals("1,2,3", result.arg(2).toString());
+			}
+
+			assertEquals(count, pool.getAcquisitions());
+
+			int uses = 0;
+			Set<Object> caches = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (LuaStatePool.PooledState state : pool.getStates()) {
+				uses += state.getUses();
+				caches.add(state.getState().stringCaches);
+			}
+			assertEquals(count, uses, "Each acquisition should be recorded against a state");
+
+			// The string library's caches are not thread safe, so must not be shared between concurrently running states.
+			assertEquals(pool.getSize(), caches.size(), "States should not share string caches");
+		}
+	}
+
+	@Test
+	public void testGlobalsReset() throws Exception {
+		try (LuaStatePool pool = LuaStatePool.builder().size(1).build()) {
+			pool.submit((state, globals) -> run(state, globals,
+				"print = nil\n" +
+					"string.upper = nil\n" +
+					"setmetatable(_G, { __index = function() return 1 end })\n" +
+					"package.loaded.foo = true\n" +
+					"getmetatable('').__index = {}\n"
+			)).get();
+
+			Varargs result = pool.submit((state, globals) -> run(state, globals,
+				"return type(print), ('a'):upper(), getmetatable(_G), package.loaded.foo, undefined_global"
+			)).get();
+
+			assertEquals("function", result.arg(1).toString());
+			assertEquals("A", result.arg(2).toString());
+			assertTrue(result.arg(3).isNil());
+			assertTrue(result.arg(4).isNil());
+			assertTrue(result.arg(5).isNil());
+			assertEquals(2, pool.getStates().get(0).getUses(), "State should be reused");
+		}
+	}
+
+	@Test
+	public void testSettingsReset() throws Exception {
+		try (LuaStatePool pool = LuaStatePool.builder().size(1).globals(JsePlatform::debugGlobals).build()) {
+			Random random;
+			try (LuaStatePool.PooledState state = pool.acquire()) {
+				random = state.getState().random;
+				run(state.getState(), state.getGlobals(), "debug.sethook(function() end, 'l') math.randomseed(42)");
+				assertNotSame(random, state.getState().random);
+			}
+
+			try (LuaStatePool.PooledState state = pool.acquire()) {
+				assertSame(random, state.getState().random, "Random seed should be reset");
+				assertTrue(run(state.getState(), state.getGlobals(), "return debug.gethook()").first().isNil(), "Hook should be reset");
+			}
+		}
+	}
+
+	@Test
+	public void testFailedCreation() throws Exception {
+		AtomicInteger created = new AtomicInteger();
+		AtomicInteger failures = new AtomicInteger();
+		LuaStatePool pool = LuaStatePool.builder().size(1).globals(state -> {
+			created.incrementAndGet();
+			if (failures.getAndUpdate(x -> Math.max(0, x - 1)) > 0) throw new IllegalStateException("Cannot create state");
+			return JsePlatform.standardGlobals(state);
+		}).build();
+
+		try {
+			LuaStatePool.PooledState state = pool.acquire();
+			state.invalidate();
+			failures.set(1);
+			state.close();
+			assertEquals(1, pool.getIdleCount());
+
+			// Creating the replacement fails, but should not lose the pool's only slot.
+			assertThrows(IllegalStateException.class, pool::acquire);
+			assertEquals(1, pool.getFailedCreations());
+			assertEquals(1, pool.getIdleCount());
+
+			try (LuaStatePool.PooledState replacement = pool.acquire()) {
+				assertNotSame(state, replacement);
+				assertEquals(3, created.get());
+			}
+			assertEquals(1, pool.getIdleCount());
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testConcurrencyBounded() throws Exception {
+		int size = 3;
+		AtomicInteger active = new AtomicInteger();
+		AtomicInteger maxActive = new AtomicInteger();
+
+		try (LuaStatePool pool = LuaStatePool.builder().size(size).build()) {
+			List<CompletableFuture<Object>> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				results.add(pool.submit((state, globals) -> {
+					maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+					try {
+						Thread.sleep(1);
+						return null;
+					} finally {
+						active.decrementAndGet();
+					}
+				}));
+			}
+
+			for (CompletableFuture<Object> result : results) result.get();
+		}
+
+		assertTrue(maxActive.get() <= size, "At most " + size + " states should be in use, got " + maxActive.get());
+	}
+
+	@Test
+	public void testAcquire() throws Exception {
+		try (LuaStatePool pool = LuaStatePool.builder().size(1).build()) {
+			LuaStatePool.PooledState state = pool.acquire();
+			assertEquals(0, pool.getIdleCount());
+			assertNull(pool.tryAcquire(10, TimeUnit.MILLISECONDS), "Pool should be exhausted");
+
+			state.getGlobals().rawset("x", ValueFactory.valueOf(1));
+			state.close();
+			state.close();
+			assertEquals(1, pool.getIdleCount(), "Closing twice should only release once");
+
+			try (LuaStatePool.PooledState again = pool.acquire()) {
+				assertSame(state, again);
+				assertTrue(again.getGlobals().rawget("x").isNil());
+			}
+		}
+	}
+
+	@Test
+	public void testErrorsDoNotPoison() throws Exception {
+		try (LuaStatePool pool = LuaStatePool.builder().size(1).build()) {
+			ExecutionException error = assertThrows(ExecutionException.class, () ->
+				pool.submit((state, globals) -> run(state, globals, "x = 1 error('oh no')")).get());
+			assertTrue(error.getCause() instanceof LuaError, "Should fail with a LuaError");
+
+			Varargs result = pool.submit((state, globals) -> run(state, globals, "return x")).get();
+			assertTrue(result.first().isNil());
+		}
+	}
+
+	@Test
+	public void testInvalidatedReplaced() throws Exception {
+		try (LuaStatePool pool = LuaStatePool.builder().size(1).build()) {
+			LuaStatePool.PooledState state = pool.acquire();
+			state.invalidate();
+			state.close();
+
+			try (LuaStatePool.PooledState replacement = pool.acquire()) {
+				assertNotSame(state, replacement);
+				assertNotSame(state.getState(), replacement.getState());
+				assertEquals(1, replacement.getUses());
+			}
+		}
+	}
+
+	@Test
+	public void testClosed() throws Exception {
+		LuaStatePool pool = LuaStatePool.builder().size(1).build();
+		pool.close();
+		assertThrows(IllegalStateException.class, pool::acquire);
+		assertThrows(IllegalStateException.class, () -> pool.submit((state, globals) -> null));
+	}
+}
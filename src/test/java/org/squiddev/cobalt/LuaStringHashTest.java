@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledIfSystemProperty;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the hashes used for long {@link LuaString}s.
+ */
+public class LuaStringHashTest {
+	private static final int COUNT = 1024;
+	private static final int LENGTH = 128;
+
+	/**
+	 * Create {@link #COUNT} keys which only differ in the bytes skipped by Lua's sampling hash.
+	 */
+	private static byte[][] adversarialKeys() {
+		int step = (LENGTH >> 5) + 1;
+
+		byte[][] keys = new byte[COUNT][];
+		for (int i = 0; i < COUNT; i++) {
+			byte[] bytes = keys[i] = new byte[LENGTH];
+			Arrays.fill(bytes, (byte) 'x');
+
+			// Write i into bytes which would not have been sampled.
+			int value = i;
+			for (int j = 0; j < LENGTH && value != 0; j++) {
+				if ((LENGTH - 1 - j) % step == 0) continue;
+				bytes[j] = (byte) ('a' + (value & 15));
+				value >>= 4;
+			}
+		}
+
+		return keys;
+	}
+
+	/**
+	 * The default hash is Lua's original one, so only samples bytes of long strings.
+	 */
+	@Test
+	@DisabledIfSystemProperty(named = "cobalt.seededStringHash", matches = "true")
+	public void testDefaultHashSamples() {
+		Set<Integer> hashes = new HashSet<>();
+		for (byte[] key : adversarialKeys()) hashes.add(LuaString.valueOf(key).hashCode());
+
+		assertEquals(1, hashes.size());
+	}
+
+	/**
+	 * Long keys which only differ in the bytes skipped by Lua's sampling hash should have distinct seeded hashes.
+	 */
+	@Test
+	public void testSeededHashCoversAllBytes() {
+		Set<Integer> hashes = new HashSet<>();
+		for (byte[] key : adversarialKeys()) {
+			int hash = LuaString.hashLong(key, 0, key.length);
+			assertTrue(hash != 0, "Hash should never be 0");
+			hashes.add(hash);
+		}
+
+		assertTrue(hashes.size() > COUNT - 8, "Expected distinct hashes, got " + hashes.size());
+	}
+}
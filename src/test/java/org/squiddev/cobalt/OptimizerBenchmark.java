@@ -0,0 +1,167 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.CompileException;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.compiler.LuaC;
+import org.squiddev.cobalt.function.LuaFunction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Compares running scripts compiled with {@link LuaC#INSTANCE} and {@link LuaC#UNOPTIMIZED}.
+ *
+ * {@link #main(String...)} also prints the number of instructions and stack slots each script compiles to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class OptimizerBenchmark {
+	private static final String[] SCRIPTS = {"binarytrees", "fannkuch", "nbody", "nsieve"};
+
+	/**
+	 * A script with more constants than fit in an RK operand, meaning table keys must be loaded into a register
+	 * before being used.
+	 */
+	private static final String FIELDS;
+
+	static {
+		StringBuilder script = new StringBuilder("local names = {");
+		for (int i = 0; i < 300; i++) script.append("\"name").append(i).append("\", ");
+		script.append("}\n")
+			.append("local n = ...\n")
+			.append("local point = { x = 0, y = 0, z = 0 }\n")
+			.append("for i = 1, n do\n")
+			.append("\tpoint.x = point.x + i\n")
+			.append("\tpoint.y = point.y + point.x % 7\n")
+			.append("\tpoint.z = point.x - point.y\n")
+			.append("end\n")
+			.append("return #names, point.z\n");
+		FIELDS = script.toString();
+	}
+
+	@State(Scope.Thread)
+	public static class ScriptScope {
+		final ScriptHelper helpers = new ScriptHelper("/perf/");
+
+		@Param({"false", "true"})
+		boolean optimize;
+
+		LuaFunction binarytrees, fannkuch, nbody, nsieve, fields;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			helpers.setupQuiet(b -> b.compiler(optimize ? LuaC.INSTANCE : LuaC.UNOPTIMIZED));
+			binarytrees = helpers.loadScript("binarytrees");
+			fannkuch = helpers.loadScript("fannkuch");
+			nbody = helpers.loadScript("nbody");
+			nsieve = helpers.loadScript("nsieve");
+			fields = LoadState.load(helpers.state, new ByteArrayInputStream(FIELDS.getBytes(StandardCharsets.UTF_8)), "=fields", helpers.globals);
+		}
+	}
+
+	@Benchmark
+	public void binarytrees(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.binarytrees, valueOf(10));
+	}
+
+	@Benchmark
+	public void fannkuch(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.fannkuch, valueOf(8));
+	}
+
+	@Benchmark
+	public void nbody(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.nbody, valueOf(50000));
+	}
+
+	@Benchmark
+	public void nsieve(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.nsieve, valueOf(8));
+	}
+
+	@Benchmark
+	public void fields(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.fields, valueOf(100000));
+	}
+
+	private static int instructions(Prototype proto) {
+		int count = proto.code.length;
+		for (Prototype child : proto.p) count += instructions(child);
+		return count;
+	}
+
+	private static int stackSlots(Prototype proto) {
+		int count = proto.maxstacksize;
+		for (Prototype child : proto.p) count += stackSlots(child);
+		return count;
+	}
+
+	private static void printSize(String name, InputStream stream) throws IOException, CompileException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] chunk = new byte[4096];
+		int read;
+		while ((read = stream.read(chunk)) > 0) buffer.write(chunk, 0, read);
+		byte[] contents = buffer.toByteArray();
+
+		Prototype[] protos = new Prototype[2];
+		for (int i = 0; i < 2; i++) {
+			protos[i] = LuaC.compile(new ByteArrayInputStream(contents), valueOf("@" + name), null, StringTable.global(), i == 1);
+		}
+
+		System.out.printf("%-12s instructions %5d -> %5d, stack slots %4d -> %4d%n", name,
+			instructions(protos[0]), instructions(protos[1]), stackSlots(protos[0]), stackSlots(protos[1]));
+	}
+
+	public static void main(String... args) throws RunnerException, IOException, CompileException {
+		for (String script : SCRIPTS) {
+			try (InputStream stream = OptimizerBenchmark.class.getResourceAsStream("/perf/" + script + ".lua")) {
+				printSize(script, stream);
+			}
+		}
+		printSize("fields", new ByteArrayInputStream(FIELDS.getBytes(StandardCharsets.UTF_8)));
+
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.OptimizerBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
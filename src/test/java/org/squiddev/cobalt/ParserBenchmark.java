@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.LuaC;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures compiling Lua's test suite (from the {@code bytecode-compiler} resources) to prototypes, both from files
+ * on disk and from strings in memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class ParserBenchmark {
+	private static final String[] FILES = {
+		"all", "api", "attrib", "big", "calls", "checktable", "closure", "code", "constructs", "db", "errors",
+		"events", "files", "gc", "literals", "locals", "main", "math", "nextvar", "pm", "sort", "strings",
+	};
+
+	@State(Scope.Thread)
+	public static class ScriptScope {
+		@Param({"file", "string"})
+		String source;
+
+		Path directory;
+		LuaString[] contents = new LuaString[FILES.length];
+		LuaString[] names = new LuaString[FILES.length];
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			directory = Files.createTempDirectory("cobalt-bench");
+			for (int i = 0; i < FILES.length; i++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				try (InputStream stream = ParserBenchmark.class.getResourceAsStream("/bytecode-compiler/lua5.2/" + FILES[i] + ".lua")) {
+					byte[] buffer = new byte[4096];
+					int read;
+					while ((read = stream.read(buffer)) > 0) out.write(buffer, 0, read);
+				}
+
+				Files.write(directory.resolve(FILES[i] + ".lua"), out.toByteArray());
+				contents[i] = LuaString.valueOf(out.toByteArray());
+				names[i] = LuaString.valueOf("@" + FILES[i] + ".lua");
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete());
+			}
+		}
+	}
+
+	@Benchmark
+	public void compile(ScriptScope scope, Blackhole blackhole) throws Exception {
+		for (int i = 0; i < FILES.length; i++) {
+			if (scope.source.equals("file")) {
+				try (InputStream stream = new FileInputStream(scope.directory.resolve(FILES[i] + ".lua").toFile())) {
+					blackhole.consume(LuaC.compile(stream, scope.names[i]));
+				}
+			} else {
+				blackhole.consume(LuaC.compile(scope.contents[i].toInputStream(), scope.names[i]));
+			}
+		}
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.ParserBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
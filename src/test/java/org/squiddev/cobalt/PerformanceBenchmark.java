@@ -43,9 +43,12 @@ public class PerformanceBenchmark {
 	public static class ScriptScope {
 		final ScriptHelper helpers = new ScriptHelper("/perf/");
 
+		@Param({"false", "true"})
+		boolean numericRegisters;
+
 		@Setup(Level.Iteration)
 		public void setup() {
-			helpers.setupQuiet();
+			helpers.setupQuiet(x -> x.numericRegisters(numericRegisters));
 		}
 	}
 
@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.LuaC;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures compiling a large tree of independent modules, comparing compiling each one in turn against
+ * {@link LuaC#compileAll(Map)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class PreloadBenchmark {
+	private static final int MODULES = 400;
+	private static final int FUNCTIONS = 40;
+
+	@State(Scope.Thread)
+	public static class ScriptScope {
+		@Param({"false", "true"})
+		boolean parallel;
+
+		final Map<LuaString, byte[]> modules = new LinkedHashMap<>();
+
+		@Setup(Level.Trial)
+		public void setup() {
+			for (int i = 0; i < MODULES; i++) {
+				StringBuilder module = new StringBuilder("local M = {}\n");
+				for (int j = 0; j < FUNCTIONS; j++) {
+					module.append("function M.f").append(j).append("(self, items, factor)\n")
+						.append("\tlocal total, names = 0, {}\n")
+						.append("\tfor index, item in ipairs(items) do\n")
+						.append("\t\tif type(item) == 'table' and item.value ~= nil then\n")
+						.append("\t\t\ttotal = total + item.value * factor + ").append(j).append("\n")
+						.append("\t\t\tnames[#names + 1] = ('%s:%d'):format(item.name or 'module").append(i).append("', index)\n")
+						.append("\t\tend\n")
+						.append("\tend\n")
+						.append("\treturn total, table.concat(names, ', ')\n")
+						.append("end\n");
+				}
+				module.append("return M\n");
+				modules.put(LuaString.valueOf("@lib/module" + i + ".lua"), module.toString().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	@Benchmark
+	public void preload(ScriptScope scope, Blackhole blackhole) throws Exception {
+		if (scope.parallel) {
+			Map<LuaString, InputStream> chunks = new LinkedHashMap<>();
+			for (Map.Entry<LuaString, byte[]> module : scope.modules.entrySet()) {
+				chunks.put(module.getKey(), new ByteArrayInputStream(module.getValue()));
+			}
+			blackhole.consume(LuaC.compileAll(chunks));
+		} else {
+			for (Map.Entry<LuaString, byte[]> module : scope.modules.entrySet()) {
+				blackhole.consume(LuaC.compile(new ByteArrayInputStream(module.getValue()), module.getKey()));
+			}
+		}
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.PreloadBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
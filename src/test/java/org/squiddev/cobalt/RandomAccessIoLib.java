@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.squiddev.cobalt.lib.jse.JseIoLib;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * An IO library which reads and writes files directly with a {@link RandomAccessFile}, one byte or string at a
+ * time. This is used as a baseline when benchmarking {@link JseIoLib}.
+ */
+final class RandomAccessIoLib extends JseIoLib {
+	@Override
+	protected File openFile(String filename, boolean readMode, boolean appendMode, boolean updateMode, boolean binaryMode) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, readMode ? "r" : "rw");
+		if (!readMode && !appendMode) file.setLength(0);
+		return new RandomAccessFileImpl(file);
+	}
+
+	private final class RandomAccessFileImpl extends File {
+		private final RandomAccessFile file;
+		private boolean closed;
+
+		private RandomAccessFileImpl(RandomAccessFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public void write(LuaString string) throws IOException {
+			file.write(string.bytes, string.offset, string.length);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public boolean isstdfile() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			file.close();
+		}
+
+		@Override
+		public boolean isclosed() {
+			return closed;
+		}
+
+		@Override
+		public int seek(String option, int bytecount) throws IOException {
+			file.seek(bytecount);
+			return bytecount;
+		}
+
+		@Override
+		public void setvbuf(String mode, int size) {
+		}
+
+		@Override
+		public int remaining() throws IOException {
+			return (int) (file.length() - file.getFilePointer());
+		}
+
+		@Override
+		public int peek() throws IOException {
+			long fp = file.getFilePointer();
+			int c = file.read();
+			file.seek(fp);
+			return c;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return file.read();
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			return file.read(bytes, offset, length);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.CachingCompiler;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.compiler.LuaC;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+import org.squiddev.cobalt.lib.platform.VoidResourceManipulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures requiring the same module from many fresh {@link LuaState}s, comparing compiling it every time against
+ * sharing a {@link CachingCompiler} between all states.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class RequireBenchmark {
+	private static final int STATES = 10_000;
+	private static final byte[] SCRIPT = "return require 'bench'.f1".getBytes(StandardCharsets.UTF_8);
+
+	@State(Scope.Thread)
+	public static class ScriptScope {
+		@Param({"false", "true"})
+		boolean cached;
+
+		LoadState.LuaCompiler compiler;
+		ModuleResources resources;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			compiler = cached ? new CachingCompiler() : LuaC.INSTANCE;
+
+			// A module with a reasonable number of small functions, much like a typical utility library.
+			StringBuilder module = new StringBuilder("local M = {}\n");
+			for (int i = 0; i < 50; i++) {
+				module.append("function M.f").append(i).append("(t, x)\n")
+					.append("\tlocal out = {}\n")
+					.append("\tfor k, v in pairs(t) do if type(v) == 'number' then out[k] = v * x + ").append(i).append(" end end\n")
+					.append("\treturn out, #out, tostring(x) .. 'suffix").append(i).append("'\n")
+					.append("end\n");
+			}
+			module.append("return M\n");
+			resources = new ModuleResources(module.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static final class ModuleResources extends VoidResourceManipulator {
+		private final byte[] module;
+
+		ModuleResources(byte[] module) {
+			this.module = module;
+		}
+
+		@Override
+		public InputStream findResource(String filename) {
+			return filename.endsWith("bench.lua") ? new ByteArrayInputStream(module) : null;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(STATES)
+	public void require(ScriptScope scope, Blackhole blackhole) throws Exception {
+		for (int i = 0; i < STATES; i++) {
+			LuaState state = LuaState.builder().compiler(scope.compiler).resourceManipulator(scope.resources).build();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+			LuaFunction script = LoadState.load(state, new ByteArrayInputStream(SCRIPT), "script", globals);
+			blackhole.consume(LuaThread.runMain(state, script));
+		}
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.RequireBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
@@ -70,7 +70,12 @@ public class ScriptHelper extends FileResourceManipulator {
 	}
 
 	public void setupQuiet() {
-		setupCommon(LuaState.builder()
+		setupQuiet(x -> {
+		});
+	}
+
+	public void setupQuiet(Consumer<LuaState.Builder> extend) {
+		LuaState.Builder builder = LuaState.builder()
 			.resourceManipulator(this)
 			.stdout(new PrintStream(new OutputStream() {
 				@Override
@@ -80,8 +85,9 @@ public class ScriptHelper extends FileResourceManipulator {
 				@Override
 				public void write(byte[] b, int off, int len) {
 				}
-			}))
-			.build());
+			}));
+		extend.accept(builder);
+		setupCommon(builder.build());
 	}
 
 	private void setupCommon(LuaState state) {
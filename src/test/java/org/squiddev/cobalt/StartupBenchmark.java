@@ -0,0 +1,87 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.lib.*;
+import org.squiddev.cobalt.lib.jse.JseIoLib;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to create a {@link LuaState} with the standard library, comparing installing the shared
+ * {@link GlobalsImage} against loading each library from scratch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class StartupBenchmark {
+	private static final int STATES = 100_000;
+
+	@Benchmark
+	@OperationsPerInvocation(STATES)
+	public void image(Blackhole blackhole) {
+		for (int i = 0; i < STATES; i++) {
+			LuaState state = new LuaState();
+			blackhole.consume(JsePlatform.standardGlobals(state));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(STATES)
+	public void load(Blackhole blackhole) {
+		for (int i = 0; i < STATES; i++) {
+			LuaState state = new LuaState();
+			LuaTable _G = new LuaTable();
+			state.setupThread(_G);
+			_G.load(state, new BaseLib());
+			_G.load(state, new PackageLib());
+			_G.load(state, new TableLib());
+			_G.load(state, new StringLib());
+			_G.load(state, new CoroutineLib());
+			_G.load(state, new MathLib());
+			_G.load(state, new JseIoLib());
+			_G.load(state, new OsLib());
+			_G.load(state, new Utf8Lib());
+			blackhole.consume(_G);
+		}
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.StartupBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Measures building a string incrementally with {@code s = s .. x}. Each invocation performs {@link #COUNT} appends.
+ *
+ * The {@code append} script only uses the final string, while the others inspect the string being built after every
+ * append, which would otherwise force the rope to be flattened each time.
+ *
+ * @see LuaRope
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class StringBuildBenchmark {
+	private static final int COUNT = 10_000;
+
+	private static final String APPEND = "local count = ...\n" +
+		"local s = ''\n" +
+		"for i = 1, count do s = s .. 'line ' .. i .. '\\n' end\n" +
+		"return #s";
+
+	private static final String SUB = "local count = ...\n" +
+		"local s, n = '', 0\n" +
+		"for i = 1, count do s = s .. 'line ' .. i .. '\\n' if s:sub(-2, -2) == '0' then n = n + 1 end end\n" +
+		"return n";
+
+	private static final String BYTE = "local count = ...\n" +
+		"local s, n = '', 0\n" +
+		"for i = 1, count do s = s .. 'line ' .. i .. '\\n' n = n + s:byte(math.floor(#s / 2)) end\n" +
+		"return n";
+
+	private static final String FIND = "local count = ...\n" +
+		"local s, n = '', 0\n" +
+		"for i = 1, count do s = s .. 'line ' .. i .. '\\n' if s:find('line 1\\n', 1, true) then n = n + 1 end end\n" +
+		"return n";
+
+	@State(Scope.Thread)
+	public static class ScriptScope {
+		@Param({"append", "sub", "byte", "find"})
+		String script;
+
+		LuaState state;
+		LuaFunction function;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			state = new LuaState();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+
+			String contents;
+			switch (script) {
+				case "append":
+					contents = APPEND;
+					break;
+				case "sub":
+					contents = SUB;
+					break;
+				case "byte":
+					contents = BYTE;
+					break;
+				case "find":
+					contents = FIND;
+					break;
+				default:
+					throw new IllegalArgumentException(script);
+			}
+			function = LoadState.load(state, new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8)), "script", globals);
+		}
+	}
+
+	@Benchmark
+	public Varargs build(ScriptScope scope) throws Exception {
+		return LuaThread.runMain(scope.state, scope.function, valueOf(COUNT));
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.StringBuildBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
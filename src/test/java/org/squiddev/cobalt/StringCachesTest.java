@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the string library's caches are not shared between states, even though its functions are.
+ */
+@Timeout(value = 60)
+public class StringCachesTest {
+	/**
+	 * Uses more distinct patterns and format strings than fit in the caches, so entries are evicted (and the cache modified) on each call.
+	 */
+	private static final String SCRIPT = "local total = 0\n" +
+		"for round = 1, 10 do\n" +
+		"  for i = 1, 300 do\n" +
+		"    local s = 'key' .. i .. '=value' .. i\n" +
+		"    local k, v = s:match('^(%a+' .. i .. ')=(%w+)$')\n" +
+		"    if k ~= 'key' .. i or v ~= 'value' .. i then error('bad match ' .. i) end\n" +
+		"    if s:find('=value' .. i .. '$') ~= #('key' .. i) + 1 then error('bad find ' .. i) end\n" +
+		"    total = total + select(2, s:gsub('[' .. (i % 10) .. ']', '#'))\n" +
+		"    if ('%s=%0' .. (i % 7 + 2) .. 'd;' .. i):format('key', i) ~= ('key=%s;%d'):format(('0'):rep(i % 7 + 2 - #tostring(i)) .. i, i) then error('bad format ' .. i) end\n" +
+		"  end\n" +
+		"end\n" +
+		"return total";
+
+	private static LuaValue run() throws Exception {
+		LuaState state = new LuaState();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(SCRIPT.getBytes(StandardCharsets.UTF_8)), "=caches", globals);
+		return LuaThread.runMain(state, function).first();
+	}
+
+	@Test
+	public void testPerState() {
+		LuaState first = new LuaState(), second = new LuaState();
+		LuaTable firstGlobals = JsePlatform.standardGlobals(first), secondGlobals = JsePlatform.standardGlobals(second);
+
+		// The functions themselves are shared, so must not hold the caches.
+		assertSame(((LuaTable) firstGlobals.rawget("string")).rawget("find"), ((LuaTable) secondGlobals.rawget("string")).rawget("find"));
+		assertNotSame(first.stringCaches, second.stringCaches);
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		LuaValue expected = run();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<LuaValue>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) results.add(executor.submit(StringCachesTest::run));
+			for (Future<LuaValue> result : results) assertEquals(expected, result.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures searching through a 1MB string of random words with {@code string.find} and {@code string.gsub}.
+ *
+ * Each search is for a word which only occurs at the very end of the input, so the whole string must be scanned.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class StringSearchBenchmark {
+	private static final int LENGTH = 1 << 20;
+
+	@State(Scope.Thread)
+	public static class ScriptScope {
+		@Param({
+			"return (...):find('needle', 1, true)",
+			"return (...):find('needle%d+')",
+			"return (...):find('[nN]eedle')",
+			"return (...):gsub('needle%d', '')",
+		})
+		String script;
+
+		LuaState state;
+		LuaFunction function;
+		LuaString input;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			state = new LuaState();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+			function = LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "script", globals);
+
+			// Random lowercase words which often share a prefix with the needle, but never contain it.
+			Random random = new Random(0);
+			byte[] bytes = new byte[LENGTH];
+			String[] words = {"need", "needs", "needed", "noodle", "eel", "lead", "steed", "le"};
+			int position = 0;
+			while (position < LENGTH - 16) {
+				String word = random.nextInt(4) == 0 ? words[random.nextInt(words.length)] : Integer.toString(random.nextInt(1 << 20), 36);
+				for (int i = 0; i < word.length(); i++) bytes[position++] = (byte) word.charAt(i);
+				bytes[position++] = ' ';
+			}
+			byte[] end = "needle1".getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(end, 0, bytes, position, end.length);
+			for (position += end.length; position < LENGTH; position++) bytes[position] = ' ';
+
+			input = LuaString.valueOf(bytes);
+		}
+	}
+
+	@Benchmark
+	public Varargs search(ScriptScope scope) throws Exception {
+		return LuaThread.runMain(scope.state, scope.function, scope.input);
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.StringSearchBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
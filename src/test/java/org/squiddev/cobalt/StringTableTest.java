@@ -0,0 +1,211 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.compiler.CachingCompiler;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaClosure;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Timeout(value = 60)
+public class StringTableTest {
+	private static LuaString fresh(String contents) {
+		// Short strings are interned in the global table.
+		return LuaString.valueOf(contents.getBytes(StandardCharsets.ISO_8859_1), 0, contents.length());
+	}
+
+	/**
+	 * Create a string which is not in the global table. Strings of at least 16 bytes backed by a 32 byte array are
+	 * never interned by {@link LuaString#valueOf(byte[], int, int)}.
+	 *
+	 * @param suffix The suffix for this string.
+	 * @return The created string.
+	 */
+	private static LuaString unique(String suffix) {
+		byte[] source = ("interned-string-" + suffix).getBytes(StandardCharsets.ISO_8859_1);
+		byte[] bytes = new byte[32];
+		System.arraycopy(source, 0, bytes, 0, source.length);
+		return LuaString.valueOf(bytes, 0, source.length);
+	}
+
+	@Test
+	public void testIntern() {
+		StringTable table = new StringTable(1024, 32);
+		LuaString first = unique("hello");
+		LuaString second = unique("hello");
+		assertNotSame(first, second);
+
+		assertSame(first, table.intern(first));
+		assertSame(first, table.intern(second));
+		assertSame(first, table.intern(first));
+		assertEquals(1, table.size());
+		assertEquals(1, table.getHits());
+		assertEquals(1, table.getMisses());
+	}
+
+	@Test
+	public void testLongStringsNotInterned() {
+		StringTable table = new StringTable(1024, 8);
+		LuaString first = unique("hello");
+		LuaString second = unique("hello");
+
+		assertSame(first, table.intern(first));
+		assertSame(second, table.intern(second));
+		assertEquals(0, table.size());
+		assertTrue(first.raweq(second));
+	}
+
+	@Test
+	public void testSizeLimit() {
+		StringTable table = new StringTable(0, 32);
+		LuaString first = unique("hello");
+		LuaString second = unique("hello");
+
+		assertSame(first, table.intern(first));
+		assertSame(second, table.intern(second));
+		assertEquals(0, table.size());
+		assertEquals(2, table.getMisses());
+	}
+
+	@Test
+	public void testGrows() {
+		StringTable table = new StringTable(1 << 16, 32);
+		List<LuaString> strings = new ArrayList<>();
+		for (int i = 0; i < 10000; i++) strings.add(table.intern(unique("s" + i)));
+
+		assertEquals(10000, table.size());
+		for (int i = 0; i < 10000; i++) assertSame(strings.get(i), table.intern(unique("s" + i)));
+		assertEquals(10000, table.getHits());
+	}
+
+	@Test
+	public void testInternedEquality() {
+		StringTable table = new StringTable(1024, 32);
+		LuaString a = table.intern(unique("abc"));
+		LuaString b = table.intern(unique("abd"));
+		LuaString c = unique("abc");
+
+		assertFalse(a.raweq(b));
+		assertTrue(a.raweq(c));
+		assertTrue(c.raweq(a));
+
+		// Strings from a different table must still be compared by contents.
+		LuaString other = new StringTable(1024, 32).intern(unique("abc"));
+		assertTrue(a.raweq(other));
+		assertEquals(a, other);
+	}
+
+	@Test
+	public void testCollected() throws InterruptedException {
+		StringTable table = new StringTable(1024, 32);
+		for (int i = 0; i < 100; i++) table.intern(unique("s" + i));
+		assertEquals(100, table.size());
+
+		for (int i = 0; i < 100 && table.size() > 0; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+
+		assertEquals(0, table.size());
+		table.intern(unique("s0"));
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		StringTable table = new StringTable(1 << 16, 32);
+		int threads = 8, count = 2000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CyclicBarrier barrier = new CyclicBarrier(threads);
+			List<Future<LuaString[]>> results = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				results.add(executor.submit(() -> {
+					barrier.await();
+					LuaString[] out = new LuaString[count];
+					for (int i = 0; i < count; i++) out[i] = table.intern(unique("s" + i));
+					return out;
+				}));
+			}
+
+			LuaString[] first = results.get(0).get();
+			for (Future<LuaString[]> result : results) {
+				LuaString[] strings = result.get();
+				for (int i = 0; i < count; i++) assertSame(first[i], strings[i]);
+			}
+
+			assertEquals(count, table.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testGlobal() {
+		assertSame(fresh("global"), fresh("global"));
+	}
+
+	@Test
+	public void testStateConstants() throws Exception {
+		StringTable table = new StringTable(1024, 32);
+		LuaState state = LuaState.builder().stringTable(table).build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+
+		LuaClosure first = (LuaClosure) LoadState.load(state, new ByteArrayInputStream("return 'interned-string-key'".getBytes(StandardCharsets.UTF_8)), "first", globals);
+		LuaClosure second = (LuaClosure) LoadState.load(state, new ByteArrayInputStream("local x = 'interned-string-key' return x".getBytes(StandardCharsets.UTF_8)), "second", globals);
+
+		assertSame(first.getPrototype().k[0], second.getPrototype().k[0]);
+		assertSame(table.intern(unique("key")), first.getPrototype().k[0]);
+	}
+
+	@Test
+	public void testSharedPrototypesUnchanged() throws Exception {
+		CachingCompiler compiler = new CachingCompiler();
+		String script = "return 'interned-string-shared'";
+
+		LuaClosure[] functions = new LuaClosure[2];
+		LuaValue[] constants = new LuaValue[2];
+		for (int i = 0; i < 2; i++) {
+			LuaState state = LuaState.builder().compiler(compiler).stringTable(new StringTable(1024, 32)).build();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+			functions[i] = (LuaClosure) LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "shared", globals);
+			constants[i] = functions[i].getPrototype().k[0];
+		}
+
+		// Loading into a state with a different table must not modify the shared prototype.
+		assertSame(functions[0].getPrototype(), functions[1].getPrototype());
+		assertSame(constants[0], constants[1]);
+	}
+}
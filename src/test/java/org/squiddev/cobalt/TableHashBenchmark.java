@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up long string keys in a {@link LuaTable}.
+ *
+ * The {@code adversarial} keys only differ in the bytes skipped by Lua's original sampling hash (every
+ * {@code (length >> 5) + 1}th byte), and so would all share one hash chain. The length of the longest chain is
+ * printed when each trial starts.
+ *
+ * {@code lookup} uses the default hash, while {@code lookupSeeded} runs in a fork with {@code cobalt.seededStringHash}
+ * enabled.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions"})
+public class TableHashBenchmark {
+	private static final int COUNT = 1024;
+
+	@State(Scope.Thread)
+	public static class KeyScope {
+		@Param({"adversarial", "random"})
+		String keys;
+
+		@Param({"64", "256"})
+		int length;
+
+		LuaTable table;
+		LuaString[] lookup;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			Random random = new Random(0);
+			int step = (length >> 5) + 1;
+
+			table = new LuaTable();
+			lookup = new LuaString[COUNT];
+			int[] chains = new int[Integer.highestOneBit(COUNT - 1) << 1];
+			for (int i = 0; i < COUNT; i++) {
+				byte[] bytes = new byte[length];
+				if (keys.equals("random")) {
+					for (int j = 0; j < length; j++) bytes[j] = (byte) ('a' + random.nextInt(26));
+				} else {
+					Arrays.fill(bytes, (byte) 'x');
+					int value = i;
+					for (int j = 0; j < length && value != 0; j++) {
+						if ((length - 1 - j) % step == 0) continue;
+						bytes[j] = (byte) ('a' + (value & 15));
+						value >>= 4;
+					}
+				}
+
+				LuaString key = LuaString.valueOf(bytes);
+				table.rawset(key, ValueFactory.valueOf(i));
+				chains[key.hashCode() & (chains.length - 1)]++;
+
+				// Use a separate instance for lookups, so each key must be compared by its contents.
+				lookup[i] = LuaString.valueOf(bytes.clone());
+			}
+
+			System.out.printf("Longest chain for %s keys of length %d: %d%n", keys, length, Arrays.stream(chains).max().orElse(0));
+		}
+	}
+
+	@Benchmark
+	public int lookup(KeyScope scope) {
+		LuaTable table = scope.table;
+		int sum = 0;
+		for (LuaString key : scope.lookup) sum += table.rawget(key).toInteger();
+		return sum;
+	}
+
+	@Benchmark
+	@Fork(jvmArgsAppend = {"-server", "-disablesystemassertions", "-Dcobalt.seededStringHash=true"})
+	public int lookupSeeded(KeyScope scope) {
+		return lookup(scope);
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options opts = new OptionsBuilder()
+			.include("org.squiddev.cobalt.TableHashBenchmark.*")
+			.warmupIterations(3)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+@Timeout(value = 60)
+public class BytecodeCacheTest {
+	private static final String MODULE = "local function greet(name) return string.format('Hello, %s', name) end\n" +
+		"return { greet = greet, answer = 6 * 7, half = 0.5 }";
+
+	@TempDir
+	Path dir;
+
+	private static LuaValue run(BytecodeCache cache, String name, String script) throws Exception {
+		LuaState state = LuaState.builder().compiler(cache).build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), valueOf(name), globals);
+		return LuaThread.runMain(state, function).first();
+	}
+
+	private static void checkModule(LuaValue module) throws Exception {
+		LuaState state = new LuaState();
+		JsePlatform.standardGlobals(state);
+		LuaTable table = module.checkTable();
+		assertEquals(valueOf(42), table.rawget("answer"));
+		assertEquals(valueOf(0.5), table.rawget("half"));
+		assertEquals(valueOf("Hello, world"), LuaThread.runMain(state, table.rawget("greet").checkFunction(), valueOf("world")).first());
+	}
+
+	private List<Path> entries() throws Exception {
+		try (Stream<Path> files = Files.list(dir.resolve("cache"))) {
+			return files.collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	public void testReusedAcrossInstances() throws Exception {
+		BytecodeCache first = new BytecodeCache(dir.resolve("cache"));
+		checkModule(run(first, "@module.lua", MODULE));
+		assertEquals(1, first.getMisses());
+		assertEquals(1, entries().size());
+		assertTrue(entries().get(0).toString().endsWith(".luac"), "no temporary files are left");
+
+		// A new cache simulates a new process.
+		BytecodeCache second = new BytecodeCache(dir.resolve("cache"));
+		checkModule(run(second, "@module.lua", MODULE));
+		checkModule(run(second, "@module.lua", MODULE));
+		assertEquals(2, second.getHits());
+		assertEquals(0, second.getMisses());
+	}
+
+	@Test
+	public void testChangedSource() throws Exception {
+		BytecodeCache cache = new BytecodeCache(dir.resolve("cache"));
+		assertEquals(valueOf(1), run(cache, "@file.lua", "return 1"));
+		assertEquals(valueOf(2), run(cache, "@file.lua", "return 2"));
+		assertEquals(valueOf(1), run(cache, "@other.lua", "return 1"));
+		assertEquals(3, cache.getMisses());
+		assertEquals(0, cache.getHits());
+	}
+
+	@Test
+	public void testOnlyFiles() throws Exception {
+		BytecodeCache cache = new BytecodeCache(dir.resolve("cache"));
+		assertEquals(valueOf(1), run(cache, "=stdin", "return 1"));
+		assertEquals(valueOf(1), run(cache, "return 1", "return 1"));
+		assertEquals(0, cache.getMisses());
+		assertFalse(Files.exists(dir.resolve("cache")));
+	}
+
+	@Test
+	public void testCorruptEntries() throws Exception {
+		BytecodeCache cache = new BytecodeCache(dir.resolve("cache"));
+		checkModule(run(cache, "@module.lua", MODULE));
+		Path entry = entries().get(0);
+		byte[] contents = Files.readAllBytes(entry);
+
+		// Flip a byte in the bytecode
+		byte[] corrupt = contents.clone();
+		corrupt[corrupt.length - 10] ^= 0x40;
+		Files.write(entry, corrupt);
+		checkModule(run(cache, "@module.lua", MODULE));
+		assertEquals(1, cache.getRejected());
+		assertArrayEquals(contents, Files.readAllBytes(entry), "entry is rewritten");
+
+		// Truncate the file
+		Files.write(entry, java.util.Arrays.copyOf(contents, contents.length / 2));
+		checkModule(run(cache, "@module.lua", MODULE));
+		assertEquals(2, cache.getRejected());
+
+		// And an empty file
+		Files.write(entry, new byte[0]);
+		checkModule(run(cache, "@module.lua", MODULE));
+		assertEquals(3, cache.getRejected());
+
+		assertEquals(4, cache.getMisses());
+		checkModule(run(cache, "@module.lua", MODULE));
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void testErrorsNotCached() throws Exception {
+		BytecodeCache cache = new BytecodeCache(dir.resolve("cache"));
+		assertThrows(CompileException.class, () -> run(cache, "@broken.lua", "return +"));
+		assertThrows(CompileException.class, () -> run(cache, "@broken.lua", "return +"));
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testRequire() throws Exception {
+		Files.write(dir.resolve("module.lua"), MODULE.getBytes(StandardCharsets.UTF_8));
+		String script = "package.path = ... .. '/?.lua' return require 'module'";
+
+		for (int i = 0; i < 2; i++) {
+			BytecodeCache cache = new BytecodeCache(dir.resolve("cache"));
+			LuaState state = LuaState.builder().compiler(cache).build();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+			LuaFunction function = LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), valueOf("=script"), globals);
+
+			LuaTable module = LuaThread.runMain(state, function, valueOf(dir.toString())).first().checkTable();
+			assertEquals(valueOf(42), module.rawget("answer"));
+			assertEquals(i, cache.getHits());
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.Lua52.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Checks {@link BytecodeOptimizer} produces smaller code which behaves the same as the unoptimised version.
+ */
+public class BytecodeOptimizerTest {
+	private static Prototype compile(byte[] source, boolean optimize) throws IOException, CompileException {
+		return LuaC.compile(new ByteArrayInputStream(source), valueOf("=script"), null, StringTable.global(), optimize);
+	}
+
+	private static Prototype compile(String source, boolean optimize) throws IOException, CompileException {
+		return compile(source.getBytes(StandardCharsets.UTF_8), optimize);
+	}
+
+	private static String run(String source, boolean optimize) throws Exception {
+		LuaState state = new LuaState();
+		LuaTable env = JsePlatform.debugGlobals(state);
+		LuaFunction function = LuaC.instantiate(compile(source, optimize), env);
+		return LuaThread.runMain(state, function).toString();
+	}
+
+	private static void assertSameResult(String source) throws Exception {
+		assertEquals(run(source, false), run(source, true));
+	}
+
+	private static int count(Prototype proto, int opcode) {
+		int count = 0;
+		for (int i : proto.code) {
+			if (GET_OPCODE(i) == opcode) count++;
+		}
+		return count;
+	}
+
+	private static Set<Integer> lines(Prototype proto) {
+		Set<Integer> lines = new TreeSet<>();
+		for (int line : proto.lineinfo) lines.add(line);
+		return lines;
+	}
+
+	private static void assertConsistent(Prototype original, Prototype optimized) {
+		String name = optimized.toString();
+		assertTrue(optimized.code.length <= original.code.length, name);
+		assertTrue(optimized.maxstacksize <= original.maxstacksize, name);
+		assertEquals(optimized.code.length, optimized.lineinfo.length, name);
+		assertEquals(lines(original), lines(optimized), name);
+
+		assertEquals(original.locvars.length, optimized.locvars.length, name);
+		for (int i = 0; i < original.locvars.length; i++) {
+			assertEquals(original.locvars[i].name, optimized.locvars[i].name, name);
+			assertTrue(optimized.locvars[i].startpc <= optimized.locvars[i].endpc, name);
+			assertTrue(optimized.locvars[i].endpc <= optimized.code.length, name);
+		}
+
+		int[] code = optimized.code;
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			switch (GET_OPCODE(i)) {
+				case OP_JMP:
+				case OP_FORLOOP:
+				case OP_FORPREP:
+				case OP_TFORLOOP: {
+					int target = pc + 1 + GETARG_sBx(i);
+					assertTrue(target >= 0 && target < code.length, name + " jump at " + pc);
+					break;
+				}
+				case OP_EQ:
+				case OP_LT:
+				case OP_LE:
+				case OP_TEST:
+				case OP_TESTSET:
+					assertEquals(OP_JMP, GET_OPCODE(code[pc + 1]), name + " comparison at " + pc);
+					break;
+				case OP_TFORCALL:
+					assertEquals(OP_TFORLOOP, GET_OPCODE(code[pc + 1]), name + " iterator at " + pc);
+					break;
+			}
+		}
+
+		assertEquals(original.p.length, optimized.p.length, name);
+		for (int i = 0; i < original.p.length; i++) assertConsistent(original.p[i], optimized.p[i]);
+	}
+
+	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
+	@ValueSource(strings = {
+		"all", "api", "attrib", "big", "calls", "checktable", "closure", "code", "constructs", "db", "errors",
+		"events", "files", "gc", "literals", "locals", "main", "math", "nextvar", "pm", "sort", "strings",
+	})
+	public void testConsistent(String file) throws IOException, CompileException {
+		byte[] source = CompileTestHelper.bytesFromJar("/bytecode-compiler/lua5.2/" + file + ".lua");
+		assertConsistent(compile(source, false), compile(source, true));
+	}
+
+	@Test
+	public void testDeadCode() throws Exception {
+		String source = "local x = ... if x then return 1 else return 2 end";
+		Prototype original = compile(source, false), optimized = compile(source, true);
+		assertConsistent(original, optimized);
+		assertTrue(optimized.code.length < original.code.length);
+
+		assertEquals(run("return (function(x) if x then return 1 else return 2 end end)(true)", true), "1");
+		assertEquals(run("return (function(x) if x then return 1 else return 2 end end)(false)", true), "2");
+	}
+
+	@Test
+	public void testCompilerInstances() throws Exception {
+		String source = "local x = ... if x then return 1 else return 2 end";
+		LuaTable env = new LuaTable();
+
+		LuaFunction optimized = LuaC.INSTANCE.load(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), valueOf("=script"), null, env);
+		assertArrayEquals(compile(source, true).code, ((LuaInterpretedFunction) optimized).getPrototype().code);
+
+		LuaFunction original = LuaC.UNOPTIMIZED.load(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), valueOf("=script"), null, env);
+		assertArrayEquals(compile(source, false).code, ((LuaInterpretedFunction) original).getPrototype().code);
+	}
+
+	@Test
+	public void testThreadJumps() throws Exception {
+		String source = "local a, b, n = ...\n" +
+			"while n < 10 do\n" +
+			"  if a then if b then n = n + 1 else n = n + 2 end else n = n + 3 end\n" +
+			"end\n" +
+			"return n";
+		Prototype original = compile(source, false), optimized = compile(source, true);
+		assertConsistent(original, optimized);
+
+		// No jump should land on another unconditional jump.
+		int[] code = optimized.code;
+		for (int pc = 0; pc < code.length; pc++) {
+			if (GET_OPCODE(code[pc]) != OP_JMP) continue;
+			int target = code[pc + 1 + GETARG_sBx(code[pc])];
+			assertFalse(GET_OPCODE(target) == OP_JMP && GETARG_A(target) == 0, "jump to jump at " + pc);
+		}
+
+		assertSameResult("local f = load(" + quote(source) + ") return f(true, true, 0), f(true, false, 0), f(false, true, 0)");
+	}
+
+	@Test
+	public void testInvertBranches() throws Exception {
+		assertSameResult("local n = 0 repeat local done = n > 5 n = n + 1 until not not done return n");
+		assertSameResult("local t, n = {a = 1}, 0 while not t.b do n = n + 1 if n > 3 then t.b = true end end return n");
+	}
+
+	@Test
+	public void testFoldConstantKeys() throws Exception {
+		StringBuilder source = new StringBuilder("local names = {");
+		for (int i = 0; i < 300; i++) source.append("\"name").append(i).append("\", ");
+		source.append("}\n")
+			.append("local point = { x = 1, y = 2 }\n")
+			.append("for i = 1, 10 do point.x = point.x + point.y * 3; point[\"y\"] = point.x % 7 end\n")
+			.append("return point.x, point.y, #names, names[300]");
+
+		Prototype original = compile(source.toString(), false), optimized = compile(source.toString(), true);
+		assertConsistent(original, optimized);
+		assertTrue(count(optimized, OP_LOADK) < count(original, OP_LOADK));
+
+		assertSameResult(source.toString());
+	}
+
+	@Test
+	public void testLineEvents() throws Exception {
+		String source = "local events = {}\n" +
+			"local function record(kind, line)\n" +
+			"  local names = {}\n" +
+			"  for i = 1, 20 do\n" +
+			"    local name = debug.getlocal(2, i)\n" +
+			"    if not name then break end\n" +
+			"    if name:sub(1, 1) ~= '(' then names[#names + 1] = name end\n" +
+			"  end\n" +
+			"  events[#events + 1] = kind .. ':' .. tostring(line) .. '[' .. table.concat(names, ',') .. ']'\n" +
+			"end\n" +
+			"local function test(x)\n" +
+			"  local y = 0\n" +
+			"  if x then\n" +
+			"    y = 1\n" +
+			"  else\n" +
+			"    y = 2\n" +
+			"  end\n" +
+			"  while y < 4 do\n" +
+			"    if y == 2 then y = y + 1 else y = y + 2 end\n" +
+			"  end\n" +
+			"  repeat y = y - 1 until not (y > 2)\n" +
+			"  for _, v in ipairs({ 1, 2 }) do\n" +
+			"    y = y + v\n" +
+			"  end\n" +
+			"  if y > 3 then return y end\n" +
+			"  return -y\n" +
+			"end\n" +
+			"debug.sethook(record, 'l')\n" +
+			"test(true) test(false)\n" +
+			"debug.sethook()\n" +
+			"return table.concat(events, ' ')";
+
+		// Temporaries are ignored, as the optimised function may use fewer stack slots.
+		assertSameResult(source);
+	}
+
+	private static String quote(String source) {
+		return "\"" + source.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+	}
+}
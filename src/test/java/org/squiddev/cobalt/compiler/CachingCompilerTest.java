@@ -0,0 +1,185 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.function.LuaClosure;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+@Timeout(value = 60)
+public class CachingCompilerTest {
+	private static final String COUNTER = "count = (count or 0) + 1 return count";
+
+	private static LuaFunction load(CachingCompiler compiler, String name, String script) throws Exception {
+		LuaState state = LuaState.builder().compiler(compiler).build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		return LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), valueOf(name), globals);
+	}
+
+	private static Prototype prototype(LuaFunction function) {
+		return ((LuaClosure) function).getPrototype();
+	}
+
+	@Test
+	public void testSharesPrototypes() throws Exception {
+		CachingCompiler compiler = new CachingCompiler();
+		LuaFunction first = load(compiler, "=counter", COUNTER);
+		LuaFunction second = load(compiler, "=counter", COUNTER);
+
+		assertNotSame(first, second);
+		assertSame(prototype(first), prototype(second));
+		assertEquals(1, compiler.getMisses());
+		assertEquals(1, compiler.getHits());
+		assertEquals(1, compiler.size());
+		assertEquals(CachingCompiler.weigh(prototype(first)), compiler.getWeight());
+	}
+
+	@Test
+	public void testUsesEnvironment() throws Exception {
+		CachingCompiler compiler = new CachingCompiler();
+		for (int i = 0; i < 3; i++) {
+			LuaState state = LuaState.builder().compiler(compiler).build();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+			globals.rawset("count", valueOf(i * 10));
+
+			LuaFunction function = LoadState.load(state, new ByteArrayInputStream(COUNTER.getBytes(StandardCharsets.UTF_8)), valueOf("=counter"), globals);
+			assertEquals(valueOf(i * 10 + 1), LuaThread.runMain(state, function).first());
+			assertEquals(valueOf(i * 10 + 2), LuaThread.runMain(state, function).first());
+		}
+
+		assertEquals(1, compiler.getMisses());
+		assertEquals(2, compiler.getHits());
+	}
+
+	@Test
+	public void testKeyedByNameAndMode() throws Exception {
+		CachingCompiler compiler = new CachingCompiler();
+		LuaFunction first = load(compiler, "=first", "return 1");
+		LuaFunction second = load(compiler, "=second", "return 1");
+		assertNotSame(prototype(first), prototype(second));
+		assertEquals(valueOf("=second"), prototype(second).source);
+
+		LuaState state = LuaState.builder().compiler(compiler).build();
+		LuaFunction third = LoadState.load(state, new ByteArrayInputStream("return 1".getBytes(StandardCharsets.UTF_8)), valueOf("=first"), valueOf("t"), new LuaTable());
+		assertNotSame(prototype(first), prototype(third));
+
+		assertEquals(3, compiler.getMisses());
+		assertEquals(0, compiler.getHits());
+		assertThrows(CompileException.class, () -> LoadState.load(state, new ByteArrayInputStream("return 1".getBytes(StandardCharsets.UTF_8)), valueOf("=first"), valueOf("b"), new LuaTable()));
+	}
+
+	@Test
+	public void testErrorsNotCached() {
+		CachingCompiler compiler = new CachingCompiler();
+		assertThrows(CompileException.class, () -> load(compiler, "=broken", "return +"));
+		assertThrows(CompileException.class, () -> load(compiler, "=broken", "return +"));
+		assertEquals(2, compiler.getMisses());
+		assertEquals(0, compiler.size());
+	}
+
+	@Test
+	public void testEvicts() throws Exception {
+		long weight = CachingCompiler.weigh(prototype(load(new CachingCompiler(), "=chunk", "return 0")));
+		CachingCompiler compiler = new CachingCompiler(LuaC.INSTANCE, 3 * weight);
+
+		for (int i = 0; i < 10; i++) load(compiler, "=chunk", "return " + i);
+		assertEquals(3, compiler.size());
+		assertEquals(7, compiler.getEvictions());
+		assertEquals(3 * weight, compiler.getWeight());
+
+		// The most recent chunks should still be cached.
+		load(compiler, "=chunk", "return 9");
+		assertEquals(1, compiler.getHits());
+
+		compiler.clear();
+		assertEquals(0, compiler.size());
+		assertEquals(0, compiler.getWeight());
+	}
+
+	@Test
+	public void testRecentlyUsedKept() throws Exception {
+		long weight = CachingCompiler.weigh(prototype(load(new CachingCompiler(), "=chunk", "return 0")));
+		CachingCompiler compiler = new CachingCompiler(LuaC.INSTANCE, 2 * weight);
+
+		load(compiler, "=chunk", "return 0");
+		load(compiler, "=chunk", "return 1");
+		load(compiler, "=chunk", "return 0");
+		load(compiler, "=chunk", "return 2");
+
+		// "return 1" should have been evicted instead of "return 0", as the latter was used more recently.
+		load(compiler, "=chunk", "return 0");
+		assertEquals(2, compiler.getHits());
+		assertEquals(1, compiler.getEvictions());
+	}
+
+	@Test
+	public void testTooLarge() throws Exception {
+		CachingCompiler compiler = new CachingCompiler(LuaC.INSTANCE, 0);
+		load(compiler, "=chunk", "return 0");
+		load(compiler, "=chunk", "return 0");
+		assertEquals(0, compiler.size());
+		assertEquals(2, compiler.getMisses());
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		CachingCompiler compiler = new CachingCompiler();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<LuaValue>> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				int index = i;
+				results.add(executor.submit(() -> {
+					LuaState state = LuaState.builder().compiler(compiler).build();
+					LuaTable globals = JsePlatform.standardGlobals(state);
+					String script = "local t = {} for i = 1, 100 do t[#t + 1] = i * " + (index % 10) + " end return t[100]";
+					LuaFunction function = LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), valueOf("=chunk"), globals);
+					return LuaThread.runMain(state, function).first();
+				}));
+			}
+
+			for (int i = 0; i < results.size(); i++) assertEquals(valueOf(100 * (i % 10)), results.get(i).get());
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(10, compiler.size());
+		assertEquals(200, compiler.getHits() + compiler.getMisses());
+	}
+}
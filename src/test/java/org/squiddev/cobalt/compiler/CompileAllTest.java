@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.LuaString;
+import org.squiddev.cobalt.Print;
+import org.squiddev.cobalt.Prototype;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Checks {@link LuaC#compileAll(Map, ForkJoinPool)} produces the same code as compiling each chunk on its own.
+ */
+@Timeout(value = 120)
+public class CompileAllTest {
+	private static final String[] FILES = {
+		"all", "api", "attrib", "big", "calls", "checktable", "closure", "code", "constructs", "db", "errors",
+		"events", "files", "gc", "literals", "locals", "main", "math", "nextvar", "pm", "sort", "strings",
+	};
+
+	private static Map<LuaString, InputStream> chunks(Map<LuaString, byte[]> sources) {
+		Map<LuaString, InputStream> chunks = new LinkedHashMap<>();
+		for (Map.Entry<LuaString, byte[]> source : sources.entrySet()) {
+			chunks.put(source.getKey(), new ByteArrayInputStream(source.getValue()));
+		}
+		return chunks;
+	}
+
+	@Test
+	public void testMatchesSerial() throws IOException, CompileException {
+		Map<LuaString, byte[]> sources = new LinkedHashMap<>();
+		for (int copy = 0; copy < 4; copy++) {
+			for (String file : FILES) {
+				sources.put(valueOf("@" + copy + "/" + file + ".lua"), CompileTestHelper.bytesFromJar("/bytecode-compiler/lua5.2/" + file + ".lua"));
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Map<LuaString, Prototype> parallel = LuaC.compileAll(chunks(sources), pool);
+			assertEquals(new ArrayList<>(sources.keySet()), new ArrayList<>(parallel.keySet()));
+
+			for (Map.Entry<LuaString, byte[]> source : sources.entrySet()) {
+				Prototype serial = LuaC.compile(new ByteArrayInputStream(source.getValue()), source.getKey());
+				assertEquals(Print.show(serial), Print.show(parallel.get(source.getKey())), source.getKey().toString());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testFirstError() {
+		Map<LuaString, byte[]> sources = new LinkedHashMap<>();
+		for (int i = 0; i < 50; i++) {
+			String contents = i == 20 || i == 40 ? "return +" : "return " + i;
+			sources.put(valueOf("=chunk" + i), contents.getBytes());
+		}
+
+		CompileException e = assertThrows(CompileException.class, () -> LuaC.compileAll(chunks(sources)));
+		assertTrue(e.getMessage().startsWith("chunk20:"), e.getMessage());
+	}
+
+	@Test
+	public void testEmpty() throws IOException, CompileException {
+		assertTrue(LuaC.compileAll(new LinkedHashMap<>()).isEmpty());
+	}
+}
@@ -27,6 +27,7 @@ package org.squiddev.cobalt.compiler;
 import org.squiddev.cobalt.LuaString;
 import org.squiddev.cobalt.Print;
 import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.StringTable;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -44,9 +45,12 @@ public class CompileTestHelper {
 	 * @throws IOException
 	 */
 	public static void compareResults(String dir, String file) throws IOException, CompileException {
-		// Compile in memory
+		// Compile in memory. We disable optimisations, as we're comparing against the reference compiler.
 		// This is going to fail until Lua 5.2 bytecode tests are written
-		String sourceBytecode = Print.show(LuaC.compile(new ByteArrayInputStream(bytesFromJar(dir + file + ".lua")), LuaString.valueOf("@" + file + ".lua"), null));
+		String sourceBytecode = Print.show(LuaC.compile(
+			new ByteArrayInputStream(bytesFromJar(dir + file + ".lua")), LuaString.valueOf("@" + file + ".lua"), null,
+			StringTable.global(), false
+		));
 
 		// Load expected value from jar
 		Prototype expectedPrototype = loadFromBytes(bytesFromJar(dir + file + ".luac"), file + ".lua");
@@ -70,7 +74,7 @@ public class CompileTestHelper {
 	 * @param path The path to the resource
 	 * @return A byte array containing the file
 	 */
-	private static byte[] bytesFromJar(String path) throws IOException {
+	static byte[] bytesFromJar(String path) throws IOException {
 		InputStream is = CompileTestHelper.class.getResourceAsStream(path);
 
 		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
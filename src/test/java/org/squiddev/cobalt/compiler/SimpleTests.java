@@ -31,6 +31,7 @@ import org.squiddev.cobalt.function.LuaFunction;
 import org.squiddev.cobalt.lib.jse.JsePlatform;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 
@@ -132,4 +133,39 @@ public class SimpleTests {
 			assertTrue(hc != hd, "hash codes are same: " + hc);
 		}
 	}
+
+	@Test
+	public void testStringSource() throws Exception {
+		// Compile from the middle of a larger string, with names which straddle the end of the input.
+		LuaString whole = valueOf("xx local abc = 1 return abc + abc");
+		LuaString source = whole.substring(3, whole.length());
+		LuaFunction f = LuaC.INSTANCE.load(source.toInputStream(), valueOf("=script"), null, _G);
+		assertEquals(valueOf(2), LuaThread.runMain(state, f).first());
+	}
+
+	@Test
+	public void testLongNames() throws Exception {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 20000; i++) name.append((char) ('a' + i % 26));
+		String s = "local " + name + " = 1 return " + name;
+
+		LuaFunction f = LuaC.INSTANCE.load(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)), valueOf("=script"), null, _G);
+		assertEquals(valueOf(1), LuaThread.runMain(state, f).first());
+	}
+
+	@Test
+	public void testReadErrorsPropagate() {
+		InputStream stream = new InputStream() {
+			private int read = 0;
+
+			@Override
+			public int read() throws IOException {
+				if (read++ < 10) return 'a';
+				throw new IOException("read failed");
+			}
+		};
+
+		IOException e = assertThrows(IOException.class, () -> LuaC.compile(stream, valueOf("=script")));
+		assertEquals("read failed", e.getMessage());
+	}
 }
@@ -0,0 +1,64 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.function;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.compiler.LuaC;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrototypeCompilerTest {
+	private static Prototype compile(String script) throws Exception {
+		return LuaC.compile(new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "=script");
+	}
+
+	@Test
+	public void testDisabledIgnoresCompiled() throws Exception {
+		Prototype p = compile("local x = 0 for i = 1, 10 do x = x + i end return x");
+
+		LuaState compiling = LuaState.builder().compileThreshold(0).build();
+		assertNotNull(PrototypeCompiler.enter(compiling, p));
+
+		// A state with compilation disabled should not use code compiled for another state.
+		LuaState interpreting = new LuaState();
+		assertNull(PrototypeCompiler.enter(interpreting, p));
+	}
+
+	@Test
+	public void testFailureRemembered() throws Exception {
+		Prototype p = compile("return 1");
+		p.compileFailed = true;
+
+		LuaState state = LuaState.builder().compileThreshold(0).build();
+		assertNull(PrototypeCompiler.enter(state, p));
+		assertNull(p.compiled);
+		assertEquals(0, p.hotness);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.table;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.compiler.CachingCompiler;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Checks {@link InlineCache}s remain correct when their prototype is shared between threads.
+ */
+@Timeout(value = 60)
+public class InlineCacheTest {
+	@Test
+	public void testSharedInlineCaches() throws Exception {
+		// Each table has a different shape, so threads sharing this prototype race to update the same inline cache.
+		String script = "local shapes = {\n" +
+			"  function(i) return { x = i } end,\n" +
+			"  function(i) return { a = 1, x = i } end,\n" +
+			"  function(i) return { a = 1, b = 2, c = 3, x = i } end,\n" +
+			"  function(i) return { y = i } end,\n" +
+			"  function(i) return { b = 1, a = 2, d = 3, e = 4, f = 5, x = i } end,\n" +
+			"}\n" +
+			"local total = 0\n" +
+			"for i = 1, 20000 do\n" +
+			"  local t = shapes[i % #shapes + 1](i)\n" +
+			"  total = total + (t.x or 0)\n" +
+			"end\n" +
+			"return total";
+
+		long expected = 0;
+		for (int i = 1; i <= 20000; i++) if (i % 5 != 3) expected += i;
+
+		CachingCompiler compiler = new CachingCompiler();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<LuaValue>> results = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				results.add(executor.submit(() -> {
+					LuaState state = LuaState.builder().compiler(compiler).build();
+					LuaTable globals = JsePlatform.standardGlobals(state);
+					LuaFunction function = LoadState.load(state, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), valueOf("=shapes"), globals);
+					return LuaThread.runMain(state, function).first();
+				}));
+			}
+
+			for (Future<LuaValue> result : results) assertEquals(valueOf(expected), result.get());
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(1, compiler.size());
+	}
+}
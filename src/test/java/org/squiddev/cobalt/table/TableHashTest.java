@@ -250,4 +250,29 @@ public class TableHashTest {
 		assertEquals(ValueFactory.valueOf("bbb"), t.next(ValueFactory.valueOf("aa")).arg(2));
 		assertEquals(Constants.NIL, t.next(ValueFactory.valueOf("bb")));
 	}
+
+	@Test
+	public void testLargeRemove() throws LuaError {
+		final int count = 100_000;
+		LuaTable t = new LuaTable();
+		for (int i = 0; i < count; i++) t.rawset(ValueFactory.valueOf(i + 0.5), ValueFactory.valueOf(i));
+		assertEquals(count, t.keyCount());
+
+		// Remove every other key while iterating, which must not disturb the traversal.
+		int visited = 0;
+		LuaValue k = Constants.NIL;
+		while (true) {
+			Varargs n = t.next(k);
+			if ((k = n.first()).isNil()) break;
+
+			visited++;
+			if (n.arg(2).toInteger() % 2 == 0) t.rawset(k, Constants.NIL);
+		}
+		assertEquals(count, visited);
+		assertEquals(count / 2, t.keyCount());
+
+		for (int i = 0; i < count; i++) {
+			assertEquals(i % 2 == 0 ? Constants.NIL : ValueFactory.valueOf(i), t.rawget(ValueFactory.valueOf(i + 0.5)));
+		}
+	}
 }
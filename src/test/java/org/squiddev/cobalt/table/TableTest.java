@@ -367,4 +367,33 @@ public class TableTest {
 		}
 	}
 
+	@Test
+	public void testShallowCopy() throws LuaError {
+		LuaTable metatable = new LuaTable();
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 8; i++) t.rawset(i, valueOf(i));
+		t.rawset("a", valueOf("a"));
+		t.rawset(valueOf(1.5), valueOf("float"));
+		t.setMetatable(metatable);
+
+		LuaTable copy = t.shallowCopy();
+		assertSame(metatable, copy.getMetatable(null));
+		assertEquals(keyCount(t), keyCount(copy));
+
+		// Changes to the copy are not seen by the original
+		copy.rawset(1, valueOf("changed"));
+		copy.rawset("a", Constants.NIL);
+		copy.rawset("b", valueOf("b"));
+		assertEquals(1, t.rawget(1).toInteger());
+		assertEquals("a", t.rawget("a").toString());
+		assertTrue(t.rawget("b").isNil());
+
+		// Or vice versa
+		LuaTable other = t.shallowCopy();
+		t.rawset(valueOf(1.5), valueOf("changed"));
+		t.rawset(2, Constants.NIL);
+		assertEquals("float", other.rawget(valueOf(1.5)).toString());
+		assertEquals(2, other.rawget(2).toInteger());
+		assertEquals("float", copy.rawget(valueOf(1.5)).toString());
+	}
 }
@@ -0,0 +1,108 @@
+--- Coroutines called directly from Lua code switch without unwinding the stack.
+-- These ensure the values, errors and stack traces are the same as when unwinding.
+
+-- Ping-pong between two coroutines
+do
+	local co = coroutine.wrap(function(x)
+		while true do x = coroutine.yield(x * 2) end
+	end)
+
+	for i = 1, 100 do assert(co(i) == i * 2) end
+end
+
+-- Multiple and variable numbers of values
+do
+	local co = coroutine.create(function(...)
+		local a, b, c = coroutine.yield(select('#', ...), ...)
+		local n = select('#', coroutine.yield(a, b, c))
+		return n
+	end)
+
+	local ok, n, x, y = coroutine.resume(co, 1, nil, 3)
+	assert(ok and n == 3 and x == 1 and y == nil)
+
+	local ok, a, b, c = coroutine.resume(co, "a", "b", "c")
+	assert(ok and a == "a" and b == "b" and c == "c")
+
+	local ok, n = coroutine.resume(co, nil, nil, nil, nil)
+	assert(ok and n == 4)
+	assert(coroutine.status(co) == "dead")
+end
+
+-- Yielded values are not affected by later changes to the yielding frame
+do
+	local co = coroutine.wrap(function()
+		local a, b = 1, 2
+		coroutine.yield(a, b)
+		a, b = 3, 4
+		coroutine.yield(a, b)
+	end)
+
+	local a, b = co()
+	local c, d = co()
+	assert(a == 1 and b == 2 and c == 3 and d == 4)
+end
+
+-- Nested coroutines
+do
+	local function gen(n)
+		return coroutine.wrap(function()
+			for i = 1, n do coroutine.yield(i) end
+		end)
+	end
+
+	local outer = coroutine.wrap(function()
+		for i in gen(3) do
+			for j in gen(2) do coroutine.yield(i * 10 + j) end
+		end
+	end)
+
+	local out = {}
+	for v in outer do out[#out + 1] = v end
+	assert(table.concat(out, ",") == "11,12,21,22,31,32")
+end
+
+-- Errors are still reported
+do
+	local co = coroutine.create(function() return 1 end)
+	assert(coroutine.resume(co))
+	local ok, err = coroutine.resume(co)
+	assert(not ok and err == "cannot resume dead coroutine", err)
+
+	local co = coroutine.wrap(function() coroutine.yield() end)
+	co() co()
+	local ok, err = pcall(co)
+	assert(not ok and err:find("cannot resume dead coroutine"), err)
+
+	local ok, inner, err = coroutine.resume(coroutine.create(function() return coroutine.resume(coroutine.running()) end))
+	assert(ok and not inner and err == "cannot resume running coroutine", err)
+
+	local co = coroutine.create(function() error("oops", 0) end)
+	local ok, err = coroutine.resume(co)
+	assert(not ok and err == "oops", err)
+end
+
+-- Yielding within a protected call, or from a function called by Java code
+do
+	local co = coroutine.wrap(function()
+		local ok, a = pcall(function() return coroutine.yield(1) end)
+		assert(ok and a == 2)
+		local t = setmetatable({}, { __index = function(_, k) return coroutine.yield(k) end })
+		return t.foo
+	end)
+
+	assert(co() == 1)
+	assert(co(2) == "foo")
+	assert(co("bar") == "bar")
+end
+
+-- Stack traces include the suspended coroutine's frames
+do
+	local function inner() coroutine.yield() end
+	local co = coroutine.create(function() inner() end)
+	coroutine.resume(co)
+
+	local trace = debug.traceback(co)
+	assert(trace:find("in field 'yield'"), trace)
+	assert(trace:find("in upvalue 'inner'"), trace)
+end
@@ -0,0 +1,90 @@
+--- Constant key lookups are cached per instruction. These ensure the cache
+-- never returns stale values.
+
+local function get_x(t) return t.x end
+
+-- Rehashing moves keys between slots
+do
+	local t = { x = 1 }
+	assert(get_x(t) == 1)
+	for i = 1, 100 do t["k" .. i] = i end
+	assert(get_x(t) == 1)
+	t.x = 2
+	assert(get_x(t) == 2)
+	t.x = nil
+	assert(get_x(t) == nil)
+	t.x = 3
+	assert(get_x(t) == 3)
+end
+
+-- Many tables with different layouts through the same instruction
+do
+	local tables = {}
+	for i = 1, 20 do
+		local t = {}
+		for j = 1, i do t["f" .. j] = j end
+		t.x = i
+		tables[i] = t
+	end
+
+	for _ = 1, 3 do
+		for i = 1, 20 do assert(get_x(tables[i]) == i) end
+	end
+
+	assert(get_x({}) == nil)
+	assert(get_x({ y = 1 }) == nil)
+end
+
+-- Metatable __index chains, including changes to the metatable
+do
+	local Base = {}
+	function Base.name() return "base" end
+
+	local Class = setmetatable({}, { __index = Base })
+	Class.__index = Class
+
+	local obj = setmetatable({}, Class)
+	local function name(o) return o:name() end
+
+	assert(name(obj) == "base")
+	function Class.name() return "class" end
+	assert(name(obj) == "class")
+	function obj.name() return "obj" end
+	assert(name(obj) == "obj")
+	obj.name = nil
+	Class.name = nil
+	assert(name(obj) == "base")
+
+	setmetatable(obj, { __index = function(_, k) return function() return "fn " .. k end end })
+	assert(name(obj) == "fn name")
+
+	setmetatable(obj, nil)
+	assert(not pcall(name, obj))
+end
+
+-- Globals
+do
+	local function get() return cached_global end
+	assert(get() == nil)
+	cached_global = 1
+	assert(get() == 1)
+	for i = 1, 100 do _G["global_" .. i] = i end
+	assert(get() == 1)
+	cached_global = nil
+	assert(get() == nil)
+	for i = 1, 100 do _G["global_" .. i] = nil end
+end
+
+-- Weak tables
+do
+	local t = setmetatable({ x = 1 }, { __mode = "kv" })
+	assert(get_x(t) == 1)
+	t.x = {}
+	assert(type(get_x(t)) == "table")
+end
+
+-- Errors still report the right name
+do
+	local ok, err = pcall(function() local value = nil; return value.x end)
+	assert(not ok and err:find("local 'value'"), err)
+end
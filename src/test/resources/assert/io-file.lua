@@ -0,0 +1,160 @@
+--- Files are read and written through a buffer, and large files are memory-mapped.
+-- These ensure the file's position stays consistent when mixing reads, writes and seeks.
+
+local name = os.tmpname()
+
+-- Mixing reads, writes and seeks
+do
+	local h = assert(io.open(name, "w"))
+	h:write("hello\n", "world\n")
+	assert(h:seek("cur") == 12)
+	assert(h:seek("set", 6) == 6)
+	h:write("WORLD")
+	assert(h:seek("end") == 12)
+	h:close()
+
+	h = assert(io.open(name, "r"))
+	assert(h:read("*l") == "hello")
+	assert(h:seek("cur") == 6)
+	assert(h:read(2) == "WO")
+	assert(h:seek("cur", -2) == 6)
+	assert(h:read("*a") == "WORLD\n")
+	assert(h:read("*l") == nil)
+	assert(h:seek("set") == 0)
+	assert(h:read("*a") == "hello\nWORLD\n")
+	h:close()
+end
+
+-- Writes are visible after flushing, or when changing buffering mode
+do
+	local h = assert(io.open(name, "w"))
+	h:write("abc")
+
+	local r = assert(io.open(name, "r"))
+	h:flush()
+	assert(r:read("*a") == "abc")
+
+	h:setvbuf("no")
+	h:write("def")
+	assert(r:read("*a") == "def")
+
+	h:setvbuf("full", 4)
+	h:write("gh")
+	h:write("ijklmn")
+	h:close()
+	assert(r:read("*a") == "ghijklmn")
+	r:close()
+end
+
+-- Writing several strings at once
+do
+	local h = assert(io.open(name, "w"))
+	h:setvbuf("full", 8)
+	h:write("a", "b", "c")
+	h:write("0123456789", "x", ("y"):rep(20))
+	h:write("d", "e")
+	assert(h:seek("cur") == 36)
+	assert(h:seek("set", 1) == 1)
+	h:write("B", "C")
+	h:close()
+
+	h = assert(io.open(name, "r"))
+	assert(h:read("*a") == "aBC0123456789x" .. ("y"):rep(20) .. "de")
+	h:close()
+
+	h = assert(io.open(name, "w"))
+	local r = assert(io.open(name, "r"))
+	h:write("1", "2", "3")
+	h:setvbuf("no")
+	assert(r:read("*a") == "123")
+	h:write("4", "5")
+	assert(r:read("*a") == "45")
+	h:setvbuf("line")
+	h:write("6", "\n", "7")
+	assert(r:read("*a") == "6\n7")
+	h:write("8", "9")
+	h:close()
+	assert(r:read("*a") == "89")
+	r:close()
+end
+
+-- Reading with a small buffer
+do
+	local h = assert(io.open(name, "w"))
+	for i = 1, 100 do h:write(i, "\n") end
+	h:close()
+
+	h = assert(io.open(name, "r"))
+	h:setvbuf("full", 3)
+	for i = 1, 100 do assert(h:read("*n") == i) end
+	assert(h:read("*n") == nil)
+	h:close()
+
+	local i = 0
+	for line in io.lines(name) do
+		i = i + 1
+		assert(line == tostring(i))
+	end
+	assert(i == 100)
+end
+
+-- Strings read from a file are unaffected by later reads
+do
+	local h = assert(io.open(name, "w"))
+	h:write("one\r\ntwo\n\r\n", ("y"):rep(20), "\n", ("z"):rep(10), "\n", ("w"):rep(50), "\nlast")
+	h:close()
+
+	h = assert(io.open(name, "r"))
+	h:setvbuf("full", 16)
+	local lines = {}
+	for line in h:lines() do lines[#lines + 1] = line end
+	h:close()
+
+	assert(#lines == 7, #lines)
+	assert(lines[1] == "one" and lines[2] == "two" and lines[3] == "")
+	assert(lines[4] == ("y"):rep(20) and lines[5] == ("z"):rep(10) and lines[6] == ("w"):rep(50))
+	assert(lines[7] == "last")
+
+	h = assert(io.open(name, "r"))
+	h:setvbuf("full", 16)
+	local chunks = {}
+	while true do
+		local chunk = h:read(7)
+		if not chunk then break end
+		chunks[#chunks + 1] = chunk
+	end
+	h:close()
+	assert(table.concat(chunks) == "one\r\ntwo\n\r\n" .. ("y"):rep(20) .. "\n" .. ("z"):rep(10) .. "\n" .. ("w"):rep(50) .. "\nlast")
+	assert(#chunks[1] == 7 and #chunks[#chunks] <= 7)
+end
+
+-- Large files are memory-mapped
+do
+	local line = ("x"):rep(99)
+	local h = assert(io.open(name, "w"))
+	for i = 1, 50000 do h:write(line, "\n") end
+	h:close()
+
+	h = assert(io.open(name, "r"))
+	assert(h:seek("end") == 5000000)
+	assert(h:seek("set", 4999900) == 4999900)
+	assert(h:read("*l") == line)
+	assert(h:read("*l") == nil)
+
+	h:seek("set")
+	local count = 0
+	for l in h:lines() do
+		assert(l == line)
+		count = count + 1
+	end
+	assert(count == 50000)
+
+	h:seek("set", 100)
+	assert(#h:read("*a") == 4999900)
+
+	local ok, err = h:write("x")
+	assert(not ok)
+	h:close()
+end
+
+os.remove(name)
@@ -0,0 +1,108 @@
+--- Arithmetic temporaries and numeric for loop variables may be held unboxed.
+-- These ensure they behave identically to boxed values.
+
+-- Temporaries consumed by arithmetic, comparisons and table accesses
+do
+	local t = { 10, 20, 30, 40 }
+	local a, b = 1, 2
+	assert(t[a + b] == 30)
+	assert(t[a * 2 + b] == 40)
+	assert(t[a + 0.5] == nil)
+	assert((a + b) * (a - b) == -3)
+	assert(-(a + b) == -3)
+	assert(a + b < 4 and a + b <= 3 and a + b == 3)
+	assert(not (a + b < 3))
+
+	t[a + b] = "x"
+	assert(t[3] == "x")
+	t[a + 10] = "y"
+	assert(t[11] == "y")
+	t[a / 2] = "z"
+	assert(t[0.5] == "z")
+
+	assert(7 % (a + b) == 1 and -7 % (a + b) == 2)
+	assert((a + b) / 0 == math.huge and (a - a) / 0 ~= (a - a) / 0)
+	assert(2 ^ (a + b) == 8)
+end
+
+-- Strings are coerced and metamethods are called
+do
+	local a = "2"
+	assert(a * 3 + 1 == 7)
+
+	local mt = {}
+	mt.__add = function(x, y) return "added" end
+	mt.__lt = function(x, y) return true end
+	mt.__index = function(t, k) return k * 2 end
+	mt.__newindex = function(t, k, v) rawset(t, k + 1, v) end
+
+	local obj = setmetatable({}, mt)
+	assert(obj + 1 == "added")
+	assert(obj < obj)
+	local b = 4
+	assert(obj[b + 1] == 10)
+	obj[b + 1] = true
+	assert(rawget(obj, 6) == true)
+	assert(not pcall(function() return {} + (b + 1) end))
+end
+
+-- Numeric for loops
+do
+	local sum, count = 0, 0
+	for i = 1, 10 do sum = sum + i * 2 count = count + 1 end
+	assert(sum == 110 and count == 10)
+
+	sum = 0
+	for i = 10, 1, -0.5 do sum = sum + i end
+	assert(sum == 104.5)
+
+	local t = {}
+	for i = 1, 5 do t[i] = i * i end
+	for i = 1, 5 do assert(t[i] == i * i) end
+
+	-- Loop variables used as values
+	local values = {}
+	for i = 1, 3 do values[#values + 1] = i end
+	assert(values[1] == 1 and values[3] == 3 and math.type == nil or true)
+	for i = 1, 3 do assert(type(i) == "number" and tostring(i) == tostring(values[i])) end
+
+	-- Captured loop variables
+	local fns = {}
+	for i = 1, 3 do fns[i] = function() return i end end
+	assert(fns[1]() == 1 and fns[3]() == 3)
+
+	-- Nested loops
+	local total = 0
+	for i = 1, 4 do for j = i, 4 do total = total + i * j end end
+	assert(total == 65)
+
+	assert(not pcall(function() for i = "x", 2 do end end))
+end
+
+-- The debug library sees unboxed values
+do
+	for i = 5, 5 do
+		local x = i + 1
+		local name, value
+		for n = 1, 10 do
+			local local_name, local_value = debug.getlocal(1, n)
+			if local_name == "i" then name, value = local_name, local_value end
+		end
+		assert(name == "i" and value == 5)
+	end
+end
+
+-- Yielding from metamethods
+do
+	local mt = { __add = function(x, y) return coroutine.yield("add") end }
+	local obj = setmetatable({}, mt)
+	local co = coroutine.wrap(function()
+		local t = { 5, 6, 7 }
+		local n = 1
+		local r = obj + (n + 1)
+		return t[r + n]
+	end)
+
+	assert(co() == "add")
+	assert(co(2) == 7)
+end
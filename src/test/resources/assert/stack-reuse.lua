@@ -0,0 +1,110 @@
+--- Register windows are reused between calls at the same depth. These ensure
+-- values from a previous call never leak into a later one.
+
+local function set_locals()
+	local a, b, c, d, e = 1, 2, 3, 4, 5
+	return a + b + c + d + e
+end
+
+local function read_locals()
+	local a, b, c, d, e
+	return a, b, c, d, e
+end
+
+assert(set_locals() == 15)
+assert(select('#', read_locals()) == 5)
+for i = 1, 5 do assert(select(i, read_locals()) == nil, "leaked local " .. i) end
+
+-- Upvalues must be closed before the window is reused
+do
+	local function make(x)
+		local y = x * 2
+		return function() return x, y end
+	end
+
+	local f, g = make(1), make(2)
+	local fx, fy = f()
+	local gx, gy = g()
+	assert(fx == 1 and fy == 2, "first closure corrupted")
+	assert(gx == 2 and gy == 4, "second closure corrupted")
+end
+
+-- Upvalues left open after an error must also be closed
+do
+	local captured
+	local function fail(x)
+		captured = function() return x end
+		error("oops")
+	end
+
+	assert(not pcall(fail, "value"))
+	set_locals()
+	assert(captured() == "value", "errored closure corrupted")
+end
+
+-- Tail calls replace the current frame, so arguments must be copied first.
+do
+	local function sum(a, b, c, d, e, f)
+		return a + b + c + d + e + f
+	end
+
+	local function tail(a, b, c, d, e, f)
+		local x, y, z = 10, 20, 30
+		return sum(f, e, d, c, b, a)
+	end
+
+	assert(tail(1, 2, 3, 4, 5, 6) == 21)
+
+	local function tail_varargs(...)
+		local x, y, z = 10, 20, 30
+		return select('#', ...), ...
+	end
+
+	local function count(...) return tail_varargs(...) end
+	local n, a, b, c, d = count(1, 2, 3, 4)
+	assert(n == 4 and a == 1 and b == 2 and c == 3 and d == 4)
+end
+
+-- Growing the stack of a frame which is later reused
+do
+	local function small() local a = 1 return a end
+	local function big()
+		local a1, a2, a3, a4, a5, a6, a7, a8, a9, a10, a11, a12, a13, a14, a15, a16 = 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16
+		return function() return a1 + a16 end
+	end
+
+	assert(small() == 1)
+	local f = big()
+	assert(small() == 1)
+	assert(f() == 17)
+end
+
+-- Suspended coroutines keep their window
+do
+	local co = coroutine.wrap(function(x)
+		local y = x + 1
+		local get = function() return y end
+		coroutine.yield(get)
+		y = y + 1
+		coroutine.yield(get)
+	end)
+
+	local get = co(1)
+	assert(get() == 2)
+	set_locals()
+	assert(co() == get)
+	assert(get() == 3)
+end
+
+-- Deep recursion followed by shallower calls
+do
+	local function rec(n)
+		local a, b = n, n * 2
+		if n == 0 then return 0 end
+		return rec(n - 1) + b - a - n
+	end
+
+	assert(rec(1000) == 0)
+	assert(select('#', read_locals()) == 5)
+	for i = 1, 5 do assert(select(i, read_locals()) == nil) end
+end
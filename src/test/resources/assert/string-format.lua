@@ -16,3 +16,24 @@ end)
 while coroutine.status(c) ~= "dead" do
 	assert(coroutine.resume(c))
 end
+
+-- Format strings are compiled once and reused, so check the same format with different arguments.
+for _, case in ipairs {
+	{ 0, "0", "0" }, { 42, "42", "2a" }, { -1, "-1", "ffffffffffffffff" }, { 255, "255", "ff" },
+	{ math.mininteger or -2^63, "-9223372036854775808", "8000000000000000" },
+} do
+	local value, dec, hex = case[1], case[2], case[3]
+	assert(("%d|%i|%x|%X"):format(value, value, value, value) == dec .. "|" .. dec .. "|" .. hex .. "|" .. hex:upper())
+end
+
+assert(("%s and %s"):format("a\0b", ("x"):rep(100) .. "\0y") == "a and " .. ("x"):rep(100) .. "\0y")
+assert(("100%% %s"):format("done") == "100% done")
+assert(("%5s|%-3d|%03x"):format("ab", 7, 10) == "   ab|7  |00a")
+
+-- Errors in the format string are reported after errors in earlier arguments.
+local ok, err = pcall(string.format, "%d %y", "x")
+assert(not ok and err:find("number expected"), err)
+ok, err = pcall(string.format, "%d %y", 1)
+assert(not ok and err:find("invalid option '%y'", 1, true), err)
+ok, err = pcall(string.format, "%d %", 1)
+assert(not ok and err:find("invalid option '%'", 1, true), err)
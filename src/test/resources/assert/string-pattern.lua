@@ -0,0 +1,67 @@
+--- Patterns are compiled once and cached, and unanchored searches skip ahead to where a match could start. These
+-- ensure that doesn't change what is matched.
+
+-- Literal prefixes
+assert(("xxabcxxabd"):find("abd") == 8)
+assert(("xxabcxxabd"):find("ab[cd]", 4) == 8)
+assert(("xxabcxxabd"):match("a(b.)") == "bc")
+assert(("xxabcxxabd"):gsub("ab", "!") == "xx!cxx!d")
+assert(select(2, ("aaa"):gsub("ab", "!")) == 0)
+assert(("ab+c abbbc"):find("ab+c") == 6)
+assert(("ac abc"):find("ab?c") == 1)
+
+-- Required first characters
+assert(("  12 34"):find("%d+") == 3)
+assert(("abc"):find("%d+") == nil)
+assert(("a1b22c333"):gsub("%d+", "#") == "a#b#c#")
+local words = {}
+for w in ("  one two  three "):gmatch("%a+") do words[#words + 1] = w end
+assert(#words == 3 and words[1] == "one" and words[3] == "three")
+
+-- Patterns which may match the empty string are not skipped
+assert(("abc"):gsub("x*", "-") == "-a-b-c-")
+assert(("abc"):find("%d*") == 1)
+
+-- Anchors
+assert(("abc abc"):find("^abc", 2) == nil)
+assert(("abc abc"):gsub("^abc", "x") == "x abc")
+local n = 0
+for _ in ("^a^a"):gmatch("^a") do n = n + 1 end
+assert(n == 2, "gmatch treats ^ as a literal")
+
+-- Malformed patterns are still only reported when reached
+assert(("abc"):find("x[") == nil)
+assert(not pcall(string.find, "abc", "a["))
+assert(not pcall(string.find, "abc", "a["), "cached patterns report errors too")
+assert(select(2, pcall(string.find, "abc", "%")):find("malformed pattern"))
+
+-- The same pattern used on different strings
+for i = 1, 3 do
+	assert(("key = value"):match("^(%w+)%s*=%s*(%w+)$") == "key")
+	assert(("not a pair"):match("^(%w+)%s*=%s*(%w+)$") == nil)
+end
+
+-- Frontiers
+assert(("THE (quick) fox"):find("%f[%a]%a+%f[%A]", 2) == 6)
+assert(("hello world"):gsub("%f[%w]%w+", "<%0>") == "<hello> <world>")
+
+-- Long strings use a skip table when searching, so compare against a naive search.
+do
+	local function naive(s, needle, init)
+		for i = init, #s - #needle + 1 do
+			if s:sub(i, i + #needle - 1) == needle then return i end
+		end
+		return nil
+	end
+
+	local parts = {}
+	for i = 1, 300 do parts[i] = ("abcab"):sub(i % 5 + 1) .. (i % 7 == 0 and "cabcabd" or "") end
+	local s = table.concat(parts)
+	for _, needle in ipairs { "cabcabd", "abcab", "bcabca", "dab", "aaaa", "abcd", "bca", s:sub(-8), s:sub(1, 9) } do
+		for _, init in ipairs { 1, 2, 100, #s - 300, #s - 10 } do
+			local expected = naive(s, needle, init)
+			assert(s:find(needle, init, true) == expected, needle .. " from " .. init)
+			assert(s:find(needle:gsub("%p", "%%%0") .. "", init) == expected, needle .. " as a pattern from " .. init)
+		end
+	end
+end
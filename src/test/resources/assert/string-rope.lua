@@ -0,0 +1,122 @@
+--- Concatenating long strings produces a rope, which is only flattened when needed. These ensure operations which
+-- work over a rope's segments directly behave the same as on a normal string.
+
+-- Build a rope by repeated appending, along with the equivalent flat string.
+local function build(n)
+	local s, parts = "", {}
+	for i = 1, n do
+		local part = ("<%d:%s>"):format(i, ("abcdefghij"):sub(1, i % 10 + 1))
+		s = s .. part
+		parts[i] = part
+	end
+	return s, table.concat(parts)
+end
+
+-- Lengths
+do
+	local s, flat = build(200)
+	assert(#s == #flat)
+	assert(string.len(s) == #flat)
+	assert(s == flat)
+end
+
+-- string.byte
+do
+	local _, flat = build(200)
+	for _, i in ipairs { 1, 2, 33, 100, #flat - 1, #flat, -1, -50 } do
+		local s = build(200)
+		assert(s:byte(i) == flat:byte(i), i)
+	end
+
+	local s = build(200)
+	local a = { s:byte(90, 140) }
+	local b = { flat:byte(90, 140) }
+	assert(#a == #b)
+	for i = 1, #a do assert(a[i] == b[i]) end
+end
+
+-- string.sub
+do
+	local _, flat = build(200)
+	local ranges = {
+		{ 1, 5 }, { 1, -1 }, { 3, 40 }, { 100, 600 }, { -30, -1 }, { 50, 49 }, { 0, 10 }, { 500, 10000 }, { #flat, #flat },
+	}
+	for _, range in ipairs(ranges) do
+		local s = build(200)
+		assert(s:sub(range[1], range[2]) == flat:sub(range[1], range[2]), range[1] .. ", " .. range[2])
+	end
+end
+
+-- Plain string.find
+do
+	local _, flat = build(200)
+	local needles = { "<1:", "<200:", ">", "<57:abcdefgh>", "hij><", "missing", "", "<199:abcdefghij><200" }
+	for _, needle in ipairs(needles) do
+		for _, init in ipairs { 1, 10, 500, -20 } do
+			local s = build(200)
+			local a1, a2 = s:find(needle, init, true)
+			local b1, b2 = flat:find(needle, init, true)
+			assert(a1 == b1 and a2 == b2, needle .. " from " .. init)
+		end
+	end
+
+	-- Patterns without special characters also use a plain search
+	local s = build(200)
+	assert(s:find("<150:") == flat:find("<150:"))
+
+	-- Overlapping prefixes across segment boundaries
+	local r = ""
+	for i = 1, 40 do r = r .. "aab" end
+	r = r .. "aaab"
+	assert(r:find("aaab", 1, true) == #r - 3)
+end
+
+-- Patterns still work
+do
+	local s, flat = build(200)
+	assert(s:match("<(%d+):abc>") == flat:match("<(%d+):abc>"))
+	assert(s:gsub("%d", "") == flat:gsub("%d", ""))
+end
+
+-- table.concat and io.write
+do
+	local s, flat = build(200)
+	assert(table.concat({ s, "|", (build(10)) }) == flat .. "|" .. select(2, build(10)))
+
+	local name = os.tmpname()
+	local h = assert(io.open(name, "w"))
+	h:write((build(200)))
+	h:write((build(100)), "|", (build(50)), 12)
+	h:close()
+
+	h = assert(io.open(name, "r"))
+	local contents = h:read("*a")
+	h:close()
+	os.remove(name)
+
+	assert(contents == flat .. select(2, build(100)) .. "|" .. select(2, build(50)) .. "12")
+end
+
+-- Very long ropes are rebalanced rather than growing without bound.
+do
+	local s, parts = "", {}
+	for i = 1, 20000 do
+		local part = tostring(i)
+		s = s .. part
+		parts[i] = part
+	end
+	local flat = table.concat(parts)
+
+	assert(#s == #flat)
+	assert(s:byte(#flat) == flat:byte(#flat))
+	assert(s:sub(-100) == flat:sub(-100))
+	assert(s:find("19999", 1, true) == flat:find("19999", 1, true))
+	assert(s == flat)
+end
+
+-- Numbers can be converted from ropes
+do
+	local s = (" "):rep(20) .. "12.5" .. (" "):rep(20)
+	assert(tonumber(s) == 12.5)
+	assert(s + 1 == 13.5)
+end
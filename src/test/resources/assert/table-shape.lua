@@ -0,0 +1,112 @@
+--- Tables with only string keys share a layout ("shape"). These ensure that switching between shaped and hashed
+-- tables never loses values, and that shape-based lookups are never stale.
+
+local function keys(t)
+	local out = {}
+	for k in pairs(t) do out[#out + 1] = tostring(k) end
+	return table.concat(out, ",")
+end
+
+local function get_x(t) return t.x end
+local function get_y(t) return t.y end
+
+-- Tables built the same way are iterated the same way
+do
+	local a, b = { x = 1, y = 2, z = 3 }, { x = 4, y = 5, z = 6 }
+	assert(keys(a) == keys(b))
+
+	local c = {}
+	c.x, c.y, c.z = 1, 2, 3
+	local d = {}
+	d.x, d.y, d.z = 4, 5, 6
+	assert(keys(c) == keys(d))
+end
+
+-- Absent keys are remembered per shape, and must be forgotten when a key is added
+do
+	local t = { y = 1 }
+	for _ = 1, 3 do assert(get_x(t) == nil) end
+	t.x = 2
+	assert(get_x(t) == 2)
+	assert(get_y(t) == 1)
+
+	local u = { y = 1 }
+	assert(get_x(u) == nil)
+end
+
+-- Removing keys, and adding non-string keys
+do
+	local t = { x = 1, y = 2 }
+	assert(get_x(t) == 1)
+	t.x = nil
+	assert(get_x(t) == nil and get_y(t) == 2)
+	t.x = 3
+	assert(get_x(t) == 3)
+
+	local u = { x = 1, y = 2 }
+	u[1], u[10], u[1.5], u[true] = "a", "b", "c", "d"
+	assert(get_x(u) == 1 and get_y(u) == 2)
+	assert(u[1] == "a" and u[10] == "b" and u[1.5] == "c" and u[true] == "d")
+	u[10], u[1.5], u[true] = nil, nil, nil
+	assert(get_x(u) == 1 and get_y(u) == 2)
+	assert(#u == 1)
+end
+
+-- Growing beyond the largest shape
+do
+	local t = {}
+	for i = 1, 40 do
+		t["f" .. i] = i
+		assert(t["f" .. i] == i)
+		assert(get_x(t) == nil)
+	end
+	t.x = "x"
+	assert(get_x(t) == "x")
+	for i = 1, 40 do assert(t["f" .. i] == i) end
+
+	local n = 0
+	for _ in pairs(t) do n = n + 1 end
+	assert(n == 41)
+end
+
+-- Concatenated keys find the same value as constants
+do
+	local t = {}
+	local a, b = "x", ""
+	t[a .. b] = 1
+	assert(get_x(t) == 1 and t.x == 1)
+	t.y = 2
+	assert(t["y" .. b] == 2)
+end
+
+-- Clearing fields while iterating
+do
+	local t = { a = 1, b = 2, c = 3, d = 4, e = 5 }
+	local seen = 0
+	for k in pairs(t) do
+		t[k] = nil
+		seen = seen + 1
+	end
+	assert(seen == 5 and next(t) == nil)
+end
+
+-- Weak tables do not use shapes, but must still behave when converted
+do
+	local t = { x = 1, y = 2 }
+	assert(get_x(t) == 1)
+	setmetatable(t, { __mode = "k" })
+	assert(get_x(t) == 1 and get_y(t) == 2)
+	t.z = 3
+	setmetatable(t, nil)
+	assert(get_x(t) == 1 and get_y(t) == 2 and t.z == 3)
+end
+
+-- Metamethods on shaped metatables
+do
+	local mt = { __index = function(_, k) return "default " .. k end }
+	local t = setmetatable({ x = 1 }, mt)
+	assert(get_x(t) == 1)
+	assert(get_y(t) == "default y")
+	mt.__index = { y = "table" }
+	assert(get_y(t) == "table")
+end